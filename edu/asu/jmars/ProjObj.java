@@ -27,6 +27,8 @@ import java.awt.*;
 import java.awt.geom.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import edu.asu.jmars.layer.map2.MapThreadFactory;
 
 
 public abstract class ProjObj
@@ -69,6 +71,141 @@ public abstract class ProjObj
 		return  convWorldToSpatial(new Point2D.Double(x,y));
 	 }
 
+	/**
+	 ** Converts <code>count</code> world points, packed as x,y pairs
+	 ** in <code>src</code> from <code>srcOff</code>, to spatial
+	 ** points packed the same way in <code>dst</code> from
+	 ** <code>dstOff</code>. The arrays may be the same, to convert in
+	 ** place, if the offsets are too. The default converts each
+	 ** point with {@link #convWorldToSpatial(Point2D)}.
+	 **/
+	public void convWorldToSpatial(double[] src, int srcOff,
+								   double[] dst, int dstOff, int count)
+	 {
+		Point2D.Double pt = new Point2D.Double();
+		for(int i=0; i<count; i++)
+		 {
+			pt.setLocation(src[srcOff+2*i], src[srcOff+2*i+1]);
+			Point2D out = convWorldToSpatial(pt);
+			dst[dstOff+2*i] = out.getX();
+			dst[dstOff+2*i+1] = out.getY();
+		 }
+	 }
+
+	/**
+	 ** Converts <code>count</code> spatial points to world points, in
+	 ** the same packed layout as {@link
+	 ** #convWorldToSpatial(double[],int,double[],int,int)}. The
+	 ** default converts each point with {@link
+	 ** #convSpatialToWorld(Point2D)}.
+	 **/
+	public void convSpatialToWorld(double[] src, int srcOff,
+								   double[] dst, int dstOff, int count)
+	 {
+		Point2D.Double pt = new Point2D.Double();
+		for(int i=0; i<count; i++)
+		 {
+			pt.setLocation(src[srcOff+2*i], src[srcOff+2*i+1]);
+			Point2D out = convSpatialToWorld(pt);
+			dst[dstOff+2*i] = out.getX();
+			dst[dstOff+2*i+1] = out.getY();
+		 }
+	 }
+
+	/**
+	 ** Same as {@link #convWorldToSpatial(double[],int,double[],int,int)},
+	 ** but splits large arrays into slices converted on a shared
+	 ** pool of threads.
+	 **/
+	public void convWorldToSpatialParallel(double[] src, int srcOff,
+										   double[] dst, int dstOff, int count)
+	 {
+		convParallel(true, src, srcOff, dst, dstOff, count);
+	 }
+
+	/**
+	 ** Same as {@link #convSpatialToWorld(double[],int,double[],int,int)},
+	 ** but splits large arrays into slices converted on a shared
+	 ** pool of threads.
+	 **/
+	public void convSpatialToWorldParallel(double[] src, int srcOff,
+										   double[] dst, int dstOff, int count)
+	 {
+		convParallel(false, src, srcOff, dst, dstOff, count);
+	 }
+
+	/** Arrays with fewer points than this are converted serially */
+	private static final int PARALLEL_MIN = Config.get("projection.parallelMin", 20000);
+	private static ExecutorService pool;
+	private static int poolSize;
+
+	private static synchronized ExecutorService getPool()
+	 {
+		if(pool == null)
+		 {
+			poolSize = Math.max(1, Runtime.getRuntime().availableProcessors());
+			pool = Executors.newFixedThreadPool(poolSize, new MapThreadFactory("Projection"));
+		 }
+		return  pool;
+	 }
+
+	private void convParallel(final boolean toSpatial,
+							  final double[] src, final int srcOff,
+							  final double[] dst, final int dstOff, int count)
+	 {
+		ExecutorService exec = getPool();
+		int slices = Math.min(poolSize, count / Math.max(1, PARALLEL_MIN));
+		if(slices < 2)
+		 {
+			if(toSpatial)
+				convWorldToSpatial(src, srcOff, dst, dstOff, count);
+			else
+				convSpatialToWorld(src, srcOff, dst, dstOff, count);
+			return;
+		 }
+
+		// The calling thread converts the last slice itself
+		java.util.List<Future<?>> futures = new ArrayList<Future<?>>(slices-1);
+		int start = 0;
+		for(int i=0; i<slices; i++)
+		 {
+			final int first = start;
+			final int n = (count - start) / (slices - i);
+			start += n;
+			Runnable slice = new Runnable()
+			 {
+				public void run()
+				 {
+					if(toSpatial)
+						convWorldToSpatial(src, srcOff+2*first, dst, dstOff+2*first, n);
+					else
+						convSpatialToWorld(src, srcOff+2*first, dst, dstOff+2*first, n);
+				 }
+			 };
+			if(i < slices-1)
+				futures.add(exec.submit(slice));
+			else
+				slice.run();
+		 }
+
+		try
+		 {
+			for(Future<?> f: futures)
+				f.get();
+		 }
+		catch(InterruptedException e)
+		 {
+			Thread.currentThread().interrupt();
+			throw  new IllegalStateException("Interrupted converting points", e);
+		 }
+		catch(ExecutionException e)
+		 {
+			throw  new IllegalStateException("Failed converting points: " +
+											 e.getCause().getMessage(),
+											 e.getCause());
+		 }
+	 }
+
 	public static class Projection_OC extends ProjObj
 	 {
 		private final HVector up;
@@ -77,6 +214,14 @@ public abstract class ProjObj
 		private double  projCenterLon;
 		private double  projCenterLat;
 		private final HVector center;
+		// Components used by the bulk conversions: the up vector, the
+		// center vector, its part along up, the rest of it, and center
+		// cross up.
+		private final double ux, uy, uz;
+		private final double cx, cy, cz;
+		private final double cu;
+		private final double vx, vy, vz;
+		private final double cxux, cxuy, cxuz;
 		private double initialX;
 		private double initialY;
 		private static double ROUND = Config.get("projection.round", 0);
@@ -130,6 +275,22 @@ public abstract class ProjObj
 				? new HVector(180 + upLon, 90 - upLat)
 				: new HVector(      upLon, 90 + upLat);
 
+			ux = this.up.x;
+			uy = this.up.y;
+			uz = this.up.z;
+			cx = center.x;
+			cy = center.y;
+			cz = center.z;
+			cu = center.dot(this.up);
+			HVector v = center.sub(this.up.mul(cu));
+			vx = v.x;
+			vy = v.y;
+			vz = v.z;
+			HVector cxu = center.cross(this.up);
+			cxux = cxu.x;
+			cxuy = cxu.y;
+			cxuz = cxu.z;
+
 
                         log.println("Up lon/lat {"+this.up.lon()+" , "+this.up.lat()+"}");
                         log.println("Cen lon/lat {"+this.center.lon()+" , "+this.center.lat()+"}");
@@ -290,6 +451,84 @@ public abstract class ProjObj
 			return  new Point2D.Double(Math.toDegrees(x) % 360.0,
                                                    Math.toDegrees(y));
 		 }
+
+		/**
+		 ** Same math as {@link #convWorldToSpatial(Point2D)}, with the
+		 ** center and up vectors expanded into components so no
+		 ** objects are created per point.
+		 **/
+		public void convWorldToSpatial(double[] src, int srcOff,
+									   double[] dst, int dstOff, int count)
+		 {
+			for(int i=0; i<count; i++)
+			 {
+				double x = Math.toRadians(src[srcOff+2*i]);
+				double y = Math.toRadians(src[srcOff+2*i+1]);
+				double cosY = Math.cos(y);
+				double sinY = Math.sin(y);
+				double cosX = Math.cos(x);
+				double sinX = Math.sin(x);
+
+				// The point at y degrees in the center->up direction,
+				// split into its part along up and its part around
+				// up, which is rotated x degrees about up.
+				double along = cosY * cu + sinY;
+				double px = cosX * cosY * vx - sinX * cosY * cxux + along * ux;
+				double py = cosX * cosY * vy - sinX * cosY * cxuy + along * uy;
+				double pz = cosX * cosY * vz - sinX * cosY * cxuz + along * uz;
+
+				double norm = Math.sqrt(px*px + py*py + pz*pz);
+				dst[dstOff+2*i] = Math.toDegrees(lon_of(px, py)) % 360;
+				dst[dstOff+2*i+1] = Math.toDegrees(Math.asin(norm == 0 ? pz : pz / norm));
+			 }
+		 }
+
+		/**
+		 ** Same math as {@link #convSpatialToWorld(Point2D)}, with the
+		 ** center and up vectors expanded into components so no
+		 ** objects are created per point.
+		 **/
+		public void convSpatialToWorld(double[] src, int srcOff,
+									   double[] dst, int dstOff, int count)
+		 {
+			for(int i=0; i<count; i++)
+			 {
+				double lon = Math.toRadians(src[srcOff+2*i]);
+				double lat = Math.toRadians(src[srcOff+2*i+1]);
+				double cosLat = Math.cos(lat);
+				double px = cosLat * Math.cos(-lon);
+				double py = cosLat * Math.sin(-lon);
+				double pz = Math.sin(lat);
+
+				// Remove the part along up and measure the angle
+				// about up from the center
+				double dp = ux*px + uy*py + uz*pz;
+				double nx = px - ux*dp;
+				double ny = py - uy*dp;
+				double nz = pz - uz*dp;
+				double x = lon_of(nx*cx + ny*cy + nz*cz,
+								  nx*cxux + ny*cxuy + nz*cxuz);
+
+				// The latitude is 90 less the separation from up, as
+				// in HVector.unitSeparation()
+				double sep;
+				if(dp > 0)
+				 {
+					double dx = ux-px, dy = uy-py, dz = uz-pz;
+					sep = 2 * Math.asin(Math.sqrt(dx*dx + dy*dy + dz*dz) / 2);
+				 }
+				else if(dp < 0)
+				 {
+					double dx = ux+px, dy = uy+py, dz = uz+pz;
+					sep = Math.PI - 2 * Math.asin(Math.sqrt(dx*dx + dy*dy + dz*dz) / 2);
+				 }
+				else
+					sep = Math.PI / 2;
+
+				dst[dstOff+2*i] = Math.toDegrees(x) % 360.0;
+				dst[dstOff+2*i+1] = Math.toDegrees(Math.PI/2 - sep);
+			 }
+		 }
 		
 	 }
 
@@ -487,13 +726,22 @@ public abstract class ProjObj
 
 	public static double lon_of(HVector p)
 	 {
-		if(p.y > 0)
-			return  Math.PI * 2 - Math.atan2(p.y, p.x);
+		return  lon_of(p.x, p.y);
+	 }
+
+	/**
+	 ** Returns the west longitude in radians of a vector with the
+	 ** given x and y components.
+	 **/
+	public static double lon_of(double x, double y)
+	 {
+		if(y > 0)
+			return  Math.PI * 2 - Math.atan2(y, x);
 
-		else if(p.y < 0)
-			return  -Math.atan2(p.y, p.x);
+		else if(y < 0)
+			return  -Math.atan2(y, x);
 
-		else if(p.x < 0)
+		else if(x < 0)
 			return  Math.PI;
 
 		else
@@ -506,7 +754,12 @@ public abstract class ProjObj
 	public static void main(String[] av)
 	 throws Throwable
 	 {
-		if(av.length == 1)
+		if(av.length >= 1  &&  av[0].equals("bench"))
+		 {
+			benchmark(av.length > 1 ? Integer.parseInt(av[1]) : 1000000);
+			System.exit(0);
+		 }
+		else if(av.length == 1)
 		 {
 			dumpGrid(av[0]);
 			System.exit(0);
@@ -566,6 +819,80 @@ public abstract class ProjObj
 		 }
 	 }
 
+	/**
+	 ** Times the per-point, bulk, and parallel bulk conversions in
+	 ** both directions over the given number of random points, and
+	 ** prints the largest difference between the per-point and bulk
+	 ** results. Run with "bench [points]" as the arguments.
+	 **/
+	private static void benchmark(int count)
+	 {
+		ProjObj po = new Projection_OC(37, 23);
+		Random rand = new Random(0);
+		double[] spatial = new double[count*2];
+		for(int i=0; i<count; i++)
+		 {
+			spatial[2*i] = rand.nextDouble() * 360;
+			spatial[2*i+1] = rand.nextDouble() * 180 - 90;
+		 }
+		double[] world = new double[count*2];
+		double[] out = new double[count*2];
+
+		for(int round=0; round<5; round++)
+		 {
+			long t0 = System.nanoTime();
+			for(int i=0; i<count; i++)
+			 {
+				Point2D p = po.convSpatialToWorld(spatial[2*i], spatial[2*i+1]);
+				world[2*i] = p.getX();
+				world[2*i+1] = p.getY();
+			 }
+			long t1 = System.nanoTime();
+			po.convSpatialToWorld(spatial, 0, out, 0, count);
+			long t2 = System.nanoTime();
+			double toWorldDiff = maxDiff(world, out);
+			po.convSpatialToWorldParallel(spatial, 0, out, 0, count);
+			long t3 = System.nanoTime();
+
+			for(int i=0; i<count; i++)
+			 {
+				Point2D p = po.convWorldToSpatial(world[2*i], world[2*i+1]);
+				spatial[2*i] = p.getX();
+				spatial[2*i+1] = p.getY();
+			 }
+			long t4 = System.nanoTime();
+			po.convWorldToSpatial(world, 0, out, 0, count);
+			long t5 = System.nanoTime();
+			double toSpatialDiff = maxDiff(spatial, out);
+			po.convWorldToSpatialParallel(world, 0, out, 0, count);
+			long t6 = System.nanoTime();
+
+			System.out.println("round " + round + ", ns/point:" +
+				" toWorld point " + (t1-t0)/count +
+				" bulk " + (t2-t1)/count +
+				" parallel " + (t3-t2)/count +
+				" (max diff " + toWorldDiff + ")" +
+				", toSpatial point " + (t4-t3)/count +
+				" bulk " + (t5-t4)/count +
+				" parallel " + (t6-t5)/count +
+				" (max diff " + toSpatialDiff + ")");
+		 }
+	 }
+
+	private static double maxDiff(double[] a, double[] b)
+	 {
+		double max = 0;
+		for(int i=0; i<a.length; i++)
+		 {
+			double d = Math.abs(a[i] - b[i]);
+			// x values may wrap to either side of 0/360
+			if(i % 2 == 0)
+				d = Math.min(d, Math.abs(360 - d));
+			max = Math.max(max, d);
+		 }
+		return  max;
+	 }
+
 	private static void dumpGrid(String url)
 	 {
 		String args = url.substring(url.indexOf('?')+1);
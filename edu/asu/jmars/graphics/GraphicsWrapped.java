@@ -170,7 +170,14 @@ public final class GraphicsWrapped
 			 }
 		 };
 
-	private Shape normalize(Shape s)
+	/**
+	 ** Returns the given shape moved into the wrapping range, as
+	 ** {@link #draw} and {@link #fill} do with every shape. Shapes
+	 ** normalized this way may be appended into a single path and
+	 ** drawn at once, provided the combined bounds stay narrower
+	 ** than half the {@link #getModulus modulus}.
+	 **/
+	public Shape normalize(Shape s)
 	 {
 		double x = s.getBounds2D().getMinX();
 		if(x < 0  ||  x >= mod)
@@ -182,6 +189,14 @@ public final class GraphicsWrapped
 		return  s;
 	 }
 
+	/**
+	 ** Returns the width of the repeating world range.
+	 **/
+	public float getModulus()
+	 {
+		return  mod;
+	 }
+
     public void draw(Shape s)
      {
 		s = normalize(s);
@@ -27,7 +27,11 @@ import java.awt.*;
 import java.awt.geom.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  ** A simple but indispensible class for caching groundtrack data. A
@@ -547,10 +551,134 @@ public final class GridDataStore
 	 ** Internally, grid data is grabbed in chunks (not one point at a
 	 ** time). The size of each chunk is given by XCOUNT and YCOUNT.
 	 ** The chunks are maintained as a sparse array, implemented by a
-	 ** map keyed on each chunk's coordinates.
+	 ** bounded cache keyed on each chunk's coordinates. Point chunks
+	 ** are packed x,y,z doubles, see {@link #getGridData(int,int,double[])}.
 	 **/
-	private Map gridChunks = new HashMap(); // grid cell corner points, OLD
-	private Map gridCellChunks = new HashMap(); // grid cell data structures
+	private final ChunkCache<DoubleBuffer> gridChunks =
+		new ChunkCache<DoubleBuffer>(Config.get("groundtrack.cache.points", 1024))
+		 {
+			DoubleBuffer load(Point key)
+			 {
+				return  createChunk(key);
+			 }
+		 };
+	private final ChunkCache<Cell[][]> gridCellChunks =
+		new ChunkCache<Cell[][]>(Config.get("groundtrack.cache.cells", 128))
+		 {
+			Cell[][] load(Point key)
+			 {
+				return  createCellChunk(key);
+			 }
+		 };
+
+	/**
+	 ** Holds at most <code>capacity</code> chunks, dropping the least
+	 ** recently used one when a new chunk pushes it over. Reads of
+	 ** resident chunks take no locks; a chunk that's missing is loaded
+	 ** once, by the first thread to ask for it, while any other thread
+	 ** asking for the same chunk waits on it.
+	 **/
+	private static abstract class ChunkCache<V>
+	 {
+		private static final class Slot<V>
+		 {
+			final FutureTask<V> task;
+			volatile long lastUse;
+			Slot(FutureTask<V> task)
+			 {
+				this.task = task;
+			 }
+		 }
+
+		private final int capacity;
+		private final ConcurrentHashMap<Point,Slot<V>> slots =
+			new ConcurrentHashMap<Point,Slot<V>>();
+		private final AtomicLong clock = new AtomicLong();
+
+		ChunkCache(int capacity)
+		 {
+			this.capacity = Math.max(4, capacity);
+		 }
+
+		/**
+		 ** Creates the chunk with the given key, called without any
+		 ** locks held.
+		 **/
+		abstract V load(Point key);
+
+		V get(final Point key)
+		 {
+			Slot<V> slot = slots.get(key);
+			if(slot == null)
+			 {
+				Slot<V> created = new Slot<V>(new FutureTask<V>(
+					new Callable<V>()
+					 {
+						public V call()
+						 {
+							return  load(key);
+						 }
+					 }));
+				created.lastUse = clock.incrementAndGet();
+				slot = slots.putIfAbsent(key, created);
+				if(slot == null)
+				 {
+					slot = created;
+					slot.task.run();
+					trim();
+				 }
+			 }
+			slot.lastUse = clock.incrementAndGet();
+
+			boolean interrupted = false;
+			try
+			 {
+				while(true)
+					try
+					 {
+						return  slot.task.get();
+					 }
+					catch(InterruptedException e)
+					 {
+						interrupted = true;
+					 }
+			 }
+			catch(ExecutionException e)
+			 {
+				slots.remove(key, slot);
+				throw  new RuntimeException("Unable to load grid chunk " + key,
+											e.getCause());
+			 }
+			finally
+			 {
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			 }
+		 }
+
+		/**
+		 ** Drops least recently used chunks until the cache is back
+		 ** under capacity. Only inserts get here, so the linear scan
+		 ** for the oldest chunk is cheap next to the load itself.
+		 **/
+		private synchronized void trim()
+		 {
+			while(slots.size() > capacity)
+			 {
+				Point oldest = null;
+				long oldestUse = Long.MAX_VALUE;
+				for(Map.Entry<Point,Slot<V>> e: slots.entrySet())
+					if(e.getValue().lastUse < oldestUse)
+					 {
+						oldest = e.getKey();
+						oldestUse = e.getValue().lastUse;
+					 }
+				if(oldest == null)
+					break;
+				slots.remove(oldest);
+			 }
+		 }
+	 }
 
 	private String server;
 	double xBase, xDelta;
@@ -598,10 +726,10 @@ public final class GridDataStore
 		log.println("xDelta = " + xDelta);
 		log.println("xBase = " + xBase);
 */
-		HVector[][] swPointData = getChunk(        ijBase       );
-		HVector[][] sePointData = getChunk(nextKey(ijBase, 1, 0));
-		HVector[][] nePointData = getChunk(nextKey(ijBase, 1, 1));
-		HVector[][] nwPointData = getChunk(nextKey(ijBase, 0, 1));
+		HVector[][] swPointData = toVectors(getChunk(        ijBase       ));
+		HVector[][] sePointData = toVectors(getChunk(nextKey(ijBase, 1, 0)));
+		HVector[][] nePointData = toVectors(getChunk(nextKey(ijBase, 1, 1)));
+		HVector[][] nwPointData = toVectors(getChunk(nextKey(ijBase, 0, 1)));
 		Cell[][] chunk = new Cell[XCOUNT][YCOUNT];
 
 		// Excludes the east-most column
@@ -641,27 +769,37 @@ public final class GridDataStore
 		return  chunk;
 	 }
 
-	private static final HVector[][] zeroChunk;
-	static
+	/** Number of doubles in a chunk of packed points */
+	private static final int CHUNK_DOUBLES = XCOUNT * YCOUNT * 3;
+
+	/** Dummy data returned for chunks that can't be obtained */
+	private static final DoubleBuffer zeroChunk =
+		DoubleBuffer.wrap(new double[CHUNK_DOUBLES]).asReadOnlyBuffer();
+
+	/**
+	 ** Returns the index in a packed chunk of the x coordinate of the
+	 ** given point, relative to the chunk's base point.
+	 **/
+	private static int chunkIndex(int i, int j)
 	 {
-		HVector zeroVector = new HVector(0,0,0);
-		zeroChunk = new HVector[XCOUNT][YCOUNT];
-		for(int i=0; i<XCOUNT; i++)
-			for(int j=0; j<YCOUNT; j++)
-				zeroChunk[i][j] = zeroVector;
+		return  (i * YCOUNT + j) * 3;
 	 }
 
 	/**
-	 ** Returns a semi-deep copy of the array zeroChunk (still shallow
-	 ** w.r.t. the elements themselves). This is better than
-	 ** zeroChunk.clone(), which is shallow w.r.t. the rows.
+	 ** Unpacks a chunk into vectors, for building cells from.
 	 **/
-	private static HVector[][] makeZeroChunk()
+	private static HVector[][] toVectors(DoubleBuffer chunk)
 	 {
-		HVector[][] copy = new HVector[XCOUNT][YCOUNT];
+		HVector[][] vectors = new HVector[XCOUNT][YCOUNT];
 		for(int i=0; i<XCOUNT; i++)
-			copy[i] = (HVector[]) zeroChunk[0].clone();
-		return  copy;
+			for(int j=0; j<YCOUNT; j++)
+			 {
+				int k = chunkIndex(i, j);
+				vectors[i][j] = new HVector(chunk.get(k),
+											chunk.get(k+1),
+											chunk.get(k+2));
+			 }
+		return  vectors;
 	 }
 
 	private URL getRemoteUrl(double xMin, double yMin)
@@ -701,23 +839,30 @@ public final class GridDataStore
 	 }
 
 	/**
-	 ** Given the base point for a chunk of data, goes out and
+	 ** Whether createChunk looks for grid files written by {@link
+	 ** #generateLocalFiles} before asking the server.
+	 **/
+	private static final boolean LOCAL_GRIDS =
+		Config.get("groundtrack.local_grids", false);
+
+	/**
+	 ** Given the base point for a chunk of data, reads it from a local
+	 ** binary grid file if there is one and {@link #LOCAL_GRIDS} is
+	 ** set, or else goes out and
 	 ** retrieves that data from the server. Returns dummy data on
 	 ** error (all zero vectors).
 	 **/
-	private HVector[][] createChunk(Point ijBase)
+	private DoubleBuffer createChunk(Point ijBase)
 	 {
-		HVector[][] chunk;
-
-//		log.println("ijBase = " + ijBase);
+		DoubleBuffer chunk;
 
 		double xMin = ijBase.x * xDelta + xBase + Main.PO.getServerOffsetX();
 		double yMin = ijBase.y * yDelta + yBase;
 
-//		log.println("xMin = " + xMin);
-//		log.println("yMin = " + yMin);
+		chunk = LOCAL_GRIDS ? getLocalChunk(xMin, yMin) : null;
 
-		chunk = getRemoteChunk(xMin, yMin);
+		if(chunk == null)
+			chunk = getRemoteChunk(xMin, yMin);
 
 		if(chunk == null)
 			chunk = zeroChunk;
@@ -726,33 +871,146 @@ public final class GridDataStore
 	 }
 
 	/**
-	 ** Used by createChunk. Returns null if the data can't be found
-	 ** locally.
+	 ** Identifies a binary grid file, followed by a version number and
+	 ** the XCOUNT, YCOUNT, xDelta, yDelta and server the file was
+	 ** written with.
 	 **/
-	private HVector[][] getLocalChunk(double xMin, double yMin)
+	private static final int BINARY_MAGIC = 0x4a475244; // "JGRD"
+	private static final int BINARY_VERSION = 2;
+
+	/** The grid spacing {@link #generateLocalFiles} downloads with */
+	private static final double LOCAL_X_DELTA = 400;
+	private static final double LOCAL_Y_DELTA = 20;
+
+	private static File getBinaryFile(String fname)
 	 {
+		return  new File(fname + ".bin");
+	 }
+
+	/**
+	 ** Used by createChunk. Maps the binary grid file for the chunk,
+	 ** as written by {@link #writeBinaryChunk}, and returns its
+	 ** points without copying them. Returns null if there's no such
+	 ** file, or it was written for another chunk size, grid spacing
+	 ** or server.
+	 **/
+	private DoubleBuffer getLocalChunk(double xMin, double yMin)
+	 {
+		File file = getBinaryFile(getLocalFilename(xMin, yMin));
+		if(!file.isFile())
+			return  null;
 		try
 		 {
-			String fname = getLocalFilename(xMin, yMin);
-
-			BufferedReader fin = new BufferedReader(
-				new InputStreamReader(
-					new FileInputStream(fname)
-					 )
-				 );
-
-			return  readChunk(fin, fname);
+			FileChannel ch = new FileInputStream(file).getChannel();
+			try
+			 {
+				// The mapping stays valid after the channel is closed
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+											  0, ch.size());
+				if(!readHeader(buf, server, xDelta, yDelta)  ||
+				   buf.remaining() != CHUNK_DOUBLES * 8)
+				 {
+					log.aprintln("Ignoring grid file " + file + " written for another grid");
+					return  null;
+				 }
+				return  buf.slice().asDoubleBuffer();
+			 }
+			finally
+			 {
+				ch.close();
+			 }
 		 }
 		catch(IOException e)
 		 {
+			log.aprintln("Unable to read grid file " + file + ": " + e);
 			return  null;
 		 }
 	 }
 
+	/**
+	 ** Reads a binary grid file header, leaving the buffer at the
+	 ** first point, and returns true if it matches the given grid.
+	 **/
+	private static boolean readHeader(ByteBuffer buf, String server,
+									  double xDelta, double yDelta)
+	 {
+		try
+		 {
+			if(buf.getInt() != BINARY_MAGIC  ||
+			   buf.getInt() != BINARY_VERSION  ||
+			   buf.getInt() != XCOUNT  ||
+			   buf.getInt() != YCOUNT  ||
+			   buf.getDouble() != xDelta  ||
+			   buf.getDouble() != yDelta)
+				return  false;
+			int length = buf.getInt();
+			if(length < 0  ||  length > buf.remaining())
+				return  false;
+			byte[] name = new byte[length];
+			buf.get(name);
+			return  new String(name, "UTF-8").equals(server);
+		 }
+		catch(BufferUnderflowException e)
+		 {
+			return  false;
+		 }
+		catch(UnsupportedEncodingException e)
+		 {
+			return  false;
+		 }
+	 }
+
+	/**
+	 ** Writes a chunk as a binary grid file: a header of the magic
+	 ** number, version, XCOUNT and YCOUNT as ints, xDelta and yDelta
+	 ** as doubles, and the server as an int length and UTF-8 bytes,
+	 ** followed by the packed x,y,z doubles of the chunk's points, all
+	 ** big-endian.
+	 **/
+	private static void writeBinaryChunk(DoubleBuffer chunk, File file, String server,
+										 double xDelta, double yDelta)
+	 throws IOException
+	 {
+		byte[] name = server.getBytes("UTF-8");
+		ByteBuffer buf = ByteBuffer.allocate(36 + name.length + CHUNK_DOUBLES * 8);
+		buf.putInt(BINARY_MAGIC);
+		buf.putInt(BINARY_VERSION);
+		buf.putInt(XCOUNT);
+		buf.putInt(YCOUNT);
+		buf.putDouble(xDelta);
+		buf.putDouble(yDelta);
+		buf.putInt(name.length);
+		buf.put(name);
+		for(int k=0; k<CHUNK_DOUBLES; k++)
+			buf.putDouble(chunk.get(k));
+		buf.flip();
+
+		// Write to a temporary file first, so readers never map a partial one
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel ch = new FileOutputStream(temp).getChannel();
+		try
+		 {
+			while(buf.hasRemaining())
+				ch.write(buf);
+		 }
+		finally
+		 {
+			ch.close();
+		 }
+		if(!temp.renameTo(file))
+		 {
+			file.delete();
+			if(!temp.renameTo(file))
+				throw  new IOException("Unable to rename " + temp + " to " + file);
+		 }
+	 }
+
 	/**
 	 ** Used by createChunk. Returns null if the url can't be opened.
+	 ** The server only supplies text, which is parsed straight into
+	 ** packed points.
 	 **/
-	private HVector[][] getRemoteChunk(double xMin, double yMin)
+	private DoubleBuffer getRemoteChunk(double xMin, double yMin)
 	 {
 		URL url = getRemoteUrl(xMin, yMin);
 		if(url == null)
@@ -763,13 +1021,20 @@ public final class GridDataStore
 		for(int i=0; i<4; i++)
 			// If we fail to open the url, the for() loop guarantees
 			// that we retry at least 4 times before giving up and
-			// declaring an error.
+			// declaring an error. Only the thread loading this chunk
+			// waits out the retries.
 			try
 			 {
 				fin = new BufferedReader(new InputStreamReader(
 					url.openStream()));
-					
-				return  readChunk(fin, url.toString());
+				try
+				 {
+					return  readChunk(fin, url.toString());
+				 }
+				finally
+				 {
+					fin.close();
+				 }
 			 }
 			catch(Throwable e)
 			 {
@@ -778,10 +1043,12 @@ public final class GridDataStore
 				log.println(e);
 				try
 				 {
-					Thread.sleep(100);
+					Thread.sleep(100 << i);
 				 }
-				catch(Throwable ex)
+				catch(InterruptedException ex)
 				 {
+					Thread.currentThread().interrupt();
+					return  null;
 				 }
 			 }
 
@@ -789,22 +1056,34 @@ public final class GridDataStore
 	 }
 
 	/**
-	 ** Given a file reader, returns a chunk that's read from it.
-	 ** Returns partially-zeroed data if errors occur.
+	 ** Given a reader of text grid data, returns the chunk that's read
+	 ** from it, as packed points. Returns partially-zeroed data if the
+	 ** text ends early.
 	 **/
-	private HVector[][] readChunk(BufferedReader fin,
-								  String source)
+	private static DoubleBuffer readChunk(BufferedReader fin,
+										  String source)
 	 throws IOException
 	 {
 		// Read the data
-		HVector[][] chunk = makeZeroChunk();
+		double[] chunk = new double[CHUNK_DOUBLES];
 
 		int i=0, j=0;
 		try
 		 {
 			for(i=0; i<XCOUNT; i++)
 				for(j=0; j<YCOUNT; j++)
-					chunk[i][j] = HVector.readExc(fin);
+				 {
+					HVector v = HVector.readExc(fin);
+					if(v == null)
+					 {
+						log.aprintln("PREMATURE END OF DATA AT " + i+","+j + " FROM " + source);
+						return  DoubleBuffer.wrap(chunk);
+					 }
+					int k = chunkIndex(i, j);
+					chunk[k  ] = v.x;
+					chunk[k+1] = v.y;
+					chunk[k+2] = v.z;
+				 }
 		 }
 		catch(IOException e)
 		 {
@@ -814,7 +1093,7 @@ public final class GridDataStore
 		 }
 
 		// Return the data
-		return  chunk;
+		return  DoubleBuffer.wrap(chunk);
 	 }
 
 	/**
@@ -917,18 +1196,9 @@ public final class GridDataStore
 	 ** Given a cell index point, returns the chunk corresponding to
 	 ** it. Generates the chunk if necessary.
 	 **/
-	private synchronized HVector[][] getChunk(Point key)
+	private DoubleBuffer getChunk(Point key)
 	 {
-		HVector[][] data = (HVector[][]) gridChunks.get(key);
-
-		// If we don't have it yet, generate and store that data
-		if(data == null)
-		 {
-			gridChunks.put(key, data = createChunk(key));
-//			log.println("Stored into " + key);
-		 }
-
-		return  data;
+		return  gridChunks.get(key);
 	 }
 
 	/**
@@ -939,44 +1209,37 @@ public final class GridDataStore
 	 {
 		Point key = createKey(i, j);
 
-		HVector[][] data = getChunk(key);
+		DoubleBuffer data = getChunk(key);
 
 		// Finally, return the requested point
-		return  data[i - key.x][j - key.y];
+		int k = chunkIndex(i - key.x, j - key.y);
+		return  new HVector(data.get(k), data.get(k+1), data.get(k+2));
 	 }
-//  		try
-//  		 {
-//  			return  data[i - key.x][j - key.y];
-//  		 }
-//  		catch(ArrayIndexOutOfBoundsException e)
-//  		 {
-//  			log.aprintln("data.length = " + data.length);
-//  			log.aprintln("i = " + i);
-//  			log.aprintln("key.x = " + key.x);
-//  			if(i - key.x < data.length  &&  i - key.x > 0)
-//  			 {
-//  				log.aprintln("data[i-key.x].length = " + data[i-key.x].length);
-//  				log.aprintln("j = " + j);
-//  				log.aprintln("key.y = " + key.y);
-//  			 }
-//  			else
-//  				log.aprintln("j omitted");
-//  			throw  e;
-//  		 }
 
 	/**
-	 ** Given a cell index point, returns the chunk corresponding to
-	 ** it. Generates the chunk if necessary.
+	 ** Given a cell index point, stores the x,y,z coordinates of the
+	 ** 3-space vector corresponding to that grid point into
+	 ** <code>xyz</code>, without creating any objects.
 	 **/
-	private synchronized Cell[][] getCellChunk(Point key)
+	public final void getGridData(int i, int j, double[] xyz)
 	 {
-		Cell[][] data = (Cell[][]) gridCellChunks.get(key);
+		Point key = createKey(i, j);
 
-		// If we don't have it yet, generate and store that data
-		if(data == null)
-			gridCellChunks.put(key, data = createCellChunk(key));
+		DoubleBuffer data = getChunk(key);
 
-		return  data;
+		int k = chunkIndex(i - key.x, j - key.y);
+		xyz[0] = data.get(k);
+		xyz[1] = data.get(k+1);
+		xyz[2] = data.get(k+2);
+	 }
+
+	/**
+	 ** Given a cell index point, returns the chunk corresponding to
+	 ** it. Generates the chunk if necessary.
+	 **/
+	private Cell[][] getCellChunk(Point key)
+	 {
+		return  gridCellChunks.get(key);
 	 }
 
 	/**
@@ -1042,8 +1305,8 @@ public final class GridDataStore
 		 }
 
 		// Create an appropriate GridDataStore object
-		double xDelta = 400;
-		double yDelta = 20;
+		double xDelta = LOCAL_X_DELTA;
+		double yDelta = LOCAL_Y_DELTA;
 		double xBase =
 			Util.roundToMultiple(
 				worldRange.getX() + Main.PO.getServerOffsetX(),
@@ -1085,11 +1348,88 @@ public final class GridDataStore
 				log.println("x = " + x);
 				log.println("y = " + y);
 
-				Util.urlToDisk1(grid.getRemoteUrl(x, y).toString(),
-								grid.getLocalFilename(x, y));
+				String fname = grid.getLocalFilename(x, y);
+				Util.urlToDisk1(grid.getRemoteUrl(x, y).toString(), fname);
+				convertLocalFile(new File(fname), TRACK_SERVER, xDelta, yDelta);
 			 }
 	 }
 
+	/**
+	 ** Writes the binary form of a text grid file, as downloaded by
+	 ** {@link #generateLocalFiles} from the given server and grid
+	 ** spacing, next to it.
+	 **/
+	private static void convertLocalFile(File text, String server,
+										 double xDelta, double yDelta)
+	 throws IOException
+	 {
+		BufferedReader fin = new BufferedReader(new FileReader(text));
+		try
+		 {
+			writeBinaryChunk(readChunk(fin, text.getPath()),
+							 getBinaryFile(text.getPath()),
+							 server, xDelta, yDelta);
+		 }
+		finally
+		 {
+			fin.close();
+		 }
+	 }
+
+	/**
+	 ** Converts every text grid file in the given directory, as
+	 ** written by earlier versions of {@link #generateLocalFiles}, to
+	 ** the binary form read by this class. The text files are taken to
+	 ** hold the track server's data at the spacing {@link
+	 ** #generateLocalFiles} uses. Files that already have an
+	 ** up-to-date binary form for that grid are skipped. Returns the number of files
+	 ** converted.
+	 **/
+	public static int convertLocalFiles(File gridDir)
+	 throws IOException
+	 {
+		File[] files = gridDir.listFiles();
+		if(files == null)
+			throw  new IOException("Unable to list " + gridDir);
+
+		int count = 0;
+		for(int i=0; i<files.length; i++)
+		 {
+			File text = files[i];
+			String name = text.getName();
+			if(!text.isFile()  ||  !name.startsWith("g_")  ||  name.indexOf('.') != -1)
+				continue;
+			File bin = getBinaryFile(text.getPath());
+			if(bin.isFile()  &&  bin.lastModified() >= text.lastModified()  &&
+			   hasHeader(bin, TRACK_SERVER, LOCAL_X_DELTA, LOCAL_Y_DELTA))
+				continue;
+			convertLocalFile(text, TRACK_SERVER, LOCAL_X_DELTA, LOCAL_Y_DELTA);
+			count++;
+		 }
+		return  count;
+	 }
+
+	/**
+	 ** Returns true if the given binary grid file was written for the
+	 ** given grid.
+	 **/
+	private static boolean hasHeader(File bin, String server,
+									 double xDelta, double yDelta)
+	 throws IOException
+	 {
+		FileInputStream fin = new FileInputStream(bin);
+		try
+		 {
+			FileChannel ch = fin.getChannel();
+			return  readHeader(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()),
+							   server, xDelta, yDelta);
+		 }
+		finally
+		 {
+			fin.close();
+		 }
+	 }
+
 	private static final int floor90(double y)
 	 {
 		int result = (int) Math.floor(y) + 90;
@@ -1103,11 +1443,22 @@ public final class GridDataStore
 	/////////////////////////////////////////////////////////////////////////
 
 	/**
-	 ** @deprecated Code used as a simple test driver.
+	 ** Run with "convert [dir]" to convert the text grid files in
+	 ** the given directory (GRIDS by default) to binary ones.
+	 **
+	 ** @deprecated Otherwise, code used as a simple test driver.
 	 **/
 	public static void main(String[] av)
 	 throws IOException
 	 {
+		if(av.length > 0  &&  av[0].equals("convert"))
+		 {
+			File dir = new File(av.length > 1 ? av[1] : "GRIDS");
+			System.out.println("Converted " + convertLocalFiles(dir) +
+							   " grid files in " + dir);
+			return;
+		 }
+
 		DebugLog.readFile(".debugrc");
 		log.println("Creating");
 		GridDataStore grid =
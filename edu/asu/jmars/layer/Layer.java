@@ -22,12 +22,18 @@ package edu.asu.jmars.layer;
 
 import edu.asu.jmars.*;
 import edu.asu.jmars.swing.*;
+import edu.asu.jmars.graphics.*;
+import edu.asu.jmars.layer.map2.MapThreadFactory;
 import edu.asu.jmars.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import java.awt.geom.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.*;
 import javax.swing.event.*;
 
@@ -98,6 +104,23 @@ public abstract class Layer implements ProjectionListener
 	 **/
 	public abstract void receiveRequest(Object layerRequest,
 										DataReceiver requester);
+
+	/**
+	 ** Responds to a request made by a view change of an LView. The
+	 ** token is cancelled as soon as a newer view change supersedes
+	 ** this one, so layers that do lengthy work for a request may
+	 ** check {@link ViewChangeToken#isCancelled} and stop early.
+	 **
+	 ** <p>The default implementation ignores the token and calls
+	 ** {@link #receiveRequest(Object,DataReceiver)}.
+	 **/
+	public void receiveRequest(Object layerRequest,
+							   DataReceiver requester,
+							   ViewChangeToken token)
+	 {
+		receiveRequest(layerRequest, requester);
+	 }
+
 	/**
 	 ** PRIVATE: Stores the set of registered LViews.
 	 **/
@@ -425,6 +448,7 @@ public abstract class Layer implements ProjectionListener
 			bufferCount = newCount;
 			buffers = null;
 			bufferHidden = new boolean[newCount];
+			markBuffersChanged();
 		 }
 
 		/**
@@ -443,6 +467,7 @@ public abstract class Layer implements ProjectionListener
 		protected void setBufferVisible(int i, boolean visible)
 		 {
 			bufferHidden[i] = !visible;
+			markBuffersChanged();
 		 }
 
 		/**
@@ -591,6 +616,33 @@ public abstract class Layer implements ProjectionListener
 			dirty=dirt;
 		}
 
+		/**
+		 ** PRIVATE: The world window and projection that the
+		 ** off-screen buffers hold data for, or null if they don't
+		 ** match any window. Used to detect pans. Guarded by this
+		 ** view's monitor.
+		 **/
+		private Rectangle2D bufferWindow;
+		private ProjObj bufferPO;
+
+		/**
+		 ** PRIVATE: The world window of the last view change that was
+		 ** scheduled, to tell a redraw from a pan.
+		 **/
+		private Rectangle2D lastChangeWindow;
+
+		/**
+		 ** PRIVATE: Set when a view change is requested without the
+		 ** view moving, so the next change redraws everything.
+		 **/
+		private volatile boolean fullRedraw = true;
+
+		/**
+		 ** PRIVATE: True while the requests for the strips exposed by
+		 ** a pan are being made.
+		 **/
+		private boolean panning = false;
+
 		/**
 		 ** Returns a FancyColorMapper whose 'auto' function is backed
 		 ** by this layer's zeroth off-screen image.
@@ -1171,6 +1223,7 @@ public abstract class Layer implements ProjectionListener
 			if(buffers == null)
 				return;
 
+			markBuffersChanged();
 			Graphics2D g2 = buffers[i].createGraphics();
 			g2.setBackground(new Color(0,0,0,0));
 			g2.clearRect(0,0,
@@ -1258,11 +1311,50 @@ public abstract class Layer implements ProjectionListener
 			if(!isAlive())
 				return  null;
 
+			MultiProjection proj = getProj();
+			Rectangle2D window = proj.getWorldWindow();
+			Rectangle2D held = getHeldWindow(window);
+			markBuffersChanged();
 			Graphics2D g2 = buffers[i].createGraphics();
-			g2.setTransform(getProj().getWorldToScreen());
+			AffineTransform at = proj.getWorldToScreen();
+			if(held == window)
+				g2.setTransform(at);
+			else
+			 {
+				// Draw where the data belongs once the pending view
+				// change moves the buffers to the current window.
+				at.translate(window.getMinX() - held.getMinX(),
+							 window.getMinY() - held.getMinY());
+				g2.setTransform(at);
+				return  new GraphicsWrapped(g2, 360, viewman.getMagnify(),
+											held, "wrapWorldGraphics");
+			 }
 			return  viewman.wrapWorldGraphics(g2);
 		 }
 
+		/**
+		 ** Returns the world window that the off-screen buffers hold,
+		 ** which for views that {@link #supportsIncrementalPan} may
+		 ** still be a window the view was panned away from, or
+		 ** <code>window</code> itself otherwise.
+		 **/
+		private Rectangle2D getHeldWindow(Rectangle2D window)
+		 {
+			if(!supportsIncrementalPan())
+				return  window;
+
+			synchronized(this)
+			 {
+				if(bufferWindow != null  &&
+				   bufferPO == Main.PO  &&
+				   !bufferWindow.equals(window)  &&
+				   bufferWindow.getWidth() == window.getWidth()  &&
+				   bufferWindow.getHeight() == window.getHeight())
+					return  (Rectangle2D) bufferWindow.clone();
+			 }
+			return  window;
+		 }
+
 		/**
 		 ** Creates a graphics context that paints to off-screen
 		 ** buffer zero in screen coordinates (pixels).
@@ -1283,6 +1375,7 @@ public abstract class Layer implements ProjectionListener
 				return null;
 			}
 			
+			markBuffersChanged();
 			return  buffers[i].createGraphics();
 		 }
 
@@ -1306,6 +1399,7 @@ public abstract class Layer implements ProjectionListener
 			if(buffers == null)
 				return  null;
 
+			markBuffersChanged();
 			Graphics2D g2 = buffers[i].createGraphics();
 			g2.setTransform(getProj().getWorldToScreen());
 			return  g2;
@@ -1437,22 +1531,186 @@ public abstract class Layer implements ProjectionListener
 
 		public void realPaintComponent(Graphics g)
 		 {
+			BufferedImage[] buffers = this.buffers;
 			if(buffers == null)
 			 {
 				log.println("CAN'T PAINT A NON-ALIVE VIEW");
 				return;
 			 }
 
-			Graphics2D g2 = (Graphics2D) g;
+			if(colorMapOp.isIdentity()  &&  alpha == 1.0)
+			 {
+				composite = null;
+				for(int i=0; i<buffers.length; i++)
+					if(!bufferHidden[i])
+						g.drawImage(buffers[i], 0, 0, null);
+				return;
+			 }
+
+			g.drawImage(getComposite(buffers), 0, 0, null);
+		 }
+
+		/** Number of threads that map the strips of a composite */
+		private static final int COMPOSITE_THREADS = Math.max(1,
+			Config.get("view.composite.threads",
+					   Runtime.getRuntime().availableProcessors()));
 
-			boolean simpleDraw = colorMapOp.isIdentity()  &&  alpha == 1.0;
+		/** Fewest rows worth handing to another thread */
+		private static final int COMPOSITE_MIN_STRIP = 64;
+
+		private static ExecutorService compositePool;
+
+		/**
+		 ** The visible buffers mapped through {@link #compositeOp} at
+		 ** {@link #compositeAlpha} and drawn over each other, so that
+		 ** repaints of a colormapped or translucent view are a single
+		 ** image draw. Rebuilt on the next paint once {@link
+		 ** #compositeDirty} is set or the colormap or alpha changes.
+		 **/
+		private BufferedImage composite;
+		private ColorMapOp compositeOp;
+		private float compositeAlpha;
+		private volatile boolean compositeDirty = true;
+
+		/**
+		 ** Marks the off-screen buffers as changed, so the next paint
+		 ** rebuilds the colormapped composite of them. Every {@link
+		 ** #repaint} does this too, so subclasses only need to call
+		 ** this when the buffers change without a repaint following.
+		 **/
+		protected void markBuffersChanged()
+		 {
+			compositeDirty = true;
+		 }
+
+		/**
+		 ** Repaints invalidate the composite, since they usually show
+		 ** something drawn into the buffers, possibly by a Graphics2D
+		 ** that is still drawing. Repaints for feedback drawn over the
+		 ** buffers, such as rubber bands and mouse tracking, should use
+		 ** {@link #repaintOverlay} instead, so they don't rebuild it.
+		 **/
+		public void repaint(long tm, int x, int y, int width, int height)
+		 {
+			compositeDirty = true;
+			super.repaint(tm, x, y, width, height);
+		 }
+
+		/**
+		 ** Repaints the whole view while reusing the cached composite,
+		 ** for changes drawn by paintComponent on top of the buffers,
+		 ** such as mouse feedback. The buffers themselves must not have
+		 ** changed since the last repaint. Public so that the mouse
+		 ** handlers of a view can call it.
+		 **/
+		public void repaintOverlay()
+		 {
+			RepaintManager.currentManager(this)
+				.addDirtyRegion(this, 0, 0, getWidth(), getHeight());
+		 }
+
+		/**
+		 ** Returns the composite of the given buffers, rebuilding it
+		 ** first if it's out of date. Called on the AWT thread only.
+		 **/
+		private BufferedImage getComposite(BufferedImage[] buffers)
+		 {
+			final int w = buffers[0].getWidth();
+			final int h = buffers[0].getHeight();
+			if(composite == null  ||
+			   composite.getWidth() != w  ||
+			   composite.getHeight() != h)
+			 {
+				composite = Util.newBufferedImage(w, h);
+				compositeDirty = true;
+			 }
+			else if(!compositeDirty  &&
+					compositeOp == colorMapOp  &&
+					compositeAlpha == alpha)
+				return  composite;
+
+			compositeDirty = false;
+			compositeOp = colorMapOp;
+			compositeAlpha = alpha;
+
+			// ColorMapOp caches its op unsynchronized, so fetch it here
+			final BufferedImageOp op = compositeOp.forAlpha(compositeAlpha);
+			final java.util.List<BufferedImage> visible = new ArrayList<BufferedImage>(buffers.length);
 			for(int i=0; i<buffers.length; i++)
 				if(!bufferHidden[i])
-					if(simpleDraw)
-						g.drawImage(buffers[i], 0, 0, null);
-					else
-						g2.drawImage(buffers[i], colorMapOp.forAlpha(alpha),
-									 0, 0);
+					visible.add(buffers[i]);
+
+			int strips = Math.min(COMPOSITE_THREADS, h / COMPOSITE_MIN_STRIP);
+			if(strips < 2)
+			 {
+				compositeStrip(visible, op, 0, h);
+				return  composite;
+			 }
+
+			java.util.List<Future<?>> futures = new ArrayList<Future<?>>(strips-1);
+			int start = 0;
+			for(int s=0; s<strips; s++)
+			 {
+				final int first = start;
+				final int end = start + (h - start) / (strips - s);
+				start = end;
+				Runnable strip = new Runnable()
+				 {
+					public void run()
+					 {
+						compositeStrip(visible, op, first, end);
+					 }
+				 };
+				// the AWT thread maps the last strip itself
+				if(s < strips-1)
+					futures.add(getCompositePool().submit(strip));
+				else
+					strip.run();
+			 }
+			try
+			 {
+				for(Future<?> f: futures)
+					f.get();
+			 }
+			catch(InterruptedException e)
+			 {
+				Thread.currentThread().interrupt();
+			 }
+			catch(ExecutionException e)
+			 {
+				log.aprintln("Failed compositing view: " + e.getCause());
+			 }
+			return  composite;
+		 }
+
+		/**
+		 ** Clears rows [first,end) of the composite, then maps the
+		 ** same rows of each buffer through the op and draws them over
+		 ** it. Each strip draws through its own Graphics2D, clipped to
+		 ** its rows, so concurrent strips write disjoint pixels of the
+		 ** composite's raster and share no graphics state; the AWT
+		 ** thread only reads the composite after every strip's Future
+		 ** has completed.
+		 **/
+		private void compositeStrip(java.util.List<BufferedImage> visible,
+									BufferedImageOp op, int first, int end)
+		 {
+			int w = composite.getWidth();
+			Graphics2D g2 = composite.createGraphics();
+			g2.clipRect(0, first, w, end-first);
+			g2.setBackground(new Color(0,0,0,0));
+			g2.clearRect(0, first, w, end-first);
+			for(BufferedImage b: visible)
+				g2.drawImage(b.getSubimage(0, first, w, end-first), op, 0, first);
+			g2.dispose();
+		 }
+
+		private static synchronized ExecutorService getCompositePool()
+		 {
+			if(compositePool == null)
+				compositePool = Executors.newFixedThreadPool(
+					COMPOSITE_THREADS, new MapThreadFactory("View Composite"));
+			return  compositePool;
 		 }
 		
 		/**
@@ -1464,6 +1722,7 @@ public abstract class Layer implements ProjectionListener
 		public BufferedImage getBuffer(int i){
 			if (buffers == null || i < 0 || i >= buffers.length)
 				return null;
+			markBuffersChanged();
 			return buffers[i];
 		}
 
@@ -1533,6 +1792,7 @@ public abstract class Layer implements ProjectionListener
 				Dimension pixSize = getProj().getScreenSize();
 				buffers = newBufferedImageArray(pixSize.width,
 												pixSize.height);
+				markBuffersChanged();
 			 }
 		 }
 
@@ -1556,7 +1816,13 @@ public abstract class Layer implements ProjectionListener
 			// If we're hidden and a viewchanged is issued, we
 			// invalidate our current offscreen buffer.
 			if(viewman == null  ||  !isVisible()  &&  !dirty)
-				clearOffScreen();
+			 {
+				synchronized(this)
+				 {
+					clearOffScreen();
+					bufferWindow = null;
+				 }
+			 }
 			dirty = true;
 
 			// Cut down on useless viewChanges that will die later or
@@ -1568,57 +1834,67 @@ public abstract class Layer implements ProjectionListener
 				!isVisible())
 				return;
 
+			// A change that doesn't move the view is a request to
+			// redraw it, which a pan would skip.
+			Rectangle2D window = getProj().getWorldWindow();
+			if(window.equals(lastChangeWindow))
+				fullRedraw = true;
+			lastChangeWindow = window;
+
 			String className = getClass().getName();
 			className = className.substring(className.lastIndexOf('.')+1);
 			String threadName = viewman.getName() + "-" + className;
-			incBusy(); // we incBusy BEFORE forking a new thread
+			incBusy(); // we incBusy BEFORE scheduling the change
 
-			log.println("Starting new thread: <" + threadName + ">");
+			log.println("Scheduling view change: <" + threadName + ">");
 			log.println("View size: " + getWidth() + "x" + getHeight());
 			log.printStack(-1);
 
-			new WatchedThread(new ViewChangeRunnable(), threadName).start();
-			// we decBusy INSIDE the new thread, below
+			// we decBusy when the change is done, below, or right
+			// away if it was merged into a change that's still waiting
+			if(!ViewChangeExecutor.submit(this, threadName, viewChangeWork))
+				decBusy();
 		 }
 
 
-	        // Used to track creation time of view change threads.
-	        private static ThreadLocal viewChangeTime = new ThreadLocal() {
-			protected synchronized Object initialValue() {
-			    return new Long(-1);
-			}
-		    };
+	        // Token of the view change being processed by this thread.
+	        private static final ThreadLocal<ViewChangeToken> viewChangeToken =
+	        	new ThreadLocal<ViewChangeToken>();
 
 	        // Get creation time of view change thread.
 	        // Returns -1 if current thread is not a 
 	        // view change thread.
 	        protected static long getViewChangeTime()
 	        {
-		    return ((Long)viewChangeTime.get()).longValue();
+	        	ViewChangeToken token = viewChangeToken.get();
+	        	return token == null ? -1 : token.getTime();
 	        } 
 
-		private class ViewChangeRunnable
-		    implements Runnable
-		{
-
-		    ViewChangeRunnable()
-		    {
-//  			viewChangeTime.set( new Long(System.currentTimeMillis()) );
-		    }
+	        // Get the token of the view change being processed by the
+	        // current thread, or null if it is not processing one.
+	        // The token is cancelled once a newer change is scheduled.
+	        protected static ViewChangeToken getViewChangeToken()
+	        {
+	        	return viewChangeToken.get();
+	        }
 
-		    public void run()
+		private final ViewChangeExecutor.Work viewChangeWork =
+			new ViewChangeExecutor.Work()
+		{
+		    public void run(ViewChangeToken token)
 		    {
 			try
 			    {
-				viewChangeTime.set( new Long(System.currentTimeMillis()) );
-				viewChangedReal();
+				viewChangeToken.set(token);
+				viewChangedReal(token);
 			    }
 			finally
 			    {
+				viewChangeToken.set(null);
 				decBusy();
 			    }
 		    }
-		}
+		};
 		
 		/**
 		 * Sets the layer's preference to have the offscreen buffer cleared on a
@@ -1632,7 +1908,113 @@ public abstract class Layer implements ProjectionListener
 			return true;
 		}
 		
-		private void viewChangedReal()
+		/**
+		 ** Indicates whether this view can handle a pan by having its
+		 ** off-screen buffers moved, and {@link #createRequest} called
+		 ** only for the strips of the new window that the pan exposed,
+		 ** instead of for the whole window. Views that return true
+		 ** must not clear their buffers in createRequest while {@link
+		 ** #isPanning}, and must draw received data through {@link
+		 ** #getOffScreenG2} while holding this view's monitor, since
+		 ** the buffers are moved while holding it. The default is to
+		 ** return <code>false</code>.
+		 **/
+		protected boolean supportsIncrementalPan()
+		 {
+			return  false;
+		 }
+
+		/**
+		 ** Returns true while {@link #createRequest} is being called
+		 ** for a strip exposed by a pan.
+		 **/
+		protected final boolean isPanning()
+		 {
+			return  panning;
+		 }
+
+		/**
+		 ** Returns the pixel offset that moves the off-screen buffers
+		 ** onto the given window, or null if it isn't a whole-pixel pan
+		 ** of the window they hold that leaves some of them on screen.
+		 ** Must be called while holding this view's monitor.
+		 **/
+		private Point getPanShift(Rectangle2D window)
+		 {
+			if(!supportsIncrementalPan()  ||
+			   bufferWindow == null  ||
+			   bufferPO != Main.PO  ||
+			   bufferWindow.getWidth() != window.getWidth()  ||
+			   bufferWindow.getHeight() != window.getHeight()  ||
+			   window.getWidth() >= 360)
+				return  null;
+
+			int w = buffers[0].getWidth();
+			int h = buffers[0].getHeight();
+			double dx = (bufferWindow.getMinX() - window.getMinX()) * w / window.getWidth();
+			double dy = (window.getMaxY() - bufferWindow.getMaxY()) * h / window.getHeight();
+			long x = Math.round(dx);
+			long y = Math.round(dy);
+			if(Math.abs(dx - x) > 1e-3  ||  Math.abs(dy - y) > 1e-3)
+				return  null;
+			if(x == 0  &&  y == 0  ||  Math.abs(x) >= w  ||  Math.abs(y) >= h)
+				return  null;
+			return  new Point((int) x, (int) y);
+		 }
+
+		/**
+		 ** Moves the contents of every off-screen buffer by the given
+		 ** number of pixels, and clears the pixels left exposed.
+		 **/
+		private void shiftOffScreen(int dx, int dy)
+		 {
+			markBuffersChanged();
+			for(int i=0; i<buffers.length; i++)
+			 {
+				int w = buffers[i].getWidth();
+				int h = buffers[i].getHeight();
+				Graphics2D g2 = buffers[i].createGraphics();
+				g2.setComposite(AlphaComposite.Src);
+				g2.copyArea(0, 0, w, h, dx, dy);
+				g2.setBackground(new Color(0,0,0,0));
+				if(dx > 0)
+					g2.clearRect(0, 0, dx, h);
+				else if(dx < 0)
+					g2.clearRect(w+dx, 0, -dx, h);
+				if(dy > 0)
+					g2.clearRect(0, 0, w, dy);
+				else if(dy < 0)
+					g2.clearRect(0, h+dy, w, -dy);
+				g2.dispose();
+			 }
+		 }
+
+		/**
+		 ** Returns the parts of <code>window</code> that are not in
+		 ** <code>old</code>, a window of the same size, as at most one
+		 ** full-width strip and one strip beside the overlap.
+		 **/
+		private static java.util.List<Rectangle2D> getExposedWindows(Rectangle2D old, Rectangle2D window)
+		 {
+			java.util.List<Rectangle2D> exposed = new ArrayList<Rectangle2D>(2);
+			double minY = Math.max(window.getMinY(), old.getMinY());
+			double maxY = Math.min(window.getMaxY(), old.getMaxY());
+			if(window.getMaxY() > old.getMaxY())
+				exposed.add(new Rectangle2D.Double(window.getMinX(), old.getMaxY(),
+					window.getWidth(), window.getMaxY() - old.getMaxY()));
+			else if(window.getMinY() < old.getMinY())
+				exposed.add(new Rectangle2D.Double(window.getMinX(), window.getMinY(),
+					window.getWidth(), old.getMinY() - window.getMinY()));
+			if(window.getMinX() < old.getMinX())
+				exposed.add(new Rectangle2D.Double(window.getMinX(), minY,
+					old.getMinX() - window.getMinX(), maxY - minY));
+			else if(window.getMaxX() > old.getMaxX())
+				exposed.add(new Rectangle2D.Double(old.getMaxX(), minY,
+					window.getMaxX() - old.getMaxX(), maxY - minY));
+			return  exposed;
+		 }
+
+		private void viewChangedReal(ViewChangeToken token)
 		 {
 			log.println("Hi I'm a: "+this);
 			log.printStack(3);
@@ -1662,36 +2044,82 @@ public abstract class Layer implements ProjectionListener
 			else
 				log.println("--sized image--");
 
-			if (buffers == null ||
-				pixSize.width != buffers[0].getWidth() ||
-				pixSize.height != buffers[0].getHeight())
+			Rectangle2D window = proj.getWorldWindow();
+			Rectangle2D oldWindow = null;
+			synchronized(this)
 			 {
-				log.println("Calling Factory newBufferedImage("+pixSize.width+","+pixSize.height+")");
-			   buffers = newBufferedImageArray(pixSize.width,
-											   pixSize.height);
-			 }
-			else
-			 {
-				if (clearOffScreenOnViewChange()) {
-					log.println("Clearing entire area of offscreen buffers");
-					clearOffScreen();
-				} else {
-					log.println("Clearing exposed area of offscreen buffers");
-				}
+				boolean full = fullRedraw;
+				fullRedraw = false;
+				if (buffers == null ||
+					pixSize.width != buffers[0].getWidth() ||
+					pixSize.height != buffers[0].getHeight())
+				 {
+					log.println("Calling Factory newBufferedImage("+pixSize.width+","+pixSize.height+")");
+				   buffers = newBufferedImageArray(pixSize.width,
+												   pixSize.height);
+				   markBuffersChanged();
+				 }
+				else
+				 {
+					Point shift = full ? null : getPanShift(window);
+					if (shift != null) {
+						log.println("Shifting offscreen buffers by " + shift.x + "," + shift.y);
+						shiftOffScreen(shift.x, shift.y);
+						oldWindow = bufferWindow;
+					} else if (clearOffScreenOnViewChange()) {
+						log.println("Clearing entire area of offscreen buffers");
+						clearOffScreen();
+					} else {
+						log.println("Clearing exposed area of offscreen buffers");
+					}
+				 }
+				bufferWindow = window;
+				bufferPO = Main.PO;
 			 }
 
 			if(proj.getWorldWindow() == null)
 				log.println("*** " + getClass().getName() + " *** " +
 							"getWorldWindow() is null right after");
 
-			// Currently just re-requests the entire screen after
-			// every screen change... eventually, this will be a
-			// little smarter and will only request needed stuff.
+			// A newer change is already scheduled and will make the
+			// request itself, so leave the view dirty for it.
+			if(token.isCancelled())
+			 {
+				log.println("View change superseded before request");
+				// The strips a pan exposed were never requested.
+				if(oldWindow != null)
+					fullRedraw = true;
+				return;
+			 }
+
+			// Re-requests the entire screen after every screen
+			// change, except after a pan of a view that supports it,
+			// where only the exposed strips are requested.
 			if(isVisible())
 			 {
-				Object layerRequest = createRequest(proj.getWorldWindow());
-				if(layer != null)
-					layer.receiveRequest(layerRequest, this);
+				if(oldWindow != null)
+				 {
+					panning = true;
+					try
+					 {
+						for(Rectangle2D where: getExposedWindows(oldWindow, window))
+						 {
+							Object layerRequest = createRequest(where);
+							if(layer != null)
+								layer.receiveRequest(layerRequest, this, token);
+						 }
+					 }
+					finally
+					 {
+						panning = false;
+					 }
+				 }
+				else
+				 {
+					Object layerRequest = createRequest(proj.getWorldWindow());
+					if(layer != null)
+						layer.receiveRequest(layerRequest, this, token);
+				 }
 				dirty = false;
 			 }
 
@@ -0,0 +1,249 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.asu.jmars.layer.map2.MapThreadFactory;
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ ** Runs the view changes of every {@link Layer.LView} on one shared,
+ ** bounded pool of threads.
+ **
+ ** <p>Changes are coalesced per view: while a change for a view is
+ ** still waiting for a thread, further changes for that view are
+ ** merged into it, and since the work reads the view's projection
+ ** when it finally runs, only the latest window is processed.
+ ** Scheduling a change also cancels the {@link ViewChangeToken} of
+ ** any change of the same view that is already running.
+ **
+ ** <p>The queue depth and the time changes spend waiting for a thread
+ ** are kept as metrics, see {@link #getQueueDepth} and {@link
+ ** #getAverageLatency}.
+ **/
+public final class ViewChangeExecutor
+ {
+	private static final DebugLog log = DebugLog.instance();
+
+	/** Number of threads processing view changes */
+	private static final int THREADS = Math.max(1,
+		Config.get("view.threads",
+				   Math.max(4, 2 * Runtime.getRuntime().availableProcessors())));
+
+	/** The work done for a single view change */
+	public interface Work
+	 {
+		public void run(ViewChangeToken token);
+	 }
+
+	private static final Object lock = new Object();
+	private static ExecutorService pool;
+	/** Changes waiting for a thread, by view */
+	private static final Map<Object,Task> pending = new IdentityHashMap<Object,Task>();
+	/** Tokens of the changes now running, by view */
+	private static final Map<Object,List<ViewChangeToken>> running = new IdentityHashMap<Object,List<ViewChangeToken>>();
+
+	private static long submitted = 0;
+	private static long coalesced = 0;
+	private static long started = 0;
+	private static long totalLatency = 0;
+	private static long maxLatency = 0;
+
+	private ViewChangeExecutor()
+	 {
+	 }
+
+	/**
+	 ** Schedules a view change for the given view, cancelling any
+	 ** change of the view that is already running.
+	 **
+	 ** @param view The view that changed.
+	 ** @param name Name given to the thread while the work runs.
+	 ** @param work The work to do for the change.
+	 ** @return True if the change was queued, false if it was merged
+	 ** into a change of the view that is still waiting, in which case
+	 ** <code>work</code> will not be run.
+	 **/
+	public static boolean submit(Object view, String name, Work work)
+	 {
+		synchronized(lock)
+		 {
+			List<ViewChangeToken> tokens = running.get(view);
+			if(tokens != null)
+				for(ViewChangeToken t: tokens)
+					t.cancel();
+
+			if(pending.containsKey(view))
+			 {
+				coalesced++;
+				return  false;
+			 }
+
+			Task task = new Task(view, name, work);
+			pending.put(view, task);
+			submitted++;
+			if(pool == null)
+			 {
+				log.println("Creating view change pool with " + THREADS + " threads");
+				pool = Executors.newFixedThreadPool(THREADS, new MapThreadFactory("View Change"));
+			 }
+			pool.execute(task);
+			return  true;
+		 }
+	 }
+
+	/**
+	 ** Returns the number of view changes waiting for a thread.
+	 **/
+	public static int getQueueDepth()
+	 {
+		synchronized(lock)
+		 {
+			return  pending.size();
+		 }
+	 }
+
+	/**
+	 ** Returns the number of view changes now running.
+	 **/
+	public static int getRunningCount()
+	 {
+		synchronized(lock)
+		 {
+			int count = 0;
+			for(List<ViewChangeToken> tokens: running.values())
+				count += tokens.size();
+			return  count;
+		 }
+	 }
+
+	/**
+	 ** Returns the number of view changes queued so far.
+	 **/
+	public static long getSubmittedCount()
+	 {
+		synchronized(lock)
+		 {
+			return  submitted;
+		 }
+	 }
+
+	/**
+	 ** Returns the number of view changes merged into one that was
+	 ** already waiting.
+	 **/
+	public static long getCoalescedCount()
+	 {
+		synchronized(lock)
+		 {
+			return  coalesced;
+		 }
+	 }
+
+	/**
+	 ** Returns the average milliseconds a view change waited for a
+	 ** thread, or zero if none has run yet.
+	 **/
+	public static double getAverageLatency()
+	 {
+		synchronized(lock)
+		 {
+			return  started == 0 ? 0 : (double) totalLatency / started;
+		 }
+	 }
+
+	/**
+	 ** Returns the longest milliseconds a view change waited for a
+	 ** thread.
+	 **/
+	public static long getMaxLatency()
+	 {
+		synchronized(lock)
+		 {
+			return  maxLatency;
+		 }
+	 }
+
+	private static final class Task
+	 implements Runnable
+	 {
+		private final Object view;
+		private final String name;
+		private final Work work;
+		private final ViewChangeToken token = new ViewChangeToken();
+
+		Task(Object view, String name, Work work)
+		 {
+			this.view = view;
+			this.name = name;
+			this.work = work;
+		 }
+
+		public void run()
+		 {
+			long latency = System.currentTimeMillis() - token.getTime();
+			synchronized(lock)
+			 {
+				pending.remove(view);
+				List<ViewChangeToken> tokens = running.get(view);
+				if(tokens == null)
+					running.put(view, tokens = new ArrayList<ViewChangeToken>(1));
+				tokens.add(token);
+				started++;
+				totalLatency += latency;
+				maxLatency = Math.max(maxLatency, latency);
+				log.println("Starting <" + name + "> after " + latency +
+							" ms, " + pending.size() + " still waiting");
+			 }
+
+			Thread thread = Thread.currentThread();
+			String oldName = thread.getName();
+			thread.setName(name);
+			try
+			 {
+				work.run(token);
+			 }
+			catch(Throwable e)
+			 {
+				log.aprintln("Uncaught exception in view change <" + name + ">");
+				e.printStackTrace();
+			 }
+			finally
+			 {
+				thread.setName(oldName);
+				synchronized(lock)
+				 {
+					List<ViewChangeToken> tokens = running.get(view);
+					tokens.remove(token);
+					if(tokens.isEmpty())
+						running.remove(view);
+				 }
+			 }
+		 }
+	 }
+ }
@@ -0,0 +1,61 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer;
+
+/**
+ ** Identifies a single view change of an {@link Layer.LView}. The
+ ** token is cancelled as soon as a newer view change is scheduled for
+ ** the same view, so work done on its behalf can poll {@link
+ ** #isCancelled} and give up early.
+ **
+ ** @see ViewChangeExecutor
+ **/
+public final class ViewChangeToken
+ {
+	private final long time = System.currentTimeMillis();
+	private volatile boolean cancelled = false;
+
+	ViewChangeToken()
+	 {
+	 }
+
+	/**
+	 ** Returns the time in milliseconds at which the view change was
+	 ** first requested.
+	 **/
+	public long getTime()
+	 {
+		return  time;
+	 }
+
+	/**
+	 ** Returns true once a newer view change has superseded this one.
+	 **/
+	public boolean isCancelled()
+	 {
+		return  cancelled;
+	 }
+
+	void cancel()
+	 {
+		cancelled = true;
+	 }
+ }
@@ -54,6 +54,7 @@ import edu.asu.jmars.Main;
 import edu.asu.jmars.ProjObj;
 import edu.asu.jmars.layer.FocusPanel;
 import edu.asu.jmars.layer.Layer;
+import edu.asu.jmars.layer.ViewChangeToken;
 import edu.asu.jmars.swing.PasteField;
 import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.Util;
@@ -300,35 +301,21 @@ public class GridLView extends Layer.LView
 	 **/
 	protected void viewChangedPost()
 	 {
-		redrawGrid();
+		redrawGrid(getViewChangeToken());
 	 }
 
 	/**
-	 ** Maintains an id to keep track of redraws, so that as soon as a
-	 ** new one is issued, the older ones die. Without this, we end up
-	 ** overlapping our redraws when the user pans/zooms too quickly.
+	 ** Redraws the grid through a view change, so that as soon as a
+	 ** newer view change is issued, the older redraw dies. Without
+	 ** this, we end up overlapping our redraws when the user
+	 ** pans/zooms too quickly.
 	 **/
 	private void redrawGrid()
 	 {
-		int id;
-		synchronized(viewChangeIDLock)
-		 {
-			id = ++lastViewChangeID;
-		 }
-		redrawGrid(id);
-	 }
-	private int lastViewChangeID = 0;
-	private Object viewChangeIDLock = new Object();
-
-	private boolean oldViewChange(int id)
-	 {
-		// Should really be synchronized over viewChangeIDLock, but
-		// it's only ever called while under a redrawLock, so we'll
-		// pretend it's safe.
-		return  lastViewChangeID != id;
+		viewChanged();
 	 }
 
-	private void redrawGrid(int id)
+	private void redrawGrid(ViewChangeToken token)
 	 {
 		synchronized(redrawLock)
 		 {
@@ -356,10 +343,10 @@ public class GridLView extends Layer.LView
 			 }
 
 			// Actually draw the grid elements
-			drawLatLon(id, copies, minor);
-			drawLatLon(id, copies, major);
+			drawLatLon(token, copies, minor);
+			drawLatLon(token, copies, major);
 
-			if(!oldViewChange(id))
+			if(!token.isCancelled())
 				repaint();
 		 }
 	 }
@@ -410,7 +397,7 @@ public class GridLView extends Layer.LView
 		return  (GeneralPath[]) paths.toArray(new GeneralPath[0]);
 	}
 
-	private void drawLatLon(int id, Graphics2D[] g2s, GridSettings settings)
+	private void drawLatLon(ViewChangeToken token, Graphics2D[] g2s, GridSettings settings)
 	 {
 		if(settings.isVisible(getChild() != null))
 		 {
@@ -425,7 +412,7 @@ public class GridLView extends Layer.LView
 				g2s[i].setColor(settings.getColor());
 				for(int j=0; j<lines.length; j++)
 				 {
-					if(oldViewChange(id))
+					if(token.isCancelled())
 						return;
 					g2s[i].draw(lines[j]);
 				 }
@@ -29,12 +29,23 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.asu.jmars.Main;
 import edu.asu.jmars.layer.DataReceiver;
 import edu.asu.jmars.layer.Layer;
 import edu.asu.jmars.layer.SerializedParameters;
+import edu.asu.jmars.layer.map2.MapThreadFactory;
 import edu.asu.jmars.util.Config;
 import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.HVector;
@@ -47,10 +58,47 @@ public class GroundTrackLayer
 	private static final String server =
 		Config.get("groundtrack") + "format=c&";
 
-	private HashMap sections = new HashMap();
 	private static final int sectionSize = Integer.parseInt(
 		Config.get("groundtrack.chunksize"));
 
+	/**
+	 ** The most sections kept per layer, from the number of segments
+	 ** configured to keep.
+	 **/
+	private static final int maxSections = Math.max(16,
+		Config.get("groundtrack.cache.segments", 500000) / sectionSize);
+
+	/**
+	 ** The most sections prefetched on either side of a request.
+	 **/
+	private static final int prefetchSections =
+		Config.get("groundtrack.prefetch.sections", 8);
+
+	/**
+	 ** Downloads sections for every groundtrack layer, requested
+	 ** sections ahead of prefetched ones.
+	 **/
+	private static final ThreadPoolExecutor fetchPool;
+	static
+	 {
+		int threads = Math.max(1, Config.get("groundtrack.fetch.threads", 4));
+		fetchPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+										   new PriorityBlockingQueue<Runnable>(),
+										   new MapThreadFactory("Ground Track"));
+	 }
+
+	private static final int PRIORITY_REQUEST = 0;
+	private static final int PRIORITY_PREFETCH = 1;
+
+	/** Orders fetches with the same priority by submission */
+	private static final AtomicLong fetchSequence = new AtomicLong();
+
+	/** Stamps each use of a section, for finding the least recent */
+	private final AtomicLong clock = new AtomicLong();
+
+	private final ConcurrentHashMap<SectionKey,Section> sections =
+		new ConcurrentHashMap<SectionKey,Section>();
+
 	private int instrumentId;
 
 	public GroundTrackLayer(int instrumentId, SerializedParameters sp)
@@ -59,7 +107,7 @@ public class GroundTrackLayer
 		this.initialLayerData = sp;
 	 }
 
-	public synchronized void receiveRequest(Object layerRequest,
+	public void receiveRequest(Object layerRequest,
 											DataReceiver requester)
 	 {
 		if(layerRequest == null)
@@ -74,18 +122,23 @@ public class GroundTrackLayer
 		 }
 
 		Request req = (Request) layerRequest;
-		requester.receiveData(getTrack(req.begET,
-									   req.endET,
-									   req.delta)
-			);
+		Line2D[] track = getTrack(req.begET,
+								  req.endET,
+								  req.delta);
+		if(track != null)
+			requester.receiveData(track);
+
+		prefetch(req);
 	 }
 
 	/**
 	 ** Returns an array of groundtrack line segments satisfying the
 	 ** given time range, each of delta seconds in length in time. The
 	 ** actual size of the array will be ceil((endET - begET) / delta).
+	 ** The sections covering the range are downloaded concurrently.
+	 ** Returns null if any of them couldn't be read.
 	 **/
-	private synchronized Line2D[] getTrack(long begET,
+	private Line2D[] getTrack(long begET,
 										  long endET,
 										  int delta)
 	 {
@@ -101,9 +154,21 @@ public class GroundTrackLayer
 		Line2D[] segs = new Line2D[count];
 		int segsIdx = 0;
 
+		// Queue every section before waiting on any of them
+		List<FutureTask<Line2D[]>> fetches =
+			new ArrayList<FutureTask<Line2D[]>>((int) (endSect - begSect + 1));
+		for(long s=begSect; s<=endSect; s++)
+			fetches.add(getSection(new SectionKey(s, delta), PRIORITY_REQUEST));
+
 		for(long s=begSect; s<=endSect; s++)
 		 {
-			Line2D[] sect = getSection(s, delta);
+			Line2D[] sect = waitFor(fetches.get((int) (s - begSect)));
+			if(sect == null)
+			 {
+				log.aprintln("Unable to get groundtrack section " + s);
+				setStatus(Color.blue);
+				return  null;
+			 }
 
 			// We may only need part of the data from the
 			// starting/ending sections. We'll need all of the data
@@ -148,26 +213,174 @@ public class GroundTrackLayer
 	 }
 
 	/**
-	 ** Returns an array of {@link #sectionSize} groundtrack line
-	 ** segments, each of which is <code>delta</code> seconds in
-	 ** length in time.
+	 ** Queues the sections on either side of the given request, as
+	 ** many as the request covers up to {@link #prefetchSections}, so
+	 ** moving the time range to a neighboring one finds them ready.
+	 **/
+	private void prefetch(Request req)
+	 {
+		int sectionSecs = sectionSize * req.delta;
+		long begSect = (long)Math.floor(req.begET / (double)sectionSecs);
+		long endSect = (long)Math.floor(req.endET / (double)sectionSecs);
+		long count = Math.min(prefetchSections, endSect - begSect + 1);
+		for(long i=1; i<=count; i++)
+		 {
+			getSection(new SectionKey(endSect + i, req.delta), PRIORITY_PREFETCH);
+			getSection(new SectionKey(begSect - i, req.delta), PRIORITY_PREFETCH);
+		 }
+	 }
+
+	/**
+	 ** A cached section, or one that's being downloaded.
+	 **/
+	private static final class Section
+	 {
+		final FutureTask<Line2D[]> task;
+		volatile int priority;
+		volatile long lastUse;
+		Section(FutureTask<Line2D[]> task, int priority)
+		 {
+			this.task = task;
+			this.priority = priority;
+		 }
+	 }
+
+	/**
+	 ** Runs a section's download on the fetch pool, ordered by
+	 ** priority and then by submission.
 	 **/
-	private Line2D[] getSection(long sect, int delta)
+	private static final class Fetch
+	 implements Runnable, Comparable<Fetch>
 	 {
-		SectionKey key = new SectionKey(sect, delta);
-		Line2D[] section = (Line2D[]) sections.get(key);
+		final FutureTask<Line2D[]> task;
+		final int priority;
+		final long seq = fetchSequence.getAndIncrement();
+		Fetch(FutureTask<Line2D[]> task, int priority)
+		 {
+			this.task = task;
+			this.priority = priority;
+		 }
+		public int compareTo(Fetch o)
+		 {
+			if(priority != o.priority)
+				return  priority < o.priority ? -1 : 1;
+			return  seq < o.seq ? -1 : seq > o.seq ? 1 : 0;
+		 }
+		public void run()
+		 {
+			// A task queued more than once only runs the first time
+			task.run();
+		 }
+	 }
 
+	/**
+	 ** Returns the download of the given section of {@link
+	 ** #sectionSize} groundtrack line segments, starting it if it
+	 ** isn't cached. A section already queued at a lower priority is
+	 ** queued again at the given one. Sections that fail to download
+	 ** aren't kept, so they're tried again next time.
+	 **/
+	private FutureTask<Line2D[]> getSection(final SectionKey key, int priority)
+	 {
+		Section section = sections.get(key);
 		if(section == null)
 		 {
-			URL url = getRemoteUrl(key);
+			final Section[] created = new Section[1];
+			created[0] = new Section(new FutureTask<Line2D[]>(
+				new Callable<Line2D[]>()
+				 {
+					public Line2D[] call()
+					 {
+						Line2D[] segs = null;
+						try
+						 {
+							URL url = getRemoteUrl(key);
+
+							if(url == null)
+								throw  new Error("CAN'T FORM PROPER GROUNDTRACK URL");
+
+							segs = readSection(url);
+							return  segs;
+						 }
+						finally
+						 {
+							// Failed or threw, don't keep it
+							if(segs == null)
+								sections.remove(key, created[0]);
+						 }
+					 }
+				 }), priority);
+			created[0].lastUse = clock.incrementAndGet();
+			section = sections.putIfAbsent(key, created[0]);
+			if(section == null)
+			 {
+				section = created[0];
+				fetchPool.execute(new Fetch(section.task, priority));
+				trim();
+				return  section.task;
+			 }
+		 }
 
-			if(url == null)
-				throw  new Error("CAN'T FORM PROPER GROUNDTRACK URL");
+		section.lastUse = clock.incrementAndGet();
+		if(priority < section.priority  &&  !section.task.isDone())
+		 {
+			section.priority = priority;
+			fetchPool.execute(new Fetch(section.task, priority));
+		 }
+		return  section.task;
+	 }
 
-			sections.put(key, section = readSection(url));
+	/**
+	 ** Waits for a section's download, returning null if it failed.
+	 **/
+	private static Line2D[] waitFor(FutureTask<Line2D[]> task)
+	 {
+		boolean interrupted = false;
+		try
+		 {
+			while(true)
+				try
+				 {
+					return  task.get();
+				 }
+				catch(InterruptedException e)
+				 {
+					interrupted = true;
+				 }
 		 }
+		catch(ExecutionException e)
+		 {
+			log.aprintln(e.getCause());
+			return  null;
+		 }
+		finally
+		 {
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		 }
+	 }
 
-		return  section;
+	/**
+	 ** Drops least recently used sections until there are no more
+	 ** than {@link #maxSections}. Track requests hold on to the
+	 ** sections they need, so dropping one only costs a download.
+	 **/
+	private synchronized void trim()
+	 {
+		while(sections.size() > maxSections)
+		 {
+			SectionKey oldest = null;
+			long oldestUse = Long.MAX_VALUE;
+			for(Map.Entry<SectionKey,Section> e: sections.entrySet())
+				if(e.getValue().lastUse < oldestUse)
+				 {
+					oldest = e.getKey();
+					oldestUse = e.getValue().lastUse;
+				 }
+			if(oldest == null)
+				break;
+			sections.remove(oldest);
+		 }
 	 }
 
 	/**
@@ -243,7 +456,7 @@ public class GroundTrackLayer
 	 ** Returns an array of {@link #sectionSize} line segments, read
 	 ** from the given url location. Returns null on error.
 	 **/
-	private synchronized Line2D[] readSection(URL url)
+	private Line2D[] readSection(URL url)
 	 {
 		log.println("Using url " + url);
 
@@ -260,6 +473,24 @@ public class GroundTrackLayer
 			return  null;
 		 }
 
+		try
+		 {
+			return  readSection(fin, url);
+		 }
+		finally
+		 {
+			try
+			 {
+				fin.close();
+			 }
+			catch(IOException e)
+			 {
+			 }
+		 }
+	 }
+
+	private Line2D[] readSection(BufferedReader fin, URL url)
+	 {
 		Line2D[] segs = newZeroSection();
 
 		Point2D.Double lastPt = new Point2D.Double();
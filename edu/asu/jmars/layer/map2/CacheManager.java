@@ -24,6 +24,8 @@ import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
@@ -31,8 +33,6 @@ import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 
-import org.apache.commons.collections.ReferenceMap;
-
 import edu.asu.jmars.Main;
 import edu.asu.jmars.ProjObj;
 import edu.asu.jmars.ProjObj.Projection_OC;
@@ -47,6 +47,14 @@ import edu.asu.jmars.util.Util;
 public class CacheManager {
 	private static final int NUM_TILE_THREADS = Config.get("map.cache.tileThreadCount", 10);	
 	private static final int NUM_FUZZY_THREADS = Config.get("map.cache.fuzzyThreadCount", 5);
+	/** Size of the in-memory tile cache, defaults to a quarter of the maximum heap */
+	private static final int MEMORY_CACHE_MB = Config.get("map.cache.memoryMB", (int)(Runtime.getRuntime().maxMemory() / 4 / (1024*1024)));
+	/** Number of separately locked segments in the in-memory tile cache */
+	private static final int MEMORY_CACHE_SEGMENTS = Config.get("map.cache.memorySegments", 16);
+	/** If true, tiles are kept in packed {@link TileStore} segment files instead of one file per tile */
+	private static final boolean USE_TILE_STORE = Config.get("map.cache.tileStore", false);
+	/** Size at which a tile store segment file is closed and a new one started */
+	private static final int TILE_STORE_SEGMENT_MB = Math.min(1024, Config.get("map.cache.tileStoreSegmentMB", 256));
 	
 	private static final DebugLog log = DebugLog.instance();
 	/** Helper log methods so the user must only declare one DebugLog line */
@@ -68,37 +76,30 @@ public class CacheManager {
 	
 	private static ExecutorService pool;
 	private static ExecutorService fuzzyPool;
-	static Map<String,BufferedImage> memoryCache;
+	static TileMemoryCache memoryCache;
+	/** Open tile stores, keyed by the directory for each source, projection, and ppd */
+	private static final Map<String,TileStore> tileStores = new HashMap<String,TileStore>();
 	
 	static {
-		memoryCache = new ReferenceMap (ReferenceMap.SOFT, ReferenceMap.SOFT);
+		memoryCache = new TileMemoryCache(MEMORY_CACHE_MB * 1024L * 1024L, MEMORY_CACHE_SEGMENTS);
 		pool = Executors.newFixedThreadPool(NUM_TILE_THREADS, new MapThreadFactory("Tile Cache Loader"));
 		fuzzyPool = Executors.newFixedThreadPool(NUM_FUZZY_THREADS, new MapThreadFactory("Fuzzy Tile Cache Loader"));
 	}
 	
+	/**
+	 * Returns the in-memory tile cache, mainly so its hit, miss, eviction, and
+	 * resident byte counts can be inspected at runtime.
+	 */
+	public static TileMemoryCache getMemoryCache() {
+		return memoryCache;
+	}
+	
 	private static void addTileToMemCache(String key, BufferedImage tile) {
-		synchronized (memoryCache) {
-			memoryCache.put(key, tile);
-		}
+		memoryCache.put(key, tile);
 	}
 	
 	private static BufferedImage getTileFromMemCache(String key) {
-		BufferedImage tile = null;
-		
-		synchronized (memoryCache) {
-			if (memoryCache.containsKey(key)) {
-				tile = memoryCache.get(key);
-				if (tile == null) {
-					log("Tile is null! Total memory is: " + 
-							Runtime.getRuntime().maxMemory() +
-							" Free memory is: " + Runtime.getRuntime().freeMemory() +
-					" Max - total is: " + (Runtime.getRuntime().maxMemory() - Runtime.getRuntime().totalMemory())		
-					);
-				}
-			}
-		}
-		
-		return tile;
+		return memoryCache.get(key);
 	}
 	
 	private static String getTileName(String sourceName, ProjObj projection, int ppd) {
@@ -112,6 +113,27 @@ public class CacheManager {
 		return getTileName(sourceName, projection, ppd) +xTile+"x"+yTile+(isNumeric?".vic":".png");
 	}
 	
+	/**
+	 * Returns the tile store for the given source, projection, and ppd, opening
+	 * it if necessary, or null if the store could not be opened.
+	 */
+	private static TileStore getTileStore(String sourceName, ProjObj projection, int ppd) {
+		String dir = getTileName(sourceName, projection, ppd);
+		synchronized(tileStores) {
+			TileStore store = tileStores.get(dir);
+			if (store == null) {
+				try {
+					store = new TileStore(new File(dir), TILE_STORE_SEGMENT_MB * 1024L * 1024L);
+					tileStores.put(dir, store);
+				} catch (Exception e) {
+					log("Unable to open tile store at " + dir);
+					log(e);
+				}
+			}
+			return store;
+		}
+	}
+	
 	public static void getTiles(MapRetriever retriever, MapTile tiles[]) {
 		if (tiles==null || tiles.length==0) {
 			return;
@@ -166,7 +188,13 @@ public class CacheManager {
 		ProjObj proj = tiles[0].getRequest().getProjection();
 		int ppd = tiles[0].getRequest().getPPD();
 		
-		for (int i=0; i<tiles.length; i++) {
+		TileStore store = USE_TILE_STORE ? getTileStore(sourceName, proj, ppd) : null;
+		if (store != null) {
+			boolean[] found = store.contains(tiles);
+			for (int i=0; i<tiles.length; i++) {
+				(found[i] ? cachedTiles : nonCachedTiles).add(tiles[i]);
+			}
+		} else for (int i=0; i<tiles.length; i++) {
 			File tileFile = new File(getTileName(sourceName, proj, ppd, tiles[i].getXtile(), tiles[i].getYtile(), source.hasNumericKeyword()));
 			if (tileFile.canRead()) {
 				cachedTiles.add(tiles[i]);
@@ -184,6 +212,34 @@ public class CacheManager {
 	}
 	
 	
+	/**
+	 * Returns the given tile from the memory cache, or the tile store or tile
+	 * file if it is not in memory, or null if the tile is not cached at all.
+	 */
+	public static BufferedImage getTile(MapSource source, ProjObj proj, int ppd, int xTile, int yTile) {
+		String tileName = getTileName(source.getName(), proj, ppd, xTile, yTile, source.hasNumericKeyword());
+		TileStore store = USE_TILE_STORE ? getTileStore(source.getName(), proj, ppd) : null;
+		if (store == null) {
+			return getTile(source, tileName);
+		}
+		
+		BufferedImage tile = CacheManager.getTileFromMemCache(tileName);
+		if (tile != null) {
+			return tile;
+		}
+		
+		try {
+			tile = store.read(xTile, yTile);
+		} catch (Exception e) {
+			log("Exception loading tile " + xTile + "x" + yTile + " from " + store.getDirectory());
+			log(e);
+		}
+		if (tile != null) {
+			CacheManager.addTileToMemCache(tileName, tile);
+		}
+		return tile;
+	}
+	
 	public static BufferedImage getTile(MapSource source, String tileName) {		
 		BufferedImage tile = null;
 		
@@ -227,11 +283,7 @@ public class CacheManager {
 		}
 
 		if (tile!=null) {
-			synchronized (memoryCache) {
-				log("Memory Cache size prePut = " + memoryCache.size());
-				CacheManager.addTileToMemCache(tileName, tile);
-				log("Memory Cache size postPut = " + memoryCache.size());
-			}
+			CacheManager.addTileToMemCache(tileName, tile);
 		}
 		
 		return tile;
@@ -241,6 +293,26 @@ public class CacheManager {
 		MapSource source = tile.getRequest().getSource();
 		String sourceName = source.getName();
 
+		TileStore store = USE_TILE_STORE ? getTileStore(sourceName, tile.getRequest().getProjection(), tile.getRequest().getPPD()) : null;
+		if (store != null) {
+			try {
+				if (store.write(tile.getXtile(), tile.getYtile(), tile.getImage(), source.hasNumericKeyword())) {
+					String tileName = getTileName(
+						sourceName,
+						tile.getRequest().getProjection(),
+						tile.getRequest().getPPD(),
+						tile.getXtile(),
+						tile.getYtile(),
+						source.hasNumericKeyword());
+					CacheManager.addTileToMemCache(tileName, tile.getImage());
+				}
+			} catch (Exception e) {
+				log("Unable to store tile in " + store.getDirectory());
+				log(e);
+			}
+			return;
+		}
+		
 		// Occasionally the netapp will report back that a file or directory doesn't exist, despite the
 		// fact that we've explicitly just created it.  Because of this occasional error, we attempt
 		// the write as many as three times before actually giving up.  This seems to solve this 
@@ -287,8 +359,16 @@ public class CacheManager {
 	
 	/** Removes all tiles for the given map source from the memory and disk caches */
 	public static void removeMap(MapSource source) {
-		synchronized(memoryCache) {
-			memoryCache.clear();
+		memoryCache.clear();
+		String sourceDir = cacheDir + source.getName() + "/";
+		synchronized(tileStores) {
+			for (Iterator<Map.Entry<String,TileStore>> it = tileStores.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<String,TileStore> entry = it.next();
+				if (entry.getKey().startsWith(sourceDir)) {
+					entry.getValue().close();
+					it.remove();
+				}
+			}
 		}
 		Util.recursiveRemoveDir(new File(cacheDir + source.getName()));
 	}
@@ -315,9 +395,7 @@ public class CacheManager {
 			ProjObj proj = tile.getRequest().getProjection();
 			int ppd = tile.getRequest().getPPD();
 			
-			String tileName = CacheManager.getTileName(source.getName(), proj, ppd, tile.getXtile(), tile.getYtile(), source.hasNumericKeyword());
-			
-			BufferedImage tileImage = CacheManager.getTile(source, tileName);
+			BufferedImage tileImage = CacheManager.getTile(source, proj, ppd, tile.getXtile(), tile.getYtile());
 			
 			// This image MAY be null, it is MapRetreivers job to check
 			myRetriever.cacheResponse(tile, tileImage);
@@ -357,12 +435,7 @@ public class CacheManager {
 				// any real benefit to the user, so we will quit our search at this point
 				if (ratio>16) break;
 				
-				String tileName = CacheManager.getTileName(
-					source.getName(), proj, fuzzyPPD,
-					tile.getXtile()/ratio, tile.getYtile()/ratio,
-					source.hasNumericKeyword());
-				
-				BufferedImage tileImage = CacheManager.getTile(source, tileName);
+				BufferedImage tileImage = CacheManager.getTile(source, proj, fuzzyPPD, tile.getXtile()/ratio, tile.getYtile()/ratio);
 				
 				if (tileImage==null) {								
 					continue;
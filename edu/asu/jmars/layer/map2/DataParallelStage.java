@@ -0,0 +1,35 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.map2;
+
+/**
+ * Marks a {@link Stage} whose per-pixel work may be run concurrently on
+ * disjoint regions of its output. Stages that implement this interface have
+ * their region work split into bands of rows by {@link StageExecutor} and run
+ * on all processors; other stages run their regions serially on the calling
+ * thread.
+ * 
+ * A stage should only implement this interface if the work for one region
+ * reads shared state without changing it, and writes only the pixels in that
+ * region.
+ */
+public interface DataParallelStage extends Stage {
+}
@@ -21,6 +21,8 @@
 package edu.asu.jmars.layer.map2;
 
 import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.SwingUtilities;
 
@@ -42,6 +44,11 @@ public class MapChannelSlower implements Runnable {
 	private int ppd;
 	private Rectangle2D extent;
 	private Pipeline[] pipeline;
+	/**
+	 * Unwrapped world rectangles exposed by pans since the last run, or null
+	 * if the next run must request the whole extent.
+	 */
+	private List<Rectangle2D> exposed;
 	public MapChannelSlower(MapChannelTiled channel, int delta) {
 		this.channel = channel;
 		this.slowExecutor = new DeltaExecutor(delta, this);
@@ -63,6 +70,7 @@ public class MapChannelSlower implements Runnable {
 		this.ppd = ppd;
 		this.extent = extent;
 		this.pipeline = pipelines;
+		this.exposed = null;
 	}
 	private void update(boolean now) {
 		if (now) {
@@ -81,10 +89,12 @@ public class MapChannelSlower implements Runnable {
 	}
 	public synchronized void setPipelines(Pipeline[] pipelines) {
 		this.pipeline = pipelines;
+		this.exposed = null;
 		update(false);
 	}
 	public synchronized void setPipelines(Pipeline[] pipelines, boolean now) {
 		this.pipeline = pipelines;
+		this.exposed = null;
 		update(now);
 	}
 	public synchronized void setView(ProjObj po, Rectangle2D extent, int ppd) {
@@ -95,6 +105,21 @@ public class MapChannelSlower implements Runnable {
 		set(po, ppd, extent, pipeline);
 		update(now);
 	}
+	/**
+	 * Sets the view after a pan that kept everything already received for the
+	 * previous extent, so only tiles touching the <code>exposed</code> part of
+	 * the unwrapped world need to be requested again. Exposed areas of pans
+	 * that are merged by the delay are accumulated.
+	 */
+	public synchronized void setView(ProjObj po, Rectangle2D extent, int ppd, Rectangle2D exposed, boolean now) {
+		List<Rectangle2D> pending = this.exposed;
+		set(po, ppd, extent, pipeline);
+		if (pending != null) {
+			pending.add((Rectangle2D)exposed.clone());
+			this.exposed = pending;
+		}
+		update(now);
+	}
 	public synchronized boolean isFinished() {
 		return channel.isFinished() && !slowExecutor.deferredWaiting();
 	}
@@ -102,17 +127,20 @@ public class MapChannelSlower implements Runnable {
 		channel.cancel();
 		slowExecutor.reset();
 	}
-	public void restart() {
+	public synchronized void restart() {
+		exposed = null;
 		update(false);
 	}
-	public void restart(boolean now) {
+	public synchronized void restart(boolean now) {
+		exposed = null;
 		update(now);
 	}
 	public void run() {
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				synchronized(MapChannelSlower.this) {
-					channel.setRequest(po, extent, ppd, pipeline);
+					channel.setRequest(po, extent, ppd, pipeline, exposed);
+					exposed = new ArrayList<Rectangle2D>();
 				}
 			}
 		});
@@ -24,9 +24,13 @@ import java.awt.Point;
 import java.awt.geom.Rectangle2D;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import edu.asu.jmars.ProjObj;
@@ -59,7 +63,9 @@ public class MapChannelTiled {
 	private int ppd;
 	private ProjObj po;
 	private Rectangle2D extent;
-	private List<MapChannel> channels = new ArrayList<MapChannel>();
+	private Map<Point,MapChannel> channels;
+	/** Tiles of the current request that have been finished and sent */
+	private Set<Point> done;
 	int channelCount;
 	
 	public ProjObj getProjection() {
@@ -92,6 +98,8 @@ public class MapChannelTiled {
 	 */
 	public MapChannelTiled(MapChannelReceiver receiver) {
 		this.receiver = receiver;
+		this.channels = new TreeMap<Point,MapChannel>(pointComp);
+		this.done = new TreeSet<Point>(pointComp);
 	}
 	
 	public boolean isFinished() {
@@ -99,11 +107,12 @@ public class MapChannelTiled {
 	}
 	
 	public synchronized void cancel() {
-		for (MapChannel ch: channels) {
+		for (MapChannel ch: channels.values()) {
 			ch.setPipeline(null);
 		}
 		
 		channels.clear();
+		done.clear();
 	}
 	
 	/**
@@ -113,55 +122,122 @@ public class MapChannelTiled {
 	 * the current view.
 	 */
 	public synchronized void setRequest(ProjObj po, Rectangle2D extent, int ppd, Pipeline[] pipes) {
+		setRequest(po, extent, ppd, pipes, null);
+	}
+	
+	/**
+	 * Like {@link #setRequest(ProjObj, Rectangle2D, int, Pipeline[])}, but when
+	 * <code>exposed</code> is not null and the projection, ppd, and pipelines
+	 * are unchanged, the receiver is assumed to have kept what it was sent for
+	 * the previous extent, so only the tiles that touch one of the exposed
+	 * unwrapped world rectangles, or that were never finished, are requested
+	 * again. Tiles that left the extent are cancelled.
+	 */
+	public synchronized void setRequest(ProjObj po, Rectangle2D extent, int ppd, Pipeline[] pipes, Collection<Rectangle2D> exposed) {
+		boolean incremental = exposed != null && po == this.po && ppd == this.ppd && pipes == this.pipes;
+		
 		this.po = po;
 		this.extent = extent;
 		this.ppd = ppd;
 		this.pipes = pipes;
 		
-		cancel();
+		if (po == null || extent == null || extent.isEmpty() || ppd == 0 || pipes == null || pipes.length == 0) {
+			cancel();
+			return;
+		}
 		
-		if (po != null && extent != null && !extent.isEmpty() && ppd != 0 && pipes != null && pipes.length != 0) {
-			Set<Point> tiles = new TreeSet<Point>(pointComp);
-			for (Rectangle2D wrappedExtent: Util.toWrappedWorld(extent)) {
-				for (Point tile: MapRetriever.tiler.getTiles(wrappedExtent, ppd)) {
-					tiles.add(tile);
-				}
+		Set<Point> tiles = new TreeSet<Point>(pointComp);
+		for (Rectangle2D wrappedExtent: Util.toWrappedWorld(extent)) {
+			for (Point tile: MapRetriever.tiler.getTiles(wrappedExtent, ppd)) {
+				tiles.add(tile);
 			}
-			
+		}
+		
+		if (!incremental) {
+			cancel();
 			channelCount = tiles.size();
-			for (final Point p: tiles) {
-				final MapChannel newChannel = new MapChannel();
-				log(MessageFormat.format("tile[{0},{1}] started", p.x, p.y));
-				newChannel.addReceiver(new MapChannelReceiver() {
-					public void mapChanged(MapData mapData) {
-						synchronized(MapChannelTiled.this) {
-							if (channels.contains(newChannel)) {
-								if (mapData.isFinished()) {
-									channels.remove(newChannel);
-									log(p, MessageFormat.format(
-										"finished, {0}/{1} channels done  ",
-										(channelCount-channels.size()), channelCount));
-								} else {
-									log(p, "updated");
-								}
-								if (!mapData.getRequest().isCancelled()) {
-									log(p, "Sending update");
-									receiver.mapChanged(mapData);
-								} else {
-									log(p, "Skipping cancelled update");
-								}
-							} else {
-								log(p, "updated, but not in channels list");
-							}
+			for (Point p: tiles) {
+				startTile(p);
+			}
+			return;
+		}
+		
+		// drop the tiles that are no longer in view
+		for (Iterator<Map.Entry<Point,MapChannel>> it = channels.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Point,MapChannel> entry = it.next();
+			if (!tiles.contains(entry.getKey())) {
+				entry.getValue().setPipeline(null);
+				it.remove();
+			}
+		}
+		done.retainAll(tiles);
+		
+		List<Rectangle2D> wrappedExposed = new ArrayList<Rectangle2D>();
+		for (Rectangle2D rect: exposed) {
+			for (Rectangle2D wrapped: Util.toWrappedWorld(rect)) {
+				wrappedExposed.add(wrapped);
+			}
+		}
+		
+		int started = 0;
+		for (Point p: tiles) {
+			boolean touched = false;
+			Rectangle2D tileExtent = MapRetriever.tiler.getExtent(p, ppd);
+			for (Rectangle2D rect: wrappedExposed) {
+				if (rect.intersects(tileExtent)) {
+					touched = true;
+					break;
+				}
+			}
+			if (touched) {
+				MapChannel old = channels.remove(p);
+				if (old != null) {
+					old.setPipeline(null);
+				}
+				done.remove(p);
+			}
+			if (!channels.containsKey(p) && !done.contains(p)) {
+				startTile(p);
+				started ++;
+			}
+		}
+		channelCount = tiles.size();
+		log(MessageFormat.format("incremental request started {0} of {1} tiles", started, channelCount));
+	}
+	
+	/** Starts a channel for the given tile of the current request */
+	private void startTile(final Point p) {
+		final MapChannel newChannel = new MapChannel();
+		log(MessageFormat.format("tile[{0},{1}] started", p.x, p.y));
+		newChannel.addReceiver(new MapChannelReceiver() {
+			public void mapChanged(MapData mapData) {
+				synchronized(MapChannelTiled.this) {
+					if (channels.get(p) == newChannel) {
+						if (mapData.isFinished()) {
+							channels.remove(p);
+							done.add(p);
+							log(p, MessageFormat.format(
+								"finished, {0}/{1} channels done  ",
+								(channelCount-channels.size()), channelCount));
+						} else {
+							log(p, "updated");
+						}
+						if (!mapData.getRequest().isCancelled()) {
+							log(p, "Sending update");
+							receiver.mapChanged(mapData);
+						} else {
+							log(p, "Skipping cancelled update");
 						}
+					} else {
+						log(p, "updated, but not in channels list");
 					}
-				});
-				
-				newChannel.setPipeline(Pipeline.getStageCopy(pipes));
-				newChannel.setMapWindow(MapRetriever.tiler.getExtent(p, ppd), ppd, po);
-				channels.add(newChannel);
+				}
 			}
-		}
+		});
+		
+		newChannel.setPipeline(Pipeline.getStageCopy(pipes));
+		newChannel.setMapWindow(MapRetriever.tiler.getExtent(p, ppd), ppd, po);
+		channels.put(p, newChannel);
 	}
 	
 	private void log(Point p, String msg) {
@@ -33,7 +33,6 @@ import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 
 import edu.asu.jmars.util.DebugLog;
-import edu.asu.jmars.util.PolyArea;
 import edu.asu.jmars.util.Util;
 
 /**
@@ -42,6 +41,10 @@ import edu.asu.jmars.util.Util;
  * The request properties are immutable.
  * 
  * The finishedArea, fuzzyArea, finished, and image properties are mutable.
+ * Received tiles are recorded in a {@link TileCoverage}, and the finished and
+ * fuzzy Areas are only built from it when {@link #getFinishedArea()} or
+ * {@link #getFuzzyArea()} is called. Since callers may change those Areas,
+ * from then on they replace the coverage for this object.
  * The getDeepCopyShell() method copies all properties except image, which
  * is highly mutable. It is strongly suggested that either getImageCopy()
  * be used, and an operation work against the copy, or the calling code
@@ -51,6 +54,7 @@ public final class MapData {
 	private static DebugLog log = DebugLog.instance();
 	
 	private final MapRequest request;
+	private TileCoverage coverage;
 	private Area finishedArea;
 	private Area fuzzyArea;
 	private BufferedImage image;
@@ -58,8 +62,14 @@ public final class MapData {
 	
 	public MapData(MapRequest request) {
 		this.request = request;
-		finishedArea = new Area();
-		fuzzyArea = new Area();
+		// cover the whole pixels of the image, as addTile() does
+		Rectangle2D extent = request.getExtent();
+		int ppd = request.getPPD();
+		coverage = new TileCoverage(new Rectangle2D.Double(extent.getMinX(), extent.getMinY(),
+			Math.ceil(extent.getWidth()*ppd) / ppd, Math.ceil(extent.getHeight()*ppd) / ppd),
+			ppd, request.getSource().getOffset());
+		finishedArea = null;
+		fuzzyArea = null;
 		image = null;
 		finished = false;
 	}
@@ -76,16 +86,48 @@ public final class MapData {
 		this.finished = finished;
 	}
 
-	public Area getFinishedArea() {
+	/**
+	 * Returns the coverage of the tiles received so far, or null if the
+	 * finished and fuzzy Areas have replaced it.
+	 */
+	public synchronized TileCoverage getCoverage() {
+		return coverage;
+	}
+	
+	/** Builds the finished and fuzzy Areas from the coverage, which they then replace */
+	private void detachCoverage() {
+		if (coverage != null) {
+			finishedArea = new TileCoverage.RectangleArea(coverage.getFinishedRectangles());
+			fuzzyArea = new TileCoverage.RectangleArea(coverage.getFuzzyRectangles());
+			coverage = null;
+		}
+	}
+	
+	/** Returns the mutable finished Area; prefer {@link #isFinishedAreaEmpty()} or {@link #getCoverage()} to read it */
+	public synchronized Area getFinishedArea() {
+		detachCoverage();
 		return finishedArea;
 	}
 
-	public Area getFuzzyArea() {
+	/** Returns the mutable fuzzy Area; prefer {@link #getCoverage()} to read it */
+	public synchronized Area getFuzzyArea() {
+		detachCoverage();
 		return fuzzyArea;
 	}
 	
+	public synchronized boolean isFinishedAreaEmpty() {
+		return coverage != null ? coverage.isFinishedEmpty() : finishedArea.isEmpty();
+	}
+	
+	public synchronized boolean isValidAreaEmpty() {
+		return coverage != null ? coverage.isValidEmpty() : finishedArea.isEmpty() && fuzzyArea.isEmpty();
+	}
+	
 	/** Returns a new Area that contains both fuzzy and finished areas. */
-	public Area getValidArea() {
+	public synchronized Area getValidArea() {
+		if (coverage != null) {
+			return new TileCoverage.RectangleArea(coverage.getValidRectangles());
+		}
 		Area valid = new Area();
 		valid.add(finishedArea);
 		valid.add(fuzzyArea);
@@ -223,9 +265,13 @@ public final class MapData {
 			
 			// update areas
 			// This can potentially be reached with cancelled/errored mapTiles... is this safe?
-			Area usedTileArea = new Area(worldTile.createIntersection(unShiftedExtent));
 			if (!mapTile.getRequest().isCancelled() && !mapTile.hasError()) {
-				(mapTile.isFinal() ? getFinishedArea() : getFuzzyArea()).add(new Area(usedTileArea));
+				if (coverage != null) {
+					coverage.add(worldTile, mapTile.isFinal());
+				} else {
+					Area usedTileArea = new Area(worldTile.createIntersection(unShiftedExtent));
+					(mapTile.isFinal() ? finishedArea : fuzzyArea).add(usedTileArea);
+				}
 			}
 		}
 	}
@@ -234,7 +280,7 @@ public final class MapData {
 	 * Returns a WritableRaster for each rectangle in the changed area.
 	 */
 	public WritableRaster[] getChangedRasters(Area changedArea) {
-		Rectangle2D[] rects = new PolyArea(changedArea).getRectangles();
+		Rectangle2D[] rects = TileCoverage.getRectangles(changedArea);
 		WritableRaster[] out = new WritableRaster[rects.length];
 		int pos = 0;
 		for (Rectangle2D rect: rects) {
@@ -256,8 +302,13 @@ public final class MapData {
 	public synchronized MapData getDeepCopyShell(BufferedImage image) {
 		MapData md = new MapData(request);
 		md.finished = isFinished();
-		md.finishedArea = (Area)getFinishedArea().clone();
-		md.fuzzyArea = (Area)getFuzzyArea().clone();
+		if (coverage != null) {
+			md.coverage = coverage.copy();
+		} else {
+			md.coverage = null;
+			md.finishedArea = (Area)finishedArea.clone();
+			md.fuzzyArea = (Area)fuzzyArea.clone();
+		}
 		md.image = image;
 		return md;
 	}
@@ -369,14 +420,21 @@ public final class MapData {
 		}
 		
 		final MapData outdata = new MapData(newRequest);
-		outdata.finishedArea = new Area(finishedArea);
-		outdata.fuzzyArea = new Area(fuzzyArea);
 		outdata.finished = finished;
 		outdata.image = outImage;
 		// clip the areas down to the new request extent
-		final Area clip = new Area(newExtent);
-		outdata.finishedArea.intersect(clip);
-		outdata.fuzzyArea.intersect(clip);
+		synchronized(this) {
+			if (coverage != null) {
+				outdata.coverage = coverage.clip(newExtent);
+			} else {
+				outdata.coverage = null;
+				outdata.finishedArea = new Area(finishedArea);
+				outdata.fuzzyArea = new Area(fuzzyArea);
+				final Area clip = new Area(newExtent);
+				outdata.finishedArea.intersect(clip);
+				outdata.fuzzyArea.intersect(clip);
+			}
+		}
 		
 		log.println("Finished in " + (System.currentTimeMillis()-start));
 		return outdata;
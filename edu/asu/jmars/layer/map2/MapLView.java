@@ -281,10 +281,18 @@ public class MapLView extends LView {
 	 * the view is visible.
 	 */
 	protected Object createRequest(Rectangle2D where) {
-		updateChannelDetails();
+		updateChannelDetails(isPanning() ? where : null);
 		return null;
 	}
 	
+	/**
+	 * Tiles are drawn in place by world coordinate, so after a pan only the
+	 * tiles touching the exposed strips have to be fetched again.
+	 */
+	protected boolean supportsIncrementalPan() {
+		return true;
+	}
+	
 	/** Does nothing here - not using the Layer.LView requestData()/receiveData() mechanism */
 	public void receiveData(Object layerData) {}
 	
@@ -428,12 +436,12 @@ public class MapLView extends LView {
 			Graphics2D g2 = getOffScreenG2();
 			g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC));
 			
-			if (newData.isFinished() && newData.getFinishedArea().isEmpty()) {
+			if (newData.isFinished() && newData.isFinishedAreaEmpty()) {
 				double length = 50d / newData.getRequest().getPPD();
 				Paint p = new TexturePaint(errorTile, new Rectangle2D.Double(0,0,length,length));
 				g2.setPaint(p);
 				g2.fill(newData.getRequest().getExtent());
-			} else if (!newData.getValidArea().isEmpty() && img != null) {
+			} else if (!newData.isValidAreaEmpty() && img != null) {
 				Rectangle2D dataBounds = newData.getRequest().getExtent();
 				worldClip.setFrame(-180,-90,720,180);
 				Rectangle bounds = MapData.getRasterBoundsForWorld(img.getRaster(), dataBounds, worldClip);
@@ -507,8 +515,11 @@ public class MapLView extends LView {
 	 * 
 	 * Also manages back buffers so we get consistent paints between when
 	 * something changes, and when updated data begins arriving.
+	 * 
+	 * @param exposed The part of the view exposed by a pan, when the back
+	 * buffers were moved to match it, or null to redraw the whole view.
 	 */
-	private void updateChannelDetails() {
+	private void updateChannelDetails(Rectangle2D exposed) {
 		log("Window changed event");
 		
 		// get projection, extent, and magnification level
@@ -516,7 +527,9 @@ public class MapLView extends LView {
 		Rectangle2D viewExtent = getClippedExtent();
 		int ppd = viewman2.getMagnification();
 		
-		clearOffScreen();
+		if (exposed == null) {
+			clearOffScreen();
+		}
 		
 		if (viewExtent.isEmpty()) {
 			// If the current view window doesn't intersect the world, then don't do anything
@@ -536,7 +549,11 @@ public class MapLView extends LView {
 				getName(), getChild() == null ? "panner" : "main"));
 			
 			if (graphicRequest != null) {
-				graphicRequest.setView(proj, viewExtent, ppd, true);
+				if (exposed == null) {
+					graphicRequest.setView(proj, viewExtent, ppd, true);
+				} else {
+					graphicRequest.setView(proj, viewExtent, ppd, exposed, true);
+				}
 				printPipeline(graphicRequest.getPipeline(), "Using old pipeline");
 			}
 			
@@ -1140,7 +1157,7 @@ public class MapLView extends LView {
 				cueShape = computeCueLine(worldCuePoint);
 			
 			if (oldCueShape != cueShape)
-				repaint();			
+				repaintOverlay();			
 		}
 		
 		/**
@@ -1247,7 +1264,7 @@ public class MapLView extends LView {
 						p1 = clampedWorldPoint(profileLinePts.get(0), e);
 					profileLinePts.add(p1);
 					p2 = p1;
-					repaint();
+					repaintOverlay();
 				}
 				else if (e.getClickCount() == 2){
 					if (!closed){
@@ -1261,7 +1278,7 @@ public class MapLView extends LView {
 						p2 = null;
 						setProfileLine(convert(profileLinePts, null));
 						profileLinePts.clear();
-						repaint();
+						repaintOverlay();
 						closed = true;
 					}
 				}
@@ -1274,7 +1291,7 @@ public class MapLView extends LView {
 			setProfileLine(null);
 			cueChanged(null);
 			closed = false;
-			repaint();
+			repaintOverlay();
 		}
 		
 		private GeneralPath convert(List<Point2D> pts, Point2D lastPt){
@@ -1313,7 +1330,7 @@ public class MapLView extends LView {
 						"  dist = " + f.format(distances[1]) + "/" + f.format(totalDistances[1]) + " km");
 
 				// Update the view so that it can display the in-progress profile line
-				repaint();
+				repaintOverlay();
 			}
 		}
 		
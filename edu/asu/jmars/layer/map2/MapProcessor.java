@@ -25,7 +25,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import edu.asu.jmars.util.DebugLog;
-import edu.asu.jmars.util.PolyArea;
 
 /**
  * MapProcessor manages all stages of data requesting and processing for a
@@ -110,8 +109,8 @@ public final class MapProcessor implements Runnable {
 		}
 	}
 	
-	private PolyArea lastFinalArea = new PolyArea();
-	private PolyArea lastFuzzyArea = new PolyArea();
+	/** The coverage of the last update processed, to find what changed since */
+	private TileCoverage lastCoverage = null;
 	
 	public void run() {
 		MapData retrievedData;
@@ -128,13 +127,19 @@ public final class MapProcessor implements Runnable {
 		// This is retrieved entirely for dbgmsg purposes
 		MapRequest request = myRetriever.getRequest();
 		
-		// Create the changed area as current valid area minus last valid area.
-		PolyArea fuzzyArea = new PolyArea(retrievedData.getFuzzyArea());
-		PolyArea finalArea = new PolyArea(retrievedData.getFinishedArea());
-		PolyArea changedArea = fuzzyArea.newSub(lastFuzzyArea).newAdd(finalArea.newSub(lastFinalArea));
-		changedArea.intersect(new Area(request.getExtent()));
-		lastFuzzyArea = fuzzyArea;
-		lastFinalArea = finalArea;
+		// Create the changed area as the tiles that became fuzzy or final
+		// since the last update; without a coverage, everything changed.
+		TileCoverage coverage = retrievedData.getCoverage();
+		Area changedArea;
+		if (coverage != null) {
+			changedArea = new TileCoverage.RectangleArea(
+				coverage.getChangedRectangles(lastCoverage, request.getExtent()));
+			lastCoverage = coverage.copy();
+		} else {
+			changedArea = retrievedData.getValidArea();
+			changedArea.intersect(new Area(request.getExtent()));
+			lastCoverage = null;
+		}
 		
 		if (result.getImage() != null) {
 			// process all of the stages
@@ -189,5 +194,6 @@ public final class MapProcessor implements Runnable {
 			pool.shutdownNow();
 			pool = null;
 		}
+		StageExecutor.close();
 	}
 }
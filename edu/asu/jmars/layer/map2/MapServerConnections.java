@@ -0,0 +1,138 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.map2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Keeps one pooled, keep-alive {@link HttpClient} per {@link MapServer}, so
+ * every tile downloaded from a server reuses the same set of connections
+ * instead of paying for a new TCP handshake per tile.
+ *
+ * Each pool allows {@link MapServer#getMaxRequests()} connections, the same
+ * limit the {@link DownloadManager} places on concurrent downloads from that
+ * server. Connections left idle longer than map.http.idleTimeout milliseconds
+ * are closed by a shared background thread.
+ */
+public final class MapServerConnections {
+	private static final DebugLog log = DebugLog.instance();
+
+	/** Milliseconds a pooled connection may sit unused before it is closed */
+	private static final int IDLE_TIMEOUT = Config.get("map.http.idleTimeout", 30000);
+
+	private static final Map<String,MapServerConnections> servers = new HashMap<String,MapServerConnections>();
+	private static IdleConnectionTimeoutThread reaper;
+
+	/**
+	 * Returns the connections for the given server, creating them the first
+	 * time the server is used, and updating the pool limits and timeout from
+	 * the server's current settings.
+	 */
+	public static MapServerConnections get(MapServer server) {
+		MapServerConnections conns;
+		synchronized(servers) {
+			conns = servers.get(server.getName());
+			if (conns == null) {
+				conns = new MapServerConnections(server.getName());
+				servers.put(server.getName(), conns);
+				if (reaper == null) {
+					reaper = new IdleConnectionTimeoutThread();
+					reaper.setName("MapServer-idle-connection-reaper");
+					reaper.setDaemon(true);
+					reaper.setConnectionTimeout(IDLE_TIMEOUT);
+					reaper.setTimeoutInterval(Math.max(1000, IDLE_TIMEOUT/2));
+					reaper.start();
+				}
+				reaper.addConnectionManager(conns.manager);
+			}
+		}
+		conns.configure(server);
+		return conns;
+	}
+
+	private final String name;
+	private final CountingConnectionManager manager = new CountingConnectionManager();
+	private final HttpClient client = new HttpClient(manager);
+
+	private MapServerConnections(String name) {
+		this.name = name;
+	}
+
+	private void configure(MapServer server) {
+		HttpConnectionManagerParams params = manager.getParams();
+		int max = Math.max(1, server.getMaxRequests());
+		if (params.getDefaultMaxConnectionsPerHost() != max) {
+			params.setDefaultMaxConnectionsPerHost(max);
+			params.setMaxTotalConnections(max);
+		}
+		params.setConnectionTimeout(server.getTimeout());
+	}
+
+	/** Returns the shared client for this server; it is safe to use from many threads at once */
+	public HttpClient getClient() {
+		return client;
+	}
+
+	/** Returns the number of requests that used a connection already open from a previous request */
+	public long getReusedCount() {
+		return manager.reused.get();
+	}
+
+	/** Returns the number of requests that had to open a new connection */
+	public long getOpenedCount() {
+		return manager.opened.get();
+	}
+
+	public String toString() {
+		return "MapServerConnections[" + name + ": reused=" + getReusedCount() + ", opened=" + getOpenedCount() + "]";
+	}
+
+	/**
+	 * Counts whether each connection handed out was already open, and so is
+	 * being reused, or must still be opened.
+	 */
+	private static final class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+		final AtomicLong reused = new AtomicLong();
+		final AtomicLong opened = new AtomicLong();
+		public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout) throws ConnectionPoolTimeoutException {
+			HttpConnection conn = super.getConnectionWithTimeout(hostConfiguration, timeout);
+			if (conn.isOpen()) {
+				reused.incrementAndGet();
+			} else {
+				opened.incrementAndGet();
+			}
+			return conn;
+		}
+	}
+}
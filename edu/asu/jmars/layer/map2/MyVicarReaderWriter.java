@@ -28,6 +28,11 @@ import java.awt.image.ColorModel;
 import java.awt.image.ComponentColorModel;
 import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
 import java.awt.image.IndexColorModel;
 import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
@@ -47,6 +52,7 @@ import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -114,10 +120,29 @@ public class MyVicarReaderWriter {
 	//
 	
 	public static BufferedImage read(File file) throws IOException, VicarException {
-		InputStream is = new BufferedInputStream(new FileInputStream(file));
-		BufferedImage image = read(is);
-		is.close();
-		return image;
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			return read(fis.getChannel());
+		} finally {
+			fis.close();
+		}
+	}
+	
+	/**
+	 * Reads the remainder of the given channel into one buffer, and decodes
+	 * the image from it with {@link #read(ByteBuffer)}.
+	 */
+	public static BufferedImage read(FileChannel channel) throws IOException, VicarException {
+		long size = channel.size() - channel.position();
+		if (size > Integer.MAX_VALUE)
+			throw new VicarException("File too large to read.");
+		ByteBuffer buf = ByteBuffer.allocate((int)size);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) < 0)
+				throw new VicarException("Short file.");
+		}
+		buf.flip();
+		return read(buf);
 	}
 	
 	public static byte[] getAllBytes(InputStream is) throws IOException {
@@ -135,24 +160,95 @@ public class MyVicarReaderWriter {
 		return out.toByteArray();
 	}
 	
+	/**
+	 * Decodes a VICAR image as it streams in. Every read is looped until it
+	 * is satisfied, since HttpURLInputStream and friends may prematurely return
+	 * partial data, and each record is transferred in bulk into the backing
+	 * array of the raster.
+	 */
 	public static BufferedImage read(InputStream iis) throws IOException, VicarException {
-		// Suck-in all data from the InputStream, we do that because of HttpURLInputStream not 
-		// returning all the requested data, but prematurely returning with partial data.
-		PushbackInputStream is = new PushbackInputStream(new ByteArrayInputStream(getAllBytes(iis)), 2048);
+		PushbackInputStream is = new PushbackInputStream(
+			iis instanceof BufferedInputStream ? iis : new BufferedInputStream(iis), 2048);
 		
 		int lblSize = readLblSize(is);
 		
 		// read the entire label
 		byte[] lblBytes = new byte[lblSize];
-		if (is.read(lblBytes) == -1)
+		if (!readFully(is, lblBytes, lblBytes.length))
 			throw new VicarException("Short file. Could not read entire label.");
 
-		Map lbl = readLbl(new PushbackInputStream(new ByteArrayInputStream(lblBytes), 100));
-
-		if (!valTypeImage.equals(lbl.get(kwType)))
-			throw new VicarException("Only \""+valTypeImage+"\" type VICAR files are supported.");
+		Map<?,?> lbl = readLbl(new PushbackInputStream(new ByteArrayInputStream(lblBytes), 100));
+		Layout layout = new Layout(lbl);
+		
+		// Skip the binary header - we don't care about it
+		skipFully(is, layout.nlb * layout.recSize);
+		
+		DataBuffer dbuff = layout.sm.createDataBuffer();
+		byte[] record = new byte[layout.n1 * layout.sampleBytes];
+		ByteBuffer bbuf = ByteBuffer.wrap(record);
+		bbuf.order(layout.order);
+		for(int k=0; k<layout.n3; k++){
+			for(int j=0; j<layout.n2; j++){
+				// Skip the binary prefix on each record
+				skipFully(is, layout.nbb);
+				
+				if (!readFully(is, record, record.length))
+					throw new VicarException("Short file.");
+				
+				bbuf.clear();
+				layout.transfer(bbuf, dbuff, k, j);
+			}
+		}
+		
+		return createImage(layout, dbuff, lbl);
+	}
+	
+	/**
+	 * Decodes a VICAR image held in the given buffer, which may be a memory
+	 * mapped file. Records are transferred directly from the buffer into the
+	 * backing array of the raster without any intermediate copies. The
+	 * buffer's position is left unchanged.
+	 */
+	public static BufferedImage read(ByteBuffer buffer) throws IOException, VicarException {
+		ByteBuffer buf = buffer.slice();
+		
+		// the label size is always within the first few bytes
+		byte[] head = new byte[Math.min(buf.remaining(), 64)];
+		buf.get(head);
+		int lblSize = readLblSize(new PushbackInputStream(new ByteArrayInputStream(head), head.length));
+		if (lblSize > buf.limit())
+			throw new VicarException("Short file. Could not read entire label.");
+		
+		byte[] lblBytes = new byte[lblSize];
+		buf.position(0);
+		buf.get(lblBytes);
+		Map<?,?> lbl = readLbl(new PushbackInputStream(new ByteArrayInputStream(lblBytes), 100));
+		Layout layout = new Layout(lbl);
+		
+		int recBytes = layout.n1 * layout.sampleBytes;
+		long end = (long)lblSize + (long)layout.nlb * layout.recSize
+			+ (long)layout.n3 * layout.n2 * (layout.nbb + recBytes);
+		if (end > buf.limit())
+			throw new VicarException("Short file.");
+		
+		DataBuffer dbuff = layout.sm.createDataBuffer();
+		buf.order(layout.order);
+		int pos = lblSize + layout.nlb * layout.recSize;
+		for(int k=0; k<layout.n3; k++){
+			for(int j=0; j<layout.n2; j++){
+				pos += layout.nbb;
+				buf.limit(pos + recBytes);
+				buf.position(pos);
+				layout.transfer(buf, dbuff, k, j);
+				pos += recBytes;
+			}
+		}
 		
-		WritableRaster raster = readData(is, lbl);
+		return createImage(layout, dbuff, lbl);
+	}
+	
+	private static BufferedImage createImage(Layout layout, DataBuffer dbuff, Map<?,?> lbl) {
+		WritableRaster raster = WritableRaster.createWritableRaster(layout.sm, dbuff, new Point());
 		
 		/*
 		 * Byte grayscale images created using the ComponentColorModel get an LUT that makes
@@ -170,132 +266,152 @@ public class MyVicarReaderWriter {
 		return outImage;
 	}
 	
-	private static WritableRaster readData(PushbackInputStream is, Map lbl) throws IOException, VicarException {
-		int nl = Integer.parseInt((String)lbl.get(kwNL));
-		int ns = Integer.parseInt((String)lbl.get(kwNS));
-		int nb = Integer.parseInt((String)lbl.get(kwNB));
-		int nbb = Integer.parseInt((String)lbl.get(kwNBB));
-		int nlb = Integer.parseInt((String)lbl.get(kwNLB));
-		int recSize = Integer.parseInt((String)lbl.get(kwRecSize));
-		String orgStr = (String)lbl.get(kwOrg);
-		String fmt = (String)lbl.get(kwFormat);
-		String intFmt = (String)lbl.get(kwIntFmt);
-		String realFmt = (String)lbl.get(kwRealFmt);
-
-		int n1 = Integer.parseInt((String)lbl.get(kwN1));
-		int n2 = Integer.parseInt((String)lbl.get(kwN2));
-		int n3 = Integer.parseInt((String)lbl.get(kwN3));
-		
-		// Get the raster sample data format
-		int dataType = DataBuffer.TYPE_UNDEFINED;
-		if (valFormatByte.equals(fmt))
-			dataType = DataBuffer.TYPE_BYTE;
-		else if (valFormatHalf.equals(fmt))
-			dataType = DataBuffer.TYPE_SHORT;
-		else if (valFormatFull.equals(fmt))
-			dataType = DataBuffer.TYPE_INT;
-		else if (valFormatReal.equals(fmt))
-			dataType = DataBuffer.TYPE_FLOAT;
-		else if (valFormatDoub.equals(fmt))
-			dataType = DataBuffer.TYPE_DOUBLE;
-		else
-			throw new VicarException("Unknown/unhandled format \""+fmt+"\".");
-
-		// See if the data is big-endian or little-endian
-		boolean bigEndian = false;
-		if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE){
-			if (valRealFmtIEEE.equals(realFmt))
-				bigEndian = true;
-			else if (valRealFmtRIEEE.equals(realFmt))
-				bigEndian = false;
-			else
-				throw new VicarException("Unknown "+kwRealFmt+" value \""+realFmt+"\".");
-		}
-		else {
-			if (valIntFmtHigh.equals(intFmt))
-				bigEndian = true;
-			else if (valIntFmtLow.equals(intFmt))
-				bigEndian = false;
-			else
-				throw new VicarException("Unknown "+kwIntFmt+" value \""+intFmt+"\".");
+	/** Reads until the array is filled or the stream ends, returning true if it was filled */
+	private static boolean readFully(InputStream is, byte[] buf, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int count = is.read(buf, off, len - off);
+			if (count < 0)
+				return false;
+			off += count;
 		}
-		
-		
-		// Skip the binary header - we don't care about it
-		is.skip(nlb * recSize);
-		
-		SampleModel sm;
-		int org;
-		if (valOrgBSQ.equals(orgStr)){
-			org = orgBSQ;
-			sm = new BandedSampleModel(dataType, n1, n2, n3);
-		}
-		else if (valOrgBIP.equals(orgStr)){
-			org = orgBIP;
-			int[] bandOffsets = new int[nb];
-			for(int i=0; i<nb; i++)
-				bandOffsets[i] = i;
-			sm = new PixelInterleavedSampleModel(dataType, ns, nl, nb, ns*nb, bandOffsets);
+		return true;
+	}
+	
+	private static void skipFully(InputStream is, long count) throws IOException, VicarException {
+		while (count > 0) {
+			long skipped = is.skip(count);
+			if (skipped <= 0) {
+				// skip() may return 0 without reaching the end, so check with read()
+				if (is.read() < 0)
+					throw new VicarException("Short file.");
+				skipped = 1;
+			}
+			count -= skipped;
 		}
-		else if (valOrgBIL.equals(orgStr)){
-			org = orgBIL;
-			int[] bandOffsets = new int[nb];
-			for(int i=0; i<nb; i++)
-				bandOffsets[i] = i*ns;
-			sm = new ComponentSampleModel(dataType, ns, nl, 1, ns*nb, bandOffsets);
+	}
+	
+	/**
+	 * The image layout described by a VICAR label, and where each record of
+	 * the file goes in the raster.
+	 */
+	private static final class Layout {
+		final int n1, n2, n3, nbb, nlb, recSize;
+		final int dataType, sampleBytes, org;
+		final ByteOrder order;
+		final SampleModel sm;
+		
+		Layout(Map<?,?> lbl) throws VicarException {
+			int nl = Integer.parseInt((String)lbl.get(kwNL));
+			int ns = Integer.parseInt((String)lbl.get(kwNS));
+			int nb = Integer.parseInt((String)lbl.get(kwNB));
+			nbb = Integer.parseInt((String)lbl.get(kwNBB));
+			nlb = Integer.parseInt((String)lbl.get(kwNLB));
+			recSize = Integer.parseInt((String)lbl.get(kwRecSize));
+			String orgStr = (String)lbl.get(kwOrg);
+			String fmt = (String)lbl.get(kwFormat);
+			String intFmt = (String)lbl.get(kwIntFmt);
+			String realFmt = (String)lbl.get(kwRealFmt);
+
+			n1 = Integer.parseInt((String)lbl.get(kwN1));
+			n2 = Integer.parseInt((String)lbl.get(kwN2));
+			n3 = Integer.parseInt((String)lbl.get(kwN3));
+			
+			if (!valTypeImage.equals(lbl.get(kwType)))
+				throw new VicarException("Only \""+valTypeImage+"\" type VICAR files are supported.");
+			
+			// Get the raster sample data format
+			if (valFormatByte.equals(fmt))
+				dataType = DataBuffer.TYPE_BYTE;
+			else if (valFormatHalf.equals(fmt))
+				dataType = DataBuffer.TYPE_SHORT;
+			else if (valFormatFull.equals(fmt))
+				dataType = DataBuffer.TYPE_INT;
+			else if (valFormatReal.equals(fmt))
+				dataType = DataBuffer.TYPE_FLOAT;
+			else if (valFormatDoub.equals(fmt))
+				dataType = DataBuffer.TYPE_DOUBLE;
+			else
+				throw new VicarException("Unknown/unhandled format \""+fmt+"\".");
+			sampleBytes = DataBuffer.getDataTypeSize(dataType)/8;
+
+			// See if the data is big-endian or little-endian
+			boolean bigEndian = false;
+			if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE){
+				if (valRealFmtIEEE.equals(realFmt))
+					bigEndian = true;
+				else if (valRealFmtRIEEE.equals(realFmt))
+					bigEndian = false;
+				else
+					throw new VicarException("Unknown "+kwRealFmt+" value \""+realFmt+"\".");
+			}
+			else {
+				if (valIntFmtHigh.equals(intFmt))
+					bigEndian = true;
+				else if (valIntFmtLow.equals(intFmt))
+					bigEndian = false;
+				else
+					throw new VicarException("Unknown "+kwIntFmt+" value \""+intFmt+"\".");
+			}
+			order = bigEndian? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN;
+			
+			if (valOrgBSQ.equals(orgStr)){
+				org = orgBSQ;
+				sm = new BandedSampleModel(dataType, n1, n2, n3);
+			}
+			else if (valOrgBIP.equals(orgStr)){
+				org = orgBIP;
+				int[] bandOffsets = new int[nb];
+				for(int i=0; i<nb; i++)
+					bandOffsets[i] = i;
+				sm = new PixelInterleavedSampleModel(dataType, ns, nl, nb, ns*nb, bandOffsets);
+			}
+			else if (valOrgBIL.equals(orgStr)){
+				org = orgBIL;
+				int[] bandOffsets = new int[nb];
+				for(int i=0; i<nb; i++)
+					bandOffsets[i] = i*ns;
+				sm = new ComponentSampleModel(dataType, ns, nl, 1, ns*nb, bandOffsets);
+			}
+			else
+				throw new VicarException("Unknown "+kwOrg+" value \""+orgStr+"\".");
 		}
-		else
-			throw new VicarException("Unknown "+kwOrg+" value \""+orgStr+"\".");
 		
-		DataBuffer dbuff = sm.createDataBuffer();
-		ByteBuffer bbuf = ByteBuffer.allocate(n1 * DataBuffer.getDataTypeSize(dataType)/8);
-		bbuf.order(bigEndian? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN);
-		for(int k=0; k<n3; k++){
-			for(int j=0; j<n2; j++){
-				// Skip the binary prefix on each record
-				is.skip(nbb);
-				
-				bbuf.clear();
-				if (is.read(bbuf.array()) != bbuf.array().length)
-					throw new VicarException("Short file.");
-				
-				for(int i=0; i<n1; i++){
-					int band = -1, index = -1;
-					switch(org){
-					case orgBSQ:
-						band = k;
-						index = j*n1+i;
-						break;
-					case orgBIP:
-					case orgBIL:
-						band = 0;
-						index = k*n1*n2+j*n1+i;
-						break;
-					}
-					
-					switch(dataType){
-						case DataBuffer.TYPE_BYTE:
-							dbuff.setElem(band, index, bbuf.get());
-							break;
-						case DataBuffer.TYPE_SHORT:
-							dbuff.setElem(band, index, bbuf.getShort());
-							break;
-						case DataBuffer.TYPE_INT:
-							dbuff.setElem(band, index, bbuf.getInt());
-							break;
-						case DataBuffer.TYPE_FLOAT:
-							dbuff.setElemFloat(band, index, bbuf.getFloat());
-							break;
-						case DataBuffer.TYPE_DOUBLE:
-							dbuff.setElemDouble(band, index, bbuf.getDouble());
-							break;
-					}
-				}
+		/**
+		 * Copies record j of band/line k from the given buffer, which must be
+		 * positioned at the start of the record's samples and have the right
+		 * byte order, into the data buffer. Each record fills a contiguous run
+		 * of n1 elements of one bank.
+		 */
+		void transfer(ByteBuffer rec, DataBuffer dbuff, int k, int j) {
+			int bank, offset;
+			if (org == orgBSQ) {
+				bank = k;
+				offset = j*n1;
+			} else {
+				bank = 0;
+				offset = k*n1*n2+j*n1;
+			}
+			offset += dbuff.getOffsets()[bank];
+			
+			switch(dataType){
+			case DataBuffer.TYPE_BYTE:
+				rec.get(((DataBufferByte)dbuff).getData(bank), offset, n1);
+				break;
+			case DataBuffer.TYPE_SHORT:
+				rec.asShortBuffer().get(((DataBufferShort)dbuff).getData(bank), offset, n1);
+				break;
+			case DataBuffer.TYPE_INT:
+				rec.asIntBuffer().get(((DataBufferInt)dbuff).getData(bank), offset, n1);
+				break;
+			case DataBuffer.TYPE_FLOAT:
+				rec.asFloatBuffer().get(((DataBufferFloat)dbuff).getData(bank), offset, n1);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				rec.asDoubleBuffer().get(((DataBufferDouble)dbuff).getData(bank), offset, n1);
+				break;
 			}
 		}
-		
-		WritableRaster raster = WritableRaster.createWritableRaster(sm, dbuff, new Point());
-		return raster;
 	}
 	
 	private static HashMap readLbl(PushbackInputStream is) throws IOException, VicarException {
@@ -492,7 +608,7 @@ public class MyVicarReaderWriter {
 		String bbuf = "";
 		
 		byte[] tmp = new byte[kwLblSize.length()];
-		if (is.read(tmp) != tmp.length || !(new String(tmp)).equals(kwLblSize))
+		if (!readFully(is, tmp, tmp.length) || !(new String(tmp)).equals(kwLblSize))
 			throw new VicarException(kwLblSize+" missing, not a VICAR file.");
 		bbuf += new String(tmp);
 
@@ -0,0 +1,176 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.map2;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Runs the per-region work of a {@link Stage}.
+ * 
+ * If the stage is a {@link DataParallelStage}, each region is split into bands
+ * of at most map.stage.bandHeight rows, and the bands are processed on a
+ * shared pool with one thread per processor. The calling thread waits until
+ * every band is done, so when {@link #execute} returns the stage may use the
+ * results just as if the work had been done serially.
+ * 
+ * Other stages, and all stages when map.stage.parallel is false, have their
+ * regions processed in order on the calling thread.
+ */
+public final class StageExecutor {
+	private static final DebugLog log = DebugLog.instance();
+	
+	/** Maximum rows in each band of work */
+	private static final int BAND_HEIGHT = Math.max(1, Config.get("map.stage.bandHeight", 64));
+	/** Set to false to process all stages serially */
+	private static final boolean PARALLEL = Config.get("map.stage.parallel", true);
+	
+	private static ExecutorService pool;
+	/** True for threads in the pool, which must not wait on the pool themselves */
+	private static final ThreadLocal<Boolean> inPool = new ThreadLocal<Boolean>();
+	
+	/** The work to do on a single rectangle of pixels */
+	public interface RegionTask {
+		void process(Rectangle region);
+	}
+	
+	private StageExecutor() {
+	}
+	
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			int procs = Math.max(1, Runtime.getRuntime().availableProcessors());
+			log.println("Creating stage pool with " + procs + " processors");
+			pool = Executors.newFixedThreadPool(procs, new MapThreadFactory("Map Stage Worker"));
+		}
+		return pool;
+	}
+	
+	/**
+	 * Returns the pixel rectangles of the given image size covered by the
+	 * world coordinate area, which should already be clipped to the extent.
+	 */
+	public static List<Rectangle> getPixelRegions(Area area, int width, int height, Rectangle2D extent) {
+		AffineTransform at = StageUtil.getExtentTransform(width, height, extent);
+		Rectangle bounds = new Rectangle(0, 0, width, height);
+		List<Rectangle> regions = new ArrayList<Rectangle>();
+		for (Rectangle2D region: TileCoverage.getRectangles(area)) {
+			region = at.createTransformedShape(region).getBounds2D();
+			int x1 = (int)region.getMinX();
+			int y1 = (int)region.getMinY();
+			int x2 = x1 + (int)Math.ceil(region.getWidth());
+			int y2 = y1 + (int)Math.ceil(region.getHeight());
+			Rectangle r = new Rectangle(x1, y1, x2-x1, y2-y1).intersection(bounds);
+			if (!r.isEmpty()) {
+				regions.add(r);
+			}
+		}
+		return regions;
+	}
+	
+	/**
+	 * Processes each region with the given task, in parallel if the stage is a
+	 * {@link DataParallelStage}, returning once all regions are done.
+	 * 
+	 * @throws RuntimeException if any region failed, with the first failure as
+	 * the cause.
+	 */
+	public static void execute(Stage stage, Collection<Rectangle> regions, RegionTask task) {
+		if (!PARALLEL || !(stage instanceof DataParallelStage) || inPool.get() != null) {
+			for (Rectangle r: regions) {
+				task.process(r);
+			}
+			return;
+		}
+		
+		List<Rectangle> bands = new ArrayList<Rectangle>();
+		for (Rectangle r: regions) {
+			for (int y = r.y; y < r.y + r.height; y += BAND_HEIGHT) {
+				bands.add(new Rectangle(r.x, y, r.width, Math.min(BAND_HEIGHT, r.y + r.height - y)));
+			}
+		}
+		
+		if (bands.size() <= 1) {
+			for (Rectangle r: bands) {
+				task.process(r);
+			}
+			return;
+		}
+		
+		ExecutorService exec = getPool();
+		List<Future<?>> futures = new ArrayList<Future<?>>(bands.size());
+		for (Rectangle band: bands) {
+			futures.add(exec.submit(new Band(task, band)));
+		}
+		
+		try {
+			for (Future<?> f: futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while processing " + stage.getStageName(), e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed processing " + stage.getStageName() + ": " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			for (Future<?> f: futures) {
+				f.cancel(false);
+			}
+		}
+	}
+	
+	private static final class Band implements Runnable {
+		private final RegionTask task;
+		private final Rectangle region;
+		Band(RegionTask task, Rectangle region) {
+			this.task = task;
+			this.region = region;
+		}
+		public void run() {
+			inPool.set(Boolean.TRUE);
+			task.process(region);
+		}
+	}
+	
+	/**
+	 * Should be called after the last map2 layer is removed to release the
+	 * worker threads
+	 */
+	public static synchronized void close() {
+		if (pool != null) {
+			log.println("Stopping StageExecutor ExecutorService");
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+}
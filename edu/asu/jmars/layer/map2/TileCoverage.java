@@ -0,0 +1,285 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.map2;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import edu.asu.jmars.util.PolyArea;
+
+/**
+ * Records which tiles of a {@link MapData} have been received, as bitsets of
+ * finished and fuzzy tiles on the {@link MapRetriever#tiler} grid, instead of
+ * growing a {@link java.awt.geom.Area} per tile.
+ * 
+ * Each bit covers one tile cell of the grid, clipped to the extent the
+ * coverage was created for. The grid is shifted by the source's nudge offset,
+ * the same way {@link MapData#addTile(MapTile)} shifts the tiles. Coverages on
+ * the same grid can be differenced as bitsets, and the cells are turned into
+ * world rectangles by merging runs of set cells, which is only done when a
+ * rectangle list or {@link Area} is asked for.
+ */
+public final class TileCoverage {
+	private final Rectangle2D clip;
+	private final double originX, originY, xstep, ystep;
+	private final int col0, row0, cols, rows;
+	private final BitSet finished;
+	private final BitSet fuzzy;
+	
+	/**
+	 * @param clip The unwrapped world extent the coverage is limited to
+	 * @param ppd The ppd of the tiles that will be added
+	 * @param offset The nudge offset applied to the source's tiles
+	 */
+	public TileCoverage(Rectangle2D clip, int ppd, Point2D offset) {
+		this.clip = (Rectangle2D)clip.clone();
+		this.xstep = MapRetriever.tiler.getPixelWidth() / (double)ppd;
+		this.ystep = MapRetriever.tiler.getPixelHeight() / (double)ppd;
+		this.originX = -offset.getX();
+		this.originY = -90 - offset.getY();
+		this.col0 = (int)Math.floor((clip.getMinX() - originX) / xstep);
+		this.row0 = (int)Math.floor((clip.getMinY() - originY) / ystep);
+		this.cols = Math.max(0, (int)Math.ceil((clip.getMaxX() - originX) / xstep) - col0);
+		this.rows = Math.max(0, (int)Math.ceil((clip.getMaxY() - originY) / ystep) - row0);
+		this.finished = new BitSet(cols*rows);
+		this.fuzzy = new BitSet(cols*rows);
+	}
+	
+	/** Copies the given coverage, limiting it to the given clip */
+	private TileCoverage(TileCoverage other, Rectangle2D clip) {
+		this.clip = clip;
+		this.xstep = other.xstep;
+		this.ystep = other.ystep;
+		this.originX = other.originX;
+		this.originY = other.originY;
+		this.col0 = other.col0;
+		this.row0 = other.row0;
+		this.cols = other.cols;
+		this.rows = other.rows;
+		this.finished = (BitSet)other.finished.clone();
+		this.fuzzy = (BitSet)other.fuzzy.clone();
+	}
+	
+	/** Returns an independent copy of this coverage */
+	public synchronized TileCoverage copy() {
+		return new TileCoverage(this, (Rectangle2D)clip.clone());
+	}
+	
+	/** Returns a copy of this coverage limited to the part inside the given extent */
+	public synchronized TileCoverage clip(Rectangle2D extent) {
+		Rectangle2D newClip = new Rectangle2D.Double();
+		Rectangle2D.intersect(clip, extent, newClip);
+		return new TileCoverage(this, newClip);
+	}
+	
+	/**
+	 * Marks the grid cells covered by the given unwrapped world tile extent as
+	 * finished or fuzzy. Cells are matched by their centers, so a tile that
+	 * is exactly one grid cell marks exactly that cell.
+	 */
+	public synchronized void add(Rectangle2D worldTile, boolean isFinal) {
+		int c1 = Math.max(0, (int)Math.round((worldTile.getMinX() - originX) / xstep) - col0);
+		int c2 = Math.min(cols, (int)Math.round((worldTile.getMaxX() - originX) / xstep) - col0);
+		int r1 = Math.max(0, (int)Math.round((worldTile.getMinY() - originY) / ystep) - row0);
+		int r2 = Math.min(rows, (int)Math.round((worldTile.getMaxY() - originY) / ystep) - row0);
+		if (c1 >= c2) {
+			return;
+		}
+		BitSet bits = isFinal ? finished : fuzzy;
+		for (int r = r1; r < r2; r++) {
+			bits.set(r*cols + c1, r*cols + c2);
+		}
+	}
+	
+	public synchronized boolean isFinishedEmpty() {
+		return finished.isEmpty();
+	}
+	
+	public synchronized boolean isValidEmpty() {
+		return finished.isEmpty() && fuzzy.isEmpty();
+	}
+	
+	/** Returns true if the given coverage uses the same tile cells as this one */
+	public boolean sameGrid(TileCoverage other) {
+		return other != null
+			&& xstep == other.xstep && ystep == other.ystep
+			&& originX == other.originX && originY == other.originY
+			&& col0 == other.col0 && row0 == other.row0
+			&& cols == other.cols && rows == other.rows;
+	}
+	
+	/** Returns the rectangles covering the finished tiles */
+	public synchronized List<Rectangle2D> getFinishedRectangles() {
+		return getRectangles(finished, clip);
+	}
+	
+	/** Returns the rectangles covering the fuzzy tiles */
+	public synchronized List<Rectangle2D> getFuzzyRectangles() {
+		return getRectangles(fuzzy, clip);
+	}
+	
+	/** Returns the rectangles covering both the finished and fuzzy tiles */
+	public synchronized List<Rectangle2D> getValidRectangles() {
+		BitSet valid = (BitSet)finished.clone();
+		valid.or(fuzzy);
+		return getRectangles(valid, clip);
+	}
+	
+	/**
+	 * Returns the rectangles, limited to <code>extent</code>, of the tiles
+	 * that became fuzzy or finished since <code>last</code> was copied from
+	 * this coverage. If <code>last</code> is null or on another grid, every
+	 * valid tile is returned.
+	 */
+	public synchronized List<Rectangle2D> getChangedRectangles(TileCoverage last, Rectangle2D extent) {
+		BitSet changed = (BitSet)finished.clone();
+		BitSet changedFuzzy = (BitSet)fuzzy.clone();
+		if (sameGrid(last)) {
+			changed.andNot(last.finished);
+			changedFuzzy.andNot(last.fuzzy);
+		}
+		changed.or(changedFuzzy);
+		Rectangle2D limit = new Rectangle2D.Double();
+		Rectangle2D.intersect(clip, extent, limit);
+		return getRectangles(changed, limit);
+	}
+	
+	/**
+	 * Returns world rectangles covering the set cells, each clipped to
+	 * <code>limit</code>. Runs of set cells in a row become one rectangle,
+	 * and identical runs in consecutive rows are merged.
+	 */
+	private List<Rectangle2D> getRectangles(BitSet cells, Rectangle2D limit) {
+		List<Rectangle2D> out = new ArrayList<Rectangle2D>();
+		if (cells.isEmpty() || limit.isEmpty()) {
+			return out;
+		}
+		// runs of the previous row still being extended, as start,end,startRow
+		List<int[]> open = new ArrayList<int[]>();
+		for (int r = 0; r <= rows; r++) {
+			List<int[]> next = new ArrayList<int[]>();
+			if (r < rows) {
+				int base = r*cols;
+				for (int c = cells.nextSetBit(base); c >= 0 && c < base + cols; ) {
+					int end = Math.min(base + cols, cells.nextClearBit(c));
+					int[] run = {c - base, end - base, r};
+					for (int[] prev: open) {
+						if (prev[0] == run[0] && prev[1] == run[1]) {
+							run[2] = prev[2];
+							prev[2] = -1;
+							break;
+						}
+					}
+					next.add(run);
+					c = cells.nextSetBit(end);
+				}
+			}
+			for (int[] prev: open) {
+				if (prev[2] >= 0) {
+					addRectangle(out, prev[0], prev[1], prev[2], r, limit);
+				}
+			}
+			open = next;
+		}
+		return out;
+	}
+	
+	private void addRectangle(List<Rectangle2D> out, int c1, int c2, int r1, int r2, Rectangle2D limit) {
+		double x1 = Math.max(limit.getMinX(), originX + (col0 + c1) * xstep);
+		double x2 = Math.min(limit.getMaxX(), originX + (col0 + c2) * xstep);
+		double y1 = Math.max(limit.getMinY(), originY + (row0 + r1) * ystep);
+		double y2 = Math.min(limit.getMaxY(), originY + (row0 + r2) * ystep);
+		if (x2 > x1 && y2 > y1) {
+			out.add(new Rectangle2D.Double(x1, y1, x2 - x1, y2 - y1));
+		}
+	}
+	
+	/**
+	 * An {@link Area} built from disjoint rectangles, that remembers them
+	 * until it is changed so {@link TileCoverage#getRectangles(Area)} doesn't
+	 * have to decompose it again.
+	 */
+	public static final class RectangleArea extends Area {
+		private List<Rectangle2D> rects;
+		public RectangleArea(List<Rectangle2D> rects) {
+			super(toPath(rects));
+			this.rects = new ArrayList<Rectangle2D>(rects);
+		}
+		private static GeneralPath toPath(List<Rectangle2D> rects) {
+			GeneralPath path = new GeneralPath(GeneralPath.WIND_NON_ZERO);
+			for (Rectangle2D r: rects) {
+				path.append(r, false);
+			}
+			return path;
+		}
+		/** Returns the rectangles this area was built from, or null if it has been changed since */
+		public synchronized List<Rectangle2D> getRectangles() {
+			return rects;
+		}
+		private synchronized void changed() {
+			rects = null;
+		}
+		public void add(Area rhs) {
+			changed();
+			super.add(rhs);
+		}
+		public void subtract(Area rhs) {
+			changed();
+			super.subtract(rhs);
+		}
+		public void intersect(Area rhs) {
+			changed();
+			super.intersect(rhs);
+		}
+		public void exclusiveOr(Area rhs) {
+			changed();
+			super.exclusiveOr(rhs);
+		}
+		public void reset() {
+			changed();
+			super.reset();
+		}
+		public void transform(AffineTransform t) {
+			changed();
+			super.transform(t);
+		}
+	}
+	
+	/**
+	 * Returns rectangles covering the given polygonal area, straight from the
+	 * rectangles it was built from if it's an unchanged {@link RectangleArea}.
+	 */
+	public static Rectangle2D[] getRectangles(Area area) {
+		if (area instanceof RectangleArea) {
+			List<Rectangle2D> rects = ((RectangleArea)area).getRectangles();
+			if (rects != null) {
+				return rects.toArray(new Rectangle2D[rects.size()]);
+			}
+		}
+		return new PolyArea(area).getRectangles();
+	}
+}
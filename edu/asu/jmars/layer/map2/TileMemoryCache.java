@@ -0,0 +1,214 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.map2;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of decoded tile images.
+ *
+ * The cache is split into a power-of-two number of segments, each with its
+ * own lock, access-ordered map, and share of the total byte budget, so
+ * concurrent tile loaders only contend when they hash to the same segment.
+ * Each tile is charged the size of its backing {@link DataBuffer}, and the
+ * least recently used tiles in a segment are evicted when that segment goes
+ * over budget.
+ *
+ * Hit, miss, eviction, and resident byte counts are kept for the whole cache
+ * and may be read at any time without locking.
+ */
+public class TileMemoryCache {
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final long maxBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong residentBytes = new AtomicLong();
+
+	/**
+	 * @param maxBytes The total number of bytes of tile data to keep resident.
+	 * @param segmentCount The number of independently locked segments, rounded
+	 * up to the next power of two.
+	 */
+	public TileMemoryCache(long maxBytes, int segmentCount) {
+		int count = 1;
+		while (count < segmentCount) {
+			count <<= 1;
+		}
+		this.maxBytes = Math.max(0, maxBytes);
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(this.maxBytes / count);
+		}
+		segmentMask = count - 1;
+	}
+
+	/** Returns the number of bytes of image data held by the given tile */
+	public static long sizeOf(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		long bits = (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType());
+		return bits / 8;
+	}
+
+	private Segment segmentFor(String key) {
+		// spread the hash bits so keys that differ only in high bits still
+		// land in different segments
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & segmentMask];
+	}
+
+	/** Returns the tile with the given key, or null if it is not resident */
+	public BufferedImage get(String key) {
+		BufferedImage tile = segmentFor(key).get(key);
+		if (tile == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return tile;
+	}
+
+	/**
+	 * Stores the given tile, evicting least recently used tiles from the same
+	 * segment as necessary. Tiles larger than a whole segment are not cached.
+	 */
+	public void put(String key, BufferedImage tile) {
+		if (key == null || tile == null) {
+			return;
+		}
+		segmentFor(key).put(key, tile, sizeOf(tile));
+	}
+
+	/** Removes every tile from the cache; counters other than resident bytes are kept */
+	public void clear() {
+		for (Segment s: segments) {
+			s.clear();
+		}
+	}
+
+	/** Returns the number of tiles currently resident */
+	public int size() {
+		int size = 0;
+		for (Segment s: segments) {
+			size += s.size();
+		}
+		return size;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getResidentBytes() {
+		return residentBytes.get();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public String toString() {
+		long h = hits.get();
+		long m = misses.get();
+		return "TileMemoryCache[tiles=" + size() +
+			", bytes=" + residentBytes.get() + "/" + maxBytes +
+			", hits=" + h + ", misses=" + m +
+			", hitRate=" + (h+m == 0 ? 0 : Math.round(100.0*h/(h+m))) + "%" +
+			", evictions=" + evictions.get() + "]";
+	}
+
+	private static final class Entry {
+		final BufferedImage tile;
+		final long bytes;
+		Entry(BufferedImage tile, long bytes) {
+			this.tile = tile;
+			this.bytes = bytes;
+		}
+	}
+
+	/** One lock-striped portion of the cache, kept in access order */
+	private final class Segment {
+		private final long capacity;
+		private final LinkedHashMap<String,Entry> map = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+		private long bytes;
+
+		Segment(long capacity) {
+			this.capacity = capacity;
+		}
+
+		synchronized BufferedImage get(String key) {
+			Entry e = map.get(key);
+			return e == null ? null : e.tile;
+		}
+
+		synchronized void put(String key, BufferedImage tile, long size) {
+			if (size > capacity) {
+				return;
+			}
+			Entry old = map.put(key, new Entry(tile, size));
+			long delta = size;
+			if (old != null) {
+				delta -= old.bytes;
+			}
+			bytes += delta;
+			residentBytes.addAndGet(delta);
+			// the iterator visits least recently accessed entries first
+			Iterator<Map.Entry<String,Entry>> it = map.entrySet().iterator();
+			while (bytes > capacity && it.hasNext()) {
+				Map.Entry<String,Entry> eldest = it.next();
+				if (eldest.getKey().equals(key)) {
+					continue;
+				}
+				it.remove();
+				bytes -= eldest.getValue().bytes;
+				residentBytes.addAndGet(-eldest.getValue().bytes);
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void clear() {
+			residentBytes.addAndGet(-bytes);
+			bytes = 0;
+			map.clear();
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+	}
+}
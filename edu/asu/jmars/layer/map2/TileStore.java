@@ -0,0 +1,503 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.map2;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.imageio.ImageIO;
+
+import edu.asu.jmars.util.DebugLog;
+import edu.asu.jmars.util.Util;
+import edu.asu.jmars.util.VicarException;
+
+/**
+ * Stores all of the tiles for one source, projection, and ppd in a small
+ * number of large segment files instead of one file per tile.
+ *
+ * Each segment is an append-only sequence of records, where each record is a
+ * fixed header (magic number, tile x, tile y, payload format, payload length)
+ * followed by the payload. Numeric tiles are stored as uncompressed VICAR, and
+ * all other tiles are stored as PNG. The headers form the index of the file;
+ * they are scanned when the store is opened to build an in-memory map of tile
+ * locations, so existence checks on cached tiles never touch the file system.
+ *
+ * New tiles are appended to the last segment until it reaches the maximum
+ * segment size, at which point a new segment is started. Full segments are
+ * memory mapped read-only, and the segment being appended to is read with
+ * positional reads.
+ *
+ * Several JMARS processes may share one store, e.g. on a network home
+ * directory. Appends hold an exclusive lock on the last segment, and first
+ * scan its tail for records other processes have added since, moving on to
+ * any segment they started. A tile missing from the index causes the same
+ * scan under a shared lock before the store reports it as absent, but only
+ * if the last segment's length or the set of segments has changed since.
+ *
+ * Reads only hold off {@link #close()}, appends and tail scans are serialized
+ * on the store.
+ */
+public class TileStore {
+	private static final DebugLog log = DebugLog.instance();
+
+	private static final int MAGIC = 0x4A544C31; // "JTL1"
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 1 + 4;
+	private static final byte FORMAT_VICAR = 1;
+	private static final byte FORMAT_PNG = 2;
+	private static final String SEGMENT_PREFIX = "tiles.";
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private final File dir;
+	private final long maxSegmentSize;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final Map<Long,Location> index = new ConcurrentHashMap<Long,Location>();
+	/** Held for reading while a tile is read, and for writing to close */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+	private boolean closed = false;
+
+	/**
+	 * Opens or creates the store in the given directory, and indexes any
+	 * existing segments.
+	 * @param maxSegmentSize The size in bytes at which a segment is closed and
+	 * a new one started.
+	 */
+	public TileStore(File dir, long maxSegmentSize) throws IOException {
+		this.dir = dir;
+		this.maxSegmentSize = maxSegmentSize;
+		dir.mkdirs();
+		String[] names = dir.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		int count = 0;
+		if (names != null) {
+			for (String name: names) {
+				try {
+					String num = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+					count = Math.max(count, Integer.parseInt(num) + 1);
+				} catch (NumberFormatException e) {
+					log.println("Ignoring unexpected file in tile store: " + name);
+				}
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			Segment s = new Segment(i);
+			segments.add(s);
+			FileLock lock = s.lock(true);
+			try {
+				s.scan(true);
+				if (i < count - 1) {
+					// another segment follows, so this one is finished
+					s.seal();
+				}
+			} finally {
+				lock.release();
+			}
+		}
+		if (segments.isEmpty()) {
+			segments.add(new Segment(0));
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	private static Long key(int xTile, int yTile) {
+		return Long.valueOf(((long)xTile << 32) | (yTile & 0xFFFFFFFFL));
+	}
+
+	/** Returns true if this store has the given tile */
+	public boolean contains(int xTile, int yTile) {
+		Long key = key(xTile, yTile);
+		return index.containsKey(key) || (refresh() && index.containsKey(key));
+	}
+
+	/**
+	 * Checks the existence of all the given tiles at once.
+	 * @return An array where element i is true if tiles[i] is in the store.
+	 */
+	public boolean[] contains(MapTile[] tiles) {
+		boolean[] found = new boolean[tiles.length];
+		boolean missing = false;
+		for (int i = 0; i < tiles.length; i++) {
+			found[i] = index.containsKey(key(tiles[i].getXtile(), tiles[i].getYtile()));
+			missing |= !found[i];
+		}
+		if (missing && refresh()) {
+			for (int i = 0; i < tiles.length; i++) {
+				found[i] = index.containsKey(key(tiles[i].getXtile(), tiles[i].getYtile()));
+			}
+		}
+		return found;
+	}
+
+	/** Returns the number of tiles in this store */
+	public int size() {
+		return index.size();
+	}
+
+	/** Returns the given tile, or null if it is not in the store */
+	public BufferedImage read(int xTile, int yTile) throws IOException, VicarException {
+		Long key = key(xTile, yTile);
+		Location loc = index.get(key);
+		if (loc == null && refresh()) {
+			loc = index.get(key);
+		}
+		if (loc == null) {
+			return null;
+		}
+		closeLock.readLock().lock();
+		try {
+			if (closed) {
+				return null;
+			}
+			Segment s;
+			synchronized(segments) {
+				s = segments.get(loc.segment);
+			}
+			ByteBuffer payload = s.read(loc.offset + HEADER_SIZE, loc.length);
+			switch (loc.format) {
+			case FORMAT_VICAR:
+				// decodes straight out of the mapped segment
+				return MyVicarReaderWriter.read(payload);
+			case FORMAT_PNG:
+				byte[] bytes;
+				if (payload.hasArray()) {
+					bytes = payload.array();
+				} else {
+					bytes = new byte[payload.remaining()];
+					payload.get(bytes);
+				}
+				return Util.replaceWithLinearGrayCS(ImageIO.read(new ByteArrayInputStream(bytes)));
+			default:
+				throw new IOException("Unknown tile format " + loc.format + " in " + s.file);
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the given tile to the store, unless the store already has it.
+	 * @param numeric If true the tile is stored as VICAR, otherwise as PNG.
+	 * @return true if the tile was written, false if it was already present.
+	 */
+	public boolean write(int xTile, int yTile, BufferedImage image, boolean numeric) throws IOException, VicarException {
+		Long key = key(xTile, yTile);
+		if (index.containsKey(key)) {
+			return false;
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		if (numeric) {
+			MyVicarReaderWriter.write(image, bos);
+		} else {
+			ImageIO.write(image, "PNG", bos);
+		}
+		byte[] payload = bos.toByteArray();
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		byte format = numeric ? FORMAT_VICAR : FORMAT_PNG;
+		record.putInt(MAGIC).putInt(xTile).putInt(yTile).put(format).putInt(payload.length).put(payload);
+		record.flip();
+
+		synchronized(this) {
+			FileLock lock = lockTail(true);
+			try {
+				// another process may have stored it since we looked
+				if (index.containsKey(key)) {
+					return false;
+				}
+				Segment s = segments.get(segments.size()-1);
+				if (s.size > 0 && s.size + HEADER_SIZE + record.limit() > maxSegmentSize) {
+					// create the next segment while holding this one's lock, so
+					// other processes see it before appending here again
+					Segment next = new Segment(segments.size());
+					FileLock nextLock = next.lock(true);
+					s.seal();
+					lock.release();
+					lock = nextLock;
+					synchronized(segments) {
+						segments.add(next);
+					}
+					s = next;
+				}
+				long offset = s.append(record);
+				index.put(key, new Location(s.number, offset, payload.length, format));
+				return true;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Indexes any records other processes have appended since this store last
+	 * looked, and returns true if there were any. The file lock is only taken
+	 * when the last segment's length or the next segment's existence shows
+	 * another process has written something.
+	 */
+	private boolean refresh() {
+		Segment tail;
+		synchronized(segments) {
+			if (segments.isEmpty()) {
+				return false;
+			}
+			tail = segments.get(segments.size()-1);
+		}
+		if (!tail.changed()) {
+			return false;
+		}
+		synchronized(this) {
+			if (segments.isEmpty()) {
+				return false;
+			}
+			int before = index.size();
+			try {
+				lockTail(false).release();
+			} catch (IOException e) {
+				log.println("Unable to refresh tile store " + dir + ": " + e);
+			}
+			return index.size() != before;
+		}
+	}
+
+	/**
+	 * Locks the last segment, after scanning its tail and moving on to each
+	 * segment another process has started after it. Must be called while
+	 * synchronized on the store.
+	 * @param exclusive If true the lock is exclusive, and partial records left
+	 * by an interrupted write are truncated; otherwise the lock is shared.
+	 * @return The lock on the last segment, which the caller must release.
+	 */
+	private FileLock lockTail(boolean exclusive) throws IOException {
+		while (true) {
+			Segment s = segments.get(segments.size()-1);
+			FileLock lock = s.lock(exclusive);
+			try {
+				s.scan(exclusive);
+				if (!segmentFile(s.number + 1).exists()) {
+					FileLock result = lock;
+					lock = null;
+					return result;
+				}
+				s.seal();
+				synchronized(segments) {
+					segments.add(new Segment(s.number + 1));
+				}
+			} finally {
+				if (lock != null) {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	private File segmentFile(int number) {
+		return new File(dir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+	}
+
+	/** Closes all segment files; the store may not be used afterward */
+	public synchronized void close() {
+		closeLock.writeLock().lock();
+		try {
+			closed = true;
+			synchronized(segments) {
+				for (Segment s: segments) {
+					s.close();
+				}
+				segments.clear();
+			}
+			index.clear();
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+	}
+
+	private static final class Location {
+		final int segment;
+		final long offset;
+		final int length;
+		final byte format;
+		Location(int segment, long offset, int length, byte format) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.format = format;
+		}
+	}
+
+	/** One segment file of the store */
+	private final class Segment {
+		final int number;
+		final File file;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		/** Non-null once the segment is full and will not be appended to again */
+		private volatile MappedByteBuffer mapped;
+		/** Bytes of complete records in the file */
+		long size;
+		/** Length of the file when this process last scanned or wrote it */
+		private volatile long knownLength;
+
+		Segment(int number) {
+			this.number = number;
+			this.file = segmentFile(number);
+		}
+
+		private synchronized FileChannel channel() throws IOException {
+			if (channel == null) {
+				raf = new RandomAccessFile(file, "rw");
+				channel = raf.getChannel();
+			}
+			return channel;
+		}
+
+		/**
+		 * Returns true if another process may have added to this segment or
+		 * started the next one since this process last looked.
+		 */
+		boolean changed() {
+			return mapped == null && file.length() != knownLength
+				|| segmentFile(number + 1).exists();
+		}
+
+		/** Locks the whole segment file against other processes */
+		FileLock lock(boolean exclusive) throws IOException {
+			return channel().lock(0, Long.MAX_VALUE, !exclusive);
+		}
+
+		/**
+		 * Adds each record past the known size of this segment to the index.
+		 * Must be called with the segment locked.
+		 * @param truncate If true, any partial record left at the end by an
+		 * interrupted write is removed; this requires an exclusive lock.
+		 */
+		void scan(boolean truncate) throws IOException {
+			if (mapped != null) {
+				return;
+			}
+			FileChannel ch = channel();
+			long length = ch.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			long pos = size;
+			while (pos + HEADER_SIZE <= length) {
+				header.clear();
+				readFully(ch, header, pos);
+				header.flip();
+				int magic = header.getInt();
+				int x = header.getInt();
+				int y = header.getInt();
+				byte format = header.get();
+				int len = header.getInt();
+				if (magic != MAGIC || len < 0 || pos + HEADER_SIZE + len > length) {
+					break;
+				}
+				index.put(key(x, y), new Location(number, pos, len, format));
+				pos += HEADER_SIZE + len;
+			}
+			if (truncate && pos < length) {
+				log.println("Truncating " + (length - pos) + " bytes of partial records from " + file);
+				ch.truncate(pos);
+				length = pos;
+			}
+			size = pos;
+			knownLength = length;
+		}
+
+		/**
+		 * Appends the given record and returns the offset it was written at.
+		 * Must be called with the segment exclusively locked and scanned.
+		 */
+		synchronized long append(ByteBuffer record) throws IOException {
+			FileChannel ch = channel();
+			long offset = size;
+			while (record.hasRemaining()) {
+				ch.write(record, offset + record.position());
+			}
+			size += record.limit();
+			knownLength = size;
+			return offset;
+		}
+
+		/** Maps this segment into memory, since it will not grow any further */
+		synchronized void seal() throws IOException {
+			if (mapped == null && size > 0) {
+				mapped = channel().map(MapMode.READ_ONLY, 0, size);
+			}
+		}
+
+		ByteBuffer read(long offset, int length) throws IOException {
+			MappedByteBuffer map = mapped;
+			if (map != null) {
+				ByteBuffer dup = map.duplicate();
+				dup.position((int)offset);
+				dup.limit((int)offset + length);
+				return dup.slice();
+			} else {
+				ByteBuffer buf = ByteBuffer.allocate(length);
+				readFully(channel(), buf, offset);
+				buf.flip();
+				return buf;
+			}
+		}
+
+		synchronized void close() {
+			try {
+				mapped = null;
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				log.println(e);
+			} finally {
+				raf = null;
+				channel = null;
+			}
+		}
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+		long start = pos - buf.position();
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, start + buf.position()) < 0) {
+				throw new IOException("Unexpected end of tile store segment");
+			}
+		}
+	}
+}
@@ -40,7 +40,6 @@ import javax.imageio.ImageIO;
 import javax.swing.SwingUtilities;
 
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpMethodRetryHandler;
@@ -241,10 +240,8 @@ public class WMSMapSource implements MapSource, Serializable {
 		String mimeType = getMimeType();
 		log.println("Downloading ["+mimeType+"] tile from URL " + urlString);
 		
-		HttpClient client = new HttpClient();
-		HttpConnectionManager conMan = client.getHttpConnectionManager();
-		conMan.getParams().setDefaultMaxConnectionsPerHost(getServer().getMaxRequests());
-	    conMan.getParams().setConnectionTimeout(getServer().getTimeout());
+		MapServerConnections conns = MapServerConnections.get(getServer());
+		HttpClient client = conns.getClient();
 	    GetMethod method = new GetMethod(urlString);
 		method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new HttpMethodRetryHandler() {
 			public boolean retryMethod(HttpMethod method, IOException exception, int executionCount) {
@@ -307,8 +304,10 @@ public class WMSMapSource implements MapSource, Serializable {
 			throw new NonRetryableException("An unknown error occured", e);
 		} 
 		finally {
+			// reads any unconsumed response and returns the connection to the pool
 			method.releaseConnection();
 			unhookWatch(Thread.currentThread());
+			log.println(conns);
 		}
 	    
 	    return tileImage;
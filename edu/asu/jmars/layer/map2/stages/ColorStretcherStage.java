@@ -1,40 +1,45 @@
-// Copyright 2008, Arizona Board of Regents
-// on behalf of Arizona State University
-// 
-// Prepared by the Mars Space Flight Facility, Arizona State University,
-// Tempe, AZ.
-// 
-// This program is free software: you can redistribute it and/or modify
-// it under the terms of the GNU General Public License as published by
-// the Free Software Foundation, either version 3 of the License, or
-// (at your option) any later version.
-// 
-// This program is distributed in the hope that it will be useful,
-// but WITHOUT ANY WARRANTY; without even the implied warranty of
-// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-// GNU General Public License for more details.
-// 
-// You should have received a copy of the GNU General Public License
-// along with this program.  If not, see <http://www.gnu.org/licenses/>.
-
-
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
 package edu.asu.jmars.layer.map2.stages;
 
+import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
 import java.awt.image.ColorConvertOp;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Collections;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
+import edu.asu.jmars.layer.map2.DataParallelStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
+import edu.asu.jmars.layer.map2.StageExecutor;
 import edu.asu.jmars.layer.map2.StageSettings;
 import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.Util;
 
-public class ColorStretcherStage extends AbstractStage implements Cloneable, Serializable {
+public class ColorStretcherStage extends AbstractStage implements DataParallelStage, Cloneable, Serializable {
 	private static final long serialVersionUID = -1320855669272199638L;
 	private static final Object globalLock = new Object();
 	public static DebugLog log = DebugLog.instance();
@@ -67,7 +72,7 @@ public class ColorStretcherStage extends AbstractStage implements Cloneable, Ser
 		BufferedImage image = data.getImage();
 
 		// Create an output image which is compatible with the FancyColorMapper's color map op
-		BufferedImage outImage = Util.newBufferedImage(image.getWidth(), image.getHeight());
+		final BufferedImage outImage = Util.newBufferedImage(image.getWidth(), image.getHeight());
 
 		// the color convert op may be the cause of a relatively rare jvm crash
 		// that is rumored to occur as a result of a race condition within
@@ -85,7 +90,13 @@ public class ColorStretcherStage extends AbstractStage implements Cloneable, Ser
 		// TODO: fcm is a Swing object while the Stage is multi-threaded. How do we cope?
 		// TODO: Don't know what alpha to use here, "1" seems like a reasonable choice.
 		ColorStretcherStageSettings settings = (ColorStretcherStageSettings)getSettings(); 
-		settings.getColorMapperState().getColorMapOp().forAlpha(1.0f).filter(outImage, outImage);
+		final BufferedImageOp op = settings.getColorMapperState().getColorMapOp().forAlpha(1.0f);
+		StageExecutor.execute(this, Collections.singletonList(new Rectangle(0, 0, outImage.getWidth(), outImage.getHeight())), new StageExecutor.RegionTask() {
+			public void process(Rectangle r) {
+				BufferedImage band = outImage.getSubimage(r.x, r.y, r.width, r.height);
+				op.filter(band, band);
+			}
+		});
 		
 		return data.getDeepCopyShell(outImage);
 	}
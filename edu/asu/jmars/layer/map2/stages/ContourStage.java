@@ -21,20 +21,51 @@
 package edu.asu.jmars.layer.map2.stages;
 
 import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.RasterOp;
-import java.awt.image.WritableRaster;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
-import edu.asu.jmars.layer.map2.BinRasterOp;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
+import edu.asu.jmars.layer.map2.MapRequest;
+import edu.asu.jmars.layer.map2.StageExecutor;
+import edu.asu.jmars.layer.map2.StageUtil;
 
+/**
+ * Draws a contour line on every pixel that has a neighbor in a higher bin,
+ * where the bins are <code>step</code> wide starting from <code>base</code>.
+ * 
+ * The binned input values and the output image are kept from one call to the
+ * next for the same request, so each update only re-bins the changed area,
+ * and only recomputes contours within one pixel of it. The changed area is
+ * grown by that one pixel halo on return. A new request or new settings start
+ * over with the whole image. The bins and output image are only reallocated
+ * when the image size changes; like the composite stages, the same output
+ * image is returned each time and is updated while synchronized on it, as
+ * {@link MapData} asks of code changing an image.
+ */
 public class ContourStage extends AbstractStage implements Cloneable, Serializable {
+	/** The request the cached state below was computed for */
+	private transient MapRequest lastRequest;
+	private transient double lastBase, lastStep;
+	private transient int lastColor;
+	/** Binned input values, row-major */
+	private transient double[] bins;
+	/** Output image, and its row-major ARGB pixels */
+	private transient BufferedImage outImage;
+	private transient int[] pixels;
+	
 	public ContourStage(ContourStageSettings settings){
 		super(settings);
 	}
@@ -58,62 +89,118 @@ public class ContourStage extends AbstractStage implements Cloneable, Serializab
 		return ((ContourStageSettings)super.getSettings());
 	}
 	
-	public MapData process(int inputNumber, MapData data, Area changedArea) {
+	/**
+	 * Synchronized since the binned values and output image are shared by
+	 * successive calls.
+	 */
+	public synchronized MapData process(int inputNumber, MapData data, Area changedArea) {
 		if (inputNumber != 0)
 			throw new IllegalArgumentException();
 		
-		double start = getSettings().getBase();
+		double base = getSettings().getBase();
 		double step = getSettings().getStep();
-		Color    color = getSettings().getColor();
+		int color = getSettings().getColor().getRGB();
 		
-		RasterOp binOp = new BinRasterOp(start, step);
-		WritableRaster binnedRaster = binOp.filter(data.getImage().getRaster(), null);
+		Raster src = data.getImage().getRaster();
+		int w = src.getWidth();
+		int h = src.getHeight();
+		Rectangle2D extent = data.getRequest().getExtent();
 		
-		int w = binnedRaster.getWidth();
-		int h = binnedRaster.getHeight();
-		int b = binnedRaster.getNumBands();
-
-		BufferedImage outImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-		//WritableRaster outRaster = WritableRaster.createBandedRaster(DataBuffer.TYPE_FLOAT, w, h, b, null);
+		boolean resized = outImage == null
+			|| outImage.getWidth() != w || outImage.getHeight() != h;
+		boolean full = resized
+			|| lastRequest != data.getRequest()
+			|| lastBase != base || lastStep != step || lastColor != color;
 		
-		double[] dArray = new double[9];
-		boolean filled;
+		List<Rectangle> regions;
+		if (full) {
+			lastRequest = data.getRequest();
+			lastBase = base;
+			lastStep = step;
+			lastColor = color;
+			if (resized) {
+				bins = new double[w*h];
+				outImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+				pixels = ((DataBufferInt)outImage.getRaster().getDataBuffer()).getData();
+			}
+			regions = Arrays.asList(new Rectangle(0, 0, w, h));
+		} else {
+			regions = StageExecutor.getPixelRegions(changedArea, w, h, extent);
+		}
 		
-		for(int k=0; k<1; k++){
-			for(int j=0; j<h; j++){
-				for(int i=0; i<w; i++){
-					int x1 = Math.max(0, i-1), x2 = Math.min(w-1, i+1);
-					int y1 = Math.max(0, j-1), y2 = Math.min(h-1, j+1);
-					int lw = x2-x1+1, lh = y2-y1+1;
-					int lcloc = lw * (j-y1) + (i-x1);
-					
-					binnedRaster.getSamples(x1, y1, lw, lh, k, dArray);
-					filled = false;
-					for(int y=0; !filled && y<lh; y++){
-						for(int x=0; !filled && x<lw; x++){
-							if ((x+x1) == i && (y+y1) == j)
-								continue;
-							
-							if (dArray[lcloc] < dArray[lw*y+x])
-								filled = true;
-						}
-					}
-					
-					if (filled)
-						outImage.setRGB(i, j, color.getRGB());
-						//outRaster.setSample(i, j, k, dArray[lcloc]);
+		Rectangle bounds = new Rectangle(0, 0, w, h);
+		double[] row = new double[w];
+		
+		// re-bin every changed pixel first, so the contour pass below sees
+		// all of the new values
+		for (Rectangle r: regions) {
+			binRegion(src, r, base, step, bins, row);
+		}
+		
+		AffineTransform toWorld = null;
+		if (!full) {
+			try {
+				toWorld = StageUtil.getExtentTransform(w, h, extent).createInverse();
+			} catch (NoninvertibleTransformException e) {
+				throw new IllegalStateException("Cannot map pixels back to the extent", e);
+			}
+		}
+		synchronized(outImage) {
+			for (Rectangle r: regions) {
+				Rectangle halo = new Rectangle(r.x-1, r.y-1, r.width+2, r.height+2).intersection(bounds);
+				contourRegion(bins, w, h, halo, color, pixels);
+				if (toWorld != null) {
+					changedArea.add(new Area(toWorld.createTransformedShape(halo)));
 				}
 			}
 		}
 		
-		//ColorModel outCM = new EmptyColorModel();
-		//BufferedImage outImage = new BufferedImage(outCM, outRaster, outCM.isAlphaPremultiplied(), null);
-		
-		changedArea.reset();
-		changedArea.add(new Area(data.getRequest().getExtent()));
+		if (full) {
+			changedArea.reset();
+			changedArea.add(new Area(extent));
+		} else {
+			changedArea.intersect(new Area(extent));
+		}
 		
 		return data.getDeepCopyShell(outImage);
 	}
+	
+	/** Stores the bin of each pixel of the given region of band 0 of src */
+	static void binRegion(Raster src, Rectangle r, double base, double step, double[] bins, double[] row) {
+		int w = src.getWidth();
+		for (int j = r.y; j < r.y + r.height; j++) {
+			src.getSamples(r.x, j, r.width, 1, 0, row);
+			int off = j*w + r.x;
+			for (int i = 0; i < r.width; i++) {
+				bins[off+i] = Math.rint((row[i] - base)/step) * step;
+			}
+		}
+	}
+	
+	/**
+	 * Sets each pixel in the region to the given color if any of its eight
+	 * neighbors is in a higher bin, and to transparent otherwise.
+	 */
+	static void contourRegion(double[] bins, int w, int h, Rectangle r, int color, int[] out) {
+		for (int j = r.y; j < r.y + r.height; j++) {
+			int y1 = Math.max(0, j-1), y2 = Math.min(h-1, j+1);
+			for (int i = r.x; i < r.x + r.width; i++) {
+				int x1 = Math.max(0, i-1), x2 = Math.min(w-1, i+1);
+				double center = bins[j*w+i];
+				boolean filled = false;
+				for (int y = y1; !filled && y <= y2; y++) {
+					int off = y*w;
+					for (int x = x1; x <= x2; x++) {
+						if (center < bins[off+x]) {
+							filled = true;
+							break;
+						}
+					}
+				}
+				out[j*w+i] = filled ? color : 0;
+			}
+		}
+	}
 
 	public String getStageName(){
 		return getSettings().getStageName();
@@ -121,6 +208,10 @@ public class ContourStage extends AbstractStage implements Cloneable, Serializab
 	
 	public Object clone() throws CloneNotSupportedException {
 		ContourStage stage = (ContourStage)super.clone();
+		stage.lastRequest = null;
+		stage.bins = null;
+		stage.outImage = null;
+		stage.pixels = null;
 		return stage;
 	}
 	
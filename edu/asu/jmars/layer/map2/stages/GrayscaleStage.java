@@ -1,26 +1,27 @@
-// Copyright 2008, Arizona Board of Regents
-// on behalf of Arizona State University
-// 
-// Prepared by the Mars Space Flight Facility, Arizona State University,
-// Tempe, AZ.
-// 
-// This program is free software: you can redistribute it and/or modify
-// it under the terms of the GNU General Public License as published by
-// the Free Software Foundation, either version 3 of the License, or
-// (at your option) any later version.
-// 
-// This program is distributed in the hope that it will be useful,
-// but WITHOUT ANY WARRANTY; without even the implied warranty of
-// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-// GNU General Public License for more details.
-// 
-// You should have received a copy of the GNU General Public License
-// along with this program.  If not, see <http://www.gnu.org/licenses/>.
-
-
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
 package edu.asu.jmars.layer.map2.stages;
 
 
+import java.awt.Rectangle;
 import java.awt.color.ColorSpace;
 import java.awt.geom.Area;
 import java.awt.geom.Rectangle2D;
@@ -35,11 +36,14 @@ import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Collections;
 
 import edu.asu.jmars.layer.map2.AbstractStage;
+import edu.asu.jmars.layer.map2.DataParallelStage;
 import edu.asu.jmars.layer.map2.GrayRescaleToByteOp;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
+import edu.asu.jmars.layer.map2.StageExecutor;
 import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.PolyArea;
 import edu.asu.jmars.util.Util;
@@ -49,7 +53,7 @@ import edu.asu.jmars.util.Util;
  * an alpha band if the input image had an alpha band or if there is an ignore
  * value defined on the map source.
  */
-public class GrayscaleStage extends AbstractStage implements Cloneable, Serializable {
+public class GrayscaleStage extends AbstractStage implements DataParallelStage, Cloneable, Serializable {
 	private static final long serialVersionUID = 2L;
 
 	private static DebugLog log = DebugLog.instance();
@@ -92,7 +96,7 @@ public class GrayscaleStage extends AbstractStage implements Cloneable, Serializ
 		ColorModel destCM = new ComponentColorModel(cs, outputAlpha, false, trans, DataBuffer.TYPE_BYTE);
 		SampleModel outModel = new BandedSampleModel(DataBuffer.TYPE_BYTE, w, h, destCM.getNumComponents());
 		WritableRaster outRaster = Raster.createWritableRaster(outModel, null);
-		BufferedImage outImage = new BufferedImage(destCM, outRaster, destCM.isAlphaPremultiplied(), null);
+		final BufferedImage outImage = new BufferedImage(destCM, outRaster, destCM.isAlphaPremultiplied(), null);
 		
 		// rescale the data band
 		double diff = maxValue - minValue;
@@ -100,26 +104,34 @@ public class GrayscaleStage extends AbstractStage implements Cloneable, Serializ
 		double offset = diff == 0? 0: -255 * minValue / (maxValue - minValue);
 		if (Double.isInfinite(minValue) || Double.isInfinite(maxValue))
 			offset = scaleFactor = 0;
-		GrayRescaleToByteOp rescaleOp = new GrayRescaleToByteOp((float)scaleFactor, (float)offset);
-		rescaleOp.filter(image, outImage);
+		final GrayRescaleToByteOp rescaleOp = new GrayRescaleToByteOp((float)scaleFactor, (float)offset);
 		
 		// if an ignore value is defined, then since we have already ensured there
 		// is an alpha band, go set those pixels to transparent where the data is
 		// equal to the ignore value
-		if (!Double.isNaN(ignore)) {
-			Ignore tool = createIgnoreFromType(image.getRaster().getTransferType(), ignore);
-			Object rpixels = null;
-			byte[] apixels = null;
-			WritableRaster rdata = Util.getBands(image, 0);
-			WritableRaster adata = Util.getBands(outImage, 1);
-			
-			for (int row = 0; row < h; row++) {
-				rpixels = rdata.getDataElements(0, row, w, 1, rpixels);
-				apixels = (byte[])adata.getDataElements(0, row, w, 1, apixels);
-				tool.setAlpha(rpixels, apixels);
-				adata.setDataElements(0, row, w, 1, apixels);
+		final Ignore tool = Double.isNaN(ignore) ? null : createIgnoreFromType(image.getRaster().getTransferType(), ignore);
+		final WritableRaster rdata = tool == null ? null : Util.getBands(image, 0);
+		final WritableRaster adata = tool == null ? null : Util.getBands(outImage, 1);
+		
+		final BufferedImage inImage = image;
+		StageExecutor.execute(this, Collections.singletonList(new Rectangle(0, 0, w, h)), new StageExecutor.RegionTask() {
+			public void process(Rectangle r) {
+				rescaleOp.filter(
+					inImage.getSubimage(r.x, r.y, r.width, r.height),
+					outImage.getSubimage(r.x, r.y, r.width, r.height));
+				
+				if (tool != null) {
+					Object rpixels = null;
+					byte[] apixels = null;
+					for (int row = r.y; row < r.y + r.height; row++) {
+						rpixels = rdata.getDataElements(r.x, row, r.width, 1, rpixels);
+						apixels = (byte[])adata.getDataElements(r.x, row, r.width, 1, apixels);
+						tool.setAlpha(rpixels, apixels);
+						adata.setDataElements(r.x, row, r.width, 1, apixels);
+					}
+				}
 			}
-		}
+		});
 		
 		return data.getDeepCopyShell(outImage);
 	}
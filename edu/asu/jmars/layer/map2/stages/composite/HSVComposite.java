@@ -21,9 +21,8 @@
 package edu.asu.jmars.layer.map2.stages.composite;
 
 import java.awt.Color;
-import java.awt.geom.AffineTransform;
+import java.awt.Rectangle;
 import java.awt.geom.Area;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
@@ -32,15 +31,16 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.List;
 
 import edu.asu.jmars.layer.map2.AlphaCombinerOp;
+import edu.asu.jmars.layer.map2.DataParallelStage;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
-import edu.asu.jmars.layer.map2.StageUtil;
-import edu.asu.jmars.util.PolyArea;
+import edu.asu.jmars.layer.map2.StageExecutor;
 import edu.asu.jmars.util.Util;
 
-public class HSVComposite extends CompositeStage implements Cloneable, Serializable {
+public class HSVComposite extends CompositeStage implements DataParallelStage, Cloneable, Serializable {
 	private static final long serialVersionUID = 2L;
 	
 	public static final String[] inputNames = new String[] {"Hue", "Saturation", "Value"};
@@ -60,7 +60,7 @@ public class HSVComposite extends CompositeStage implements Cloneable, Serializa
 	
 	public MapData process(int input, MapData inputData, Area changedArea) {
 		MapData data = super.process(input, inputData, changedArea);
-		BufferedImage output = data.getImage();
+		final BufferedImage output = data.getImage();
 		extractor[input] = Extractor.create(inputData.getImage());
 		
 		if (output.getWidth() != inputData.getImage().getWidth()
@@ -69,34 +69,50 @@ public class HSVComposite extends CompositeStage implements Cloneable, Serializa
 		
 		// narrow changed area down to the valid area
 		changedArea.intersect(data.getValidArea());
+		if (changedArea.isEmpty())
+			return data;
 		
-		AffineTransform at = StageUtil.getExtentTransform(output.getWidth(), output.getHeight(), data.getRequest().getExtent());
-		float[] alphas = new float[3];
-		for (Rectangle2D region: new PolyArea(changedArea).getRectangles()) {
-			region = at.createTransformedShape(region).getBounds2D();
-			final int x1 = (int)region.getMinX();
-			final int y1 = (int)region.getMinY();
-			final int x2 = x1 + (int)Math.ceil(region.getWidth());
-			final int y2 = y1 + (int)Math.ceil(region.getHeight());
-			for (int i = x1; i < x2; i++) {
+		// the valid area only covers pixels once every input has arrived
+		final BufferedImage[] inputs = new BufferedImage[3];
+		for (int k=0; k<3; k++) {
+			if (extractor[k] == null)
+				return data;
+			inputs[k] = extractor[k].input;
+		}
+		
+		List<Rectangle> regions = StageExecutor.getPixelRegions(
+			changedArea, output.getWidth(), output.getHeight(), data.getRequest().getExtent());
+		StageExecutor.execute(this, regions, new StageExecutor.RegionTask() {
+			public void process(Rectangle region) {
+				// extractors keep per-pixel scratch space, so each region gets its own
+				Extractor[] ex = new Extractor[3];
+				for (int k=0; k<3; k++)
+					ex[k] = Extractor.create(inputs[k]);
+				float[] alphas = new float[3];
+				final int x1 = region.x;
+				final int y1 = region.y;
+				final int x2 = x1 + region.width;
+				final int y2 = y1 + region.height;
 				for (int j = y1; j < y2; j++) {
-					
-					// convert HSB values to RGB for this output location
-					// and always enable alpha on pixels we set here
-					for(int k=0; k<3; k++)
-						alphas[k] = extractor[k].getAlpha(i, j);
-
-					int outAlpha = (int)AlphaCombinerOp.alphaCombine(alphas) * 255;
-					
-					output.setRGB(i, j, (outAlpha << 24) | 
-							(Color.HSBtoRGB(
-									extractor[0].getHue(i, j),
-									extractor[1].getSat(i, j),
-									extractor[2].getVal(i, j)) & 0x00FFFFFF)
-						);
+					for (int i = x1; i < x2; i++) {
+						
+						// convert HSB values to RGB for this output location
+						// and always enable alpha on pixels we set here
+						for(int k=0; k<3; k++)
+							alphas[k] = ex[k].getAlpha(i, j);
+						
+						int outAlpha = (int)AlphaCombinerOp.alphaCombine(alphas) * 255;
+						
+						output.setRGB(i, j, (outAlpha << 24) | 
+								(Color.HSBtoRGB(
+										ex[0].getHue(i, j),
+										ex[1].getSat(i, j),
+										ex[2].getVal(i, j)) & 0x00FFFFFF)
+							);
+					}
 				}
 			}
-		}
+		});
 		
 		return data;
 	}
@@ -35,8 +35,8 @@ import java.io.Serializable;
 import edu.asu.jmars.layer.map2.AlphaCombinerOp;
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
+import edu.asu.jmars.layer.map2.TileCoverage;
 import edu.asu.jmars.util.DebugLog;
-import edu.asu.jmars.util.PolyArea;
 import edu.asu.jmars.util.Util;
 
 public class RGBComposite extends CompositeStage implements Cloneable, Serializable {
@@ -69,7 +69,7 @@ public class RGBComposite extends CompositeStage implements Cloneable, Serializa
 		WritableRaster target = Util.getBands(output.getImage(), input);
 		
 		// for each changed rectangle, copy source to destination and set alpha
-		for (Rectangle2D r: new PolyArea(changedArea).getRectangles()) {
+		for (Rectangle2D r: TileCoverage.getRectangles(changedArea)) {
 			Raster rectSource = MapData.getRasterForWorld(source, inputData.getRequest().getExtent(), r);
 			WritableRaster rectTarget = MapData.getRasterForWorld(target, output.getRequest().getExtent(), r);
 			rectTarget.setRect(rectSource);
@@ -86,7 +86,7 @@ public class RGBComposite extends CompositeStage implements Cloneable, Serializa
 		
 		// set opaque alpha for each piece of the changed area
 		WritableRaster outAlpha = Util.getBands(output.getImage(), 3);
-		for (Rectangle2D r: new PolyArea(changedArea).getRectangles()) {
+		for (Rectangle2D r: TileCoverage.getRectangles(changedArea)) {
 			WritableRaster inAlphaRect = MapData.getRasterForWorld(alphas.getRaster(), output.getRequest().getExtent(), r);
 			inAlphaRect = alphaCombiner.filter(inAlphaRect, null);
 			WritableRaster outAlphaRect = MapData.getRasterForWorld(outAlpha, output.getRequest().getExtent(), r);
@@ -36,7 +36,7 @@ import java.io.Serializable;
 
 import edu.asu.jmars.layer.map2.MapAttr;
 import edu.asu.jmars.layer.map2.MapData;
-import edu.asu.jmars.util.PolyArea;
+import edu.asu.jmars.layer.map2.TileCoverage;
 import edu.asu.jmars.util.Util;
 
 /**
@@ -114,7 +114,7 @@ public class SingleComposite extends CompositeStage implements Cloneable, Serial
 		
 		// set opaque alpha for each piece of the changed area
 		WritableRaster alpha = Util.getBands(outImage, outImage.getColorModel().getNumComponents()-1);
-		for (Rectangle2D r: new PolyArea(changedArea).getRectangles()) {
+		for (Rectangle2D r: TileCoverage.getRectangles(changedArea)) {
 			WritableRaster rectAlpha = MapData.getRasterForWorld(alpha, outData.getRequest().getExtent(), r);
 			for (int i = rectAlpha.getWidth()-1; i >= 0; i--) {
 				for (int j = rectAlpha.getHeight()-1; j >= 0; j--) {
@@ -0,0 +1,120 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.nomenclature;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collision structure for placing labels. The placed label rectangles and the
+ * landmark points are bucketed into a grid of cells over the view, so testing
+ * a candidate label only looks at the entries in the cells it overlaps.
+ * Entries outside the grid's bounds are kept in its edge cells.
+ */
+final class LabelGrid {
+	private static final class Entry {
+		final Rectangle2D rect;
+		final Object owner;
+		final boolean point;
+		Entry(Rectangle2D rect, Object owner, boolean point) {
+			this.rect = rect;
+			this.owner = owner;
+			this.point = point;
+		}
+	}
+
+	private final double minX, minY, cellW, cellH;
+	private final int cols, rows;
+	private final List<Entry>[] cells;
+
+	/**
+	 * @param bounds The area most entries will fall in
+	 * @param cellW The width of a cell, ideally about that of a typical label
+	 * @param cellH The height of a cell, ideally about that of a typical label
+	 */
+	@SuppressWarnings("unchecked")
+	LabelGrid(Rectangle2D bounds, double cellW, double cellH) {
+		this.minX = bounds.getMinX();
+		this.minY = bounds.getMinY();
+		this.cellW = cellW;
+		this.cellH = cellH;
+		this.cols = Math.max(1, Math.min(1024, (int)Math.ceil(bounds.getWidth() / cellW)));
+		this.rows = Math.max(1, Math.min(1024, (int)Math.ceil(bounds.getHeight() / cellH)));
+		this.cells = new List[cols*rows];
+	}
+
+	private int col(double x) {
+		return Math.max(0, Math.min(cols - 1, (int)Math.floor((x - minX) / cellW)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int)Math.floor((y - minY) / cellH)));
+	}
+
+	private void add(Entry e) {
+		Rectangle2D r = e.rect;
+		for (int j = row(r.getMinY()); j <= row(r.getMaxY()); j++) {
+			for (int i = col(r.getMinX()); i <= col(r.getMaxX()); i++) {
+				List<Entry> cell = cells[j*cols + i];
+				if (cell == null) {
+					cells[j*cols + i] = cell = new ArrayList<Entry>(4);
+				}
+				cell.add(e);
+			}
+		}
+	}
+
+	/** Adds a placed label */
+	void addLabel(Rectangle2D r, Object owner) {
+		add(new Entry(r, owner, false));
+	}
+
+	/** Adds the location of a landmark */
+	void addPoint(double x, double y, Object owner) {
+		add(new Entry(new Rectangle2D.Double(x, y, 0, 0), owner, true));
+	}
+
+	/**
+	 * Returns true if <code>r</code> intersects a placed label, or contains
+	 * the point of any landmark other than <code>owner</code>.
+	 */
+	boolean inConflict(Rectangle2D r, Object owner) {
+		for (int j = row(r.getMinY()); j <= row(r.getMaxY()); j++) {
+			for (int i = col(r.getMinX()); i <= col(r.getMaxX()); i++) {
+				List<Entry> cell = cells[j*cols + i];
+				if (cell == null) {
+					continue;
+				}
+				for (Entry e: cell) {
+					if (e.point) {
+						if (e.owner != owner && r.contains(e.rect.getX(), e.rect.getY())) {
+							return true;
+						}
+					} else if (r.intersects(e.rect)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,184 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.nomenclature;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buckets items by their world point on a fixed grid of cells, so a window
+ * query only visits the items in the cells the window covers. World x values
+ * are held modulo 360, and a query returns each item once for every 360
+ * degree copy of its point that falls inside the window, the same way
+ * {@link edu.asu.jmars.graphics.SpatialGraphics2D#spatialToWorlds(Point2D)}
+ * does for a single point.
+ */
+final class LandmarkIndex<T> {
+	private final int cols;
+	private final int rows;
+	private final double cellSize;
+	private final List<T> items;
+	/** World points of the items, packed as x,y pairs, with x in [0,360) */
+	private final double[] world;
+	/** Item indices sorted by cell */
+	private final int[] order;
+	/** Start of each cell's run in <code>order</code>, plus a final end marker */
+	private final int[] cellStart;
+
+	/**
+	 * @param items The items to index
+	 * @param world The world point of each item, packed as x,y pairs
+	 * @param cellSize The approximate size of a cell in degrees
+	 */
+	LandmarkIndex(List<T> items, double[] world, double cellSize) {
+		this.items = new ArrayList<T>(items);
+		this.cols = Math.max(1, (int)Math.ceil(360 / cellSize));
+		this.cellSize = 360.0 / cols;
+		this.rows = Math.max(1, (int)Math.ceil(180 / this.cellSize));
+		this.world = new double[2*items.size()];
+		this.order = new int[items.size()];
+		this.cellStart = new int[cols*rows + 1];
+		
+		// counting sort of the items by cell
+		int[] cellOf = new int[items.size()];
+		for (int i = 0; i < items.size(); i++) {
+			double x = world[2*i] % 360;
+			if (x < 0) {
+				x += 360;
+			}
+			this.world[2*i] = x;
+			this.world[2*i+1] = world[2*i+1];
+			cellOf[i] = cell(col(x), row(world[2*i+1]));
+			cellStart[cellOf[i] + 1] ++;
+		}
+		for (int c = 0; c < cols*rows; c++) {
+			cellStart[c+1] += cellStart[c];
+		}
+		int[] next = new int[cols*rows];
+		System.arraycopy(cellStart, 0, next, 0, next.length);
+		for (int i = 0; i < cellOf.length; i++) {
+			order[next[cellOf[i]] ++] = i;
+		}
+	}
+
+	private int col(double x) {
+		return Math.min(cols - 1, (int)(x / cellSize));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int)Math.floor((y + 90) / cellSize)));
+	}
+
+	private int cell(int col, int row) {
+		return row * cols + col;
+	}
+
+	/**
+	 * Adds each item with a point inside <code>worldWin</code> to
+	 * <code>found</code>, and the point in the window's world coordinates to
+	 * <code>points</code>.
+	 */
+	void query(Rectangle2D worldWin, List<T> found, List<Point2D> points) {
+		int firstCol = (int)Math.floor(worldWin.getMinX() / cellSize);
+		int lastCol = (int)Math.floor(worldWin.getMaxX() / cellSize);
+		int firstRow = row(worldWin.getMinY());
+		int lastRow = row(worldWin.getMaxY());
+		for (int c = firstCol; c <= lastCol; c++) {
+			int wrap = (int)Math.floor((double)c / cols);
+			int col = c - wrap * cols;
+			double offset = 360.0 * wrap;
+			for (int r = firstRow; r <= lastRow; r++) {
+				int cell = cell(col, r);
+				for (int k = cellStart[cell]; k < cellStart[cell+1]; k++) {
+					int i = order[k];
+					double x = world[2*i] + offset;
+					double y = world[2*i+1];
+					if (worldWin.contains(x, y)) {
+						found.add(items.get(i));
+						points.add(new Point2D.Double(x, y));
+					}
+				}
+			}
+		}
+	}
+
+	/** Returns the number of indexed items */
+	int size() {
+		return items.size();
+	}
+
+	/**
+	 * Times indexing a gazetteer of random landmarks and placing labels for
+	 * the ones in a few views, the way the layer does on a redraw. Takes an
+	 * optional number of landmarks.
+	 */
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		java.util.Random rand = new java.util.Random(0);
+		List<Integer> ids = new ArrayList<Integer>();
+		double[] world = new double[2*count];
+		for (int i = 0; i < count; i++) {
+			ids.add(i);
+			world[2*i] = rand.nextDouble() * 360;
+			world[2*i+1] = Math.toDegrees(Math.asin(rand.nextDouble() * 2 - 1));
+		}
+		long start = System.nanoTime();
+		LandmarkIndex<Integer> index = new LandmarkIndex<Integer>(ids, world, 2);
+		System.out.printf("indexed %d landmarks in %.2f ms%n", count, (System.nanoTime() - start) / 1e6);
+		
+		// views 1024 pixels square at a range of zoom levels, straddling 0/360
+		for (int ppd: new int[] {4, 16, 64, 256}) {
+			double size = 1024.0 / ppd;
+			Rectangle2D win = new Rectangle2D.Double(-size/2, -size/2, size, size);
+			for (int pass = 0; pass < 3; pass++) {
+				start = System.nanoTime();
+				List<Integer> found = new ArrayList<Integer>();
+				List<Point2D> points = new ArrayList<Point2D>();
+				index.query(win, found, points);
+				LabelGrid grid = new LabelGrid(win, 64.0 / ppd, 64.0 / ppd);
+				for (int i = 0; i < found.size(); i++) {
+					grid.addPoint(points.get(i).getX(), points.get(i).getY(), found.get(i));
+				}
+				int moved = 0;
+				for (int i = 0; i < found.size(); i++) {
+					// a label about 80 by 14 pixels, tried at the same spots as the layer does
+					Point2D p = points.get(i);
+					Rectangle2D.Double r = new Rectangle2D.Double(p.getX() - 40.0/ppd, p.getY() - 10.0/ppd, 80.0/ppd, 14.0/ppd);
+					if (grid.inConflict(r, found.get(i))) {
+						moved ++;
+						r.y = p.getY() + 4.0/ppd;
+						if (grid.inConflict(r, found.get(i))) {
+							r.x = p.getX() + 5.0/ppd;
+							r.y = p.getY();
+						}
+					}
+					grid.addLabel(r, found.get(i));
+				}
+				if (pass == 2) {
+					System.out.printf("ppd %3d: %5d landmarks in view, %5d labels moved, %.2f ms%n",
+						ppd, found.size(), moved, (System.nanoTime() - start) / 1e6);
+				}
+			}
+		}
+	}
+}
@@ -43,6 +43,8 @@ import java.io.FileReader;
 import java.io.InputStreamReader;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -69,6 +71,7 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import edu.asu.jmars.Main;
+import edu.asu.jmars.ProjObj;
 import edu.asu.jmars.graphics.SpatialGraphics2D;
 import edu.asu.jmars.graphics.SpatialGraphicsCyl;
 import edu.asu.jmars.layer.FocusPanel;
@@ -83,8 +86,19 @@ public class NomenclatureLView extends Layer.LView {
 
 	private List<MarsFeature> landmarks = new ArrayList<MarsFeature>();
 	private Set<String> landmarkTypes = new HashSet<String>();
-	private Map<MarsFeature,Rectangle2D> labelLocations = new HashMap<MarsFeature,Rectangle2D>();
+	/** Where the points and labels of the last redraw went, replaced whole on each redraw */
+	private volatile Map<MarsFeature,Rectangle2D> labelLocations = new HashMap<MarsFeature,Rectangle2D>();
 	private Font labelFont = null;
+	private FontMetrics labelMetrics = null;
+	private final Map<String,Integer> labelWidths = new HashMap<String,Integer>();
+
+	/** Size in degrees of the cells landmarks are indexed by */
+	private static final double INDEX_CELL_SIZE = 2;
+	/** Size in pixels of the cells placed labels are bucketed by */
+	private static final int LABEL_CELL_PIXELS = 64;
+	private static final BasicStroke POINT_STROKE = new BasicStroke(0);
+	private LandmarkIndex<MarsFeature> index = null;
+	private ProjObj indexPO = null;
 
 	public NomenclatureLView(Layer parent) {
 		super(parent);
@@ -194,30 +208,87 @@ public class NomenclatureLView extends Layer.LView {
 		}
 	}
 
+	/** Returns the landmarks indexed by their world points in the current projection */
+	private LandmarkIndex<MarsFeature> getIndex() {
+		ProjObj po = getProj().getProjection();
+		if (index == null || indexPO != po) {
+			double[] points = new double[2*landmarks.size()];
+			for (int i = 0; i < landmarks.size(); i++) {
+				points[2*i] = landmarks.get(i).longitude;
+				points[2*i+1] = landmarks.get(i).latitude;
+			}
+			po.convSpatialToWorld(points, 0, points, 0, landmarks.size());
+			index = new LandmarkIndex<MarsFeature>(landmarks, points, INDEX_CELL_SIZE);
+			indexPO = po;
+		}
+		return index;
+	}
+
+	/** Returns the metrics of the label font, resetting the label widths when the font changes */
+	private FontMetrics getLabelMetrics(Graphics2D g) {
+		if (labelMetrics == null || !labelMetrics.getFont().equals(labelFont)) {
+			labelMetrics = g.getFontMetrics(labelFont);
+			labelWidths.clear();
+		}
+		return labelMetrics;
+	}
+
 	private void redraw() {
 		labelFont = getFont().deriveFont(Font.BOLD);
-		labelLocations.clear();
 		clearOffScreen();
 		
-		Graphics2D g1 = getOffScreenG2Direct();
-		g1.setFont(getFont().deriveFont(Font.BOLD));
-		g1.setColor(settings.labelColor);
-		
 		Graphics2D g2 = getOffScreenG2();
-		SpatialGraphics2D spatialG2 = getProj().createSpatialGraphics(g2);
-		if (spatialG2 == null) {
+		if (g2 == null) {
 			log.println("Skipping redraw(), since there is no graphics to draw to");
 			return;
 		}
 		
-		for (int i = 0; i < landmarks.size(); i++) {
-			MarsFeature mf = landmarks.get(i);
-			if (settings.showLandmarkTypes.contains(mf.landmarkType)) {
-				Point2D p = new Point2D.Double(mf.longitude, mf.latitude);
-				Point2D[] worldPoints = spatialG2.spatialToWorlds(p);
-				mf.draw(g1, g2, worldPoints);
+		Graphics2D g1 = getOffScreenG2Direct();
+		g1.setFont(labelFont);
+		g1.setColor(settings.labelColor);
+		
+		// find the landmarks in view
+		Rectangle2D worldWin = getProj().getWorldWindow();
+		List<MarsFeature> found = new ArrayList<MarsFeature>();
+		List<Point2D> foundPoints = new ArrayList<Point2D>();
+		getIndex().query(worldWin, found, foundPoints);
+		
+		Set<String> types = new HashSet<String>(settings.showLandmarkTypes);
+		List<Integer> shown = new ArrayList<Integer>();
+		for (int i = 0; i < found.size(); i++) {
+			if (types.contains(found.get(i).landmarkType)) {
+				shown.add(i);
+			}
+		}
+		
+		// the largest features get the first choice of label locations
+		final List<MarsFeature> features = found;
+		Collections.sort(shown, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				MarsFeature fa = features.get(a), fb = features.get(b);
+				int c = Double.compare(fb.diameter, fa.diameter);
+				return c != 0 ? c : fa.landmarkType.compareTo(fb.landmarkType);
 			}
+		});
+		
+		Dimension2D pSize = getProj().getPixelSize();
+		LabelGrid grid = new LabelGrid(worldWin,
+			pSize.getWidth() * LABEL_CELL_PIXELS, pSize.getHeight() * LABEL_CELL_PIXELS);
+		for (int i: shown) {
+			Point2D p = foundPoints.get(i);
+			grid.addPoint(p.getX(), p.getY(), found.get(i));
+		}
+		
+		Map<MarsFeature,Rectangle2D> locations = new HashMap<MarsFeature,Rectangle2D>();
+		g2.setPaint(settings.pointColor);
+		g2.setStroke(POINT_STROKE);
+		for (int i: shown) {
+			MarsFeature mf = found.get(i);
+			mf.thisWorldPoint = foundPoints.get(i);
+			mf.drawPoint(g2, mf.thisWorldPoint, locations);
+			mf.drawLabel(g1, mf.thisWorldPoint, grid, locations);
 		}
+		labelLocations = locations;
 	}
 
 	protected Component[] getContextMenuTop(Point2D worldPt) {
@@ -280,6 +351,7 @@ public class NomenclatureLView extends Layer.LView {
 	}
 
 	protected String getStringForPoint(Point2D worldPoint, boolean showAsHTML) {
+		Map<MarsFeature,Rectangle2D> labelLocations = this.labelLocations;
 		for (MarsFeature mf: labelLocations.keySet()) {
 			Rectangle2D r = labelLocations.get(mf);
 
@@ -778,29 +850,7 @@ public class NomenclatureLView extends Layer.LView {
 			return info;
 		}
 
-		public void draw(Graphics2D g1, Graphics2D g2, Point2D[] worldPoints) {
-			// nothing to draw
-			if (worldPoints == null || worldPoints.length == 0)
-				return;
-
-			Rectangle2D worldwin = getProj().getWorldWindow();
-
-			for (int i = 0; i < worldPoints.length; i++) {
-
-				if (!worldwin.contains(worldPoints[i]))
-					continue;
-
-				drawPoint(g2, worldPoints[i]);
-				drawLabel(g1, g2, worldPoints[i]);
-
-			}
-		}
-
-		protected void drawPoint(Graphics2D g2) {
-			drawPoint(g2, this.thisWorldPoint);
-		}
-
-		protected void drawPoint(Graphics2D g2, Point2D worldPoint) {
+		protected void drawPoint(Graphics2D g2, Point2D worldPoint, Map<MarsFeature,Rectangle2D> locations) {
 			if (!settings.showMainPoints && getChild() != null)
 				return;
 
@@ -808,8 +858,6 @@ public class NomenclatureLView extends Layer.LView {
 				return;
 
 			Dimension2D pSize = getProj().getPixelSize();
-			g2.setPaint(settings.pointColor);
-			g2.setStroke(new BasicStroke(0));
 			Rectangle2D.Double box = new Rectangle2D.Double(worldPoint.getX()
 					- pSize.getWidth() * 2, worldPoint.getY()
 					+ pSize.getHeight() * 2, pSize.getWidth() * 4, pSize
@@ -817,33 +865,10 @@ public class NomenclatureLView extends Layer.LView {
 			g2.fill(box);
 
 			// store the labels location
-			labelLocations.put(this, box);
+			locations.put(this, box);
 		}
 
-		protected boolean inConflict(Rectangle2D r) {
-			// check for conflicts with other locations
-			for (int i = 0; i < landmarks.size(); i++) {
-
-				MarsFeature mf = (MarsFeature) landmarks.get(i);
-
-				// skip this one
-				if (mf.equals(MarsFeature.this))
-					continue;
-
-				if (r.contains(mf.thisWorldPoint))
-					return true;
-			}
-
-			// check for conflicts with other labels
-			for (Rectangle2D existingRect: labelLocations.values()) {
-				if (r.intersects(existingRect))
-					return true;
-			}
-
-			return false;
-		}
-
-		protected void drawLabel(Graphics2D g1, Graphics2D g2, Point2D pt) {
+		protected void drawLabel(Graphics2D g1, Point2D pt, LabelGrid grid, Map<MarsFeature,Rectangle2D> locations) {
 
 			if (!settings.showMainLabels && getChild() != null)
 				return;
@@ -851,40 +876,45 @@ public class NomenclatureLView extends Layer.LView {
 			if (!settings.showPannerLabels && getChild() == null)
 				return;
 
-			FontMetrics fontMetrics = g2.getFontMetrics(labelFont);
+			FontMetrics fontMetrics = getLabelMetrics(g1);
+			Integer width = labelWidths.get(name);
+			if (width == null) {
+				width = fontMetrics.stringWidth(name);
+				labelWidths.put(name, width);
+			}
 
 			// calculate new label location and see if it intersects with one
 			// already.
 
+			Dimension2D pSize = getProj().getPixelSize();
+			
 			// get the width and enlarge by 20%
-			double xWidth = fontMetrics.stringWidth(name) * getProj().getPixelSize().getWidth() * 1.2;
+			double xWidth = width * pSize.getWidth() * 1.2;
 			double xLoc = pt.getX() - xWidth / 2;
 
-			double yHeight = fontMetrics.getHeight() * getProj().getPixelSize().getHeight();
+			double yHeight = fontMetrics.getHeight() * pSize.getHeight();
 			// we want to include the point in the bounds
 			double yLoc = pt.getY() - yHeight * .7;
 
 			Rectangle2D.Double labelLoc = new Rectangle2D.Double(xLoc, yLoc, xWidth, yHeight);
-			if (inConflict(labelLoc)) {
+			if (grid.inConflict(labelLoc, this)) {
 				// try some different locations if there is a conflict with
 				// other labels or points
-				yLoc = pt.getY() + yHeight * .3;
-				labelLoc = new Rectangle2D.Double(xLoc, yLoc, xWidth, yHeight);
+				labelLoc.y = pt.getY() + yHeight * .3;
 
-				if (inConflict(labelLoc)) {
-					xLoc = pt.getX() + getProj().getPixelSize().getWidth() * 5;
-					yLoc = pt.getY();
-					labelLoc = new Rectangle2D.Double(xLoc, yLoc, xWidth, yHeight);
+				if (grid.inConflict(labelLoc, this)) {
+					labelLoc.x = pt.getX() + pSize.getWidth() * 5;
+					labelLoc.y = pt.getY();
 				}
 			}
 
 			// store the labels location - ok to overwrite point locations since
 			// they are inclusive
-			labelLocations.put(this, labelLoc);
+			locations.put(this, labelLoc);
+			grid.addLabel(labelLoc, this);
 
 			pt = getProj().world.toScreen(labelLoc.getX(), labelLoc.getY());
 
-			// g2.draw(labelLoc);
 			g1.drawString(name, (float) pt.getX(), (float) pt.getY());
 		}
 	}
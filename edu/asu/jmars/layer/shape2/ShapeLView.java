@@ -32,6 +32,7 @@ import java.awt.geom.Rectangle2D;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -58,6 +59,7 @@ import edu.asu.jmars.layer.util.features.FeatureListener;
 import edu.asu.jmars.layer.util.features.FeatureMouseHandler;
 import edu.asu.jmars.layer.util.features.FeatureProvider;
 import edu.asu.jmars.layer.util.features.Field;
+import edu.asu.jmars.layer.util.features.ProgressListener;
 import edu.asu.jmars.layer.util.features.ShapeRenderer;
 import edu.asu.jmars.layer.util.features.SingleFeatureCollection;
 import edu.asu.jmars.layer.util.features.Style;
@@ -356,6 +358,10 @@ public class ShapeLView extends LView implements FeatureListener, ObservableSetL
 								data.fc.addListener(c);
 							}
 							shapeLayer.fileTable.getFileTableModel().add(data.fc);
+							if (data.notice != null) {
+								JOptionPane.showMessageDialog(Main.getLManager(), data.notice,
+									"Partially loaded", JOptionPane.WARNING_MESSAGE);
+							}
 							sources.remove(data);
 							if (sources.isEmpty()) {
 								// when all files have loaded, set the selections, the default collection, and table settings
@@ -511,7 +517,7 @@ public class ShapeLView extends LView implements FeatureListener, ObservableSetL
 	 *  @see SerializingThread#add(Runnable)
 	 */
 	private class DrawingUow implements Runnable {
-		private final Iterator<Feature> features;
+		private final Collection<Feature> features;
 		private final ShapeRenderer sr;
 		private final long timeStamp;
 		private final boolean selected;
@@ -528,23 +534,21 @@ public class ShapeLView extends LView implements FeatureListener, ObservableSetL
 		 * Constructs a Drawing Unit of Work for either selected or all the
 		 * polygons.
 		 * 
-		 * @param features the source of features to render, clipped if possible.
+		 * @param features the features to render, clipped if possible.
 		 * @param selected Pass as true to draw selected data only, false for all data.
-		 * @param featureCount If > 0, taken to mean the number of calls to features.next(), used by the progress dialog
 		 */
-		public DrawingUow(Iterator<Feature> features, boolean selected, int featureCount) {
+		public DrawingUow(Collection<Feature> features, boolean selected) {
 			this.features = features;
 			this.selected = selected;
 			timeStamp = System.currentTimeMillis();
 			sr = createRenderer(selected);
 	    	log.println(toString()+" created.");
-			this.featureCount = featureCount;
+			this.featureCount = features.size();
 		}
 		
 		public void run() {
 			ShapeLayer.LEDState led = null;
-			Graphics2D g2world = getOffScreenG2(selected? 1: 0);
-			int position = 0;
+			Graphics2D g2screen = getOffScreenG2Direct(selected? 1: 0);
 			try {
 				shapeLayer.begin(led = new ShapeLayer.LEDStateDrawing());
 				
@@ -552,22 +556,30 @@ public class ShapeLView extends LView implements FeatureListener, ObservableSetL
 				
 				clearOffScreen(selected? 1: 0);
 				
-				while (features.hasNext()) {
-					Feature f = features.next();
-					if (superceeded()){
-						log.println(toString()+" superceeded.");
-						break;
-					}
-					
-					sr.draw(g2world, f);
-					updatePaint();
-					updateProgress(position, featureCount);
-					position ++;
+				if (g2screen != null && !superceeded()) {
+					// progress arrives on this thread, so the renderer can be
+					// stopped from here as soon as a newer request comes in
+					sr.addProgressListener(new ProgressListener() {
+						public void finished(int i, int n) {
+							if (superceeded()) {
+								sr.stopDrawing();
+							} else {
+								updatePaint();
+								updateProgress(i, n);
+							}
+						}
+					});
+					sr.drawAllParallel(g2screen, features);
+				}
+				if (superceeded()) {
+					log.println(toString()+" superceeded.");
 				}
 			} finally {
 			    shapeLayer.end(led);
 			    sr.dispose();
-			    g2world.dispose();
+			    if (g2screen != null) {
+			    	g2screen.dispose();
+			    }
 			    if (!superceeded()) {
 			    	repaint();
 			    }
@@ -662,7 +674,7 @@ public class ShapeLView extends LView implements FeatureListener, ObservableSetL
 								features.add(f);
 							}
 						}
-						drawThread.add(new DrawingUow(features.iterator(), selected, features.size()));
+						drawThread.add(new DrawingUow(features, selected));
 					} finally {
 						shapeLayer.end(led);
 					}
@@ -21,7 +21,11 @@
 package edu.asu.jmars.layer.shape2;
 
 import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -52,28 +56,33 @@ import edu.asu.jmars.layer.util.features.FeatureEvent;
 import edu.asu.jmars.layer.util.features.FeatureIndex;
 import edu.asu.jmars.layer.util.features.FeatureListener;
 import edu.asu.jmars.layer.util.features.FeatureProvider;
+import edu.asu.jmars.layer.util.features.FeatureProviderESRI;
 import edu.asu.jmars.layer.util.features.FeatureProviderFactory;
 import edu.asu.jmars.layer.util.features.Field;
-import edu.asu.jmars.layer.util.features.MemoryFeatureIndex;
 import edu.asu.jmars.layer.util.features.MultiFeatureCollection;
+import edu.asu.jmars.layer.util.features.ProgressListener;
+import edu.asu.jmars.layer.util.features.RTreeFeatureIndex;
 import edu.asu.jmars.layer.util.features.SingleFeatureCollection;
 import edu.asu.jmars.layer.util.features.Style;
 import edu.asu.jmars.layer.util.features.StyleFieldSource;
 import edu.asu.jmars.layer.util.features.StyleSource;
 import edu.asu.jmars.layer.util.filetable.FileTable;
 import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.History;
 import edu.asu.jmars.util.ObservableSet;
 import edu.asu.jmars.util.Util;
 
 public class ShapeLayer extends Layer {
+	private static DebugLog log = DebugLog.instance();
+	
 	/** History size is obtained from the specified key. */
 	public static final String CONFIG_KEY_HISTORY_SIZE = "shape.history_size";
 
 	/** selected features for this layer */
 	ObservableSet<Feature> selections = new ObservableSet<Feature>(new HashSet<Feature>());
 	
-	private final MemoryFeatureIndex index;
+	private final RTreeFeatureIndex index;
 	
 	/** FileTable for this layer */
 	// TODO: this should be owned by the focus panel, NOT the layer!
@@ -91,6 +100,13 @@ public class ShapeLayer extends Layer {
 	boolean showProgress = false;
 	String name = "Shape Layer";
 	
+	/**
+	 * Shapefiles larger than this many bytes only load the features within
+	 * the main view, since loading all of them may take more memory and time
+	 * than the user has.
+	 */
+	private static final long viewLoadBytes = Config.get("shape.view_load_mb", 512) * 1024L * 1024L;
+	
 	// style settings for this layer
 	private final ShapeLayerStyles styles = new ShapeLayerStyles();
 	
@@ -133,7 +149,7 @@ public class ShapeLayer extends Layer {
 			}
 		});
 		
-		index  = new MemoryFeatureIndex(fileTable.getMultiFeatureCollection());
+		index = new RTreeFeatureIndex(fileTable.getMultiFeatureCollection());
 		
 		StyleColumnPositioner stylePos = new StyleColumnPositioner(fileTable.getMultiFeatureCollection(), stylesFC);
 		fileTable.getSelectionModel().addListSelectionListener(stylePos);
@@ -376,6 +392,7 @@ public class ShapeLayer extends Layer {
 	private class SourceAdder implements LoadListener {
 		private boolean marked = false;
 		private final List<String> msgs = new ArrayList<String>();
+		private final List<String> notices = new ArrayList<String>();
 		private final List<LoadData> sources;
 		public SourceAdder(List<LoadData> sources) {
 			this.sources = new ArrayList<LoadData>(sources);
@@ -391,7 +408,15 @@ public class ShapeLayer extends Layer {
 			if (data.error != null) {
 				msgs.add(data.error.getMessage() + " while loading " + data.data);
 			}
+			if (data.notice != null) {
+				notices.add(data.notice);
+			}
 			sources.remove(data);
+			if (sources.isEmpty() && !notices.isEmpty()) {
+				JOptionPane.showMessageDialog(Main.getLManager(),
+						Util.join("\n\n", notices),
+						"Partially loaded", JOptionPane.WARNING_MESSAGE);
+			}
 			if (sources.isEmpty() && !msgs.isEmpty()) {
 				JOptionPane.showMessageDialog(Main.getLManager(),
 						Util.join("\n", msgs),
@@ -419,14 +444,36 @@ public class ShapeLayer extends Layer {
 				public void run() {
 					final ShapeLayer.LEDState led = new ShapeLayer.LEDStateFileIO();
 					begin(led);
+					LoadProgress progress = null;
 					try {
-						source.fc = (SingleFeatureCollection) source.fp.load(source.data);
+						if (source.fp instanceof FeatureProviderESRI) {
+							FeatureProviderESRI esri = (FeatureProviderESRI)source.fp;
+							long length = getTotalLength(esri.getSourceFiles(source.data));
+							Rectangle2D bounds = null;
+							if (length > viewLoadBytes) {
+								bounds = askViewBounds(source.data, length);
+							}
+							progress = new LoadProgress();
+							source.fc = (SingleFeatureCollection) esri.load(source.data, bounds, progress);
+							if (bounds != null && source.fc != null) {
+								log.aprintln("Loaded only the features of " + source.data + " within " + bounds);
+								source.notice = "Only the " + source.fc.getFeatureCount() +
+									" features of " + source.data + " within the view were loaded.\n" +
+									"They won't follow the view as it pans, and the file can't be saved over;\n" +
+									"load the file again to get the features of another area.";
+							}
+						} else {
+							source.fc = (SingleFeatureCollection) source.fp.load(source.data);
+						}
 						source.fc.setProvider(source.fp);
 						source.fc.setFilename(source.data == null ? source.fp.getDescription() : source.data);
 					} catch (final Exception e) {
 						e.printStackTrace();
 						source.error = e;
 					} finally {
+						if (progress != null) {
+							progress.done();
+						}
 						SwingUtilities.invokeLater(new Runnable() {
 							public void run() {
 								callback.receive(source);
@@ -453,11 +500,146 @@ public class ShapeLayer extends Layer {
 		void receive(LoadData data);
 	}
 	
+	/**
+	 * Shows the progress of one file load in a progress dialog when the user
+	 * has asked to see progress.
+	 */
+	private class LoadProgress implements ProgressListener {
+		private DrawingProgressDialog pd;
+		private long lastProgress = 0;
+		public synchronized void finished(final int i, final int n) {
+			long now = System.currentTimeMillis();
+			// update at most twice a second
+			if (lastProgress < 0 || !showProgress || now - lastProgress < 500) {
+				return;
+			}
+			lastProgress = now;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					synchronized(LoadProgress.this) {
+						if (lastProgress < 0) {
+							return;
+						}
+						if (pd == null) {
+							pd = new DrawingProgressDialog(Main.mainFrame, Main.testDriver.mainWindow, 500L);
+							pd.setMaximum(n);
+						}
+						pd.show();
+						pd.setValue(i);
+					}
+				}
+			});
+		}
+		/** Hides the dialog and ignores any updates still on their way */
+		public synchronized void done() {
+			lastProgress = -1;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					synchronized(LoadProgress.this) {
+						if (pd != null) {
+							pd.hide();
+							pd = null;
+						}
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Asks whether to load only the features within the main view from a file
+	 * too large to load whole comfortably, returning the view's bounds if so,
+	 * or null to load the whole file. Called off the AWT thread.
+	 */
+	private static Rectangle2D askViewBounds(final String name, final long length) {
+		final Rectangle2D[] bounds = new Rectangle2D[1];
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					String[] options = {"Load View Only", "Load All"};
+					int choice = JOptionPane.showOptionDialog(Main.mainFrame,
+						name + " is " + (length / (1024*1024)) + " MB, which may take a long time\n" +
+						"and a lot of memory to load. Load only the features within the\n" +
+						"current view? They won't follow the view as it pans.",
+						"Large shapefile", JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE,
+						null, options, options[0]);
+					if (choice == 0) {
+						bounds[0] = getViewBounds();
+					}
+				}
+			});
+		} catch (Exception e) {
+			log.aprintln("Loading all of " + name + ": " + e);
+		}
+		return bounds[0];
+	}
+	
+	private static long getTotalLength(String[] files) {
+		long length = 0;
+		for (String name: files) {
+			length += new File(name).length();
+		}
+		return length;
+	}
+	
+	/**
+	 * Returns the east-leading lon/lat bounds of the main view, found from a
+	 * grid of points across its world window and padded a little to cover
+	 * the curvature between them. The bounds cover every longitude if the
+	 * view contains a pole.
+	 */
+	private static Rectangle2D getViewBounds() {
+		Rectangle2D world = Main.testDriver.mainWindow.getProj().getWorldWindow();
+		final int steps = 16;
+		double[] lons = new double[(steps+1)*(steps+1)];
+		double minLat = 90, maxLat = -90;
+		int count = 0;
+		for (int i = 0; i <= steps; i++) {
+			for (int j = 0; j <= steps; j++) {
+				Point2D pt = Main.PO.convWorldToSpatial(
+					world.getMinX() + world.getWidth() * i / steps,
+					world.getMinY() + world.getHeight() * j / steps);
+				lons[count++] = ((360 - pt.getX()) % 360 + 360) % 360;
+				minLat = Math.min(minLat, pt.getY());
+				maxLat = Math.max(maxLat, pt.getY());
+			}
+		}
+		double pad = Math.max(world.getWidth(), world.getHeight()) / steps;
+		minLat = Math.max(-90, minLat - pad);
+		maxLat = Math.min(90, maxLat + pad);
+		for (int pole = -90; pole <= 90; pole += 180) {
+			Point2D pt = Main.PO.convSpatialToWorld(0, pole);
+			for (int shift = -360; shift <= 360; shift += 360) {
+				if (world.contains(pt.getX() + shift, pt.getY())) {
+					minLat = Math.min(minLat, pole);
+					maxLat = Math.max(maxLat, pole);
+					return new Rectangle2D.Double(0, minLat, 360, maxLat - minLat);
+				}
+			}
+		}
+		// the view's longitudes run the other way around from the widest gap
+		Arrays.sort(lons);
+		double start = lons[0], gap = lons[0] + 360 - lons[lons.length-1];
+		for (int i = 1; i < lons.length; i++) {
+			if (lons[i] - lons[i-1] > gap) {
+				gap = lons[i] - lons[i-1];
+				start = lons[i];
+			}
+		}
+		double width = 360 - gap + 2*pad;
+		if (width >= 360) {
+			return new Rectangle2D.Double(0, minLat, 360, maxLat - minLat);
+		}
+		return new Rectangle2D.Double(start - pad, minLat, width, maxLat - minLat);
+	}
+	
 	public static class LoadData {
 		public final FeatureProvider fp;
 		public final String data;
 		public SingleFeatureCollection fc;
 		public Exception error;
+		/** A warning about a load that succeeded, shown to the user */
+		public String notice;
 		public LoadData(FeatureProvider fp, String data) {
 			this.fp = fp;
 			this.data = data;
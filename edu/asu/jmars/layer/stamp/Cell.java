@@ -157,6 +157,58 @@ public final class Cell
 		return  unitPt;
 	 }
 	
+	/**
+	 * Same as {@link #uninterpolateFast(HVector, Point2D)}, but keeps no state
+	 * in the cell so several threads may call it at once. The unit square
+	 * position of the given point is stored in <code>unit[0]</code> and
+	 * <code>unit[1]</code>.
+	 */
+	public final void uninterpolate(final double px, final double py, final double pz, final double[] unit)
+	 {
+		double ex = wePlane.y * pz - wePlane.z * py;
+		double ey = wePlane.z * px - wePlane.x * pz;
+		double ez = wePlane.x * py - wePlane.y * px;
+		final double wn = Math.sqrt(ex*ex + ey*ey + ez*ez);
+		ex /= wn;
+		ey /= wn;
+		ez /= wn;
+
+		double x;
+		double dp = ex * w.x + ey * w.y + ez * w.z;
+		if(dp > 0)
+			x = doStuffPos(ex, ey, ez, w.x, w.y, w.z);
+		else if(dp < 0)
+			x = doStuffNeg(ex, ey, ez, w.x, w.y, w.z);
+		else
+			x = Math.PI / 2;
+
+		double nx = snPlane.y * pz - snPlane.z * py;
+		double ny = snPlane.z * px - snPlane.x * pz;
+		double nz = snPlane.x * py - snPlane.y * px;
+		final double sn = Math.sqrt(nx*nx + ny*ny + nz*nz);
+		nx /= sn;
+		ny /= sn;
+		nz /= sn;
+
+		double y;
+		dp = nx * s.x + ny * s.y + nz * s.z;
+		if(dp > 0)
+			y = doStuffPos(nx, ny, nz, s.x, s.y, s.z);
+		else if(dp < 0)
+			y = doStuffNeg(nx, ny, nz, s.x, s.y, s.z);
+		else
+			y = Math.PI / 2;
+
+		x /= wePlaneSpan;
+		y /= snPlaneSpan;
+
+		if(px * w.x + py * w.y + pz * w.z < 0) x = -x;
+		if(px * s.x + py * s.y + pz * s.z < 0) y = -y;
+
+		unit[0] = x;
+		unit[1] = y;
+	 }
+	
 	public static final double getMag(final double x, final double y, final double z) {
 		return Math.sqrt(x*x + y*y + z*z);
 	}
@@ -0,0 +1,183 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.stamp;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Runs {@link FrameFetcher} segment downloads in the background, on a small
+ * pool of threads for each image server, starting the segments closest to the
+ * center of the view first.
+ *
+ * Each call to {@link #fetch(List, Rectangle2D)} returns a {@link Batch} from
+ * which the caller takes the segments as they finish, so it can draw their
+ * frames right away. Cancelling a batch takes its queued segments off the
+ * pool, so a superseded rendering doesn't hold up the downloads of the next.
+ */
+public class FrameFetchScheduler {
+	private static final DebugLog log = DebugLog.instance();
+
+	/** Maximum number of concurrent downloads from one server */
+	private static final int THREADS_PER_SERVER = Config.get("stamp.fetch.threads", 4);
+
+	private static final Map<String,ThreadPoolExecutor> pools = new HashMap<String,ThreadPoolExecutor>();
+
+	/** Orders fetches with the same priority by submission */
+	private static final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * The segments fetched for one rendering of an image.
+	 */
+	public static class Batch {
+		private final BlockingQueue<FrameFetcher> finished = new LinkedBlockingQueue<FrameFetcher>();
+		private final List<Fetch> fetches;
+		private volatile boolean cancelled = false;
+		private int outstanding;
+
+		private Batch(int count) {
+			outstanding = count;
+			fetches = new ArrayList<Fetch>(count);
+		}
+
+		/**
+		 * Stops the segments of this batch that haven't started yet, removing
+		 * them from the pool, and wakes a thread waiting in {@link #take()}.
+		 * Downloads already running are left to finish. May be called from
+		 * any thread, any number of times.
+		 */
+		public void cancel() {
+			cancelled = true;
+			for (Fetch fetch: fetches) {
+				if (fetch.pool.remove(fetch)) {
+					finished.add(fetch.fetcher);
+				}
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Waits for the next segment to finish downloading, and returns it, or
+		 * returns null once every segment has been returned or the batch has
+		 * been cancelled. Segments whose download failed are returned too;
+		 * their frames fall back to fetching themselves.
+		 */
+		public FrameFetcher take() throws InterruptedException {
+			if (cancelled || outstanding == 0) {
+				return null;
+			}
+			FrameFetcher ff = finished.take();
+			outstanding --;
+			return cancelled ? null : ff;
+		}
+	}
+
+	private static class Fetch implements Runnable, Comparable<Fetch> {
+		private final Batch batch;
+		private final FrameFetcher fetcher;
+		private final ThreadPoolExecutor pool;
+		private final double priority;
+		private final long seq = sequence.getAndIncrement();
+
+		Fetch(Batch batch, FrameFetcher fetcher, ThreadPoolExecutor pool, double priority) {
+			this.batch = batch;
+			this.fetcher = fetcher;
+			this.pool = pool;
+			this.priority = priority;
+		}
+
+		public int compareTo(Fetch o) {
+			if (priority != o.priority) {
+				return priority < o.priority ? -1 : 1;
+			}
+			return seq < o.seq ? -1 : seq > o.seq ? 1 : 0;
+		}
+
+		public void run() {
+			try {
+				if (!batch.isCancelled()) {
+					fetcher.fetchFrames();
+				}
+			} catch (Exception e) {
+				log.aprintln("Failed fetching frames: " + e);
+			} finally {
+				batch.finished.add(fetcher);
+			}
+		}
+	}
+
+	/**
+	 * Queues the given segments for download, ordered by the distance of their
+	 * world bounds from the center of <code>worldWin</code>.
+	 */
+	public static Batch fetch(List<FrameFetcher> segments, Rectangle2D worldWin) {
+		Batch batch = new Batch(segments.size());
+		Point2D center = new Point2D.Double(worldWin.getCenterX(), worldWin.getCenterY());
+		ThreadPoolExecutor pool = getPool(StampLayer.stampURL);
+		for (FrameFetcher ff: segments) {
+			Rectangle2D bounds = ff.getWorldBounds();
+			double dx = Math.abs(bounds.getCenterX() - center.getX()) % 360;
+			dx = Math.min(dx, 360 - dx);
+			double dy = bounds.getCenterY() - center.getY();
+			batch.fetches.add(new Fetch(batch, ff, pool, dx*dx + dy*dy));
+		}
+		// queue only once the list is complete, so cancel() sees every fetch
+		for (Fetch fetch: batch.fetches) {
+			pool.execute(fetch);
+		}
+		return batch;
+	}
+
+	private static synchronized ThreadPoolExecutor getPool(String url) {
+		String host = "";
+		try {
+			host = new URL(url).getHost();
+		} catch (Exception e) {
+			// use the same pool for every unparseable url
+		}
+		ThreadPoolExecutor pool = pools.get(host);
+		if (pool == null) {
+			int threads = Math.max(1, THREADS_PER_SERVER);
+			pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(),
+				new StampThreadFactory("Stamp Fetcher " + host));
+			pools.put(host, pool);
+		}
+		return pool;
+	}
+}
@@ -76,6 +76,27 @@ public class FrameFetcher {
 
 	}
 	
+	/** Returns the frames filled by this fetcher, indexed by x and then y */
+	public ImageFrame[][] getFrames() {
+		return frames;
+	}
+	
+	/** Returns the union of the world bounds of the frames in this segment */
+	public Rectangle2D getWorldBounds() {
+		Rectangle2D bounds = null;
+		for (int x=0; x<numXFrames; x++) {
+			for (int y=0; y<numYFrames; y++) {
+				Rectangle2D cellBounds = frames[x][y].cell.getWorldBounds();
+				if (bounds == null) {
+					bounds = (Rectangle2D)cellBounds.clone();
+				} else {
+					bounds.add(cellBounds);
+				}
+			}
+		}
+		return bounds;
+	}
+	
 	public void fetchFrames() {
 		int scale =Main.testDriver.mainWindow.getMagnification(); 
 
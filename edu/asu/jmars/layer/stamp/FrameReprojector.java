@@ -0,0 +1,464 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.stamp;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.asu.jmars.ProjObj.Projection_OC;
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
+import edu.asu.jmars.util.HVector;
+
+/**
+ * Reprojects the pixels of an {@link ImageFrame}'s source into the world
+ * coordinates of a projection.
+ *
+ * The trigonometry of each destination row and column is computed once, and
+ * the destination is split into bands of rows that are reprojected in parallel
+ * straight into an <code>int[]</code> of ARGB pixels, without creating any
+ * objects per pixel. Destinations of type <code>TYPE_INT_ARGB</code> or
+ * <code>TYPE_INT_ARGB_PRE</code> are written in place. The source pixels of a
+ * frame are read once, as a block, and sampled with nearest neighbor or
+ * bilinear interpolation.
+ */
+final class FrameReprojector {
+	private static final DebugLog log = DebugLog.instance();
+
+	enum Sampling {
+		NEAREST,
+		BILINEAR
+	}
+
+	/** The sampling used when reprojecting stamp frames */
+	static final Sampling SAMPLING = "bilinear".equalsIgnoreCase(Config.get("stamp.reproject.sampling", "nearest"))
+		? Sampling.BILINEAR : Sampling.NEAREST;
+
+	private static final int THREADS = Config.get("stamp.reproject.threads",
+		Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+	/** Fewest rows given to a band */
+	private static final int MIN_BAND_ROWS = 16;
+
+	private static ExecutorService pool;
+
+	private final int dstW;
+	private final int dstH;
+
+	// Trigonometry of each column, and the parts of the point at each row
+	// along and around the up vector, as in HVector.rotate()
+	private final double[] sinTheta, cosTheta;
+	private final double[] prx, pry, prz;
+	private final double[] v1x, v1y, v1z;
+	private final double[] v2x, v2y, v2z;
+
+	/**
+	 * Precomputes the row and column values for a destination image of the
+	 * given size covering <code>where</code> at <code>ppd</code>.
+	 */
+	FrameReprojector(Projection_OC proj, Rectangle2D where, int ppd, int dstW, int dstH) {
+		this.dstW = dstW;
+		this.dstH = dstH;
+
+		double baseX = where.getMinX();
+		double baseY = where.getMaxY(); // image y coords run top-down
+
+		final HVector center = proj.getCenter();
+		final HVector up = proj.getUp();
+
+		final double n2 = Math.sqrt(up.x*up.x+up.y*up.y+up.z*up.z);
+		final double wx = up.x / n2;
+		final double wy = up.y / n2;
+		final double wz = up.z / n2;
+		final double bigw = biggest(wx, wy, wz);
+
+		final double rx = wx / bigw;
+		final double ry = wy / bigw;
+		final double rz = wz / bigw;
+
+		final double dotu = rx*rx + ry*ry + rz*rz;
+
+		sinTheta = new double[dstW];
+		cosTheta = new double[dstW];
+		for(int i=0; i<dstW; i++) {
+			double x = Math.toRadians(baseX + (double) i / ppd);
+			sinTheta[i]=Math.sin(x);
+			cosTheta[i]=Math.cos(x);
+		}
+
+		prx = new double[dstH];
+		pry = new double[dstH];
+		prz = new double[dstH];
+		v1x = new double[dstH];
+		v1y = new double[dstH];
+		v1z = new double[dstH];
+		v2x = new double[dstH];
+		v2y = new double[dstH];
+		v2z = new double[dstH];
+
+		for(int j=0; j<dstH; j++) {
+			double y = Math.toRadians(baseY - (double) j / ppd);
+			double sin=Math.sin(y);
+			double cos=Math.cos(y);
+
+			double nx = center.x * cos + up.x * sin;
+			double ny = center.y * cos + up.y * sin;
+			double nz = center.z * cos + up.z * sin;
+			double bign = biggest(nx, ny, nz);
+
+			double tx = nx / bign;
+			double ty = ny / bign;
+			double tz = nz / bign;
+
+			double dotv = rx*tx + ry*ty + rz*tz;
+
+			double scaley = dotv*bign/dotu;
+
+			prx[j] = rx * scaley;
+			pry[j] = ry * scaley;
+			prz[j] = rz * scaley;
+
+			v1x[j] = nx-prx[j];
+			v1y[j] = ny-pry[j];
+			v1z[j] = nz-prz[j];
+
+			v2x[j] = wy * v1z[j] - wz * v1y[j];
+			v2y[j] = wz * v1x[j] - wx * v1z[j];
+			v2z[j] = wx * v1y[j] - wy * v1x[j];
+		}
+	}
+
+	private static double biggest(double x, double y, double z) {
+		double m = Math.abs(x);
+		if(m < Math.abs(y))m=Math.abs(y);
+		if(m < Math.abs(z))m=Math.abs(z);
+		return(m);
+	}
+
+	/**
+	 * Stores the unit vector of the spatial point under destination pixel
+	 * (i,j) into <code>out</code>.
+	 */
+	void getSpatial(int i, int j, double[] out) {
+		double ptx = v1x[j] * cosTheta[i] + v2x[j] * sinTheta[i] + prx[j];
+		double pty = v1y[j] * cosTheta[i] + v2y[j] * sinTheta[i] + pry[j];
+		double ptz = v1z[j] * cosTheta[i] + v2z[j] * sinTheta[i] + prz[j];
+
+		final double ptUnitz = ptz / Math.sqrt(ptx*ptx + pty*pty + ptz*ptz);
+
+		final double cosLon;
+		final double sinLon;
+
+		// This is code to convert arctan2 to atan
+		int sign = pty < 0 ? -1 : 1;
+
+		if (ptx == 0) {
+			cosLon = 0;
+			sinLon = sign * 1;
+		} else if(pty != 0) {
+			double x1 = Math.abs(pty/ptx);
+			double len = Math.sqrt(x1*x1 + 1);
+			cosLon = (ptx > 0 ? 1.0 : -1.0) / len;
+			sinLon = sign * x1 / len;
+		} else if (ptx < 0) {
+			cosLon = -1;
+			sinLon = 0;
+		} else {
+			cosLon = 1;
+			sinLon = 0;
+		}
+
+		double cosLat = Math.sqrt(1-ptUnitz*ptUnitz);
+
+		out[0] = cosLat * cosLon;
+		out[1] = cosLat * sinLon;
+		out[2] = ptUnitz; // since latOf = Math.asin(ptUnitz);
+	}
+
+	/**
+	 * Fills <code>dstImage</code> with the pixels of the source that fall
+	 * inside <code>cell</code>, leaving the others untouched.
+	 *
+	 * @param src The source pixels of the frame, or null to read them from
+	 * <code>stampSrc</code> within <code>srcRange</code> instead.
+	 */
+	void reproject(final Cell cell, BufferedImage dstImage, BufferedImage src,
+			final StampImage stampSrc, final Rectangle srcRange, final Sampling sampling) {
+		final int[] dst = getPixels(dstImage);
+		// setRGB() takes plain ARGB, so only premultiply in place
+		final boolean premultiplied = dstImage.isAlphaPremultiplied() && dst == getBackingPixels(dstImage);
+		final Source source;
+		if (src != null) {
+			int[] pixels = getBackingPixels(src);
+			if (pixels == null || src.isAlphaPremultiplied()) {
+				pixels = src.getRGB(0, 0, src.getWidth(), src.getHeight(), null, 0, src.getWidth());
+			}
+			source = new Source(pixels, src.getWidth(), 0, 0, src.getWidth()-1, src.getHeight()-1);
+		} else {
+			int[] pixels;
+			try {
+				pixels = stampSrc.getRGB(srcRange);
+			} catch (Exception e) {
+				log.aprintln("Failed reading frame pixels: " + e);
+				return;
+			}
+			source = new Source(pixels, srcRange.width, 0, 0, srcRange.width-1, srcRange.height-1);
+		}
+
+		int bands = Math.min(THREADS, dstH / MIN_BAND_ROWS);
+		if (bands < 2) {
+			project(cell, source, sampling, premultiplied, dst, 0, dstH);
+		} else {
+			List<Future<?>> futures = new ArrayList<Future<?>>(bands-1);
+			ExecutorService exec = getPool();
+			int start = 0;
+			for (int b = 0; b < bands; b++) {
+				final int first = start;
+				final int end = start + (dstH - start) / (bands - b);
+				start = end;
+				Runnable band = new Runnable() {
+					public void run() {
+						project(cell, source, sampling, premultiplied, dst, first, end);
+					}
+				};
+				// the calling thread takes the last band itself
+				if (b < bands-1) {
+					futures.add(exec.submit(band));
+				} else {
+					band.run();
+				}
+			}
+			try {
+				for (Future<?> f: futures) {
+					f.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				log.aprintln("Failed reprojecting frame: " + e.getCause());
+			}
+		}
+
+		if (dst != getBackingPixels(dstImage)) {
+			dstImage.setRGB(0, 0, dstW, dstH, dst, 0, dstW);
+		}
+	}
+
+	/** The ARGB pixels of a source image and where the frame lies in them */
+	private static final class Source {
+		final int[] pixels;
+		final int scan;
+		final int x0, y0;
+		final int maxX, maxY;
+		Source(int[] pixels, int scan, int x0, int y0, int maxX, int maxY) {
+			this.pixels = pixels;
+			this.scan = scan;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+		int get(int x, int y) {
+			return pixels[y*scan + x];
+		}
+	}
+
+	/**
+	 * Reprojects destination rows [first, end), premultiplying the written
+	 * pixels by their alpha if <code>premultiplied</code> is set.
+	 */
+	private void project(Cell cell, Source src, Sampling sampling, boolean premultiplied, int[] dst, int first, int end) {
+		final double X_ZERO = -0.5 / dstW;
+		final double Y_ZERO = -0.5 / dstH;
+		final double X_ONE = 1 + 0.5 / dstW;
+		final double Y_ONE = 1 + 0.5 / dstH;
+		final double[] spatial = new double[3];
+		final double[] unit = new double[2];
+
+		for (int j = first; j < end; j++) {
+			for (int i = 0; i < dstW; i++) {
+				getSpatial(i, j, spatial);
+				cell.uninterpolate(spatial[0], spatial[1], spatial[2], unit);
+
+				double ux = unit[0];
+				double uy = unit[1];
+				if(ux < 0)
+					if(ux >= X_ZERO)
+						ux = 0;
+					else
+						continue;
+				else if(ux > 1)
+					if(ux <= X_ONE)
+						ux = 1;
+					else
+						continue;
+
+				if(uy < 0)
+					if(uy >= Y_ZERO)
+						uy = 0;
+					else
+						continue;
+				else if(uy > 1)
+					if(uy <= Y_ONE)
+						uy = 1;
+					else
+						continue;
+
+				double fx = ux * src.maxX;
+				double fy = (1-uy) * src.maxY;
+				int argb;
+				if (sampling == Sampling.NEAREST) {
+					argb = src.get((int)fx + src.x0, (int)fy + src.y0);
+				} else {
+					argb = bilinear(src, fx, fy);
+				}
+				dst[j*dstW + i] = premultiplied ? premultiply(argb) : argb;
+			}
+		}
+	}
+
+	/** Interpolates the four source pixels around (fx,fy) of the frame */
+	private static int bilinear(Source src, double fx, double fy) {
+		int x0 = (int)fx;
+		int y0 = (int)fy;
+		int x1 = Math.min(x0 + 1, src.maxX);
+		int y1 = Math.min(y0 + 1, src.maxY);
+		double dx = fx - x0;
+		double dy = fy - y0;
+		int p00 = src.get(x0 + src.x0, y0 + src.y0);
+		int p10 = src.get(x1 + src.x0, y0 + src.y0);
+		int p01 = src.get(x0 + src.x0, y1 + src.y0);
+		int p11 = src.get(x1 + src.x0, y1 + src.y0);
+		int argb = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			double top = ((p00 >>> shift) & 0xff) * (1-dx) + ((p10 >>> shift) & 0xff) * dx;
+			double bottom = ((p01 >>> shift) & 0xff) * (1-dx) + ((p11 >>> shift) & 0xff) * dx;
+			argb |= ((int)(top * (1-dy) + bottom * dy + 0.5) & 0xff) << shift;
+		}
+		return argb;
+	}
+
+	/** Returns the given ARGB color with its color channels scaled by its alpha */
+	private static int premultiply(int argb) {
+		int a = argb >>> 24;
+		if (a == 0xff) {
+			return argb;
+		} else if (a == 0) {
+			return 0;
+		}
+		int r = ((argb >> 16) & 0xff) * a / 0xff;
+		int g = ((argb >> 8) & 0xff) * a / 0xff;
+		int b = (argb & 0xff) * a / 0xff;
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Returns the ARGB array backing the image, premultiplied or not, if it
+	 * has one laid out as one int per pixel with no padding, or null
+	 * otherwise.
+	 */
+	private static int[] getBackingPixels(BufferedImage image) {
+		if (image.getType() != BufferedImage.TYPE_INT_ARGB
+				&& image.getType() != BufferedImage.TYPE_INT_ARGB_PRE
+				|| !(image.getRaster().getDataBuffer() instanceof DataBufferInt)
+				|| !(image.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				|| ((SinglePixelPackedSampleModel)image.getSampleModel()).getScanlineStride() != image.getWidth()
+				|| image.getRaster().getDataBuffer().getOffset() != 0
+				|| image.getRaster().getSampleModelTranslateX() != 0
+				|| image.getRaster().getSampleModelTranslateY() != 0) {
+			return null;
+		}
+		return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	}
+
+	/** Returns the backing pixels of the image, or a new array of its size */
+	private static int[] getPixels(BufferedImage image) {
+		int[] pixels = getBackingPixels(image);
+		return pixels != null ? pixels : new int[image.getWidth() * image.getHeight()];
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Math.max(1, THREADS), new StampThreadFactory("Stamp Reprojector"));
+		}
+		return pool;
+	}
+
+	/**
+	 * Times serial and parallel nearest and bilinear reprojection of frames
+	 * the size of typical THEMIS, CTX and HRSC frames. Arguments are the
+	 * number of rounds to run, default 5.
+	 */
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		String[] names = {"THEMIS", "CTX", "HRSC"};
+		int[][] sizes = {{320, 256}, {2500, 800}, {1288, 1500}};
+		Projection_OC proj = new Projection_OC(-10, 10);
+
+		for (int k = 0; k < names.length; k++) {
+			int w = sizes[k][0], h = sizes[k][1];
+			// a cell about the frame's footprint at 256 ppd, 2 degrees
+			// from the center of the projection
+			double degW = w / 256.0, degH = h / 256.0;
+			double lon = 10, lat = 12;
+			Cell cell = new Cell(new HVector(lon+degW/2, lat-degH/2), new HVector(lon-degW/2, lat-degH/2),
+				new HVector(lon-degW/2, lat+degH/2), new HVector(lon+degW/2, lat+degH/2), proj);
+			Rectangle2D where = cell.getWorldBounds();
+			int ppd = 256;
+			int dstW = Math.max(1, (int)Math.ceil(where.getWidth() * ppd) - 1);
+			int dstH = Math.max(1, (int)Math.ceil(where.getHeight() * ppd) - 1);
+
+			BufferedImage src = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+			Random rand = new Random(k);
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++)
+					src.setRGB(x, y, 0xff000000 | rand.nextInt());
+
+			for (int r = 0; r < rounds; r++) {
+				StringBuffer line = new StringBuffer(names[k] + " " + w + "x" + h + " -> " + dstW + "x" + dstH + ":");
+				for (Sampling sampling: Sampling.values()) {
+					BufferedImage dst = new BufferedImage(dstW, dstH, BufferedImage.TYPE_INT_ARGB);
+					long t0 = System.nanoTime();
+					FrameReprojector rp = new FrameReprojector(proj, where, ppd, dstW, dstH);
+					rp.project(cell, new Source(src.getRGB(0, 0, w, h, null, 0, w), w, 0, 0, w-1, h-1),
+						sampling, false, getPixels(dst), 0, dstH);
+					long t1 = System.nanoTime();
+					dst = new BufferedImage(dstW, dstH, BufferedImage.TYPE_INT_ARGB);
+					new FrameReprojector(proj, where, ppd, dstW, dstH).reproject(cell, dst, src, null, null, sampling);
+					long t2 = System.nanoTime();
+					line.append(" " + sampling + " serial " + (t1-t0)/1000000 + "ms parallel " + (t2-t1)/1000000 + "ms");
+				}
+				System.out.println(line);
+			}
+		}
+		System.exit(0);
+	}
+}
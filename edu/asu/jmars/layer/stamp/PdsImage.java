@@ -21,6 +21,7 @@
 package edu.asu.jmars.layer.stamp;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -271,6 +272,28 @@ public class PdsImage extends StampImage
 		int b = raf.readByte() & 0xFF;
 		return new Color(b, b, b).getRGB();
     }
+    
+    // Reads the range a row at a time, rather than seeking to each pixel;
+    // pixels of the range outside the image are 0.
+    public synchronized int[] getRGB(Rectangle range) throws Exception
+    {
+		int[] pixels = new int[range.width * range.height];
+		Rectangle in = range.intersection(new Rectangle(sampleCount, lineCount));
+		if (in.isEmpty())
+			return pixels;
+		
+		byte[] row = new byte[in.width];
+		for (int y = in.y; y < in.y + in.height; y++) {
+			raf.seek(in.x + (long)y * sampleCount + imageOffset);
+			raf.readFully(row);
+			int off = (y - range.y) * range.width + in.x - range.x;
+			for (int i = 0; i < row.length; i++) {
+				int b = row[i] & 0xFF;
+				pixels[off + i] = 0xFF000000 | (b << 16) | (b << 8) | b;
+			}
+		}
+		return pixels;
+    }
         
     protected int getFrameSize()
     {
@@ -37,8 +37,11 @@ import java.io.ObjectInputStream;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.imageio.ImageIO;
 
@@ -100,6 +103,9 @@ public class StampImage
     
     protected int projHash;
     protected int renderPPD;
+    
+    /** Downloads queued by the rendering in progress, cancelled when it is superseded */
+    private volatile FrameFetchScheduler.Batch fetchBatch;
         
     protected int userRotateFlip = IMAGE_NORMAL;
 
@@ -627,6 +633,18 @@ public class StampImage
 		return  Math.toDegrees(a.separation(b));
 	 }
     
+    /**
+     ** Stops the downloads queued by the rendering in progress, if any, so
+     ** that a superseded rendering gives up its place in the fetch queue.
+     ** Not synchronized, so it can be called while {@link #renderImage} runs.
+     **/
+    public void cancelFetches() {
+        FrameFetchScheduler.Batch batch = fetchBatch;
+        if (batch != null) {
+            batch.cancel();
+        }
+    }
+    
     /**
      ** Renders the image onto the given (world-coordinate) graphics context.
      **/
@@ -647,39 +665,74 @@ public class StampImage
         	recreateImageFrames(renderPPD);
         }
 
-//    	Runnable runme = new Runnable() {    		
-//			public void run() {
-		        List<ImageFrame> framesInView = new ArrayList<ImageFrame>();
-		        for(int i=0; i<frames.length; i++) {                              
-		            if (doesFrameIntersect(frames[i], worldWin)) {
-		            	framesInView.add(frames[i]);
-		            }
-		        }
-		        
-		        if (framePointsFaked) {	        	
-		        	ImageFrame frameSegmentsToFetch[][][] = FrameFetcher.segment(frames, horizontalSplitCnt, frames.length/horizontalSplitCnt, worldWin);
-		        	
-		        	for (int i=0; i<frameSegmentsToFetch.length; i++) {        	
-		        		FrameFetcher ff = new FrameFetcher(frameSegmentsToFetch[i]);
-		        		ff.fetchFrames();
-		        	}
-		        }
-		        		        
-		 //       System.out.println(imageType + " Frames in View = " + framesInView.size());
-		
-		        task.updateStatus(Status.YELLOW);
-		        
-		        for(ImageFrame f : framesInView) {     
-		        	if (proj.getWorldWindow().equals(worldWin)) {
-		        		drawFrame(f, worldWin, wg2, op);
-		        	} else {
-		        		log.println("Parameters changed, aborting frame draw");
-		        	}
-		        }
-//			}
-//    	};
-    	
-		        task.updateStatus(Status.DONE);
+        List<ImageFrame> framesInView = new ArrayList<ImageFrame>();
+        for(int i=0; i<frames.length; i++) {                              
+            if (doesFrameIntersect(frames[i], worldWin)) {
+            	framesInView.add(frames[i]);
+            }
+        }
+        
+        // Start downloading the frames we don't have, and draw the ones we
+        // do while that happens
+        FrameFetchScheduler.Batch batch = null;
+        Set<ImageFrame> fetching = new HashSet<ImageFrame>();
+        if (framePointsFaked) {	        	
+        	ImageFrame frameSegmentsToFetch[][][] = FrameFetcher.segment(frames, horizontalSplitCnt, frames.length/horizontalSplitCnt, worldWin);
+        	
+        	List<FrameFetcher> fetchers = new ArrayList<FrameFetcher>();
+        	for (int i=0; i<frameSegmentsToFetch.length; i++) {        	
+        		fetchers.add(new FrameFetcher(frameSegmentsToFetch[i]));
+        		for (ImageFrame[] column : frameSegmentsToFetch[i]) {
+        			fetching.addAll(Arrays.asList(column));
+        		}
+        	}
+        	batch = FrameFetchScheduler.fetch(fetchers, worldWin);
+        	fetchBatch = batch;
+        }
+        
+ //       System.out.println(imageType + " Frames in View = " + framesInView.size());
+
+        task.updateStatus(Status.YELLOW);
+        
+        try {
+	        for(ImageFrame f : framesInView) {
+	        	if (fetching.contains(f)) {
+	        		continue;
+	        	}
+	        	if (proj.getWorldWindow().equals(worldWin)) {
+	        		drawFrame(f, worldWin, wg2, op);
+	        	} else {
+	        		log.println("Parameters changed, aborting frame draw");
+	        		return;
+	        	}
+	        }
+	        
+	        // Draw the fetched frames as each segment arrives
+	        int drawn = framesInView.size() - fetching.size();
+	        FrameFetcher ff;
+	        while (batch != null && (ff = batch.take()) != null) {
+	        	if (!proj.getWorldWindow().equals(worldWin)) {
+	        		log.println("Parameters changed, aborting frame draw");
+	        		return;
+	        	}
+	        	for (ImageFrame[] column : ff.getFrames()) {
+	        		for (ImageFrame f : column) {
+	        			drawFrame(f, worldWin, wg2, op);
+	        			drawn ++;
+	        		}
+	        	}
+	        	log.println("Drew " + drawn + " of " + framesInView.size() + " frames");
+	        	myStamp.stampLayer.viewToUpdate.repaint();
+	        }
+        } catch (InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        } finally {
+        	if (batch != null) {
+        		batch.cancel();
+        		fetchBatch = null;
+        	}
+	        task.updateStatus(Status.DONE);
+        }
     }
     
     // Draw this frame onto the specified g2.  Draw it multiple times if
@@ -740,13 +793,34 @@ public class StampImage
     // The area of this stamp generated using the render points
     Area realClipArea = null;
     
-    // The realClipArea of this stamp minus the overlapping areas of any
-    // other rendered stamps that are higher in the view stack
-    // Needed for multithreaded rendering, unused at the moment
+    // The realClipArea of this stamp, moved by the stamp's offset, minus the
+    // overlapping areas of any opaque stamps that are higher in the view
+    // stack, so stamps can be rendered concurrently
     Area currentClipArea = null;
     
+    // The offset of this stamp followed by each higher opaque stamp and its
+    // offset, as given when currentClipArea was computed
+    private List<Object> currentClipKey = null;
+    
+    // The projection the world paths and clip areas were computed for
+    private int pathProjHash;
+    
+    // Drops the world paths and clip areas when the projection has changed
+    private synchronized void checkProjection() {
+    	int hash = Main.PO.getProjectionSpecialParameters().hashCode();
+    	if (hash != pathProjHash) {
+    		pathProjHash = hash;
+    		path = null;
+    		normalPath = null;
+    		realClipArea = null;
+    		currentClipArea = null;
+    		currentClipKey = null;
+    	}
+    }
+    
     // Not sure this needs to be public
-    public Area getRealClipArea() {
+    public synchronized Area getRealClipArea() {
+    	checkProjection();
     	if (realClipArea==null) {
     		realClipArea=new Area(getNormalPath());
     	}
@@ -754,26 +828,80 @@ public class StampImage
     	return realClipArea;  	
     }
     
-    public void clearCurrentClip() {
+    /**
+     * Returns the real clip area of this stamp moved by the given world offset.
+     */
+    public Area getRealClipArea(Point2D offset) {
+    	return getRealClipArea().createTransformedArea(
+    		AffineTransform.getTranslateInstance(offset.getX(), offset.getY()));
+    }
+    
+    public synchronized void clearCurrentClip() {
     	currentClipArea=null;
+    	currentClipKey=null;
     }
     
-    public void calculateCurrentClip(List<StampImage> higherImages) {
-    	// Short circuited until multithreaded rendering is enabled.
-    	if (true) return;
-    	if (currentClipArea==null) {
-	    	currentClipArea = getAdjustedClipArea(getRealClipArea());
-	    	
-	    	for (StampImage s : higherImages) { 		
-	    		// Somehow we need to worry about +/- 360 issues here too
-	    		if (s.getRealClipArea().intersects(realClipArea.getBounds2D())) {
-	    			currentClipArea.subtract(s.getRealClipArea());
-	    		}    		
-	    	}    	
+    /**
+     * Returns true if frames of this image are drawn with black pixels left
+     * transparent, so stamps under it must be drawn first instead of clipped.
+     */
+    public boolean isTransparent() {
+    	return instrument==Instrument.THEMIS && imageType.startsWith("D");
+    }
+    
+    /**
+     * Computes the area this stamp may draw to, unless it was last computed
+     * for the same projection, offset, and stamps above it.
+     * 
+     * @param offset The world offset the stamp is drawn with.
+     * @param higher The opaque stamps drawn above this one.
+     * @param higherOffsets The world offset of each stamp in <code>higher</code>.
+     * @return The current clip area.
+     */
+    public Area calculateCurrentClip(Point2D offset, List<StampImage> higher, List<Point2D> higherOffsets) {
+    	checkProjection();
+    	List<Object> key = new ArrayList<Object>(1 + 2*higher.size());
+    	key.add(new Point2D.Double(offset.getX(), offset.getY()));
+    	for (int i=0; i<higher.size(); i++) {
+    		key.add(higher.get(i));
+    		key.add(new Point2D.Double(higherOffsets.get(i).getX(), higherOffsets.get(i).getY()));
+    	}
+    	synchronized (this) {
+    		if (currentClipArea!=null && key.equals(currentClipKey)) {
+    			return currentClipArea;
+    		}
     	}
+    	
+    	// Computed without holding this stamp's lock, since the areas of the
+    	// higher stamps are read under their own locks
+    	Area area = getRealClipArea(offset);
+    	Rectangle2D bounds = area.getBounds2D();
+    	Area clip = getAdjustedClipArea(area);
+    	
+    	// Higher stamps may overlap this one across the 0/360 seam
+    	for (int i=0; i<higher.size(); i++) {
+    		Point2D higherOffset = higherOffsets.get(i);
+    		Rectangle2D higherBounds = higher.get(i).getRealClipArea().getBounds2D();
+    		for (int m=-1; m<=1; m++) {
+    			Rectangle2D moved = new Rectangle2D.Double(
+    				higherBounds.getX() + higherOffset.getX() + 360*m,
+    				higherBounds.getY() + higherOffset.getY(),
+    				higherBounds.getWidth(), higherBounds.getHeight());
+    			if (moved.intersects(bounds)) {
+    				clip.subtract(getAdjustedClipArea(higher.get(i).getRealClipArea(higherOffset)));
+    				break;
+    			}
+    		}
+    	}
+    	
+    	synchronized (this) {
+    		currentClipKey = key;
+    		currentClipArea = clip;
+    	}
+    	return clip;
     }
     
-    public Area getCurrentClipArea() {
+    public synchronized Area getCurrentClipArea() {
     	return currentClipArea;
     }
     
@@ -833,15 +961,18 @@ public class StampImage
 	 */    
     protected final java.awt.Graphics2D getFrameG2(Graphics2D g2) {
     	g2 = (Graphics2D) g2.create();
-    	if (instrument==Instrument.THEMIS && imageType.startsWith("D")) {
+    	if (isTransparent()) {
     		g2.setComposite(new IgnoreComposite(Color.black));
     	} else if (instrument==Instrument.HRSC || instrument==Instrument.CRISM) {
-    		g2.setClip(myStamp.getNormalPath());
+    		// keep any clip already given to this stamp
+    		Shape clip = g2.getClip();
+    		Area area = new Area(myStamp.getNormalPath());
+    		if (clip != null) {
+    			area.intersect(new Area(clip));
+    		}
+    		g2.setClip(area);
     	}
     	
-    	// Something like this is needed for multi-threaded rendering support.
-    	// g2.setClip(getCurrentClipArea());
-    	
     	return g2;
     }
     /**
@@ -915,6 +1046,19 @@ public class StampImage
         return image.getRGB(x, y);
     }
     
+    // Returns the 32-bit RGB color values within the given range in one
+    // block, row by row; pixels of the range outside the image are 0.
+    synchronized public int[] getRGB(Rectangle range) throws Exception
+    {
+        int[] pixels = new int[range.width * range.height];
+        Rectangle in = range.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+        if (!in.isEmpty()) {
+            image.getRGB(in.x, in.y, in.width, in.height, pixels,
+                (in.y - range.y) * range.width + in.x - range.x, range.width);
+        }
+        return pixels;
+    }
+    
     protected String getCachedImageFrameName(int frame)
     {
         if (getFilename() != null &&
@@ -1173,6 +1317,7 @@ public class StampImage
     
     public synchronized Shape getNormalPath()
     {
+        checkProjection();
         if(normalPath == null)
             normalPath = StampShape.normalize360(getPath());
         return  normalPath;
@@ -1185,6 +1330,7 @@ public class StampImage
 	// make visible to the user.
 	public synchronized GeneralPath getPath()
 	{
+	    checkProjection();
 	    if(path == null)
 	    {
 	        path = new GeneralPath();
@@ -37,6 +37,7 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
 import java.awt.geom.Dimension2D;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Line2D;
@@ -53,7 +54,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
@@ -104,6 +113,14 @@ public class StampLView extends Layer.LView implements StampSelectionListener
 	private static final int STAMP_RENDER_REPAINT_COUNT_MIN = 1;
 	private static final int STAMP_RENDER_REPAINT_COUNT_MAX = 10;
 	private static final int STAMP_RENDER_REPAINT_COUNT_BASE = 10;
+	
+	// Filled stamps are rendered concurrently on this many threads
+	private static final int STAMP_RENDER_THREADS = Config.get("stamp.render.threads",
+		Math.max(1, Runtime.getRuntime().availableProcessors()));
+	private static ExecutorService renderPool;
+	
+	// Incremented for each filled stamp rendering pass, so stale passes stop
+	private final AtomicInteger fillPass = new AtomicInteger();
 
     public static final int OUTLINE_BUFFER_IDX = 1;
     public static final int SELECTED_OUTLINE_BUFFER_IDX = 2;
@@ -638,6 +655,17 @@ public class StampLView extends Layer.LView implements StampSelectionListener
 //        if (lastFilled != filledStamps ||
 //                projHash != Main.PO.getProjectionSpecialParameters().hashCode())
 //            {
+		// The previous pass is superseded, so stop the queued downloads of
+		// its stamps, including any that have left the view, before this
+		// pass queues its own
+		Set<FilledStamp> superseded = new HashSet<FilledStamp>(allFilledStamps);
+		if (lastFilled != null)
+			superseded.addAll(lastFilled);
+		for (FilledStamp fs : superseded) {
+			if (fs.pdsi != null)
+				fs.pdsi.cancelFetches();
+		}
+		
         lastFilled = filledStamps;
         lastFillColor = stampLayer.getSettings().getFilledStampColor();
 //                projHash = Main.PO.getProjectionSpecialParameters().hashCode();
@@ -650,48 +678,108 @@ public class StampLView extends Layer.LView implements StampSelectionListener
 		                                                     Math.log(renderPPD) / Math.log(2))));
 		log.println("Repainting every " + repaintThreshold + " images");
 
+		final int pass = fillPass.incrementAndGet();
+		
     	Runnable runme = new Runnable() {    		
 			public void run() {
-
-				long repaintCount = 0;
-
 				clearOffScreen(0);
 				
 	            if (stampLayer.getSettings().getFilledStampColor().getAlpha() != 0)
 	                drawAlpha();
 	            
-				ArrayList<FilledStamp> reverseStamps = new ArrayList<FilledStamp>();
-				
-				ArrayList<StampImage> higherStamps=new ArrayList<StampImage>();
+	            // Clip each stamp to its area less the opaque stamps above it
+	            // in the list drawn by this pass, going top down, so that
+	            // stamps can be drawn in any order
+				List<FilledStamp> toDraw = new ArrayList<FilledStamp>();
+				final List<Area> clips = new ArrayList<Area>();
+				List<StampImage> higher = new ArrayList<StampImage>();
+				List<Point2D> higherOffsets = new ArrayList<Point2D>();
 				for (FilledStamp fs : filledStamps) 
 		        {
-					fs.pdsi.calculateCurrentClip(higherStamps);
-					
-					higherStamps.add(fs.pdsi);
-					reverseStamps.add(fs);
+					if (fs.pdsi == null)
+						continue;
+					Point2D offset = fs.getOffset();
+					clips.add(fs.pdsi.calculateCurrentClip(offset, higher, higherOffsets));
+					if (!fs.pdsi.isTransparent()) {
+						higher.add(fs.pdsi);
+						higherOffsets.add(offset);
+					}
+					toDraw.add(fs);
 		        }
-
-				// Reverse the order of the stamps so that we can iterate through them starting
-				// from last to first
-				Collections.reverse(reverseStamps);
 				
-				for (FilledStamp fs : reverseStamps) 
-		        {
-					Graphics2D g2 = getOffScreenG2();
+				// Going bottom up, a transparent stamp must wait for every
+				// stamp under it that it overlaps; anything else can be
+				// drawn in the first wave.
+				Collections.reverse(toDraw);
+				Collections.reverse(clips);
+				List<List<Integer>> waves = new ArrayList<List<Integer>>();
+				int[] waveOf = new int[toDraw.size()];
+				for (int i=0; i<toDraw.size(); i++) {
+					int wave = 0;
+					if (toDraw.get(i).pdsi.isTransparent()) {
+						Rectangle2D bounds = clips.get(i).getBounds2D();
+						for (int j=0; j<i; j++) {
+							if (waveOf[j] >= wave && clips.get(j).intersects(bounds)) {
+								wave = waveOf[j] + 1;
+							}
+						}
+					}
+					waveOf[i] = wave;
+					while (waves.size() <= wave)
+						waves.add(new ArrayList<Integer>());
+					waves.get(wave).add(i);
+				}
+				
+				final AtomicLong repaintCount = new AtomicLong();
+				ExecutorService pool = getRenderPool();
+				for (List<Integer> wave : waves) {
+					List<Future<?>> futures = new ArrayList<Future<?>>(wave.size());
+					for (int i : wave) {
+						final FilledStamp fs = toDraw.get(i);
+						final Area clip = clips.get(i);
+						futures.add(pool.submit(new Runnable() {
+							public void run() {
+								if (pass != fillPass.get())
+									return;
+								
+								Graphics2D raw = getOffScreenG2Raw(0);
+								if (raw == null)
+									return;
+								raw.clip(clip);
+								Graphics2D g2 = viewman.wrapWorldGraphics(raw);
+								
+								Point2D offset = fs.getOffset();
+								g2.translate(offset.getX(), offset.getY());
+								
+							    fs.pdsi.renderImage(g2,
+							                fs.getColorMapOp().forAlpha(1),
+							                proj,
+							                renderPPD, stampLayer.startTask());
+								if ((repaintCount.getAndIncrement() % repaintThreshold) == 0)
+									repaint();
+							}
+						}));
+					}
 					
-					Point2D offset = fs.getOffset();
-					g2.translate(offset.getX(), offset.getY());
-	
-					if (fs.pdsi != null) {
-					    fs.pdsi.renderImage(g2,
-					                fs.getColorMapOp().forAlpha(1),
-					                proj,
-					                renderPPD, stampLayer.startTask());
-						if ((repaintCount % repaintThreshold) == 0)
-							repaint();
-	
-						repaintCount++;
-	                    
+					// wait for the whole wave, even if some stamps fail
+					try {
+						for (Future<?> f : futures) {
+							try {
+								f.get();
+							} catch (ExecutionException e) {
+								log.aprintln("Failed rendering filled stamp: " + e.getCause());
+								log.aprintln(e.getCause());
+							}
+						}
+					} catch (InterruptedException e) {
+						for (Future<?> f : futures)
+							f.cancel(true);
+						return;
+					}
+					
+					if (pass != fillPass.get()) {
+						log.println("Filled stamp pass superseded");
+						return;
 					}
 				}
 			    
@@ -707,6 +795,14 @@ public class StampLView extends Layer.LView implements StampSelectionListener
         return true;
 	}
 
+	private static synchronized ExecutorService getRenderPool() {
+		if (renderPool == null) {
+			renderPool = Executors.newFixedThreadPool(Math.max(1, STAMP_RENDER_THREADS),
+				new StampThreadFactory("Stamp Renderer"));
+		}
+		return renderPool;
+	}
+	
 	class StampMenu extends JMenu {
 
 		StampShape stamp = null;
@@ -68,7 +68,7 @@ public class ProfileLineCueingListener extends MouseMotionAdapter {
 			cueShape = computeCueLine(worldCuePoint);
 		
 		if (oldCueShape != cueShape)
-			myLView.repaint();			
+			myLView.repaintOverlay();			
 	}
 	
 	/**
@@ -87,7 +87,7 @@ public class ProfileLineDrawingListener implements MouseInputListener, KeyListen
 					p1 = clampedWorldPoint(profileLinePts.get(0), e);
 				profileLinePts.add(p1);
 				p2 = p1;
-				myLView.repaint();
+				myLView.repaintOverlay();
 			}
 			else if (e.getClickCount() == 2){
 				if (!closed){
@@ -101,7 +101,7 @@ public class ProfileLineDrawingListener implements MouseInputListener, KeyListen
 					p2 = null;
 					myLView.setProfileLine(convert(profileLinePts, null));
 					profileLinePts.clear();
-					myLView.repaint();
+					myLView.repaintOverlay();
 					closed = true;
 					
 					if (myLView.myFocus.chartView!=null) {
@@ -118,7 +118,7 @@ public class ProfileLineDrawingListener implements MouseInputListener, KeyListen
 		myLView.setProfileLine(null);
 		myLView.cueChanged(null);
 		closed = false;
-		myLView.repaint();
+		myLView.repaintOverlay();
 	}
 	
 	private GeneralPath convert(List<Point2D> pts, Point2D lastPt){
@@ -165,7 +165,7 @@ public class ProfileLineDrawingListener implements MouseInputListener, KeyListen
 					"  dist = " + f.format(distances[1]) + "/" + f.format(totalDistances[1]) + " km");
 
 			// Update the view so that it can display the in-progress profile line
-			myLView.repaint();
+			myLView.repaintOverlay();
 		}
 	}
 	
@@ -0,0 +1,607 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A FeatureCollection that stores the attributes of its Features by column
+ * instead of in a map per Feature. Each Field is kept in a column of
+ * primitives where the values allow it: Double and Integer values in
+ * <code>double[]</code> and <code>int[]</code> arrays, and String values as
+ * <code>int</code> codes into a dictionary of the distinct strings. Any other
+ * value is kept in an <code>Object[]</code> column, and a column that is given
+ * a value it can't hold is converted to one.
+ * <p>Each Feature added to this collection gets a row in the columns, and its
+ * {@link Feature#attributes} map is replaced by a view of that row, so
+ * {@link Feature#getAttribute(Field)}, {@link Feature#setAttribute(Field, Object)}
+ * and the events sent by this collection work exactly as they do with
+ * {@link SingleFeatureCollection}. A row iterates over its Fields in the order
+ * they were given to that Feature, as its own map did; the orders are shared
+ * between rows, so each row only stores the number of its order. When a
+ * Feature is removed, its row is copied back into a map of its own and the
+ * row is reused by the next Feature added.
+ * <p>Rows may be read and written from several threads, as when features are
+ * drawn in parallel while a calculated field is updated. Every access to the
+ * columns holds a lock private to the collection, so readers never see a
+ * column half way through growing or being converted.
+ */
+public class ColumnFeatureCollection extends SingleFeatureCollection {
+	/** Guards the columns, the row bookkeeping and the field orders */
+	private final Object lock = new Object();
+	/** Columns by Field */
+	private final Map<Field,Column> columns = new HashMap<Field,Column>();
+	/** Allocated row count; every column can hold at least this many rows */
+	private int capacity = 0;
+	/** Number of rows handed out so far */
+	private int rowCount = 0;
+	/** Rows freed by removed Features, reused before new rows are made */
+	private int[] freeRows = new int[16];
+	private int freeCount = 0;
+	/** The number of the field order of each row */
+	private int[] rowOrders = new int[0];
+	/** Distinct field orders by number; order 0 is empty */
+	private final List<Field[]> orders = new ArrayList<Field[]>();
+	/** Numbers of the distinct field orders */
+	private final Map<List<Field>,Integer> orderNumbers = new HashMap<List<Field>,Integer>();
+	/** For each order, the orders made by appending a Field to it */
+	private final List<Map<Field,Integer>> appended = new ArrayList<Map<Field,Integer>>();
+
+	public ColumnFeatureCollection() {
+		internOrder(new Field[0]);
+	}
+
+	protected void attach(Feature f) {
+		if (f.attributes instanceof Row && ((Row)f.attributes).owner() == this) {
+			return;
+		}
+		Row row;
+		synchronized(lock) {
+			row = new Row(allocateRow());
+		}
+		for (Map.Entry<Field,Object> me: f.attributes.entrySet()) {
+			row.put(me.getKey(), me.getValue());
+		}
+		f.attributes = row;
+	}
+
+	protected void detach(Feature f) {
+		if (f.attributes instanceof Row && ((Row)f.attributes).owner() == this) {
+			Row row = (Row)f.attributes;
+			synchronized(lock) {
+				f.attributes = new LinkedHashMap<Field,Object>(row);
+				for (Column c: columns.values()) {
+					c.clear(row.index);
+				}
+				rowOrders[row.index] = 0;
+				if (freeCount == freeRows.length) {
+					int[] grown = new int[freeCount*2];
+					System.arraycopy(freeRows, 0, grown, 0, freeCount);
+					freeRows = grown;
+				}
+				freeRows[freeCount++] = row.index;
+			}
+		}
+	}
+
+	/**
+	 * Removes the Field from the schema and drops its column.
+	 */
+	public void removeField(Field f) {
+		super.removeField(f);
+		if (!getSchema().contains(f)) {
+			synchronized(lock) {
+				columns.remove(f);
+			}
+		}
+	}
+
+	/** Returns a free row; the lock must be held */
+	private int allocateRow() {
+		if (freeCount > 0) {
+			return freeRows[--freeCount];
+		}
+		if (rowCount == capacity) {
+			capacity = Math.max(64, capacity + (capacity >> 1));
+			for (Column c: columns.values()) {
+				c.grow(capacity);
+			}
+			int[] grown = new int[capacity];
+			System.arraycopy(rowOrders, 0, grown, 0, rowOrders.length);
+			rowOrders = grown;
+		}
+		return rowCount++;
+	}
+
+	/** Returns the number of the given order, adding it if it's new */
+	private int internOrder(Field[] order) {
+		List<Field> key = Arrays.asList(order);
+		Integer number = orderNumbers.get(key);
+		if (number == null) {
+			number = orders.size();
+			orders.add(order);
+			orderNumbers.put(key, number);
+			appended.add(new HashMap<Field,Integer>());
+		}
+		return number;
+	}
+
+	/** Returns the number of the order with the Field appended, if it isn't in it already */
+	private int withField(int order, Field f) {
+		Integer number = appended.get(order).get(f);
+		if (number == null) {
+			Field[] fields = orders.get(order);
+			if (Arrays.asList(fields).contains(f)) {
+				number = order;
+			} else {
+				Field[] longer = new Field[fields.length + 1];
+				System.arraycopy(fields, 0, longer, 0, fields.length);
+				longer[fields.length] = f;
+				number = internOrder(longer);
+			}
+			appended.get(order).put(f, number);
+		}
+		return number;
+	}
+
+	/** Returns the number of the order without the Field */
+	private int withoutField(int order, Field f) {
+		Field[] fields = orders.get(order);
+		int i = Arrays.asList(fields).indexOf(f);
+		if (i < 0) {
+			return order;
+		}
+		Field[] shorter = new Field[fields.length - 1];
+		System.arraycopy(fields, 0, shorter, 0, i);
+		System.arraycopy(fields, i+1, shorter, i, shorter.length - i);
+		return internOrder(shorter);
+	}
+
+	/** Returns the column for the given Field, creating it if necessary; the lock must be held */
+	private Column getColumn(Field f, Object value) {
+		Column c = columns.get(f);
+		if (c == null) {
+			Class<?> type = value == null ? f.type : value.getClass();
+			if (type == Double.class) {
+				c = new DoubleColumn();
+			} else if (type == Integer.class) {
+				c = new IntColumn();
+			} else if (type == String.class) {
+				c = new StringColumn();
+			} else {
+				c = new ObjectColumn();
+			}
+			c.grow(capacity);
+			columns.put(f, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Stores the value, converting the column to objects if it must, and
+	 * appends the Field to the row's order if it's new to the row; the lock
+	 * must be held
+	 */
+	private Object setValue(Field f, int row, Object value) {
+		Column c = getColumn(f, value);
+		Object old = c.get(row);
+		if (!c.present.get(row)) {
+			rowOrders[row] = withField(rowOrders[row], f);
+		}
+		if (!c.set(row, value)) {
+			ObjectColumn oc = new ObjectColumn();
+			oc.grow(capacity);
+			for (int i = c.present.nextSetBit(0); i >= 0; i = c.present.nextSetBit(i+1)) {
+				oc.set(i, c.get(i));
+			}
+			oc.set(row, value);
+			columns.put(f, oc);
+		}
+		return old;
+	}
+
+	/**
+	 * Adds <code>count</code> new Features whose attributes are given by
+	 * column, storing the values straight into the columns instead of building
+	 * a map for each Feature. <code>values[k]</code> holds the values of
+	 * <code>fields[k]</code>, as an <code>int[]</code>, a <code>double[]</code>,
+	 * or an <code>Object[]</code> in which a null element leaves that Feature
+	 * without the attribute. Each Feature's Fields are in the order given.
+	 */
+	public void addFeatures(Field[] fields, Object[] values, int count) {
+		int[] rows = new int[count];
+		synchronized(lock) {
+			for (int i = 0; i < count; i++) {
+				rows[i] = allocateRow();
+			}
+			for (int k = 0; k < fields.length; k++) {
+				Column c = getColumn(fields[k], null);
+				Object v = values[k];
+				if (v instanceof int[] && c instanceof IntColumn) {
+					((IntColumn)c).put(rows, (int[])v, count);
+					appendField(rows, count, fields[k]);
+				} else if (v instanceof double[] && c instanceof DoubleColumn) {
+					((DoubleColumn)c).put(rows, (double[])v, count);
+					appendField(rows, count, fields[k]);
+				} else {
+					for (int i = 0; i < count; i++) {
+						Object o;
+						if (v instanceof int[]) {
+							o = ((int[])v)[i];
+						} else if (v instanceof double[]) {
+							o = ((double[])v)[i];
+						} else {
+							o = ((Object[])v)[i];
+						}
+						if (o != null) {
+							setValue(fields[k], rows[i], o);
+						}
+					}
+				}
+			}
+		}
+		List<Feature> added = new ArrayList<Feature>(count);
+		for (int i = 0; i < count; i++) {
+			Feature f = new Feature();
+			f.attributes = new Row(rows[i]);
+			added.add(f);
+		}
+		super.addFeatures(added);
+	}
+
+	/** Appends the Field to the order of each row; the lock must be held */
+	private void appendField(int[] rows, int count, Field f) {
+		// rows added together almost always share an order
+		int from = -1, to = -1;
+		for (int i = 0; i < count; i++) {
+			int order = rowOrders[rows[i]];
+			if (order != from) {
+				from = order;
+				to = withField(order, f);
+			}
+			rowOrders[rows[i]] = to;
+		}
+	}
+
+	/**
+	 * One Feature's attributes, read from and written to the columns of the
+	 * owning collection.
+	 */
+	private final class Row extends AbstractMap<Field,Object> {
+		final int index;
+		Row(int index) {
+			this.index = index;
+		}
+		ColumnFeatureCollection owner() {
+			return ColumnFeatureCollection.this;
+		}
+		public boolean containsKey(Object key) {
+			synchronized(lock) {
+				Column c = columns.get(key);
+				return c != null && c.present.get(index);
+			}
+		}
+		public Object get(Object key) {
+			synchronized(lock) {
+				Column c = columns.get(key);
+				return c == null ? null : c.get(index);
+			}
+		}
+		public Object put(Field key, Object value) {
+			synchronized(lock) {
+				return setValue(key, index, value);
+			}
+		}
+		public Object remove(Object key) {
+			synchronized(lock) {
+				Column c = columns.get(key);
+				if (c == null || !c.present.get(index)) {
+					return null;
+				}
+				Object old = c.get(index);
+				c.clear(index);
+				rowOrders[index] = withoutField(rowOrders[index], (Field)key);
+				return old;
+			}
+		}
+		public int size() {
+			synchronized(lock) {
+				int size = 0;
+				for (Field f: orders.get(rowOrders[index])) {
+					Column c = columns.get(f);
+					if (c != null && c.present.get(index)) {
+						size ++;
+					}
+				}
+				return size;
+			}
+		}
+		/** The row's fields in order; fields whose column was dropped may remain */
+		Field[] fields() {
+			synchronized(lock) {
+				return orders.get(rowOrders[index]);
+			}
+		}
+		public Set<Map.Entry<Field,Object>> entrySet() {
+			return new AbstractSet<Map.Entry<Field,Object>>() {
+				public int size() {
+					return Row.this.size();
+				}
+				public Iterator<Map.Entry<Field,Object>> iterator() {
+					return new RowIterator(Row.this);
+				}
+			};
+		}
+	}
+
+	/** Iterates over the Fields that have a value in the given row, in the row's order */
+	private static final class RowIterator implements Iterator<Map.Entry<Field,Object>> {
+		private final Row row;
+		// orders are never changed, so puts and removes don't break iteration
+		private final Field[] fields;
+		private int next = -1;
+		private Field last;
+		RowIterator(Row row) {
+			this.row = row;
+			this.fields = row.fields();
+			advance();
+		}
+		private void advance() {
+			for (next++; next < fields.length; next++) {
+				if (row.containsKey(fields[next])) {
+					break;
+				}
+			}
+		}
+		public boolean hasNext() {
+			return next < fields.length;
+		}
+		public Map.Entry<Field,Object> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = fields[next];
+			advance();
+			final Field key = last;
+			return new Map.Entry<Field,Object>() {
+				public Field getKey() {
+					return key;
+				}
+				public Object getValue() {
+					return row.get(key);
+				}
+				public Object setValue(Object value) {
+					return row.put(key, value);
+				}
+				public boolean equals(Object o) {
+					if (!(o instanceof Map.Entry)) {
+						return false;
+					}
+					Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+					Object v = getValue();
+					return key.equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+				}
+				public int hashCode() {
+					Object v = getValue();
+					return key.hashCode() ^ (v == null ? 0 : v.hashCode());
+				}
+			};
+		}
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			row.remove(last);
+			last = null;
+		}
+	}
+
+	/**
+	 * The values of one Field. A row may be absent, as when the Feature's map
+	 * has no entry for the Field, or hold null, both tracked by bits.
+	 */
+	private static abstract class Column {
+		final BitSet present = new BitSet();
+		final BitSet nulls = new BitSet();
+		final Object get(int row) {
+			return present.get(row) && !nulls.get(row) ? getValue(row) : null;
+		}
+		/** Returns false if the value can't be held by this type of column */
+		final boolean set(int row, Object value) {
+			if (value == null) {
+				nulls.set(row);
+			} else if (setValue(row, value)) {
+				nulls.clear(row);
+			} else {
+				return false;
+			}
+			present.set(row);
+			return true;
+		}
+		void clear(int row) {
+			present.clear(row);
+			nulls.clear(row);
+		}
+		abstract Object getValue(int row);
+		abstract boolean setValue(int row, Object value);
+		abstract void grow(int capacity);
+	}
+
+	private static final class DoubleColumn extends Column {
+		private double[] values = new double[0];
+		Object getValue(int row) {
+			return values[row];
+		}
+		boolean setValue(int row, Object value) {
+			if (value.getClass() != Double.class) {
+				return false;
+			}
+			values[row] = ((Double)value).doubleValue();
+			return true;
+		}
+		void put(int[] rows, double[] v, int count) {
+			for (int i = 0; i < count; i++) {
+				values[rows[i]] = v[i];
+				present.set(rows[i]);
+			}
+		}
+		void grow(int capacity) {
+			double[] grown = new double[capacity];
+			System.arraycopy(values, 0, grown, 0, values.length);
+			values = grown;
+		}
+	}
+
+	private static final class IntColumn extends Column {
+		private int[] values = new int[0];
+		Object getValue(int row) {
+			return values[row];
+		}
+		boolean setValue(int row, Object value) {
+			if (value.getClass() != Integer.class) {
+				return false;
+			}
+			values[row] = ((Integer)value).intValue();
+			return true;
+		}
+		void put(int[] rows, int[] v, int count) {
+			for (int i = 0; i < count; i++) {
+				values[rows[i]] = v[i];
+				present.set(rows[i]);
+			}
+		}
+		void grow(int capacity) {
+			int[] grown = new int[capacity];
+			System.arraycopy(values, 0, grown, 0, values.length);
+			values = grown;
+		}
+	}
+
+	/**
+	 * Strings as codes into a dictionary of the distinct values. Codes are
+	 * never released, which only matters for a column edited many times over.
+	 */
+	private static final class StringColumn extends Column {
+		private int[] codes = new int[0];
+		private final List<String> dictionary = new ArrayList<String>();
+		private final Map<String,Integer> lookup = new HashMap<String,Integer>();
+		Object getValue(int row) {
+			return dictionary.get(codes[row]);
+		}
+		boolean setValue(int row, Object value) {
+			if (value.getClass() != String.class) {
+				return false;
+			}
+			Integer code = lookup.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.add((String)value);
+				lookup.put((String)value, code);
+			}
+			codes[row] = code;
+			return true;
+		}
+		void grow(int capacity) {
+			int[] grown = new int[capacity];
+			System.arraycopy(codes, 0, grown, 0, codes.length);
+			codes = grown;
+		}
+	}
+
+	private static final class ObjectColumn extends Column {
+		private Object[] values = new Object[0];
+		Object getValue(int row) {
+			return values[row];
+		}
+		boolean setValue(int row, Object value) {
+			values[row] = value;
+			return true;
+		}
+		void clear(int row) {
+			super.clear(row);
+			values[row] = null;
+		}
+		void grow(int capacity) {
+			Object[] grown = new Object[capacity];
+			System.arraycopy(values, 0, grown, 0, values.length);
+			values = grown;
+		}
+	}
+
+	/**
+	 * Compares the heap used by the same features in a SingleFeatureCollection
+	 * and in a ColumnFeatureCollection.
+	 */
+	public static void main(String[] args) {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		String[] classes = {"crater", "dune", "channel", "ridge"};
+		Field id = new Field("id", Integer.class);
+		Field diameter = new Field("diameter", Double.class);
+		Field depth = new Field("depth", Double.class);
+		Field type = new Field("type", String.class);
+		for (int pass = 0; pass < 2; pass++) {
+			long before = usedHeap();
+			SingleFeatureCollection fc = pass == 0 ? new SingleFeatureCollection() : new ColumnFeatureCollection();
+			long start = System.currentTimeMillis();
+			List<Feature> batch = new ArrayList<Feature>();
+			for (int i = 0; i < rows; i++) {
+				Feature f = new Feature();
+				f.attributes.put(id, i);
+				f.attributes.put(diameter, i * 0.25);
+				f.attributes.put(depth, i * 0.01);
+				f.attributes.put(type, classes[i % classes.length]);
+				batch.add(f);
+				if (batch.size() == 4096) {
+					fc.addFeatures(batch);
+					batch.clear();
+				}
+			}
+			fc.addFeatures(batch);
+			long elapsed = System.currentTimeMillis() - start;
+			double sum = 0;
+			for (int i = 0; i < fc.getFeatureCount(); i++) {
+				sum += ((Double)fc.getFeature(i).getAttribute(diameter)).doubleValue();
+			}
+			long used = usedHeap() - before;
+			System.out.println(fc.getClass().getSimpleName() + ": " + rows + " rows in " + elapsed + " ms, " +
+				(used / rows) + " bytes/row (checksum " + sum + ")");
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -28,12 +28,6 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-
-import org.apache.commons.collections.ReferenceMap;
 
 import edu.asu.jmars.Main;
 import edu.asu.jmars.layer.ProjectionEvent;
@@ -46,6 +40,12 @@ import edu.asu.jmars.util.Util;
  * Defines an immutable path of vertices and some convenience methods to convert
  * between the world and spatial east/west coordinate systems. Several common
  * computations are also provided.
+ * 
+ * The vertices are stored as a packed array of x,y values. The GeneralPath,
+ * bounds, center, area, and the conversions to each other coordinate system
+ * are computed the first time they are requested and then kept for the life
+ * of the path. Conversions depend on the current projection, so they are
+ * dropped when the projection changes.
  */
 public final class FPath {
 	// NOTE! To disable caching, just set this to false
@@ -63,29 +63,62 @@ public final class FPath {
 	public static final int WORLD = 0;
 	public static final int SPATIAL_EAST = 1;
 	public static final int SPATIAL_WEST = 2;
-	private static Map cache;
-
+	
+	/** Incremented on each projection change to invalidate cached conversions */
+	private static volatile int projectionEpoch = 0;
+	
 	static {
 		if (caching) {
-			cache = newCache();
 			Main.addProjectionListener(new ProjectionListener () {
 				public void projectionChanged (ProjectionEvent e) {
-					cache = newCache();
+					projectionEpoch++;
 				}
 			});
 		}
 	}
-
-	static Map newCache () {
-		return Collections.synchronizedMap(new ReferenceMap (ReferenceMap.WEAK, ReferenceMap.SOFT));
+	
+	/**
+	 * Returns a counter that changes each time the projection changes, so
+	 * callers caching values derived from converted paths can tell when to
+	 * discard them.
+	 */
+	public static int getProjectionEpoch() {
+		return projectionEpoch;
 	}
 	
+	/** Size of the square given to single point paths by intersects() */
+	private static final double POINT_SIZE = 0.001;
+	
 	private static final NumberFormat nf = new DecimalFormat("0.###");
 
 	private final int coordSystem;
-	private final Point2D[] vertices;
-	private final GeneralPath gp;
+	/** Vertices packed as x0,y0,x1,y1,... */
+	private final double[] coords;
 	private final boolean closed;
+	private final int windingRule;
+	
+	private volatile GeneralPath gp;
+	private volatile Rectangle2D bounds;
+	private volatile Point2D center;
+	private volatile double area = Double.NaN;
+	private volatile Conversions conversions;
+	
+	/** The converted forms of this path valid for one projection epoch */
+	private static final class Conversions {
+		final int epoch;
+		final FPath[] paths = new FPath[3];
+		Conversions(int epoch) {
+			this.epoch = epoch;
+		}
+	}
+
+	/** Creates a path that takes ownership of the given packed coordinates */
+	private FPath (double[] coords, int coordSystem, boolean closed) {
+		this.coords = coords;
+		this.coordSystem = coordSystem;
+		this.closed = closed;
+		this.windingRule = GeneralPath.WIND_NON_ZERO;
+	}
 
 	/**
 	 * Creates a new Path from the given point array, where each point
@@ -96,35 +129,18 @@ public final class FPath {
 	 * @param closed If true, this represents a closed polygon
 	 */
 	public FPath (float[] coords, boolean latFirst, int coordSystem, boolean closed) {
-		this.vertices = coordsToVertices(coords, latFirst);
-		this.gp = verticesToGp(vertices, closed);
-		this.closed = closed;
-		this.coordSystem = coordSystem;
+		this(floatsToCoords(coords, latFirst), coordSystem, closed);
 	}
 
 	/**
 	 * Creates a new FPath with the given vertices.
 	 * @param vertices These Point2D values are copied into the internal
-	 * immutable Point2D class.
+	 * coordinate array.
 	 * @param coordSystem One of WORLD, SPATIAL_EAST, or SPATIAL_WEST
 	 * @param closed If true, this represents a closed polygon
 	 */
 	public FPath (Point2D[] vertices, int coordSystem, boolean closed) {
-		this.vertices = createVertices(vertices);
-		this.gp = verticesToGp (vertices, closed);
-		this.coordSystem = coordSystem;
-		this.closed = closed;
-	}
-
-	// TODO: copy 'points' into new instances of Point2D subclass that is itself
-	// immutable, do the same thing with GeneralPath (or pull the class type up
-	// to Polygon or some similar immutable) and _stop the cloning_ in
-	// getVertices() and getGeneralPath().
-	private static final Point2D[] createVertices (Point2D[] vertices) {
-		Point2D[] copy = new Point2D[vertices.length];
-		for (int i = 0; i < copy.length; i++)
-			copy[i] = (Point2D)vertices[i].clone();
-		return copy;
+		this(verticesToCoords(vertices), coordSystem, closed);
 	}
 
 	/**
@@ -133,17 +149,18 @@ public final class FPath {
 	 * resulting FPath will be empty.
 	 */
 	public FPath (GeneralPath path, int coordSystem) {
-		Boolean[] closed = new Boolean[1];
-		Point2D[] points = gpToVertices(path, closed);
+		boolean[] closed = new boolean[1];
+		double[] points = gpToCoords(path, closed);
 		if (points == null) {
-			this.vertices = new Point2D[0];
+			this.coords = new double[0];
 			this.gp = new GeneralPath();
 			this.closed = false;
 		} else {
 			this.gp = (GeneralPath)path.clone();
-			this.vertices = points;
-			this.closed = closed[0].booleanValue();
+			this.coords = points;
+			this.closed = closed[0];
 		}
+		this.windingRule = path.getWindingRule();
 		this.coordSystem = coordSystem;
 	}
 
@@ -162,13 +179,18 @@ public final class FPath {
 		return closed;
 	}
 
+	/** Returns the number of vertices in this path */
+	public int getVertexCount () {
+		return coords.length / 2;
+	}
+
 	/**
 	 * Returns a copy of the vertices of this path.
 	 */
 	public Point2D[] getVertices () {
-		Point2D[] result = new Point2D[vertices.length];
-		for (int i = 0; i < vertices.length; i++)
-			result[i] = (Point2D)vertices[i].clone();
+		Point2D[] result = new Point2D[coords.length / 2];
+		for (int i = 0; i < result.length; i++)
+			result[i] = new Point2D.Double(coords[2*i], coords[2*i+1]);
 		return result;
 	}
 
@@ -176,7 +198,15 @@ public final class FPath {
 	 * Returns a copy of the GeneralPath for this path.
 	 */
 	public GeneralPath getGeneralPath () {
-		return (GeneralPath) gp.clone();
+		return (GeneralPath) gp().clone();
+	}
+
+	private GeneralPath gp () {
+		GeneralPath path = gp;
+		if (path == null) {
+			gp = path = coordsToGp(coords, closed, windingRule);
+		}
+		return path;
 	}
 
 	/**
@@ -185,23 +215,46 @@ public final class FPath {
 	 * lon lat lon lat ... (if latFirst is false)
 	 */
 	public float[] getCoords(boolean latFirst) {
-		float[] latLons = new float[vertices.length * 2];
+		float[] latLons = new float[coords.length];
 
 		int x = (latFirst ? 1 : 0);
 		int y = (latFirst ? 0 : 1);
 
-		for (int i = 0; i < vertices.length*2; i += 2) {
-			latLons[i + x] = (float) vertices[i/2].getX();
-			latLons[i + y] = (float) vertices[i/2].getY();
+		for (int i = 0; i < coords.length; i += 2) {
+			latLons[i + x] = (float) coords[i];
+			latLons[i + y] = (float) coords[i+1];
 		}
 
 		return latLons;
 	}
 	
+	/**
+	 * Returns the bounding box of the vertices, in the coordinate system of
+	 * this path. The bounds are computed once, and a copy is returned.
+	 */
+	public Rectangle2D getBounds () {
+		Rectangle2D b = bounds;
+		if (b == null) {
+			if (coords.length == 0) {
+				b = new Rectangle2D.Double();
+			} else {
+				double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+				double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < coords.length; i += 2) {
+					minX = Math.min(minX, coords[i]);
+					maxX = Math.max(maxX, coords[i]);
+					minY = Math.min(minY, coords[i+1]);
+					maxY = Math.max(maxY, coords[i+1]);
+				}
+				b = new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+			}
+			bounds = b;
+		}
+		return (Rectangle2D)b.clone();
+	}
+	
 	/**
 	 * Returns the current type of the Feature's path attribute.
-	 * The GeneralPath is examined each time this method is called, so the
-	 * result should be retained externally if it is needed in many places.
 	 * @return One of the public field values:
 	 * <ul>
 	 * <li>TYPE_NONE
@@ -211,9 +264,10 @@ public final class FPath {
 	 * </ul>
 	 */
 	public int getType () {
-		if (vertices.length < 1)
+		int count = coords.length / 2;
+		if (count < 1)
 			return TYPE_NONE;
-		else if (vertices.length < 2)
+		else if (count < 2)
 			return TYPE_POINT;
 		else if (closed)
 			return TYPE_POLYGON;
@@ -226,31 +280,48 @@ public final class FPath {
 	 * for world paths.
 	 */
 	public Point2D getCenter () {
+		Point2D c = center;
+		if (c == null) {
+			c = computeCenter();
+			if (c == null)
+				return null;
+			center = c;
+		}
+		return (Point2D)c.clone();
+	}
+	
+	private Point2D computeCenter () {
+		int count = coords.length / 2;
 		switch (coordSystem) {
 		case SPATIAL_EAST:
 		case SPATIAL_WEST:
 			// vector average
 			double lon, lat;
 			HVector sum = new HVector (0,0,0);
-			for (int i = 0; i < vertices.length; i++) {
-				lon = coordSystem==SPATIAL_EAST ? -vertices[i].getX() : vertices[i].getX();
-				lat = vertices[i].getY();
+			for (int i = 0; i < count; i++) {
+				lon = coordSystem==SPATIAL_EAST ? -coords[2*i] : coords[2*i];
+				lat = coords[2*i+1];
 				sum = sum.add(new HVector (lon, lat));
 			}
 			lon = coordSystem==SPATIAL_EAST ? FeatureUtil.lonNorm(-sum.lon()) : sum.lon();
 			lat = sum.lat();
 			return new Point2D.Double (lon, lat);
 		case WORLD:
-			// positional average
-			Point2D[] v = Util.normalize360(vertices);
+			// positional average, with each x taken within 180 degrees of the first
 			Point2D.Double c = new Point2D.Double();
-			for (int i = 0; i < v.length; i++) {
-				c.x += v[i].getX();
-				c.y += v[i].getY();
-			}
-			if (v.length > 1) {
-				c.x /= v.length;
-				c.y /= v.length;
+			if (count > 0) {
+				double anchor = coords[0];
+				for (int i = 0; i < count; i++) {
+					double x = coords[2*i];
+					if (Math.abs(anchor - x) > 180.0)
+						x += Math.round((anchor - x) / 360.0) * 360.0;
+					c.x += x;
+					c.y += coords[2*i+1];
+				}
+				if (count > 1) {
+					c.x /= count;
+					c.y /= count;
+				}
 			}
 			return c;
 		default:
@@ -266,7 +337,12 @@ public final class FPath {
 		switch (coordSystem) {
 		case SPATIAL_EAST:
 		case SPATIAL_WEST:
-			return closed ? Util.sphericalArea(vertices) * Util.MARS_MEAN * Util.MARS_MEAN : 0.0;
+			if (!closed)
+				return 0.0;
+			double a = area;
+			if (Double.isNaN(a))
+				area = a = Util.sphericalArea(getVertices()) * Util.MARS_MEAN * Util.MARS_MEAN;
+			return a;
 		case WORLD:
 			// TODO
 		default:
@@ -283,11 +359,11 @@ public final class FPath {
 	public boolean contains (Point2D p) {
 		switch (coordSystem) {
 		case WORLD:
-			return gp.contains(p);
+			return gp().contains(p);
 		case SPATIAL_EAST:
-			return new SPolygon(gp).contains(new HVector(-p.getX(),p.getY()));
+			return new SPolygon(gp()).contains(new HVector(-p.getX(),p.getY()));
 		case SPATIAL_WEST:
-			return new SPolygon(gp).contains(new HVector(p.getX(),p.getY()));
+			return new SPolygon(gp()).contains(new HVector(p.getX(),p.getY()));
 		default:
 			return false;
 		}
@@ -308,30 +384,57 @@ public final class FPath {
 	 */
 	public boolean intersects(Rectangle2D rect)
 	{
-		if (vertices.length < 1)
+		int count = coords.length / 2;
+		if (count < 1)
 			return false;
 		switch (coordSystem) {
 		case WORLD:
+			if (!mayIntersectWorld(rect))
+				return false;
 			Shape[] shapes;
-			if (vertices.length == 1) {
-				double x = vertices[0].getX();
-				double y = vertices[0].getY();
-				shapes = new Shape[] {Util.normalize360(new Rectangle2D.Double(x,y,0.001,0.001))};
+			if (count == 1) {
+				double x = coords[0];
+				double y = coords[1];
+				shapes = new Shape[] {Util.normalize360(new Rectangle2D.Double(x,y,POINT_SIZE,POINT_SIZE))};
 			} else if (!closed) {
-				shapes = new Line2D[vertices.length-1];
-				for (int i = 1; i < vertices.length; i++)
-					shapes[i-1] = Util.normalize360(new Line2D.Double (vertices[i-1], vertices[i]));
+				shapes = new Shape[count-1];
+				for (int i = 1; i < count; i++)
+					shapes[i-1] = Util.normalize360(new Line2D.Double (
+						coords[2*i-2], coords[2*i-1], coords[2*i], coords[2*i+1]));
 			} else {
-				shapes = new Shape[] {Util.normalize360(gp)};
+				shapes = new Shape[] {Util.normalize360(gp())};
 			}
 			return Util.intersects360(rect, shapes).length > 0;
 		case SPATIAL_WEST:
 		case SPATIAL_EAST:
-			return SPolygon.area(new SPolygon(gp), new SPolygon(rect)) > 0.0;
+			return SPolygon.area(new SPolygon(gp()), new SPolygon(rect)) > 0.0;
 		default:
 			return false;
 		}
 	}
+	
+	/**
+	 * Returns false if the cached bounds of this world path show it cannot
+	 * intersect the given rectangle, using the same modulo-360 placement of
+	 * the rectangle as {@link Util#intersects360(Rectangle2D, Shape[])}. Only
+	 * paths whose shapes {@link Util#normalize360(Shape)} leaves untouched are
+	 * rejected here; anything else returns true and gets the full test.
+	 */
+	private boolean mayIntersectWorld(Rectangle2D rect) {
+		if (bounds == null)
+			getBounds();
+		Rectangle2D b = bounds;
+		double minX = b.getMinX(), maxX = b.getMaxX();
+		if (rect.getMaxY() < b.getMinY() - POINT_SIZE || rect.getMinY() > b.getMaxY() + POINT_SIZE)
+			return false;
+		if (rect.getWidth() > 180 || b.getWidth() >= 180 || minX < 0 || minX >= 360)
+			return true;
+		double x1 = rect.getMinX() - Math.floor(rect.getMinX() / 360) * 360;
+		double x2 = x1 + (x1 < 180 ? 360 : -360);
+		double w = rect.getWidth();
+		return (x1 <= maxX + POINT_SIZE && x1 + w >= minX - POINT_SIZE) ||
+			(x2 <= maxX + POINT_SIZE && x2 + w >= minX - POINT_SIZE);
+	}
 
 	/**
 	 * Translates this path by the given delta. This just calls translate(double,double).
@@ -344,16 +447,13 @@ public final class FPath {
 	 * Translates this path by the given xy delta. The returned path is a completely new
 	 * immutable path based on this path and shifted accordingly.
 	 */
-	// TODO: methods like this already done on Polygon, maybe replace vertices and gp with
-	// a single polygon instance. In fact, FPath can _be_ a polygon instance.
 	public FPath translate (double x, double y) {
-		Point2D[] newVerts = new Point2D[vertices.length];
-		for (int i = 0; i < newVerts.length; i++) {
-			newVerts[i] = new Point2D.Double(
-				FeatureUtil.lonNorm(vertices[i].getX() + x),
-				vertices[i].getY() + y);
+		double[] shifted = new double[coords.length];
+		for (int i = 0; i < coords.length; i += 2) {
+			shifted[i] = FeatureUtil.lonNorm(coords[i] + x);
+			shifted[i+1] = coords[i+1] + y;
 		}
-		return new FPath (newVerts, coordSystem, closed);
+		return new FPath (shifted, coordSystem, closed);
 	}
 
 	/**
@@ -385,56 +485,71 @@ public final class FPath {
 	}
 
 	// This operation is inverted by the public method, getCoords()
-	private static final Point2D[] coordsToVertices (float[] coords, boolean latFirst) {
-		Point2D[] points = new Point2D[coords.length/2];
+	private static final double[] floatsToCoords (float[] values, boolean latFirst) {
+		double[] coords = new double[values.length/2*2];
 		int x = (latFirst ? 1 : 0);
 		int y = (latFirst ? 0 : 1);
-		for (int i = 0; i < coords.length/2; i++)
-			points[i] = new Point2D.Double (coords[i*2 + x], coords[i*2 + y]);
-		return points;
+		for (int i = 0; i < coords.length; i += 2) {
+			coords[i] = values[i + x];
+			coords[i+1] = values[i + y];
+		}
+		return coords;
+	}
+
+	private static final double[] verticesToCoords (Point2D[] vertices) {
+		double[] coords = new double[vertices.length * 2];
+		for (int i = 0; i < vertices.length; i++) {
+			coords[2*i] = vertices[i].getX();
+			coords[2*i+1] = vertices[i].getY();
+		}
+		return coords;
 	}
 
-	// Using array of Boolean as a second return value; ewww
 	// Didn't this type of operation bother anyone? I mean, this is proof that we
 	// don't support GeneralPath, and just sample down to it.
-	// TODO: use Polygon instead, if we can.
-	private static final Point2D[] gpToVertices (GeneralPath path, Boolean[] closed) {
-		closed[0] = Boolean.FALSE;
+	private static final double[] gpToCoords (GeneralPath path, boolean[] closed) {
+		closed[0] = false;
 		boolean error = false;
-		List points = new ArrayList();
+		double[] points = new double[16];
+		int size = 0;
+		double[] coords = new double[6];
 		for (PathIterator it=path.getPathIterator(null); !it.isDone(); it.next()) {
-			double[] coords = new double[6];
 			switch (it.currentSegment(coords)) {
 			case PathIterator.SEG_MOVETO:
-				if (points.size() == 0)
-					points.add (new Point2D.Double(coords[0], coords[1]));
-				else
+				if (size != 0)
 					error = true;
 				break;
 			case PathIterator.SEG_LINETO:
-				if (! closed[0].booleanValue())
-					points.add(new Point2D.Double(coords[0], coords[1]));
-				else
+				if (closed[0])
 					error = true;
 				break;
 			case PathIterator.SEG_CLOSE:
-				closed[0] = Boolean.TRUE;
-				break;
+				closed[0] = true;
+				continue;
 			default:
 				error = true;
 			}
 			if (error)
 				return null;
+			if (size == points.length) {
+				double[] grown = new double[size * 2];
+				System.arraycopy(points, 0, grown, 0, size);
+				points = grown;
+			}
+			points[size++] = coords[0];
+			points[size++] = coords[1];
 		}
-		return (Point2D[])points.toArray(new Point2D[0]);
+		double[] result = new double[size];
+		System.arraycopy(points, 0, result, 0, size);
+		return result;
 	}
 
-	private static final GeneralPath verticesToGp (Point2D[] points, boolean closed) {
-		GeneralPath gp = new GeneralPath ();
-		if (points.length > 0) {
-			gp.moveTo((float)points[0].getX(), (float)points[0].getY());
-			for (int i = 1; i < points.length; i++)
-				gp.lineTo((float)points[i].getX(), (float)points[i].getY());
+	private static final GeneralPath coordsToGp (double[] coords, boolean closed, int windingRule) {
+		GeneralPath gp = new GeneralPath (windingRule, Math.max(2, coords.length / 2 + 1));
+		if (coords.length > 0) {
+			gp.moveTo((float)coords[0], (float)coords[1]);
+			for (int i = 2; i < coords.length; i += 2)
+				gp.lineTo((float)coords[i], (float)coords[i+1]);
 			if (closed)
 				gp.closePath();
 		}
@@ -451,75 +566,81 @@ public final class FPath {
 	private final FPath convertTo_impl (int coordSystem) {
 		if (this.coordSystem == coordSystem)
 			return this;
-		Point2D[] rv = null; // returned vertices
+		double[] rc = null; // returned coordinates
 		if (this.coordSystem == SPATIAL_EAST && coordSystem == SPATIAL_WEST)
-			rv = toggleLonEastWest(vertices);
+			rc = toggleLonEastWest(coords);
 		else if (this.coordSystem == SPATIAL_EAST && coordSystem == WORLD)
-			rv = spatialToWorld(vertices, true);
+			rc = spatialToWorld(coords, true);
 		else if (this.coordSystem == SPATIAL_WEST && coordSystem == SPATIAL_EAST)
-			rv = toggleLonEastWest(vertices);
+			rc = toggleLonEastWest(coords);
 		else if (this.coordSystem == SPATIAL_WEST && coordSystem == WORLD)
-			rv = spatialToWorld(vertices, false);
+			rc = spatialToWorld(coords, false);
 		else if (this.coordSystem == WORLD && coordSystem == SPATIAL_EAST)
-			rv = worldToSpatial(vertices, true);
+			rc = worldToSpatial(coords, true);
 		else if (this.coordSystem == WORLD && coordSystem == SPATIAL_WEST)
-			rv = worldToSpatial(vertices, false);
-		return (rv == null ? null : new FPath (rv, coordSystem, closed));
+			rc = worldToSpatial(coords, false);
+		return (rc == null ? null : new FPath (rc, coordSystem, closed));
 	}
 
 	/**
-	 * Allows caching each FPath to the most-recently-requested coordinate system. For
-	 * example if spatial east is repeatedly requested from spatial-west, the
-	 * cache does a good job, but if two different coordinate systems are intermittently
-	 * requested of the same FPath, the cache will actually degrade
-	 * performance. In the case we're worrying about, such alternating coordinate system
-	 * requests don't happen, and boy is this approach a small amount of code.
+	 * Keeps each conversion of this path on the path itself, so repeated
+	 * requests for any coordinate system return the same instance until the
+	 * projection changes.
 	 */
 	private final FPath convertTo_cache (int coordSystem) {
-		FPath to = (FPath)cache.get(this);
-		if (to == null || to.getCoordSystem() != coordSystem)
-			cache.put(this, to=convertTo_impl(coordSystem));
+		if (coordSystem == this.coordSystem)
+			return this;
+		if (coordSystem < 0 || coordSystem > 2)
+			return convertTo_impl(coordSystem);
+		int epoch = projectionEpoch;
+		Conversions c = conversions;
+		if (c == null || c.epoch != epoch)
+			conversions = c = new Conversions(epoch);
+		FPath to = c.paths[coordSystem];
+		if (to == null)
+			c.paths[coordSystem] = to = convertTo_impl(coordSystem);
 		return to;
 	}
 
-	private final Point2D[] toggleLonEastWest (Point2D[] points) {
-		Point2D[] newPoints = new Point2D[points.length];
-		for (int i = 0; i < points.length; i++)
-			newPoints[i] = new Point2D.Double (FeatureUtil.lonNorm(-points[i].getX()), points[i].getY());
-		return newPoints;
+	private static final double[] toggleLonEastWest (double[] coords) {
+		double[] result = new double[coords.length];
+		for (int i = 0; i < coords.length; i += 2) {
+			result[i] = FeatureUtil.lonNorm(-coords[i]);
+			result[i+1] = coords[i+1];
+		}
+		return result;
 	}
 
 	/** converts this path to world coordinates, where x values are in the range [0,540) and y values are in the range [-90,90] */
-	private final Point2D[] spatialToWorld(Point2D[] points, boolean east) {
-		Point2D[] newPoints = new Point2D[points.length];
+	private static final double[] spatialToWorld(double[] coords, boolean east) {
 		if (east)
-			points = toggleLonEastWest (points);
+			coords = toggleLonEastWest (coords);
+		double[] result = new double[coords.length];
+		Main.PO.convSpatialToWorld(coords, 0, result, 0, coords.length / 2);
 		double lastX = 0;
 		double minX = Double.POSITIVE_INFINITY;
-		for (int i = 0; i < points.length; i++) {
-			newPoints[i] = Main.PO.convSpatialToWorld(points[i]);
-			double x = newPoints[i].getX();
+		for (int i = 0; i < result.length; i += 2) {
+			double x = result[i];
 			if (i > 0 && Math.abs(lastX - x) > 180) {
 				x += Math.signum(lastX - x) * 360;
 				minX = Math.min(minX, x);
-				newPoints[i].setLocation(x, newPoints[i].getY());
 			}
+			result[i] = x;
 			lastX = x;
 		}
 		if (minX < 0) {
 			minX = (int)Math.ceil(-minX/360)*360;
-			for (Point2D p: newPoints) {
-				p.setLocation(p.getX() + minX, p.getY());
+			for (int i = 0; i < result.length; i += 2) {
+				result[i] += minX;
 			}
 		}
-		return newPoints;
+		return result;
 	}
 
-	private final Point2D[] worldToSpatial(Point2D[] points, boolean east) {
-		Point2D[] newPoints = new Point2D[points.length];
-		for (int i = 0; i < points.length; i++)
-			newPoints[i] = Main.PO.convWorldToSpatial(points[i]);
-		return east ? toggleLonEastWest (newPoints) : newPoints;
+	private static final double[] worldToSpatial(double[] coords, boolean east) {
+		double[] result = new double[coords.length];
+		Main.PO.convWorldToSpatial(coords, 0, result, 0, coords.length / 2);
+		return east ? toggleLonEastWest (result) : result;
 	}
 	
 	public String toString(){
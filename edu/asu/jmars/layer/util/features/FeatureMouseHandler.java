@@ -143,10 +143,12 @@ public class FeatureMouseHandler extends MouseInputAdapter {
 	
 	
 	// If running in JMARS, this will cause paintComponent
-	// to be called.  It does nothing otherwise.
+	// to be called.  It does nothing otherwise.  Only the
+	// feedback drawn over the view changes, so the view's
+	// buffers are reused.
 	private void repaint(){
 		if (lview!=null){
-			lview.repaint();
+			lview.repaintOverlay();
 		}
 	}
 
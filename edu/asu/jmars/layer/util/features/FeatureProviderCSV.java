@@ -21,22 +21,40 @@
 package edu.asu.jmars.layer.util.features;
 
 import java.awt.geom.Point2D;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.ParsePosition;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.csvreader.CsvReader;
 import com.csvreader.CsvWriter;
 
+import edu.asu.jmars.layer.map2.MapThreadFactory;
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.DebugLog;
 import edu.asu.jmars.util.Util;
 
 public class FeatureProviderCSV implements FeatureProvider {
+	private static final DebugLog log = DebugLog.instance();
+	
 	public String getDescription() {
 		return "CSV points file";
 	}
@@ -75,23 +93,111 @@ public class FeatureProviderCSV implements FeatureProvider {
 	/** the names under which longitude direction can be found */
 	private static final String[] lonDirLabels = {"lon_dir", "longitude_direction", "positive_longitude_direction"};
 	
-	private enum Type {
+	enum Type {
 		INT(Integer.class), DBL(Double.class), STR(String.class);
 		public final Class<?> c;
 		Type(Class<?> c) {
 			this.c = c;
 		}
-		public Object fromString(String s) {
-			switch (this) {
-			case INT: return new Scanner(s).nextInt();
-			case DBL: return new Scanner(s).nextDouble();
-			case STR: return s;
-			default: return null;
+		
+		/**
+		 * Returns the narrowest type that can hold the given trimmed cell, as
+		 * Scanner's hasNextInt() and hasNextDouble() decide. Plain numbers are
+		 * recognized directly, so only unusual cells pay for a Scanner.
+		 */
+		public static Type classify(String s) {
+			if (s.length() == 0) {
+				return STR;
+			}
+			if (plainNumbers && plainLength(s) == s.length()) {
+				int whole = s.length() - sign(s);
+				if (digits(s, sign(s)) != whole) {
+					return DBL;
+				} else if (whole < 10) {
+					return INT;
+				}
+			}
+			Scanner scan = new Scanner(s);
+			if (scan.hasNextInt()) {
+				return INT;
+			} else if (scan.hasNextDouble()) {
+				return DBL;
+			} else {
+				return STR;
+			}
+		}
+		
+		/** Returns the value of a cell classified as INT */
+		public static int toInt(String s) {
+			if (plainNumbers && sign(s) + digits(s, sign(s)) == s.length()) {
+				return Integer.parseInt(s);
+			}
+			return new Scanner(s).nextInt();
+		}
+		
+		/** Returns the value of a cell classified as INT or DBL */
+		public static double toDouble(String s) {
+			if (plainNumbers && plainLength(s) == s.length()) {
+				return Double.parseDouble(s);
+			}
+			return new Scanner(s).nextDouble();
+		}
+		
+		/** True if the default locale writes numbers the way plainLength() reads them */
+		private static final boolean plainNumbers;
+		static {
+			DecimalFormatSymbols sym = new DecimalFormatSymbols();
+			plainNumbers = sym.getDecimalSeparator() == '.' && sym.getMinusSign() == '-' && sym.getZeroDigit() == '0';
+		}
+		
+		/**
+		 * Returns the length of the plain number at the start of s: a sign,
+		 * digits, a fraction and an exponent, each but the digits optional; or
+		 * -1 if s doesn't start with one.
+		 */
+		private static int plainLength(String s) {
+			int i = sign(s);
+			int whole = digits(s, i);
+			i += whole;
+			int frac = 0;
+			if (i < s.length() && s.charAt(i) == '.') {
+				frac = digits(s, i+1);
+				i += 1 + frac;
+			}
+			if (whole + frac == 0) {
+				return -1;
+			}
+			if (i < s.length() && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+				int j = sign(s, i+1);
+				int exp = digits(s, j);
+				if (exp > 0) {
+					i = j + exp;
+				}
+			}
+			return i;
+		}
+		
+		private static int sign(String s) {
+			return sign(s, 0);
+		}
+		
+		/** Returns the index after the sign at i, if there is one */
+		private static int sign(String s, int i) {
+			return i < s.length() && (s.charAt(i) == '-' || s.charAt(i) == '+') ? i+1 : i;
+		}
+		
+		/** Returns the number of digits starting at i */
+		private static int digits(String s, int i) {
+			int start = i;
+			while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				i ++;
 			}
+			return i - start;
 		}
 	}
 	
 	public FeatureCollection load(String fileName) {
+		RecordSplitter splitter = null;
 		CsvReader csv = null;
 		try {
 			int lonCol = -1;
@@ -100,12 +206,16 @@ public class FeatureProviderCSV implements FeatureProvider {
 			int[] otherFields = null;
 			int otherCount = 0;
 			
+			// the header is read from the start of the file the splitter holds
+			// before its first chunk, so the file is only read once
+			splitter = new RecordSplitter(new FileInputStream(fileName));
+			
 			// try various delimiters to find the lon and lat columns
 			char delim = '\0';
 			for (char d: new char[]{',','\t','|'}) {
 				lonCol = latCol = -1;
 				otherCount = 0;
-				csv = new CsvReader(new FileReader(fileName), d);
+				csv = new CsvReader(splitter.peek(), d, Charset.defaultCharset());
 				csv.setUseComments(true);
 				csv.readHeaders();
 				names = csv.getHeaders();
@@ -139,15 +249,12 @@ public class FeatureProviderCSV implements FeatureProvider {
 				throw new IllegalArgumentException("Could not find geometry columns");
 			}
 			
-			// parse the header comments and types in each cell
-			Type[] types = new Type[otherCount];
-			Arrays.fill(types, Type.INT);
-			csv = new CsvReader(new FileReader(fileName), delim);
+			// parse the header comments
+			csv = new CsvReader(splitter.peek(), delim, Charset.defaultCharset());
 			double polarRadius = 1;
 			double equatRadius = 1;
 			boolean west = false;
-			while (true) {
-				csv.readHeaders();
+			while (csv.readHeaders()) {
 				int cols = csv.getHeaderCount();
 				String row = csv.getRawRecord().trim().toLowerCase().replaceAll("^[ \\t#]+", "");
 				Double dvalue = null;
@@ -180,81 +287,683 @@ public class FeatureProviderCSV implements FeatureProvider {
 				scalar = Math.pow(polarRadius / equatRadius, 2);
 			}
 			
+			csv.close();
+			
 			// read data records, ignoring all comments
-			csv.setUseComments(true);
-			int rows = 0;
-			while (csv.readRecord()) {
-				if (names.length != csv.getColumnCount()) {
-					throw new IllegalArgumentException("CSV header count does not match row " + csv.getCurrentRecord());
+			splitter.setDelimiter(delim);
+			Layout layout = new Layout(fileName, delim, names,
+				resize(otherFields, otherCount), lonCol, latCol, west, scalar);
+			ColumnFeatureCollection fc = new ColumnFeatureCollection();
+			importRecords(layout, splitter, fc);
+			return fc;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IllegalArgumentException(e.getMessage());
+		} finally {
+			if (csv != null) {
+				csv.close();
+			}
+			if (splitter != null) {
+				try {
+					splitter.close();
+				} catch (IOException e) {
+					log.println(e);
 				}
-				for (int i = 0; i < otherCount; i++) {
-					Type lastType = types[i];
-					if (lastType.compareTo(Type.STR) < 0) {
-						String cell = csv.get(otherFields[i]).trim();
-						Scanner s = new Scanner(cell);
-						Type type;
-						if (s.hasNextInt()) {
-							type = Type.INT;
-						} else if (s.hasNextDouble()) {
-							type = Type.DBL;
-						} else {
-							type = Type.STR;
+			}
+		}
+	}
+	
+	/** Number of threads parsing the chunks of a CSV file */
+	private static final int IMPORT_THREADS = Math.max(1,
+		Config.get("csv.import.threads", Runtime.getRuntime().availableProcessors()));
+	/** Approximate size in bytes of the chunks the data records are split into */
+	private static final int CHUNK_BYTES = Math.max(1<<16, Config.get("csv.import.chunk", 4<<20));
+	/** Number of records sampled to choose the initial column types */
+	private static final int SAMPLE_RECORDS = 10000;
+	
+	private static ExecutorService pool;
+	
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(IMPORT_THREADS, new MapThreadFactory("CSV Import"));
+		}
+		return pool;
+	}
+	
+	/** The columns of a CSV file found while reading its header */
+	private static final class Layout {
+		final String fileName;
+		final char delim;
+		final String[] names;
+		final int columns;
+		final int[] otherFields;
+		final int lonCol;
+		final int latCol;
+		final boolean west;
+		final double scalar;
+		Layout(String fileName, char delim, String[] names, int[] otherFields,
+				int lonCol, int latCol, boolean west, double scalar) {
+			this.fileName = fileName;
+			this.delim = delim;
+			this.names = names;
+			this.columns = names.length;
+			this.otherFields = otherFields;
+			this.lonCol = lonCol;
+			this.latCol = latCol;
+			this.west = west;
+			this.scalar = scalar;
+		}
+	}
+	
+	/**
+	 * Reads the data records the splitter returns into <code>fc</code>. The
+	 * records are split into chunks that are parsed on the import pool, with
+	 * the column types sampled from the first records, and gathered in file
+	 * order while the next chunks are read. When a chunk needs a wider type
+	 * than a column has so far, the records gathered before it are widened in
+	 * place, so every record is parsed once except in the chunks that were
+	 * already parsed with the narrower type.
+	 */
+	private static void importRecords(Layout layout, RecordSplitter splitter, ColumnFeatureCollection fc) throws Exception {
+		Chunk all = null;
+		int[] recover = null;
+		List<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+		try {
+			while (true) {
+				byte[] data = splitter.next();
+				if (all == null) {
+					all = new Chunk(sampleTypes(layout, data), 1024);
+					recover = new int[all.types.length];
+				}
+				if (data != null) {
+					pending.add(getPool().submit(new ChunkParser(layout, all.types,
+						data, splitter.line(), splitter.afterCR())));
+				}
+				// append finished chunks in order, keeping a few in flight until
+				// the end of the file
+				while (pending.size() > (data == null ? 0 : 2*IMPORT_THREADS)) {
+					Chunk chunk = take(pending);
+					if (chunk.badLine >= 0) {
+						throw new IllegalArgumentException("CSV header count does not match the record on line " + chunk.badLine);
+					}
+					append(all, chunk, recover);
+				}
+				if (data == null) {
+					break;
+				}
+			}
+		} finally {
+			for (Future<Chunk> f: pending) {
+				f.cancel(true);
+			}
+		}
+		recoverText(layout, all, recover);
+		
+		Field[] fields = new Field[all.types.length + 1];
+		for (int i = 0; i < all.types.length; i++) {
+			fields[i] = new Field(layout.names[layout.otherFields[i]], all.types[i].c);
+			fc.addField(fields[i]);
+		}
+		fields[all.types.length] = Field.FIELD_PATH;
+		Object[] values = resize(all.values, fields.length);
+		values[all.types.length] = all.paths;
+		fc.addFeatures(fields, values, all.count);
+	}
+	
+	/**
+	 * Appends the records of the chunk to <code>all</code>, first widening
+	 * the columns of whichever has the narrower type. Numbers don't keep the
+	 * text they were read from, so a chunk of numbers in a column that is now
+	 * strings is parsed again, and the first row of <code>all</code> whose
+	 * text is still needed is kept in <code>recover</code>.
+	 */
+	private static void append(Chunk all, Chunk chunk, int[] recover) throws IOException {
+		boolean reparse = false;
+		for (int i = 0; i < all.types.length; i++) {
+			int cmp = chunk.types[i].compareTo(all.types[i]);
+			if (cmp > 0) {
+				if (chunk.types[i] == Type.STR) {
+					recover[i] = all.count;
+				}
+				all.widen(i, chunk.types[i]);
+			} else if (cmp < 0) {
+				if (all.types[i] == Type.STR) {
+					reparse = true;
+				} else {
+					chunk.widen(i, all.types[i]);
+				}
+			}
+		}
+		if (reparse) {
+			chunk = chunk.source.call(all.types);
+		}
+		all.append(chunk);
+	}
+	
+	/**
+	 * Reads the cells of the columns widened to strings back from the file,
+	 * for the rows whose numbers were gathered before the widening. This is
+	 * the only case that reads the file a second time, and it stops after the
+	 * last such row.
+	 */
+	private static void recoverText(Layout layout, Chunk all, int[] recover) throws IOException {
+		int last = 0;
+		for (int rows: recover) {
+			last = Math.max(last, rows);
+		}
+		if (last == 0) {
+			return;
+		}
+		log.println("Reading back the text of " + last + " rows of " + layout.fileName + " for columns widened to strings");
+		RecordSplitter splitter = new RecordSplitter(new FileInputStream(layout.fileName));
+		try {
+			splitter.setDelimiter(layout.delim);
+			int row = 0;
+			byte[] data;
+			while (row < last && null != (data = splitter.next())) {
+				CsvReader csv = new CsvReader(new ByteArrayInputStream(data), layout.delim, Charset.defaultCharset());
+				try {
+					csv.setUseComments(true);
+					while (row < last && csv.readRecord()) {
+						for (int i = 0; i < recover.length; i++) {
+							if (row < recover[i]) {
+								((String[])all.values[i])[row] = all.intern(csv.get(layout.otherFields[i]).trim());
+							}
 						}
-						if (lastType.compareTo(type) < 0) {
+						row ++;
+					}
+				} finally {
+					csv.close();
+				}
+			}
+		} finally {
+			splitter.close();
+		}
+	}
+	
+	// Copies of an array with the given length, truncated or padded with
+	// zeros or nulls, since the build targets Java 1.5
+	
+	private static int[] resize(int[] a, int size) {
+		int[] out = new int[size];
+		System.arraycopy(a, 0, out, 0, Math.min(a.length, size));
+		return out;
+	}
+	
+	private static double[] resize(double[] a, int size) {
+		double[] out = new double[size];
+		System.arraycopy(a, 0, out, 0, Math.min(a.length, size));
+		return out;
+	}
+	
+	private static byte[] resize(byte[] a, int size) {
+		byte[] out = new byte[size];
+		System.arraycopy(a, 0, out, 0, Math.min(a.length, size));
+		return out;
+	}
+	
+	private static String[] resize(String[] a, int size) {
+		String[] out = new String[size];
+		System.arraycopy(a, 0, out, 0, Math.min(a.length, size));
+		return out;
+	}
+	
+	private static FPath[] resize(FPath[] a, int size) {
+		FPath[] out = new FPath[size];
+		System.arraycopy(a, 0, out, 0, Math.min(a.length, size));
+		return out;
+	}
+	
+	private static Object[] resize(Object[] a, int size) {
+		Object[] out = new Object[size];
+		System.arraycopy(a, 0, out, 0, Math.min(a.length, size));
+		return out;
+	}
+	
+	/** Waits for the oldest chunk and returns it, rethrowing any failure parsing it */
+	private static Chunk take(List<Future<Chunk>> pending) throws Exception {
+		try {
+			return pending.remove(0).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the widest type of each column in the first records of
+	 * <code>data</code>, which may be null when the file has no records.
+	 */
+	private static Type[] sampleTypes(Layout layout, byte[] data) throws IOException {
+		Type[] types = new Type[layout.otherFields.length];
+		Arrays.fill(types, Type.INT);
+		if (data == null) {
+			return types;
+		}
+		CsvReader csv = new CsvReader(new ByteArrayInputStream(data), layout.delim, Charset.defaultCharset());
+		try {
+			csv.setUseComments(true);
+			for (int row = 0; row < SAMPLE_RECORDS && csv.readRecord(); row++) {
+				if (csv.getColumnCount() != layout.columns) {
+					continue;
+				}
+				for (int i = 0; i < types.length; i++) {
+					if (types[i] != Type.STR) {
+						Type type = Type.classify(csv.get(layout.otherFields[i]).trim());
+						if (types[i].compareTo(type) < 0) {
 							types[i] = type;
 						}
 					}
 				}
-				rows ++;
 			}
+		} finally {
 			csv.close();
-			
-			// create the fields
-			FeatureCollection fc = new SingleFeatureCollection();
-			for (int i = 0; i < otherCount; i++) {
-				fc.addField(new Field(names[otherFields[i]], types[i].c));
+		}
+		return types;
+	}
+	
+	/** Parsed records stored by column: those of one chunk, or all of them so far */
+	private static final class Chunk {
+		/** The type of each non-geometry column */
+		final Type[] types;
+		/** The values of each non-geometry column: int[], double[] or String[] */
+		final Object[] values;
+		FPath[] paths;
+		int count = 0;
+		/** Line of the first record with the wrong number of columns, or -1 */
+		int badLine = -1;
+		/** The wider types needed by the records of this chunk, or null if the given types held them all */
+		Type[] widened;
+		/** The parser of this chunk, to parse it again with wider types */
+		ChunkParser source;
+		/** The distinct strings appended so far */
+		private Map<String,String> strings;
+		Chunk(Type[] types, int capacity) {
+			this.types = types.clone();
+			values = new Object[types.length];
+			for (int i = 0; i < types.length; i++) {
+				switch (types[i]) {
+				case INT: values[i] = new int[capacity]; break;
+				case DBL: values[i] = new double[capacity]; break;
+				default: values[i] = new String[capacity]; break;
+				}
 			}
-			List<Field> fields = fc.getSchema();
-			
-			List<Feature> features = new ArrayList<Feature>();
-			
-			csv = new CsvReader(new FileReader(fileName), delim);
-			csv.setUseComments(true);
-			csv.readHeaders();
-			while (csv.readRecord()) {
-				Feature f = new Feature();
-				for (int i = 0; i < otherCount; i++) {
-					String cell = csv.get(otherFields[i]).trim();
-					Object o = types[i].fromString(cell);
-					f.setAttribute(fields.get(i), o);
-				}
-				float[] coords = {
-					(float)parseLon(csv.get(lonCol), west),
-					(float)parseLat(csv.get(latCol), true, scalar)
-				};
-				f.setPath(new FPath(coords, false, FPath.SPATIAL_EAST, false));
-				features.add(f);
-			}
-			fc.addFeatures(features);
-			return fc;
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException(e.getMessage());
-		} finally {
-			if (csv != null) {
+			paths = new FPath[capacity];
+		}
+		void grow(int size) {
+			for (int i = 0; i < values.length; i++) {
+				Object v = values[i];
+				if (v instanceof int[]) {
+					values[i] = resize((int[])v, size);
+				} else if (v instanceof double[]) {
+					values[i] = resize((double[])v, size);
+				} else {
+					values[i] = resize((String[])v, size);
+				}
+			}
+			paths = resize(paths, size);
+		}
+		/**
+		 * Converts column i to a wider type. Integers are converted to
+		 * doubles, but numbers converted to strings are left null, since
+		 * only the file has their text.
+		 */
+		void widen(int i, Type to) {
+			if (to == Type.DBL) {
+				int[] from = (int[])values[i];
+				double[] wide = new double[paths.length];
+				for (int row = 0; row < count; row++) {
+					wide[row] = from[row];
+				}
+				values[i] = wide;
+			} else {
+				values[i] = new String[paths.length];
+			}
+			types[i] = to;
+		}
+		/** Appends the records of a chunk with the same types */
+		void append(Chunk chunk) {
+			int size = count + chunk.count;
+			if (size > paths.length) {
+				grow(Math.max(size, paths.length + (paths.length >> 1)));
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (types[i] == Type.STR) {
+					String[] from = (String[])chunk.values[i];
+					String[] to = (String[])values[i];
+					for (int row = 0; row < chunk.count; row++) {
+						to[count + row] = intern(from[row]);
+					}
+				} else {
+					System.arraycopy(chunk.values[i], 0, values[i], count, chunk.count);
+				}
+			}
+			System.arraycopy(chunk.paths, 0, paths, count, chunk.count);
+			count = size;
+		}
+		/** Returns the first equal string appended, so repeated cells are kept once */
+		String intern(String s) {
+			if (strings == null) {
+				strings = new HashMap<String,String>();
+			}
+			String first = strings.get(s);
+			if (first == null) {
+				strings.put(s, s);
+				first = s;
+			}
+			return first;
+		}
+	}
+	
+	/**
+	 * Parses one chunk of records into typed columns and point paths. The
+	 * column counts are checked, and when cells don't fit their column's type
+	 * the chunk is parsed again with the types they need.
+	 */
+	private static final class ChunkParser implements Callable<Chunk> {
+		private final Layout layout;
+		private final Type[] types;
+		private final byte[] data;
+		/** The line the chunk starts on, and whether the byte before it is a CR */
+		private final int line;
+		private final boolean afterCR;
+		ChunkParser(Layout layout, Type[] types, byte[] data, int line, boolean afterCR) {
+			this.layout = layout;
+			this.types = types.clone();
+			this.data = data;
+			this.line = line;
+			this.afterCR = afterCR;
+		}
+		public Chunk call() throws IOException {
+			return call(types);
+		}
+		/** Parses the chunk with the given types, or wider ones if its cells need them */
+		Chunk call(Type[] types) throws IOException {
+			Chunk chunk = parse(types);
+			if (chunk.widened != null && chunk.badLine < 0) {
+				chunk = parse(chunk.widened);
+			}
+			chunk.source = this;
+			return chunk;
+		}
+		/**
+		 * Parses the chunk with the given types, recording the wider types
+		 * needed by cells that don't fit rather than storing those cells.
+		 */
+		private Chunk parse(Type[] types) throws IOException {
+			// guess the record count from the length of the first few lines
+			int lines = 0;
+			for (int i = 0; i < data.length && i < 1<<12; i++) {
+				if (data[i] == '\n') {
+					lines ++;
+				}
+			}
+			int capacity = Math.max(16, (int)((long)data.length * Math.max(1, lines) / Math.min(data.length, 1<<12)) + 16);
+			Chunk chunk = new Chunk(types, capacity);
+			Type[] widest = types.clone();
+			DecimalFormat fmt = new DecimalFormat("#.#####");
+			CsvReader csv = new CsvReader(new ByteArrayInputStream(data), layout.delim, Charset.defaultCharset());
+			try {
+				csv.setUseComments(true);
+				int[] otherFields = layout.otherFields;
+				while (csv.readRecord()) {
+					if (csv.getColumnCount() != layout.columns) {
+						chunk.badLine = lineOf(chunk.count);
+						break;
+					}
+					int row = chunk.count;
+					if (row == chunk.paths.length) {
+						chunk.grow(row * 2);
+					}
+					for (int i = 0; i < otherFields.length; i++) {
+						String cell = csv.get(otherFields[i]).trim();
+						Type type = types[i];
+						if (type == Type.STR) {
+							((String[])chunk.values[i])[row] = cell;
+							continue;
+						}
+						Type found = Type.classify(cell);
+						if (found.compareTo(type) > 0) {
+							if (found.compareTo(widest[i]) > 0) {
+								widest[i] = found;
+								chunk.widened = widest;
+							}
+						} else if (type == Type.INT) {
+							((int[])chunk.values[i])[row] = Type.toInt(cell);
+						} else {
+							((double[])chunk.values[i])[row] = Type.toDouble(cell);
+						}
+					}
+					float[] coords = {
+						(float)parseLon(csv.get(layout.lonCol), layout.west, fmt),
+						(float)parseLat(csv.get(layout.latCol), true, layout.scalar, fmt)
+					};
+					chunk.paths[row] = new FPath(coords, false, FPath.SPATIAL_EAST, false);
+					chunk.count ++;
+				}
+			} finally {
 				csv.close();
 			}
+			return chunk;
+		}
+		/**
+		 * Returns the file line of the given data record of the chunk,
+		 * skipping comments and empty records as CsvReader does.
+		 */
+		private int lineOf(int record) {
+			int at = 0;
+			for (int n = 0; at < data.length; ) {
+				byte b = data[at];
+				if (b != '#' && b != '\r' && b != '\n' && n++ == record) {
+					break;
+				}
+				at = RecordSplitter.recordEnd(data, at, data.length, (byte)layout.delim);
+				if (at < 0) {
+					at = data.length;
+				}
+			}
+			return line + RecordSplitter.lineBreaks(data, 0, at, afterCR);
 		}
 	}
 	
-	private static final DecimalFormat fmt = new DecimalFormat("#.#####");
+	/**
+	 * Splits the data records of a CSV file into chunks of whole records,
+	 * following the rules CsvReader uses to find where each record ends: a
+	 * record ends at a CR or LF outside of a quoted field, and a record
+	 * starting with '#' is a comment ending at the next line break. The
+	 * comments and the header record at the start of the file are skipped,
+	 * but may be read with {@link #peek()} before the first chunk. Lines are
+	 * counted as they're passed, with a CR LF pair as a single line break.
+	 */
+	static final class RecordSplitter {
+		private final InputStream in;
+		private byte delim = ',';
+		private byte[] buf;
+		/** Start of the bytes not yet returned */
+		private int start = 0;
+		/** End of the bytes read so far */
+		private int end = 0;
+		private boolean eof = false;
+		private boolean headerSkipped = false;
+		/** The line at start, and whether the byte before start is a CR */
+		private int line = 1;
+		private boolean afterCR = false;
+		/** The same for the start of the last chunk returned */
+		private int chunkLine;
+		private boolean chunkAfterCR;
+		
+		RecordSplitter(InputStream in) {
+			this(in, CHUNK_BYTES);
+		}
+		
+		/** Creates a splitter returning chunks of about <code>size</code> bytes */
+		RecordSplitter(InputStream in, int size) {
+			this.in = in;
+			this.buf = new byte[size];
+		}
+		
+		/** Sets the delimiter, which must be known before the first chunk is split */
+		void setDelimiter(char delim) {
+			this.delim = (byte)delim;
+		}
+		
+		/**
+		 * Returns a stream over the start of the file, as many bytes as a
+		 * chunk holds, for reading the comments and header record that
+		 * {@link #next()} skips.
+		 */
+		InputStream peek() throws IOException {
+			fill();
+			return new ByteArrayInputStream(buf, start, end - start);
+		}
+		
+		/** Returns the line the last chunk starts on */
+		int line() {
+			return chunkLine;
+		}
+		
+		/** Returns true if the last chunk follows a CR, so an LF starting it doesn't end another line */
+		boolean afterCR() {
+			return chunkAfterCR;
+		}
+		
+		/** Returns the next chunk of whole records, or null at the end of the file */
+		byte[] next() throws IOException {
+			while (true) {
+				fill();
+				if (!headerSkipped) {
+					int at = start;
+					while (at >= 0 && at < end && (buf[at] == '#' || buf[at] == '\r' || buf[at] == '\n')) {
+						at = recordEnd(buf, at, end, delim);
+					}
+					at = at >= 0 && at < end ? recordEnd(buf, at, end, delim) : -1;
+					if (at >= 0 || eof) {
+						advance(at < 0 ? end : at);
+						headerSkipped = true;
+					}
+				}
+				if (headerSkipped) {
+					int cut = start;
+					if (eof) {
+						cut = end;
+					} else {
+						for (int at = start; at >= 0; at = recordEnd(buf, at, end, delim)) {
+							cut = at;
+						}
+					}
+					if (cut > start) {
+						byte[] chunk = new byte[cut - start];
+						System.arraycopy(buf, start, chunk, 0, chunk.length);
+						chunkLine = line;
+						chunkAfterCR = afterCR;
+						advance(cut);
+						return chunk;
+					} else if (eof) {
+						return null;
+					}
+				}
+				// no whole record in the buffer, so make room for a longer one
+				if (start == 0 && end == buf.length) {
+					buf = resize(buf, buf.length * 2);
+				}
+			}
+		}
+		
+		/** Moves start to the given index, counting the lines passed */
+		private void advance(int to) {
+			line += lineBreaks(buf, start, to, afterCR);
+			if (to > start) {
+				afterCR = buf[to-1] == '\r';
+			}
+			start = to;
+		}
+		
+		/** Moves the unreturned bytes to the front of the buffer and reads more after them */
+		private void fill() throws IOException {
+			if (start > 0) {
+				System.arraycopy(buf, start, buf, 0, end - start);
+				end -= start;
+				start = 0;
+			}
+			while (!eof && end < buf.length) {
+				int n = in.read(buf, end, buf.length - end);
+				if (n < 0) {
+					eof = true;
+				} else {
+					end += n;
+				}
+			}
+		}
+		
+		/**
+		 * Returns the number of line breaks in the bytes from <code>from</code>
+		 * to <code>to</code>, where an LF right after a CR doesn't count.
+		 */
+		static int lineBreaks(byte[] buf, int from, int to, boolean afterCR) {
+			int count = 0;
+			for (int i = from; i < to; i++) {
+				if (buf[i] == '\r' || (buf[i] == '\n' && !(i == from ? afterCR : buf[i-1] == '\r'))) {
+					count ++;
+				}
+			}
+			return count;
+		}
+		
+		/**
+		 * Returns the index after the line break ending the record that starts
+		 * at i, or -1 if the record doesn't end before <code>to</code>.
+		 */
+		static int recordEnd(byte[] buf, int i, int to, byte delim) {
+			if (i < to && buf[i] == '#') {
+				for (; i < to; i++) {
+					if (buf[i] == '\n' || buf[i] == '\r') {
+						return i + 1;
+					}
+				}
+				return -1;
+			}
+			boolean fieldStart = true;
+			boolean quoted = false;
+			for (; i < to; i++) {
+				byte b = buf[i];
+				if (quoted) {
+					if (b == '"') {
+						// a doubled quote is an escaped quote, otherwise the field ends
+						if (i + 1 < to && buf[i+1] == '"') {
+							i ++;
+						} else if (i + 1 == to) {
+							return -1;
+						} else {
+							quoted = false;
+						}
+					}
+				} else if (b == delim) {
+					fieldStart = true;
+				} else if (b == '\n' || b == '\r') {
+					return i + 1;
+				} else if (fieldStart && b == '"') {
+					quoted = true;
+					fieldStart = false;
+				} else if (b != ' ' && b != '\t') {
+					fieldStart = false;
+				}
+			}
+			return -1;
+		}
+		
+		void close() throws IOException {
+			in.close();
+		}
+	}
 	
 	/**
 	 * returns the east longitude from the given string, handling 'E' and 'W'
 	 * suffixes, and using the given value of 'west' as the default when no
-	 * suffix is present.
+	 * suffix is present. The format must not be shared between threads.
 	 */
-	private static double parseLon(String lon, boolean west) {
+	private static double parseLon(String lon, boolean west, DecimalFormat fmt) {
 		lon = lon.toLowerCase();
 		ParsePosition pos = new ParsePosition(0);
 		double f = fmt.parse(lon, pos).doubleValue();
@@ -272,9 +981,10 @@ public class FeatureProviderCSV implements FeatureProvider {
 	/**
 	 * returns the ocentric latitude from the given string, handling 'N' and 'S'
 	 * suffixes if present, converting the value from ographic to ocentric with
-	 * the given ellipsoidal scalar.
+	 * the given ellipsoidal scalar. The format must not be shared between
+	 * threads.
 	 */
-	private static double parseLat(String lat, boolean north, double scalar) {
+	private static double parseLat(String lat, boolean north, double scalar, DecimalFormat fmt) {
 		lat = lat.toLowerCase();
 		ParsePosition pos = new ParsePosition(0);
 		double f = fmt.parse(lat, pos).doubleValue();
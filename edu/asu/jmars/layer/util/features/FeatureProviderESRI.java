@@ -22,15 +22,16 @@ package edu.asu.jmars.layer.util.features;
 
 import java.awt.Color;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -53,10 +54,6 @@ import com.bbn.openmap.dataAccess.shape.EsriPolyline;
 import com.bbn.openmap.dataAccess.shape.EsriPolylineList;
 import com.bbn.openmap.dataAccess.shape.input.*;
 import com.bbn.openmap.dataAccess.shape.output.*;
-import com.bbn.openmap.omGraphics.OMGraphic;
-import com.bbn.openmap.omGraphics.OMPoint;
-import com.bbn.openmap.omGraphics.OMPoly;
-import com.bbn.openmap.proj.ProjMath;
 
 import edu.asu.jmars.Main;
 import edu.asu.jmars.util.BidiMap;
@@ -120,12 +117,22 @@ public class FeatureProviderESRI implements FeatureProvider {
 		private Map fcToType = new WeakHashMap();
 		/** Field to ColumnDesc map set when loaded from file */
 		private Map fcToDesc = new WeakHashMap();
+		/** Collections holding only the features within some bounds */
+		private Map<FeatureCollection,Boolean> fcPartial = new WeakHashMap<FeatureCollection,Boolean>();
 
 		public void addProperties(FeatureCollection fc, int type, Map descs) {
 			fcToType.put(fc, new Integer(type));
 			fcToDesc.put(fc, Collections.unmodifiableMap(descs));
 		}
 
+		public void setPartial(FeatureCollection fc) {
+			fcPartial.put(fc, Boolean.TRUE);
+		}
+
+		public boolean isPartial(FeatureCollection fc) {
+			return fcPartial.containsKey(fc);
+		}
+
 		public int getShapeType(FeatureCollection fc) {
 			Integer type = (Integer)fcToType.get(fc);
 			return (type == null ? SHAPE_TYPE_NONE : type.intValue());
@@ -190,6 +197,22 @@ public class FeatureProviderESRI implements FeatureProvider {
 	 */
 
 	public FeatureCollection load(String name) {
+		return load(name, null, null);
+	}
+
+	/** Number of features added to the collection at a time while loading */
+	private static final int LOAD_BATCH = 4096;
+
+	/**
+	 * Loads the features whose bounding boxes intersect <code>bounds</code>,
+	 * given in the east-leading degrees of the file, or every feature when
+	 * bounds is null. Records are decoded one at a time straight from the
+	 * files and added to the collection in batches; after each batch,
+	 * <code>progress</code>, if not null, is told how many of the file's
+	 * records have been read. A collection loaded with bounds is not
+	 * representable, so saving it warns that the file will lose features.
+	 */
+	public FeatureCollection load(String name, Rectangle2D bounds, ProgressListener progress) {
 		final FileName fileName = new FileName();
 		fileName.setLoadFiles(name);
 
@@ -198,22 +221,35 @@ public class FeatureProviderESRI implements FeatureProvider {
 			return null;
 		}
 
-		// get the shape type of the file.
-		int shapeType    = fileName.getShapeType();
-		String shapeTypeString = getShapeTypeString(shapeType);
-
-		ArrayList    shpList          = readShpShx( fileName);
-		DbfTableModel tableModel;
+		ShapefileReader reader;
 		try {
-			tableModel = new DbfTableModel(new DbfInputStream(new FileInputStream(fileName.getDbf())));
+			reader = new ShapefileReader(fileName.getShp(), fileName.getShx(), fileName.getDbf());
 		}
-		catch(Exception ex){
+		catch(IOException ex){
 			log.aprintln(ex.getMessage());
 			return null;
 		}
+		try {
+			return load(reader, fileName, bounds, progress);
+		}
+		catch(IOException ex){
+			log.aprintln("Error reading SHP file: " + ex);
+			return null;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private FeatureCollection load(ShapefileReader reader, FileName fileName, Rectangle2D bounds, ProgressListener progress)
+		throws IOException
+	{
+		// get the shape type of the file, treating the Z and M variants as the plain types.
+		int shapeType    = ShapefileReader.plainType(reader.getShapeType());
+		String shapeTypeString = getShapeTypeString(shapeType);
 
 		// Build a FeatureCollection.
-		SingleFeatureCollection fc = new SingleFeatureCollection();
+		SingleFeatureCollection fc = new ColumnFeatureCollection();
 
 		// Setup default schema
 		fc.addField( Field.FIELD_PATH);
@@ -231,14 +267,13 @@ public class FeatureProviderESRI implements FeatureProvider {
 		Map fieldIndex = new HashMap();
 
 		// Add any extra columns the file might have to the schema.
-		int tableColCount = tableModel.getColumnCount();
+		int tableColCount = reader.getColumnCount();
 		for (int columnIndex=0; columnIndex< tableColCount; columnIndex++){
-			// NOTE: Don't use tableModel.getColumnClass(col) as it does a getValueAt(0,col).getClass()
-			// which fails when there are zero rows in the table.
-			
-			ColumnDesc fd = ColumnDesc.extractFromDbfTableModel(tableModel, columnIndex);
+			ColumnDesc fd = ColumnDesc.extract(reader.getColumnName(columnIndex),
+				reader.getColumnType(columnIndex), reader.getColumnLength(columnIndex),
+				reader.getColumnDecimals(columnIndex));
 			Field field = (Field)predefNames.get(fd.iName.toLowerCase());
-			
+
 			if (field == null){
 				field = new Field(fd.iName, fd.iClass, true);
 				predefNames.put(fd.iName.toLowerCase(), field);
@@ -249,20 +284,51 @@ public class FeatureProviderESRI implements FeatureProvider {
 		}
 
 		// Check that the sizes of the shp and dbf files match.
-		int dbfRows = tableModel.getRowCount();
-		int shpRows = shpList.size();
+		int dbfRows = reader.getRowCount();
+		int shpRows = reader.getRecordCount();
 		if (dbfRows != shpRows){
 			log.aprintln("dbfTable rows (" + dbfRows + ") != shpList rows (" + shpRows + ")");
 			return null;
 		}
-		
-		// build features and add them to the FeatureCollection.
+
+		// build features and add them to the FeatureCollection a batch at a time.
 		List schema = fc.getSchema();
-		ArrayList featureList = new ArrayList();
+		List<Feature> featureList = new ArrayList<Feature>(Math.min(dbfRows, LOAD_BATCH));
+		byte[] scratch = new byte[reader.getRowLength()];
+		int skipped = 0, split = 0, parts = 0, holes = 0;
+		boolean closed = (shapeType==SHAPE_TYPE_POLYGON);
 		for (int i=0; i< dbfRows; i++){
+			if (bounds != null && !reader.intersects(i, bounds)) {
+				continue;
+			}
+			float[][] coords = reader.readParts(i);
+			if (coords == null || coords.length == 0) {
+				skipped ++;
+				continue;
+			}
+			
+			// An FPath is one connected path, so each part becomes a Feature of
+			// its own. The holes of a polygon can't be drawn as holes, so they
+			// are left out rather than filled over their outer ring.
+			List<float[]> kept = new ArrayList<float[]>(coords.length);
+			for (int p=0; p<coords.length; p++) {
+				if (closed && coords.length > 1 && ShapefileReader.isHole(coords[p]))
+					holes ++;
+				else
+					kept.add(coords[p]);
+			}
+			if (kept.isEmpty()) {
+				// no outer ring, so keep every ring as drawn by the file
+				kept.addAll(Arrays.asList(coords));
+			}
+			if (kept.size() > 1) {
+				split ++;
+				parts += kept.size();
+			}
+			Object[] row = reader.readRow(i, scratch);
+
 			Feature f  = new Feature();
-			boolean closed = (shapeType==SHAPE_TYPE_POLYGON);
-			FPath path = new FPath ((float[])shpList.get(i), true, FPath.SPATIAL_EAST, closed);
+			FPath path = new FPath (kept.get(0), true, FPath.SPATIAL_EAST, closed);
 			f.setAttributeQuiet( Field.FIELD_PATH, path.getSpatialWest());
 
 			// Add all the other columns to the Feature.
@@ -281,11 +347,11 @@ public class FeatureProviderESRI implements FeatureProvider {
 						Integer indexObj = (Integer)fieldIndex.get(field); 
 						int index = indexObj == null? -1: indexObj.intValue();
 						if (index >= 0){
-							Object val = tableModel.getValueAt(i, index);
-							Object nullVal = tableModel.getEmptyDefaultForType(tableModel.getType(index));
-							if (nullVal != null && nullVal.equals(val))
+							Object val = row[index];
+							// blank cells are missing values, except in logical columns
+							if ("".equals(val) && reader.getColumnType(index) != DbfTableModel.TYPE_LOGICAL)
 								val = null;
-							
+
 							if (val != null){
 								if (field.type == String.class)
 									f.setAttributeQuiet( field, (String)val);
@@ -310,14 +376,36 @@ public class FeatureProviderESRI implements FeatureProvider {
 					log.aprintln("Processing field "+field.name+": "+exc.getMessage());
 				}
 			}
-			
-		
+
 			featureList.add( f);
+			for (int p=1; p<kept.size(); p++) {
+				Feature part = f.clone();
+				path = new FPath (kept.get(p), true, FPath.SPATIAL_EAST, closed);
+				part.setAttributeQuiet( Field.FIELD_PATH, path.getSpatialWest());
+				featureList.add( part);
+			}
+			if (featureList.size() >= LOAD_BATCH) {
+				fc.addFeatures( featureList);
+				featureList.clear();
+				if (progress != null)
+					progress.finished(i, dbfRows);
+			}
 		}
 
-		fc.addFeatures( featureList);
+		if (!featureList.isEmpty())
+			fc.addFeatures( featureList);
+		if (progress != null)
+			progress.finished(dbfRows-1, dbfRows);
+		if (skipped > 0)
+			log.aprintln("Skipped " + skipped + " records with no supported geometry in " + fileName.shpFileName);
+		if (split > 0)
+			log.aprintln("Split " + split + " multi-part records into " + parts + " features in " + fileName.shpFileName);
+		if (holes > 0)
+			log.aprintln("Left out " + holes + " polygon holes in " + fileName.shpFileName);
 
 		props.addProperties(fc, shapeType, columnDesc);
+		if (bounds != null)
+			props.setPartial(fc);
 
 		return fc;
 	}
@@ -335,92 +423,15 @@ public class FeatureProviderESRI implements FeatureProvider {
 		return fn.getLoadFiles();
 	}
 	
-	// on LOADING:
-	// Each element in the list is a float[] of LatLon values
-	// in decimal degrees. The size of the list should equal
-	// the number of features in the shapeFile and the float[]
-	
-	// can be used to create shapes or generalpaths for each feature. 
-	
-	private ArrayList readShpShx( FileName fileName)
-	{
-		ArrayList list = new ArrayList();
-		InputStream    inputStream    = null;
-		ShpInputStream shpInputStream = null;
-		ShxInputStream shxInputStream = null;
-		
-		try  {
-			inputStream     = new FileInputStream( fileName.getShp());
-			shpInputStream  = new ShpInputStream( inputStream);
-			shxInputStream  = new ShxInputStream( new FileInputStream( fileName.getShx()));
-			
-			//the iterator over an OMGraphicList  
-			Iterator iterator = shpInputStream.getGeometry( shxInputStream.getIndex()).iterator();
-		
-			while(iterator.hasNext()) {
-				
-		       
-				// In OpenMap Polygons and PolyLines are in terms of radians, but 
-				// Points are in terms of decimal degrees. (It's just the way it is with OpenMap)).
-				// So convert the lat lon values to degrees
-				// Note: the value in the shape file is in deg's
-				// but OpenMap converts it to radians. If 
-				// in the future GeoTools is used :)  then the conversion
-				// will no longer be needed since GeoTools does
-				// 'the right thing'
-				OMGraphic omg = (OMGraphic)iterator.next();
-				
-				//POINT
-				if(fileName.getShapeType() == SHAPE_TYPE_POINT) {
-					OMPoint omPoint     = (OMPoint)omg;
-					float[] latLonArray = new float[]{omPoint.getLat(), omPoint.getLon()};
-					list.add(latLonArray);
-				}
-				else { //PolyGon and PolyLine
-					//Some polygons are nested or at least thats the way OpenMap handles them. 
-					// Some of the converted 2107*.shp files from USGS are that way.
-					// So need to see if the OMGraphic is a EsriPolygonList or a EsriPolygon
-					// Of course, we have no way of dealing with nested polys, so just take
-					// the first one.
-					if(omg instanceof EsriPolygonList) {
-						EsriPolygonList innerList = (EsriPolygonList)omg;
-						Iterator innerIterator = innerList.iterator();
-						//while(innerIterator.hasNext()) {
-						if (innerIterator.hasNext()) {
-							OMPoly  innerPoly   = (OMPoly)innerIterator.next();
-							float[] latLonArray = ProjMath.arrayRadToDeg( innerPoly.getLatLonArray());
-							list.add(latLonArray);
-						}
-					}
-					else  {//its a single polygon
-						OMPoly omPoly = (OMPoly)omg;
-						float[] latLonArray = ProjMath.arrayRadToDeg(omPoly.getLatLonArray());
-						list.add(latLonArray);
-					}
-				}
-			}
-			inputStream.close();
-			shxInputStream.close();
-
-		} catch (FileNotFoundException e) {
-			System.out.println("Error reading SHP file: " + e);
-			e.printStackTrace();
-			return null;
-		} catch(Exception e) {
-			System.out.println("Error reading SHP file: " + e);
-			e.printStackTrace();
-			return null;
-		}
-		
-		return list;
-	}
-
 	/**
-	 * Returns true if either this FeatureCollection was not loaded, or the
-	 * set of feature types that were loaded equal the set of feature types
-	 * we have now.
+	 * Returns true if either this FeatureCollection was not loaded, or it was
+	 * loaded from the whole file and the set of feature types that were
+	 * loaded equal the set of feature types we have now.
 	 */
 	public boolean isRepresentable(FeatureCollection fc) {
+		if (props.isPartial(fc))
+			return false;
+
 		int type = props.getShapeType(fc);
 		if (type == SHAPE_TYPE_NONE)
 			return true;
@@ -714,14 +725,22 @@ public class FeatureProviderESRI implements FeatureProvider {
 		 * Extract FormatDesc from the specified column of the dbf table model.
 		 */
 		public static ColumnDesc extractFromDbfTableModel(DbfTableModel model, int column){
+			return extract(model.getColumnName(column), model.getType(column),
+				model.getLength(column), model.getDecimalCount(column));
+		}
+
+		/**
+		 * Extract FormatDesc from the given dbf column header values.
+		 */
+		static ColumnDesc extract(String name, byte dbType, int length, byte scale){
 			ColumnDesc fd = new ColumnDesc();
 			
-			fd.eName = model.getColumnName(column);
-			fd.dbType = model.getType(column);
-			fd.length = model.getLength(column);
-			fd.scale = model.getDecimalCount(column);
+			fd.eName = name;
+			fd.dbType = dbType;
+			fd.length = length;
+			fd.scale = scale;
 			
-			String tableColName = model.getColumnName(column);
+			String tableColName = name;
 			Class  tableColClass = String.class;
 			
 			if (isJMarsSpecificField(tableColName)){
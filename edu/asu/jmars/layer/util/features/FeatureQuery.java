@@ -0,0 +1,870 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.awt.Color;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import edu.asu.jmars.util.LineType;
+
+/**
+ * Compiles the WHERE and SET clauses used by {@link FeatureSQL} into
+ * expression trees that are evaluated directly against each Feature's
+ * attributes, so no database table has to be built to run a command.
+ *
+ * Columns are resolved against the schema once when the clause is compiled,
+ * and each column reference reads its attribute with an accessor chosen by
+ * the Field's type. Values follow the column types FeatureSQL has always
+ * exposed: Integer, Color and LineType fields are integers, Float and Double
+ * fields are floating point, Boolean fields are the strings 'true' and
+ * 'false', String fields are strings, and fields of any other type are
+ * always null. The row number of each feature is available as the column
+ * 'key'.
+ *
+ * The grammar is the usual SQL subset: OR, AND, NOT, the comparisons
+ * =, !=, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=, IS [NOT] NULL, [NOT] LIKE,
+ * [NOT] BETWEEN and [NOT] IN, and +, -, *, / with parentheses. Comparisons
+ * with null are unknown, and rows are only matched when the WHERE clause is
+ * true. Strings compare as the CHAR columns of the old temp table did,
+ * ignoring trailing spaces, in comparisons and LIKE alike.
+ *
+ * The common scalar functions of HSQLDB are supported: UPPER/UCASE,
+ * LOWER/LCASE, LENGTH/CHAR_LENGTH, TRIM, LTRIM, RTRIM, SUBSTRING/SUBSTR,
+ * CONCAT, ABS, ROUND, FLOOR, CEILING/CEIL, SQRT, POWER, MOD, and
+ * IFNULL/COALESCE. Any other function is rejected when the clause is
+ * compiled.
+ */
+final class FeatureQuery {
+	/** One node of a compiled expression; values are null, Long, Double, String, or Boolean */
+	private interface Expr {
+		Object eval(Feature f, int key) throws SQLException;
+	}
+
+	/** A compiled WHERE clause */
+	static final class Predicate {
+		private final Expr expr;
+		private Predicate(Expr expr) {
+			this.expr = expr;
+		}
+		/** Returns true if the feature at the given row matches this predicate */
+		boolean matches(Feature f, int key) throws SQLException {
+			if (expr == null) {
+				return true;
+			}
+			Object result = expr.eval(f, key);
+			if (result != null && !(result instanceof Boolean)) {
+				throw new SQLException("WHERE clause must be a condition");
+			}
+			return Boolean.TRUE.equals(result);
+		}
+	}
+
+	/** A compiled SET clause with its optional WHERE clause */
+	static final class Update {
+		private final Field[] fields;
+		private final Expr[] values;
+		private final Predicate where;
+		private Update(Field[] fields, Expr[] values, Predicate where) {
+			this.fields = fields;
+			this.values = values;
+			this.where = where;
+		}
+		/**
+		 * Returns the new attribute values for the feature at the given row,
+		 * or null if the feature does not match the WHERE clause. Every value
+		 * is computed from the attributes as they were before the update.
+		 */
+		Map<Field,Object> apply(Feature f, int key) throws SQLException {
+			if (!where.matches(f, key)) {
+				return null;
+			}
+			Map<Field,Object> changes = new HashMap<Field,Object>();
+			for (int i = 0; i < fields.length; i++) {
+				Object value = values[i].eval(f, key);
+				if (fields[i].editable && isWritable(fields[i].type)) {
+					changes.put(fields[i], toAttribute(fields[i], value));
+				}
+			}
+			return changes;
+		}
+	}
+
+	/** Compiles a clause that is empty or starts with WHERE */
+	static Predicate compileWhere(String clause, List<?> schema) throws SQLException {
+		FeatureQuery q = new FeatureQuery(clause, schema);
+		Predicate p = q.where();
+		q.expectEnd();
+		return p;
+	}
+
+	/** Compiles a clause of the form 'col = expr [, col = expr ...] [WHERE ...]' */
+	static Update compileUpdate(String clause, List<?> schema) throws SQLException {
+		FeatureQuery q = new FeatureQuery(clause, schema);
+		List<Field> fields = new ArrayList<Field>();
+		List<Expr> values = new ArrayList<Expr>();
+		do {
+			FeatureSQL.LexicalAnalyzer.Token t = q.next();
+			if (t.value != FeatureSQL.LexicalAnalyzer.ID || q.isKeyword(t)) {
+				throw new SQLException("Column name expected at " + describe(t));
+			}
+			Field field = q.resolve(t.str);
+			if (field == null) {
+				throw new SQLException("Column not found: " + t.str);
+			}
+			q.expect(FeatureSQL.LexicalAnalyzer.EQUALS, "=");
+			fields.add(field);
+			values.add(q.additive());
+		} while (q.accept(FeatureSQL.LexicalAnalyzer.COMMA));
+		Predicate where = q.where();
+		q.expectEnd();
+		return new Update(fields.toArray(new Field[fields.size()]), values.toArray(new Expr[values.size()]), where);
+	}
+
+	private static final String KEY = "key";
+	/** The minimum and maximum argument counts of each supported function, by lower case name */
+	private static final Map<String,int[]> FUNCTIONS = new HashMap<String,int[]>();
+	static {
+		String[] one = {"upper", "ucase", "lower", "lcase", "length", "char_length",
+			"trim", "ltrim", "rtrim", "abs", "floor", "ceiling", "ceil", "sqrt"};
+		for (String name: one) {
+			FUNCTIONS.put(name, new int[]{1, 1});
+		}
+		FUNCTIONS.put("substring", new int[]{2, 3});
+		FUNCTIONS.put("substr", new int[]{2, 3});
+		FUNCTIONS.put("round", new int[]{1, 2});
+		FUNCTIONS.put("concat", new int[]{2, 2});
+		FUNCTIONS.put("power", new int[]{2, 2});
+		FUNCTIONS.put("mod", new int[]{2, 2});
+		FUNCTIONS.put("ifnull", new int[]{2, 2});
+		FUNCTIONS.put("coalesce", new int[]{1, Integer.MAX_VALUE});
+	}
+	private static final String[] KEYWORDS = {
+		"where", "and", "or", "not", "is", "null", "like", "between", "in", "true", "false"
+	};
+
+	/** The Fields of the collection the clause runs against */
+	private final List<?> schema;
+	private final List<FeatureSQL.LexicalAnalyzer.Token> tokens = new ArrayList<FeatureSQL.LexicalAnalyzer.Token>();
+	private int pos = 0;
+
+	private FeatureQuery(String clause, List<?> schema) throws SQLException {
+		this.schema = schema;
+		FeatureSQL.LexicalAnalyzer lex = new FeatureSQL.LexicalAnalyzer(clause == null ? "" : clause);
+		FeatureSQL.LexicalAnalyzer.Token t;
+		do {
+			t = lex.getNextToken();
+			if (t.value == FeatureSQL.LexicalAnalyzer.BAD_TOKEN) {
+				throw new SQLException("Unexpected token: " + (t.str == null ? "" : t.str));
+			}
+			tokens.add(t);
+		} while (t.value != FeatureSQL.LexicalAnalyzer.EOL);
+	}
+
+	//
+	// Token handling
+	//
+
+	private FeatureSQL.LexicalAnalyzer.Token peek() {
+		return tokens.get(pos);
+	}
+
+	private FeatureSQL.LexicalAnalyzer.Token next() {
+		FeatureSQL.LexicalAnalyzer.Token t = tokens.get(pos);
+		if (t.value != FeatureSQL.LexicalAnalyzer.EOL) {
+			pos++;
+		}
+		return t;
+	}
+
+	private boolean accept(int value) {
+		if (peek().value == value) {
+			next();
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(int value, String text) throws SQLException {
+		if (!accept(value)) {
+			throw new SQLException("Expected " + text + " at " + describe(peek()));
+		}
+	}
+
+	private boolean acceptKeyword(String word) {
+		FeatureSQL.LexicalAnalyzer.Token t = peek();
+		if (t.value == FeatureSQL.LexicalAnalyzer.ID && t.str.equalsIgnoreCase(word)) {
+			next();
+			return true;
+		}
+		return false;
+	}
+
+	private void expectKeyword(String word) throws SQLException {
+		if (!acceptKeyword(word)) {
+			throw new SQLException("Expected " + word.toUpperCase() + " at " + describe(peek()));
+		}
+	}
+
+	private boolean isKeyword(FeatureSQL.LexicalAnalyzer.Token t) {
+		for (String k: KEYWORDS) {
+			if (t.str.equalsIgnoreCase(k)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void expectEnd() throws SQLException {
+		if (peek().value != FeatureSQL.LexicalAnalyzer.EOL) {
+			throw new SQLException("Unexpected token: " + peek().str);
+		}
+	}
+
+	private static String describe(FeatureSQL.LexicalAnalyzer.Token t) {
+		return t.value == FeatureSQL.LexicalAnalyzer.EOL ? "end of line" : "'" + t.str + "'";
+	}
+
+	/** Returns the schema field named by the given identifier, or null if there is none */
+	private Field resolve(String id) {
+		String name = sqlName(id);
+		for (Object o: schema) {
+			Field f = (Field)o;
+			if (sqlName(f.name).equalsIgnoreCase(name)) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	/** Identifiers are matched case-insensitively, with [brackets] removed and spaces read as underscores */
+	private static String sqlName(String name) {
+		return name.replace(' ','_').replace('[', ' ').replace(']', ' ').trim();
+	}
+
+	//
+	// Recursive descent parser
+	//
+
+	private Predicate where() throws SQLException {
+		if (peek().value == FeatureSQL.LexicalAnalyzer.EOL) {
+			return new Predicate(null);
+		}
+		expectKeyword("where");
+		return new Predicate(or());
+	}
+
+	private Expr or() throws SQLException {
+		Expr left = and();
+		while (acceptKeyword("or")) {
+			final Expr a = left, b = and();
+			left = new Expr() {
+				public Object eval(Feature f, int key) throws SQLException {
+					Boolean x = bool(a.eval(f, key));
+					if (Boolean.TRUE.equals(x)) {
+						return Boolean.TRUE;
+					}
+					Boolean y = bool(b.eval(f, key));
+					if (Boolean.TRUE.equals(y)) {
+						return Boolean.TRUE;
+					}
+					return x == null || y == null ? null : Boolean.FALSE;
+				}
+			};
+		}
+		return left;
+	}
+
+	private Expr and() throws SQLException {
+		Expr left = not();
+		while (acceptKeyword("and")) {
+			final Expr a = left, b = not();
+			left = new Expr() {
+				public Object eval(Feature f, int key) throws SQLException {
+					Boolean x = bool(a.eval(f, key));
+					if (Boolean.FALSE.equals(x)) {
+						return Boolean.FALSE;
+					}
+					Boolean y = bool(b.eval(f, key));
+					if (Boolean.FALSE.equals(y)) {
+						return Boolean.FALSE;
+					}
+					return x == null || y == null ? null : Boolean.TRUE;
+				}
+			};
+		}
+		return left;
+	}
+
+	private Expr not() throws SQLException {
+		if (acceptKeyword("not")) {
+			return negate(not());
+		}
+		return comparison();
+	}
+
+	private Expr comparison() throws SQLException {
+		final Expr left = additive();
+		FeatureSQL.LexicalAnalyzer.Token t = peek();
+		switch (t.value) {
+		case FeatureSQL.LexicalAnalyzer.EQUALS:
+			next();
+			return compare(left, additive(), CMP_EQ);
+		case FeatureSQL.LexicalAnalyzer.NOT_EQUAL:
+			next();
+			return compare(left, additive(), CMP_NE);
+		case FeatureSQL.LexicalAnalyzer.LT:
+			next();
+			if (accept(FeatureSQL.LexicalAnalyzer.GT)) {
+				return compare(left, additive(), CMP_NE);
+			}
+			return compare(left, additive(), CMP_LT);
+		case FeatureSQL.LexicalAnalyzer.LTE:
+			next();
+			return compare(left, additive(), CMP_LE);
+		case FeatureSQL.LexicalAnalyzer.GT:
+			next();
+			return compare(left, additive(), CMP_GT);
+		case FeatureSQL.LexicalAnalyzer.GTE:
+			next();
+			return compare(left, additive(), CMP_GE);
+		}
+		if (acceptKeyword("is")) {
+			final boolean negated = acceptKeyword("not");
+			expectKeyword("null");
+			return new Expr() {
+				public Object eval(Feature f, int key) throws SQLException {
+					return Boolean.valueOf((left.eval(f, key) == null) != negated);
+				}
+			};
+		}
+		boolean negated = acceptKeyword("not");
+		Expr result;
+		if (acceptKeyword("like")) {
+			result = like(left, additive());
+		} else if (acceptKeyword("between")) {
+			Expr low = additive();
+			expectKeyword("and");
+			Expr high = additive();
+			result = between(left, low, high);
+		} else if (acceptKeyword("in")) {
+			expect(FeatureSQL.LexicalAnalyzer.LEFT_PAREN, "(");
+			List<Expr> list = new ArrayList<Expr>();
+			do {
+				list.add(additive());
+			} while (accept(FeatureSQL.LexicalAnalyzer.COMMA));
+			expect(FeatureSQL.LexicalAnalyzer.RIGHT_PAREN, ")");
+			result = in(left, list.toArray(new Expr[list.size()]));
+		} else if (negated) {
+			throw new SQLException("Expected LIKE, BETWEEN or IN at " + describe(peek()));
+		} else {
+			return left;
+		}
+		return negated ? negate(result) : result;
+	}
+
+	private Expr additive() throws SQLException {
+		Expr left = multiplicative();
+		while (true) {
+			FeatureSQL.LexicalAnalyzer.Token t = peek();
+			if (t.value == FeatureSQL.LexicalAnalyzer.ADD) {
+				next();
+				left = arithmetic(left, multiplicative(), '+');
+			} else if (t.value == FeatureSQL.LexicalAnalyzer.SUBTRACT) {
+				next();
+				left = arithmetic(left, multiplicative(), '-');
+			} else if (t.value == FeatureSQL.LexicalAnalyzer.NUMBER && t.str.startsWith("-")) {
+				// the lexer reads 'a -1' as 'a' followed by the number '-1'
+				next();
+				left = arithmetic(left, literal(number(t.str.substring(1))), '-');
+			} else {
+				return left;
+			}
+		}
+	}
+
+	private Expr multiplicative() throws SQLException {
+		Expr left = unary();
+		while (true) {
+			if (accept(FeatureSQL.LexicalAnalyzer.MULTIPLY)) {
+				left = arithmetic(left, unary(), '*');
+			} else if (accept(FeatureSQL.LexicalAnalyzer.DIVIDE)) {
+				left = arithmetic(left, unary(), '/');
+			} else {
+				return left;
+			}
+		}
+	}
+
+	private Expr unary() throws SQLException {
+		if (accept(FeatureSQL.LexicalAnalyzer.SUBTRACT)) {
+			return arithmetic(literal(Long.valueOf(0)), unary(), '-');
+		}
+		if (accept(FeatureSQL.LexicalAnalyzer.ADD)) {
+			return unary();
+		}
+		return primary();
+	}
+
+	private Expr primary() throws SQLException {
+		FeatureSQL.LexicalAnalyzer.Token t = next();
+		switch (t.value) {
+		case FeatureSQL.LexicalAnalyzer.NUMBER:
+			return literal(number(t.str));
+		case FeatureSQL.LexicalAnalyzer.STRING:
+			return literal(t.str.substring(1, t.str.length() - 1));
+		case FeatureSQL.LexicalAnalyzer.LEFT_PAREN:
+			Expr e = or();
+			expect(FeatureSQL.LexicalAnalyzer.RIGHT_PAREN, ")");
+			return e;
+		case FeatureSQL.LexicalAnalyzer.ID:
+			if (t.str.equalsIgnoreCase("null")) {
+				return literal(null);
+			} else if (t.str.equalsIgnoreCase("true")) {
+				return literal(Boolean.TRUE);
+			} else if (t.str.equalsIgnoreCase("false")) {
+				return literal(Boolean.FALSE);
+			} else if (isKeyword(t)) {
+				throw new SQLException("Unexpected token: " + t.str);
+			} else if (peek().value == FeatureSQL.LexicalAnalyzer.LEFT_PAREN) {
+				return function(t.str);
+			}
+			Field field = resolve(t.str);
+			if (field != null) {
+				return column(field);
+			} else if (sqlName(t.str).equalsIgnoreCase(KEY)) {
+				return new Expr() {
+					public Object eval(Feature f, int key) {
+						return Long.valueOf(key);
+					}
+				};
+			}
+			throw new SQLException("Column not found: " + t.str);
+		default:
+			throw new SQLException("Unexpected " + describe(t));
+		}
+	}
+
+	/** Parses the argument list of a call to the named function */
+	private Expr function(String name) throws SQLException {
+		final String fn = name.toLowerCase();
+		int[] arity = FUNCTIONS.get(fn);
+		if (arity == null) {
+			throw new SQLException("Function not supported: " + name.toUpperCase());
+		}
+		expect(FeatureSQL.LexicalAnalyzer.LEFT_PAREN, "(");
+		List<Expr> args = new ArrayList<Expr>();
+		if (!accept(FeatureSQL.LexicalAnalyzer.RIGHT_PAREN)) {
+			do {
+				args.add(or());
+			} while (accept(FeatureSQL.LexicalAnalyzer.COMMA));
+			expect(FeatureSQL.LexicalAnalyzer.RIGHT_PAREN, ")");
+		}
+		if (args.size() < arity[0] || args.size() > arity[1]) {
+			throw new SQLException("Wrong number of arguments to " + name.toUpperCase());
+		}
+		final Expr[] a = args.toArray(new Expr[args.size()]);
+		return new Expr() {
+			public Object eval(Feature f, int key) throws SQLException {
+				Object[] v = new Object[a.length];
+				for (int i = 0; i < a.length; i++) {
+					v[i] = a[i].eval(f, key);
+				}
+				return call(fn, v);
+			}
+		};
+	}
+
+	/** Applies the named function to the given argument values */
+	private static Object call(String fn, Object[] v) throws SQLException {
+		if (fn.equals("ifnull") || fn.equals("coalesce")) {
+			for (Object o: v) {
+				if (o != null) {
+					return o;
+				}
+			}
+			return null;
+		}
+		for (Object o: v) {
+			if (o == null) {
+				return null;
+			}
+		}
+		if (fn.equals("upper") || fn.equals("ucase")) {
+			return v[0].toString().toUpperCase();
+		} else if (fn.equals("lower") || fn.equals("lcase")) {
+			return v[0].toString().toLowerCase();
+		} else if (fn.equals("length") || fn.equals("char_length")) {
+			return Long.valueOf(v[0].toString().length());
+		} else if (fn.equals("trim")) {
+			return v[0].toString().trim();
+		} else if (fn.equals("ltrim")) {
+			String str = v[0].toString();
+			int i = 0;
+			while (i < str.length() && str.charAt(i) == ' ') {
+				i++;
+			}
+			return str.substring(i);
+		} else if (fn.equals("rtrim")) {
+			return rtrim(v[0].toString());
+		} else if (fn.equals("substring") || fn.equals("substr")) {
+			// positions count from 1, as in SQL
+			String str = v[0].toString();
+			int start = Math.max(0, toNumber(v[1]).intValue() - 1);
+			int end = v.length > 2 ? start + Math.max(0, toNumber(v[2]).intValue()) : str.length();
+			start = Math.min(start, str.length());
+			return str.substring(start, Math.min(end, str.length()));
+		} else if (fn.equals("concat")) {
+			return v[0].toString() + v[1].toString();
+		} else if (fn.equals("mod")) {
+			Number x = toNumber(v[0]), y = toNumber(v[1]);
+			if (x instanceof Long && y instanceof Long) {
+				if (y.longValue() == 0) {
+					throw new SQLException("Division by zero");
+				}
+				return Long.valueOf(x.longValue() % y.longValue());
+			}
+			return Double.valueOf(x.doubleValue() % y.doubleValue());
+		} else if (fn.equals("abs")) {
+			Number x = toNumber(v[0]);
+			return x instanceof Long ? (Object)Long.valueOf(Math.abs(x.longValue())) : (Object)Double.valueOf(Math.abs(x.doubleValue()));
+		} else if (fn.equals("round")) {
+			double scale = Math.pow(10, v.length > 1 ? toNumber(v[1]).intValue() : 0);
+			return Double.valueOf(Math.floor(toNumber(v[0]).doubleValue() * scale + 0.5) / scale);
+		} else if (fn.equals("floor")) {
+			return Double.valueOf(Math.floor(toNumber(v[0]).doubleValue()));
+		} else if (fn.equals("ceiling") || fn.equals("ceil")) {
+			return Double.valueOf(Math.ceil(toNumber(v[0]).doubleValue()));
+		} else if (fn.equals("sqrt")) {
+			return Double.valueOf(Math.sqrt(toNumber(v[0]).doubleValue()));
+		} else {
+			return Double.valueOf(Math.pow(toNumber(v[0]).doubleValue(), toNumber(v[1]).doubleValue()));
+		}
+	}
+
+	/** Returns the string without its trailing spaces */
+	private static String rtrim(String str) {
+		int end = str.length();
+		while (end > 0 && str.charAt(end-1) == ' ') {
+			end--;
+		}
+		return str.substring(0, end);
+	}
+
+	private static Object number(String text) throws SQLException {
+		try {
+			if (text.indexOf('.') < 0) {
+				return Long.valueOf(text);
+			}
+			return Double.valueOf(text);
+		} catch (NumberFormatException e) {
+			throw new SQLException("Bad number: " + text);
+		}
+	}
+
+	//
+	// Expression nodes
+	//
+
+	private static Expr literal(final Object value) {
+		return new Expr() {
+			public Object eval(Feature f, int key) {
+				return value;
+			}
+		};
+	}
+
+	/** Returns an accessor that reads the field's attribute as the column type of that field */
+	private static Expr column(final Field field) {
+		final Class<?> type = field.type;
+		if (type == Integer.class || type == Float.class || type == Double.class) {
+			final boolean integral = type == Integer.class;
+			return new Expr() {
+				public Object eval(Feature f, int key) {
+					Object o = f.getAttribute(field);
+					if (!(o instanceof Number)) {
+						return null;
+					}
+					Number n = (Number)o;
+					return integral ? (Object)Long.valueOf(n.longValue()) : (Object)Double.valueOf(n.doubleValue());
+				}
+			};
+		} else if (type == Color.class) {
+			return new Expr() {
+				public Object eval(Feature f, int key) {
+					Object o = f.getAttribute(field);
+					return o instanceof Color ? Long.valueOf(((Color)o).getRGB()) : null;
+				}
+			};
+		} else if (type == LineType.class) {
+			return new Expr() {
+				public Object eval(Feature f, int key) {
+					Object o = f.getAttribute(field);
+					return o instanceof LineType ? Long.valueOf(((LineType)o).getType()) : null;
+				}
+			};
+		} else if (type == Boolean.class) {
+			return new Expr() {
+				public Object eval(Feature f, int key) {
+					Object o = f.getAttribute(field);
+					return o instanceof Boolean ? o.toString() : null;
+				}
+			};
+		} else if (type == String.class) {
+			return new Expr() {
+				public Object eval(Feature f, int key) {
+					Object o = f.getAttribute(field);
+					return o == null ? null : o.toString();
+				}
+			};
+		} else {
+			return literal(null);
+		}
+	}
+
+	private static Boolean bool(Object value) throws SQLException {
+		if (value == null || value instanceof Boolean) {
+			return (Boolean)value;
+		}
+		throw new SQLException("Condition expected but found " + value);
+	}
+
+	private static Expr negate(final Expr e) {
+		return new Expr() {
+			public Object eval(Feature f, int key) throws SQLException {
+				Boolean b = bool(e.eval(f, key));
+				return b == null ? null : Boolean.valueOf(!b.booleanValue());
+			}
+		};
+	}
+
+	private static final int CMP_EQ = 0, CMP_NE = 1, CMP_LT = 2, CMP_LE = 3, CMP_GT = 4, CMP_GE = 5;
+
+	private static Expr compare(final Expr left, final Expr right, final int op) {
+		return new Expr() {
+			public Object eval(Feature f, int key) throws SQLException {
+				Object a = left.eval(f, key);
+				Object b = right.eval(f, key);
+				if (a == null || b == null) {
+					return null;
+				}
+				int c = compareValues(a, b);
+				switch (op) {
+				case CMP_EQ: return Boolean.valueOf(c == 0);
+				case CMP_NE: return Boolean.valueOf(c != 0);
+				case CMP_LT: return Boolean.valueOf(c < 0);
+				case CMP_LE: return Boolean.valueOf(c <= 0);
+				case CMP_GT: return Boolean.valueOf(c > 0);
+				default: return Boolean.valueOf(c >= 0);
+				}
+			}
+		};
+	}
+
+	private static Expr between(final Expr value, final Expr low, final Expr high) {
+		return new Expr() {
+			public Object eval(Feature f, int key) throws SQLException {
+				Object v = value.eval(f, key);
+				Object lo = low.eval(f, key);
+				Object hi = high.eval(f, key);
+				Boolean above = v == null || lo == null ? null : Boolean.valueOf(compareValues(v, lo) >= 0);
+				Boolean below = v == null || hi == null ? null : Boolean.valueOf(compareValues(v, hi) <= 0);
+				if (Boolean.FALSE.equals(above) || Boolean.FALSE.equals(below)) {
+					return Boolean.FALSE;
+				}
+				return above == null || below == null ? null : Boolean.TRUE;
+			}
+		};
+	}
+
+	private static Expr in(final Expr value, final Expr[] list) {
+		return new Expr() {
+			public Object eval(Feature f, int key) throws SQLException {
+				Object v = value.eval(f, key);
+				if (v == null) {
+					return null;
+				}
+				boolean unknown = false;
+				for (Expr e: list) {
+					Object o = e.eval(f, key);
+					if (o == null) {
+						unknown = true;
+					} else if (compareValues(v, o) == 0) {
+						return Boolean.TRUE;
+					}
+				}
+				return unknown ? null : Boolean.FALSE;
+			}
+		};
+	}
+
+	private static Expr like(final Expr value, final Expr pattern) {
+		return new Expr() {
+			private String lastPattern;
+			private Pattern lastRegex;
+			public Object eval(Feature f, int key) throws SQLException {
+				Object v = value.eval(f, key);
+				Object p = pattern.eval(f, key);
+				if (v == null || p == null) {
+					return null;
+				}
+				String text = p.toString();
+				Pattern regex;
+				synchronized(this) {
+					if (!text.equals(lastPattern)) {
+						lastRegex = likeToRegex(text);
+						lastPattern = text;
+					}
+					regex = lastRegex;
+				}
+				return Boolean.valueOf(regex.matcher(rtrim(v.toString())).matches());
+			}
+		};
+	}
+
+	/** Converts a LIKE pattern, where % matches any run of characters and _ matches one, to a regex */
+	private static Pattern likeToRegex(String like) {
+		StringBuffer buf = new StringBuffer();
+		int start = 0;
+		for (int i = 0; i < like.length(); i++) {
+			char c = like.charAt(i);
+			if (c == '%' || c == '_') {
+				if (i > start) {
+					buf.append(Pattern.quote(like.substring(start, i)));
+				}
+				buf.append(c == '%' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		if (start < like.length()) {
+			buf.append(Pattern.quote(like.substring(start)));
+		}
+		return Pattern.compile(buf.toString(), Pattern.DOTALL);
+	}
+
+	private static Expr arithmetic(final Expr left, final Expr right, final char op) {
+		return new Expr() {
+			public Object eval(Feature f, int key) throws SQLException {
+				Object a = left.eval(f, key);
+				Object b = right.eval(f, key);
+				if (a == null || b == null) {
+					return null;
+				}
+				if (op == '+' && a instanceof String && b instanceof String) {
+					return (String)a + (String)b;
+				}
+				Number x = toNumber(a);
+				Number y = toNumber(b);
+				if (x instanceof Long && y instanceof Long) {
+					long i = x.longValue(), j = y.longValue();
+					switch (op) {
+					case '+': return Long.valueOf(i + j);
+					case '-': return Long.valueOf(i - j);
+					case '*': return Long.valueOf(i * j);
+					default:
+						if (j == 0) {
+							throw new SQLException("Division by zero");
+						}
+						return Long.valueOf(i / j);
+					}
+				}
+				double i = x.doubleValue(), j = y.doubleValue();
+				switch (op) {
+				case '+': return Double.valueOf(i + j);
+				case '-': return Double.valueOf(i - j);
+				case '*': return Double.valueOf(i * j);
+				default: return Double.valueOf(i / j);
+				}
+			}
+		};
+	}
+
+	private static Number toNumber(Object o) throws SQLException {
+		if (o instanceof Number) {
+			return (Number)o;
+		}
+		String s = o.toString().trim();
+		try {
+			if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+				return Long.valueOf(s);
+			}
+			return Double.valueOf(s);
+		} catch (NumberFormatException e) {
+			throw new SQLException("Wrong data type: " + o);
+		}
+	}
+
+	/**
+	 * Compares numbers numerically, strings lexically without their trailing
+	 * spaces, and a number with a string by parsing the string
+	 */
+	private static int compareValues(Object a, Object b) throws SQLException {
+		if (a instanceof Boolean) {
+			a = a.toString();
+		}
+		if (b instanceof Boolean) {
+			b = b.toString();
+		}
+		if (a instanceof String && b instanceof String) {
+			return rtrim((String)a).compareTo(rtrim((String)b));
+		}
+		Number x = toNumber(a);
+		Number y = toNumber(b);
+		if (x instanceof Long && y instanceof Long) {
+			long i = x.longValue(), j = y.longValue();
+			return i < j ? -1 : i > j ? 1 : 0;
+		}
+		return Double.compare(x.doubleValue(), y.doubleValue());
+	}
+
+	/** Returns true for the field types whose values FeatureSQL writes back after an update */
+	private static boolean isWritable(Class<?> type) {
+		return type == Integer.class || type == Double.class || type == String.class ||
+			type == Color.class || type == LineType.class || type == Boolean.class;
+	}
+
+	/** Converts a computed value into an attribute value of the field's type */
+	private static Object toAttribute(Field field, Object value) throws SQLException {
+		if (value == null) {
+			return null;
+		}
+		Class<?> type = field.type;
+		if (type == String.class) {
+			return value.toString();
+		} else if (type == Boolean.class) {
+			return Boolean.valueOf(value.toString().equals("true"));
+		}
+		Number n = toNumber(value);
+		if (type == Double.class) {
+			return Double.valueOf(n.doubleValue());
+		} else if (type == Integer.class) {
+			return Integer.valueOf(n.intValue());
+		} else if (type == Color.class) {
+			return new Color(n.intValue());
+		} else {
+			return new LineType(n.intValue());
+		}
+	}
+}
@@ -21,7 +21,7 @@
 package edu.asu.jmars.layer.util.features;
 
 import java.awt.Color;
-import java.sql.*;
+import java.sql.SQLException;
 import java.util.*;
 import java.awt.geom.*;
 import javax.swing.*;
@@ -85,13 +85,6 @@ public class FeatureSQL {
 		}
 	}
 	
-	static {
-		// load the hyper-sql class.
-		try {
-			Class.forName("org.hsqldb.jdbcDriver");
-		} catch(ClassNotFoundException cnfe){}
-	}
-	
 	/**
 	 * constructor: class attributes are set, the line is parsed out, and the 
 	 * actions defined by the line performed.
@@ -109,33 +102,23 @@ public class FeatureSQL {
 	 * moves the selected rows by the given delta.
 	 */
 	public static void move( FeatureCollection fc, Point2D delta, String where) {
-		Connection conn       = null;
-		
 		try {
-			conn = DriverManager.getConnection("jdbc:hsqldb:test");
-			Statement  st = conn.createStatement();
-		
-			makeTempTable( conn, st, fc);
+			FeatureQuery.Predicate predicate = FeatureQuery.compileWhere( where, fc.getSchema());
 
-			// run the query
-			String query = "select key from foobar " + filterSQL( where);
-			
-			ResultSet rs = st.executeQuery( query );
-			
-			// get the resulting key values and move the appropriate features.
+			// move the matching features.
 			Map featureValues = new HashMap();
-			while (rs.next()) {
-				int key = rs.getInt(1);
-				Feature feature = fc.getFeature(key);
-				FPath path = (FPath) feature.getAttribute(Field.FIELD_PATH);
-				// We assume that delta is in the same coodrinate system as the path.
-				// For example, spatial East leading coordinates.
-				path = path.translate(delta);
-				featureValues.put(feature, path);
+			List features = fc.getFeatures();
+			for (int key=0; key < features.size(); key++){
+				Feature feature = (Feature)features.get(key);
+				if (predicate.matches( feature, key)){
+					FPath path = (FPath) feature.getAttribute(Field.FIELD_PATH);
+					// We assume that delta is in the same coodrinate system as the path.
+					// For example, spatial East leading coordinates.
+					path = path.translate(delta);
+					featureValues.put(feature, path);
+				}
 			}
 
-			conn.close();
-
 			// do all the setting of the path fields at once.
 			fc.setAttributes(Field.FIELD_PATH, featureValues);
 
@@ -149,14 +132,6 @@ public class FeatureSQL {
 			resultStr = "Error moving rows: " + e.getMessage();
 			System.out.println( resultStr );
 		} 
-		
-		// clean up.  (odd...we get a warning if we try to put a finally block here.)
-		try{
-			if (conn != null){
-				conn.close();
-			}
-		}catch (Exception e1){}
-		
 	}
 	
 
@@ -165,36 +140,14 @@ public class FeatureSQL {
 	 * returns an array of row indices that correspond to the inputted where clause.
 	 */
 	public static void select(FeatureCollection fc, Set<Feature> selections, String where) {
-
-		int featuresSelected=0;
-		Connection conn = null;
-
 		try {
-			conn = DriverManager.getConnection("jdbc:hsqldb:test");
-			Statement  st = conn.createStatement();
-
-			makeTempTable( conn, st, fc);
-
-			// run the query
-			String query = "select key from foobar " + filterSQL( where);
-			ResultSet rs = st.executeQuery( query );
+			List<Feature> selectedFeatures = matching( fc, where);
 
-			// first off, set all the Features to unselected.
+			// set all the Features to unselected, then select the matching ones.
 			selections.clear();
-
-			// get the resulting key values and set selection on for those rows
-			Set<Feature> selectedFeatures = new HashSet<Feature>(); 
-			while(rs.next()){
-				int key = rs.getInt(1);
-				Feature feature = fc.getFeature( key);
-				selectedFeatures.add(feature);
-				featuresSelected++;
-			}
 			selections.addAll(selectedFeatures);
-			
-			conn.close();
 
-			resultStr = featuresSelected + " rows selected";
+			resultStr = selectedFeatures.size() + " rows selected";
 		}
 		catch (SQLException sqle){
 			resultStr = "SQL error selecting rows: " +   sqle.getMessage();
@@ -204,13 +157,6 @@ public class FeatureSQL {
 			resultStr = "error selecting rows: " + e.getMessage();
 			log.println( resultStr);
 		} 
-
-		// clean up.  (odd, we get a warning if we try to put a finally block here.)
-		try{
-			if (conn != null){
-				conn.close();
-			}
-		}catch (Exception e1){}
 	}
 
 
@@ -218,90 +164,28 @@ public class FeatureSQL {
 	 * runs the inputted "update" command on the inputted table.
 	 */
 	public static void update( FeatureCollection fc, String setString) {
-
-		Connection  conn     = null;
-		Map       featureMap = new HashMap();
-	    
 		try {
-			conn = DriverManager.getConnection("jdbc:hsqldb:test");
-		    
-			Statement  st = conn.createStatement();
-		    
-			// make temp table 
-			makeTempTable( conn, st, fc);
-		    
-			// run the update
-			String updateString = "update foobar set " + filterSQL( setString);
-			int rowsChanged = st.executeUpdate( updateString);
-
-			// get every row and check if a change has been made.
-			// Note that a query after an update is apparently not stable.
-		        String query  = "select * from foobar";
-			ResultSet rs     = st.executeQuery( query);
-
-			// We can't do a selection then an update on JUST THAT SELECTION.
-			// The update will be on the entire table. So we do the update
-			// with the predicate then iterate through ALL the rows adding them
-			// to the feature-changed list.
-
-			// TODO: Only add features to the feature-changed list if
-			// at least one attribute was changed in the update command.
-			java.util.List  schema = fc.getSchema();
-			while(rs.next()){
-				int row = rs.getInt( "key");
-				Feature feature = fc.getFeature( row);
-				Map fieldMap = new HashMap();
-				Iterator si = schema.iterator();
-				while (si.hasNext()){
-					Field field = (Field)si.next();
-					String name = getSQLname( field.name);
-					if (field.editable==true){
-						Class cl = field.type;
-						if (cl==Integer.class || 
-						    cl==Double.class  ||
-						    cl==String.class){
-							fieldMap.put( field, rs.getObject(name));
-						} 
-						else if (cl==Color.class){
-							Integer result = (Integer)rs.getObject(name);
-							if (result==null){
-								fieldMap.put( field, null);
-							} else {
-								fieldMap.put( field, new Color( result.intValue()));
-							}
-						}
-						else if (cl==LineType.class){
-							Integer result = (Integer)rs.getObject(name);
-							if (result==null){
-								fieldMap.put( field, null);
-							} else {
-								fieldMap.put( field, new LineType( result.intValue()));
-							}
-						}
-						else if (cl==Boolean.class){
-							String b  = (String)rs.getObject( name);
-							if (b==null){
-								fieldMap.put( field, null);
-							} else if (b.equals("true")){
-								fieldMap.put( field, Boolean.valueOf(true));
-							} else {
-								fieldMap.put( field, Boolean.valueOf(false));
-							}
-						} 
+			FeatureQuery.Update update = FeatureQuery.compileUpdate( setString, fc.getSchema());
+
+			// compute every change before applying any of them, so the
+			// features are only touched if the whole update succeeds.
+			Map featureMap = new HashMap();
+			int rowsChanged = 0;
+			List features = fc.getFeatures();
+			for (int key=0; key < features.size(); key++){
+				Feature feature = (Feature)features.get(key);
+				Map<Field,Object> fieldMap = update.apply( feature, key);
+				if (fieldMap != null){
+					rowsChanged++;
+					if (!fieldMap.isEmpty()){
+						featureMap.put( feature, fieldMap);
 					}
 				}
-				featureMap.put( feature, fieldMap);
 			}
 
-
 			// everything is fine. Put all the stuff into the fc.
 			fc.setAttributes( featureMap);
 			resultStr = rowsChanged + " rows updated";
-		    
-			conn.close();
-			conn = null;
-		    
-
 		}  catch (SQLException sqle){
 			resultStr = "SQL error updating: " +   sqle.getMessage();
 			System.out.println( resultStr);
@@ -309,14 +193,6 @@ public class FeatureSQL {
 			resultStr = "error updating: " + e.getMessage();
 			log.println( resultStr);
 		} 
-
-		// clean up, in case of exception.
-		try{
-			if (conn != null){
-				conn.close();
-			}
-		}catch (Exception e1){}
-	    
 	}
 
 
@@ -325,30 +201,10 @@ public class FeatureSQL {
 	 * returns an array of row indices that correspond to the inputted where clause.
 	 */
 	public static void delete( FeatureCollection fc, String where) {
-
-		Connection conn = null;
-
 		try {
-			conn = DriverManager.getConnection("jdbc:hsqldb:test");
-			Statement  st = conn.createStatement();
-
-			makeTempTable( conn, st, fc);
-
-			// run the query
-			String query = "select key from foobar " + filterSQL( where);
-			ResultSet rs = st.executeQuery( query );
-
-
-			// get the resulting key values and set selection on for those rows
-			List removeRows = new ArrayList();
-			while(rs.next()){
-				int key = rs.getInt(1);
-				removeRows.add( fc.getFeature(key));
-			}
+			List<Feature> removeRows = matching( fc, where);
 			fc.removeFeatures( removeRows);
 
-			conn.close();
-
 			resultStr = removeRows.size() + " rows deleted";
 		} 
 		catch (SQLException sqle){
@@ -359,179 +215,21 @@ public class FeatureSQL {
 			resultStr = "error selecting rows: " + e.getMessage();
 			log.println( resultStr);
 		} 
-
-		// clean up.  (odd, we get a warning if we try to put a finally block here.)
-		try{
-			if (conn != null){
-				conn.close();
-			}
-		}catch (Exception e1){}
-	
 	}
 
 
-
-	//  Make a temporary table that is a copy of the feature table for the sql statements 
-	// to work off of.
-	private static void makeTempTable( Connection conn, Statement st, FeatureCollection fc) throws SQLException {
-		
-		// make temp table 
-		String query = "create temp table foobar (";
-		String columnName;
-		String columnType;
-		java.util.List schema = fc.getSchema();
-		Iterator si = schema.iterator();
-		while (si.hasNext()){
-			Field field = (Field)si.next();
-			columnName = getSQLname( field.name);
-			columnType = getSQLtype( field.type);
-			query += columnName + " " + columnType + ", ";
-		}
-		query += " key int)";
-		st.execute( query); //"create temp table foobar (a int, b char(10), key int)");
-			
-		// populate the temp table
-		for (int i=0; i< fc.getFeatures().size(); i++){
-			query ="insert into foobar values " + getSQLvalueString( schema, fc.getFeature(i), i);
-			st.execute( query); 
-		}
-	}
-	
-
-	// returns an SQL-compatible version of the inputted ID.
-	private static String getSQLname( String name){
-		return name.replace(' ','_').replace('[', ' ').replace(']', ' ');
-	}
-	
-	
-	// returns the SQL-compatible string of the inputted class.
-	private static String getSQLtype( Class cl){
-		if (cl == Integer.class) {
-			return "int";
-		} 
-		else if (cl==Float.class || cl==Double.class){
-			return "float";
-		} 
-		else if (cl==Color.class){
-			return "int";
-		} 
-		else if (cl==LineType.class){
-			return "int";
-		}
-		else {
-			return "char(30)";
-		}
-	}
-	
-
-	// returns the values of the columns in SQL format.
-	private static String getSQLvalueString( java.util.List sc, Feature f, int key){
-		StringBuffer str = new StringBuffer();
-		str.append("( ");
-		Iterator si = sc.iterator();
-		while (si.hasNext()){
-			Field field = (Field)si.next();
-			if ( field.type == Integer.class ){
-				Integer intObj = (Integer)f.getAttribute(field);
-				if (intObj==null){
-					str.append( "null" );
-				} else {
-					str.append( String.valueOf( intObj));
-				}
-			}
-			else if ( field.type == Float.class ){
-				Float floatObj = (Float)f.getAttribute(field);
-				if (floatObj==null){
-					str.append( "null" );
-				} else {
-					str.append( String.valueOf( floatObj));
-				}
-				str.append( String.valueOf( (Float)f.getAttribute( field)));
-			}
-			else if ( field.type == Double.class ){
-				Double doubleObj = (Double)f.getAttribute(field);
-				if (doubleObj==null){
-					str.append( "null" );
-				} else {
-					str.append( String.valueOf( doubleObj));
-				}
-			}
-			else if ( field.type == Color.class ){
-				Color colorObj = (Color)f.getAttribute(field);
-				if (colorObj==null){
-					str.append( "null" );
-				} else {
-					str.append( String.valueOf( colorObj.getRGB()));
-				}
-			}
-			else if ( field.type == LineType.class ){
-				LineType lineObj = (LineType)f.getAttribute(field);
-				if (lineObj==null){
-					str.append( "null" );
-				} else {
-					str.append( String.valueOf( lineObj.getType()));
-				}
-			}
-			else if ( field.type == Boolean.class ){
-				Boolean boolObj = (Boolean)f.getAttribute(field);
-				if (boolObj==null){
-					str.append( "null" );
-				} else if ( boolObj == Boolean.FALSE){
-					str.append( "'false'");
-				} else {
-					str.append( "'true'");
-				}
-			}
-			else if ( field.type == String.class ){
-				String stringObj = (String)f.getAttribute(field);
-				if (stringObj==null){
-					str.append( "null" );
-				} else {
-					str.append( "'" + filterString( stringObj) + "'" );
-				}
-			}
-			else {
-				str.append( "null" );
-			}
-			str.append( ", ");
-		}
-		
-		str.append( key + " )");
-		return str.toString();
-	}
-	
-	
-	// summarily dismisses any apostrophes in the string.
-	static private String filterString( String s){
-		StringBuffer sb = new StringBuffer();
-		for (int i=0; i< s.length(); i++){
-			if (s.charAt(i)!='\''){
-				sb.append(s.charAt(i));
-			}
-		}
-		return sb.toString();
-	}
-	
-
-	// replaces invalid IDs with valid ones in the inputted string.
-	private static String filterSQL( String where){
-		StringBuffer    str = new StringBuffer();
-		
-		if (where!=null && where.length() >0){
-			LexicalAnalyzer lex = new LexicalAnalyzer( where);
-			
-			for ( LexicalAnalyzer.Token token = lex.getNextToken();
-			      token.value != LexicalAnalyzer.EOL;
-			      token = lex.getNextToken()){
-				if (token.value == LexicalAnalyzer.ID){
-					str.append( " " + getSQLname(token.str));
-				} 
-				else {
-					str.append( " " + token.str);
-				}
+	// returns the features, in collection order, that match the where clause.
+	private static List<Feature> matching( FeatureCollection fc, String where) throws SQLException {
+		FeatureQuery.Predicate predicate = FeatureQuery.compileWhere( where, fc.getSchema());
+		List<Feature> matches = new ArrayList<Feature>();
+		List features = fc.getFeatures();
+		for (int key=0; key < features.size(); key++){
+			Feature feature = (Feature)features.get(key);
+			if (predicate.matches( feature, key)){
+				matches.add( feature);
 			}
 		}
-		return str.toString();
+		return matches;
 	}
 
 	// parses out the line that was input and runs the specified action.
@@ -761,7 +459,7 @@ public class FeatureSQL {
 
 
 	// breaks the inputted line into easily digestible bits.
-	private static class LexicalAnalyzer {
+	static class LexicalAnalyzer {
 
 		static final int EOL        = 0;
 		static final int BAD_TOKEN  = 1;
@@ -800,6 +498,9 @@ public class FeatureSQL {
 		
 		private char get(){
 			if (count >= line.length()){
+				// still count the read, so an unget() after reaching the end
+				// does not back up onto the last real character.
+				count++;
 				return (char)EOL;
 			} else {
 				return line.charAt( count++ );
@@ -869,6 +570,7 @@ public class FeatureSQL {
 							String num = getNumber(ch1);
 							return new Token( NUMBER, String.valueOf(ch) + num);
 						} else {
+							unget();
 							return new Token( SUBTRACT, "-");
 						} 
 					case '.':
@@ -98,8 +98,7 @@ public final class MemoryFeatureIndex implements FeatureIndex, FeatureListener {
 			List<Feature> matches = new ArrayList<Feature>();
 			for (Feature f: features) {
 				for (Rectangle2D r: rects) {
-					// TODO: cache bounds on FPath instead of using GeneralPath's, which is computed every time
-					Rectangle2D bound = f.getPath().getWorld().getGeneralPath().getBounds2D();
+					Rectangle2D bound = f.getPath().getWorld().getBounds();
 					if (overlap(r, bound)) {
 						matches.add(f);
 						break;
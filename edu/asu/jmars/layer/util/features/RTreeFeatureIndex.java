@@ -0,0 +1,451 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.asu.jmars.util.Util;
+
+/**
+ * An in-memory R-tree spatial index over a given FeatureCollection. Each
+ * feature's world coordinate bounds are computed once when it is added or its
+ * path changes, and queries only visit the nodes of the tree that overlap the
+ * query. Queries may return records that are not strictly within the
+ * requested area, so for exact results, a subsequent overlap test should be
+ * performed.
+ *
+ * Large additions (including the initial load) rebuild the whole tree with
+ * Sort-Tile-Recursive packing; smaller additions are inserted one at a time.
+ * Removals leave underfull nodes in place until enough have accumulated to
+ * make a rebuild worthwhile.
+ *
+ * Results are returned in the order the features were added to the index, the
+ * same order as {@link MemoryFeatureIndex}, since renderers draw them in that
+ * order.
+ *
+ * This index is threadsafe. Any number of queries may run at once, and changes
+ * wait for running queries to finish.
+ *
+ * This index adds itself as a listener to the given feature collection and
+ * keeps itself up to date with changes, and disconnect() should be called when
+ * this index is no longer in use so it may be garbage collected.
+ */
+public final class RTreeFeatureIndex implements FeatureIndex, FeatureListener {
+	/** Maximum children per node */
+	private static final int MAX_CHILDREN = 16;
+
+	private final FeatureCollection fc;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<Feature,Entry> entries = new HashMap<Feature,Entry>();
+	private Node root = new Node(true);
+	/** Sequence number given to the next added feature */
+	private long nextSeq = 0;
+	/** Removals since the tree was last packed */
+	private int removals = 0;
+
+	public RTreeFeatureIndex(FeatureCollection fc) {
+		this.fc = fc;
+		lock.writeLock().lock();
+		try {
+			add(features(fc.getFeatures()));
+		} finally {
+			lock.writeLock().unlock();
+		}
+		fc.addListener(this);
+	}
+
+	public void disconnect() {
+		fc.removeListener(this);
+	}
+
+	/**
+	 * Returns the features whose bounds overlap the given rectangle, after
+	 * wrapping it into the 0-360 world range with {@link Util#toWrappedWorld}.
+	 */
+	public Iterator<Feature> queryUnwrappedWorld(Rectangle2D rect) {
+		Rectangle2D[] rects = Util.toWrappedWorld(rect);
+		Set<Entry> found = new HashSet<Entry>();
+		lock.readLock().lock();
+		try {
+			for (Rectangle2D r: rects) {
+				root.search(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), found);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Entry[] sorted = found.toArray(new Entry[found.size()]);
+		Arrays.sort(sorted, seqOrder);
+		List<Feature> matches = new ArrayList<Feature>(sorted.length);
+		for (Entry e: sorted) {
+			matches.add(e.feature);
+		}
+		return matches.iterator();
+	}
+
+	public void receive(FeatureEvent e) {
+		switch (e.type) {
+		case FeatureEvent.ADD_FEATURE:
+		case FeatureEvent.REMOVE_FEATURE:
+		case FeatureEvent.CHANGE_FEATURE:
+			break;
+		default:
+			return;
+		}
+		if (e.type == FeatureEvent.CHANGE_FEATURE && !e.fields.contains(Field.FIELD_PATH)) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			switch (e.type) {
+			case FeatureEvent.ADD_FEATURE:
+				add(features(e.features));
+				break;
+			case FeatureEvent.REMOVE_FEATURE:
+				for (Feature f: features(e.features)) {
+					remove(f);
+				}
+				break;
+			case FeatureEvent.CHANGE_FEATURE:
+				// re-insert with the new bounds but the same place in the order
+				for (Feature f: features(e.valuesBefore.keySet())) {
+					Entry old = remove(f);
+					if (old != null) {
+						insert(f, old.seq);
+					}
+				}
+				break;
+			}
+			if (removals > Math.max(MAX_CHILDREN, entries.size())) {
+				pack();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Views a collection from the untyped FeatureCollection API as Features */
+	@SuppressWarnings("unchecked")
+	private static Collection<Feature> features(Collection<?> c) {
+		return (Collection<Feature>)c;
+	}
+
+	/** Adds the features, packing the whole tree if the addition is large */
+	private void add(Collection<Feature> features) {
+		if (features.size() > Math.max(MAX_CHILDREN, entries.size() / 4)) {
+			for (Feature f: features) {
+				if (!entries.containsKey(f)) {
+					Entry e = createEntry(f, nextSeq++);
+					if (e != null) {
+						entries.put(f, e);
+					}
+				}
+			}
+			pack();
+		} else {
+			for (Feature f: features) {
+				if (!entries.containsKey(f)) {
+					insert(f, nextSeq++);
+				}
+			}
+		}
+	}
+
+	private static Entry createEntry(Feature f, long seq) {
+		FPath path = f.getPath();
+		if (path == null) {
+			return null;
+		}
+		Rectangle2D b = path.getWorld().getBounds();
+		return new Entry(f, seq, b.getMinX(), b.getMinY(), b.getMaxX(), b.getMaxY());
+	}
+
+	private void insert(Feature f, long seq) {
+		Entry e = createEntry(f, seq);
+		if (e == null) {
+			return;
+		}
+		entries.put(f, e);
+		Node leaf = root;
+		while (!leaf.leaf) {
+			leaf = leaf.chooseChild(e);
+		}
+		leaf.addChild(e);
+		Node n = leaf;
+		while (n != null) {
+			if (n.count > MAX_CHILDREN) {
+				Node sibling = n.split();
+				if (n.parent == null) {
+					Node newRoot = new Node(false);
+					newRoot.addChild(n);
+					newRoot.addChild(sibling);
+					root = newRoot;
+				} else {
+					n.parent.addChild(sibling);
+				}
+			}
+			n = n.parent;
+			if (n != null) {
+				n.recomputeBounds();
+			}
+		}
+	}
+
+	private Entry remove(Feature f) {
+		Entry e = entries.remove(f);
+		if (e == null || e.parent == null) {
+			return e;
+		}
+		Node n = e.parent;
+		n.removeChild(e);
+		// drop empty nodes and shrink the bounds of their ancestors
+		while (n != null) {
+			Node parent = n.parent;
+			if (n.count == 0 && parent != null) {
+				parent.removeChild(n);
+			} else {
+				n.recomputeBounds();
+			}
+			n = parent;
+		}
+		removals++;
+		return e;
+	}
+
+	/** Rebuilds the tree from all entries with Sort-Tile-Recursive packing */
+	private void pack() {
+		removals = 0;
+		List<Box> level = new ArrayList<Box>(entries.values());
+		boolean leaves = true;
+		do {
+			level = packLevel(level, leaves);
+			leaves = false;
+		} while (level.size() > 1);
+		if (level.isEmpty()) {
+			root = new Node(true);
+		} else {
+			root = (Node)level.get(0);
+			root.parent = null;
+		}
+	}
+
+	private static List<Box> packLevel(List<Box> boxes, boolean leaves) {
+		List<Box> nodes = new ArrayList<Box>();
+		int n = boxes.size();
+		if (n == 0) {
+			return nodes;
+		}
+		int nodeCount = (n + MAX_CHILDREN - 1) / MAX_CHILDREN;
+		int slices = (int)Math.ceil(Math.sqrt(nodeCount));
+		int sliceSize = slices * MAX_CHILDREN;
+		Box[] sorted = boxes.toArray(new Box[n]);
+		Arrays.sort(sorted, xOrder);
+		for (int s = 0; s < n; s += sliceSize) {
+			int end = Math.min(n, s + sliceSize);
+			Arrays.sort(sorted, s, end, yOrder);
+			for (int i = s; i < end; i += MAX_CHILDREN) {
+				Node node = new Node(leaves);
+				for (int j = i; j < Math.min(end, i + MAX_CHILDREN); j++) {
+					node.addChild(sorted[j]);
+				}
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
+	private static final Comparator<Box> xOrder = new Comparator<Box>() {
+		public int compare(Box a, Box b) {
+			return Double.compare(a.minX + a.maxX, b.minX + b.maxX);
+		}
+	};
+
+	private static final Comparator<Box> yOrder = new Comparator<Box>() {
+		public int compare(Box a, Box b) {
+			return Double.compare(a.minY + a.maxY, b.minY + b.maxY);
+		}
+	};
+
+	private static final Comparator<Entry> seqOrder = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return a.seq < b.seq ? -1 : a.seq > b.seq ? 1 : 0;
+		}
+	};
+
+	/** A bounding box in the tree, either a node or a feature entry */
+	private static abstract class Box {
+		double minX, minY, maxX, maxY;
+		Node parent;
+
+		final boolean overlaps(double x1, double y1, double x2, double y2) {
+			return x1 < maxX && x2 > minX && y1 < maxY && y2 > minY;
+		}
+
+		final double area() {
+			return (maxX - minX) * (maxY - minY);
+		}
+	}
+
+	private static final class Entry extends Box {
+		final Feature feature;
+		final long seq;
+		Entry(Feature feature, long seq, double minX, double minY, double maxX, double maxY) {
+			this.feature = feature;
+			this.seq = seq;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+	}
+
+	private static final class Node extends Box {
+		final boolean leaf;
+		Box[] children = new Box[MAX_CHILDREN + 1];
+		int count;
+
+		Node(boolean leaf) {
+			this.leaf = leaf;
+			setEmpty();
+		}
+
+		private void setEmpty() {
+			minX = minY = Double.POSITIVE_INFINITY;
+			maxX = maxY = Double.NEGATIVE_INFINITY;
+		}
+
+		void addChild(Box b) {
+			if (count == children.length) {
+				Box[] grown = new Box[children.length * 2];
+				System.arraycopy(children, 0, grown, 0, count);
+				children = grown;
+			}
+			children[count++] = b;
+			b.parent = this;
+			include(b);
+		}
+
+		void removeChild(Box b) {
+			for (int i = 0; i < count; i++) {
+				if (children[i] == b) {
+					children[i] = children[--count];
+					children[count] = null;
+					b.parent = null;
+					return;
+				}
+			}
+		}
+
+		private void include(Box b) {
+			minX = Math.min(minX, b.minX);
+			minY = Math.min(minY, b.minY);
+			maxX = Math.max(maxX, b.maxX);
+			maxY = Math.max(maxY, b.maxY);
+		}
+
+		void recomputeBounds() {
+			setEmpty();
+			for (int i = 0; i < count; i++) {
+				include(children[i]);
+			}
+		}
+
+		/** Returns the child needing the least enlargement to hold b, breaking ties on smaller area */
+		Node chooseChild(Box b) {
+			Node best = null;
+			double bestGrowth = Double.POSITIVE_INFINITY;
+			double bestArea = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < count; i++) {
+				Node c = (Node)children[i];
+				double area = c.area();
+				double grown = (Math.max(c.maxX, b.maxX) - Math.min(c.minX, b.minX)) *
+					(Math.max(c.maxY, b.maxY) - Math.min(c.minY, b.minY));
+				double growth = grown - area;
+				if (growth < bestGrowth || (growth == bestGrowth && area < bestArea)) {
+					best = c;
+					bestGrowth = growth;
+					bestArea = area;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Moves half of the children, sorted along the axis on which their
+		 * centers are most spread out, into a new sibling node and returns it.
+		 */
+		Node split() {
+			double minCX = Double.POSITIVE_INFINITY, maxCX = Double.NEGATIVE_INFINITY;
+			double minCY = Double.POSITIVE_INFINITY, maxCY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < count; i++) {
+				Box b = children[i];
+				minCX = Math.min(minCX, b.minX + b.maxX);
+				maxCX = Math.max(maxCX, b.minX + b.maxX);
+				minCY = Math.min(minCY, b.minY + b.maxY);
+				maxCY = Math.max(maxCY, b.minY + b.maxY);
+			}
+			Box[] all = new Box[count];
+			System.arraycopy(children, 0, all, 0, count);
+			Arrays.sort(all, (maxCX - minCX) >= (maxCY - minCY) ? xOrder : yOrder);
+
+			Node sibling = new Node(leaf);
+			Arrays.fill(children, null);
+			count = 0;
+			setEmpty();
+			int half = all.length / 2;
+			for (int i = 0; i < all.length; i++) {
+				if (i < half) {
+					addChild(all[i]);
+				} else {
+					sibling.addChild(all[i]);
+				}
+			}
+			return sibling;
+		}
+
+		void search(double x1, double y1, double x2, double y2, Set<Entry> found) {
+			if (!overlaps(x1, y1, x2, y2)) {
+				return;
+			}
+			for (int i = 0; i < count; i++) {
+				Box b = children[i];
+				if (leaf) {
+					if (b.overlaps(x1, y1, x2, y2)) {
+						found.add((Entry)b);
+					}
+				} else {
+					((Node)b).search(x1, y1, x2, y2, found);
+				}
+			}
+		}
+	}
+}
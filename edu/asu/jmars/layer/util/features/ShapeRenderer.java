@@ -20,29 +20,46 @@
 
 package edu.asu.jmars.layer.util.features;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.Shape;
 import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.asu.jmars.Main;
+import edu.asu.jmars.graphics.GraphicsWrapped;
 import edu.asu.jmars.layer.Layer;
 import edu.asu.jmars.layer.ProjectionEvent;
 import edu.asu.jmars.layer.ProjectionListener;
+import edu.asu.jmars.layer.map2.MapThreadFactory;
+import edu.asu.jmars.util.Config;
+import edu.asu.jmars.util.Util;
 
 /**
  * Realizes the FeatureRenderer for the ShapeLayer. The ShapeLayer uses this
@@ -57,9 +74,18 @@ import edu.asu.jmars.layer.ProjectionListener;
  * with any kind of Feature by mapping attributes to styles through the Styles
  * class.
  * 
- * During {@link #drawAll(Graphics2D, Collection)}, a progress notification is
- * sent to each ProgressListener registered with the Renderer. This notification
- * is generated on every draw.
+ * The drawAll methods resolve the styles of every feature first, so features
+ * that look alike share one set of strokes and colors, which are only
+ * installed on the Graphics2D when they change. Runs of opaque outlines with
+ * the same style are stroked as one path. Fills, vertices, arrows and labels
+ * are still drawn per feature, so overlapping features keep their order.
+ * 
+ * {@link #drawAllParallel(Graphics2D, Collection)} additionally splits the
+ * screen into horizontal strips drawn on a shared pool of threads.
+ * 
+ * During a drawAll, a progress notification is sent to each ProgressListener
+ * registered with the Renderer, at most every {@link #progressInterval}
+ * milliseconds.
  * 
  * A {@link #drawAll(Graphics2D, Collection)} may be aborted in middle by
  * issuing a {@link #stopDrawing()}. This call has no effect when the
@@ -146,6 +172,36 @@ public class ShapeRenderer implements ProjectionListener {
 	 * slow.
 	 */
 	private static final int defaultStopDrawingCheckCount = 10;
+	
+	/** Minimum milliseconds between progress notifications */
+	private static final long progressInterval = 250;
+	
+	/** Set to false to draw all features on the calling thread */
+	private static final boolean parallel = Config.get("shape.render.parallel", true);
+	
+	/** Fewest features worth splitting across threads */
+	private static final int parallelMinFeatures = Config.get("shape.render.parallelMin", 500);
+	
+	/** Fewest rows in each parallel strip */
+	private static final int minStripHeight = Math.max(1, Config.get("shape.render.stripHeight", 64));
+	
+	/** Most outlines appended into a single batched path */
+	private static final int maxBatchCount = 1000;
+	
+	/** Resolved styles kept before the cache is dropped */
+	private static final int maxResolvedStyles = 4096;
+	
+	/** Threads shared by all renderers for parallel strips */
+	private static ExecutorService pool;
+	
+	/**
+	 * Interned resolved styles, with strokes built for the magnification they
+	 * were resolved at.
+	 */
+	private final Map<ResolvedStyle,ResolvedStyle> resolvedStyles = new HashMap<ResolvedStyle,ResolvedStyle>();
+	
+	/** Time of the last progress notification */
+	private long lastProgress;
 
 	/**
 	 * Creates an instance of the ShapeRenderer object. The instance takes the
@@ -228,83 +284,151 @@ public class ShapeRenderer implements ProjectionListener {
 	 *            Feature object to render.
 	 */
 	public void draw(Graphics2D g2w, Feature f) {
+		Item item = resolve(f);
+		if (item != null) {
+			drawItem(new Pen(g2w), item, item.world.getGeneralPath());
+		}
+	}
+	
+	/**
+	 * Resolves the styles of the given Feature. Styles are read under the same
+	 * conditions in which they are used, so style sources only see requests
+	 * for styles that affect the appearance of the feature.
+	 * 
+	 * @return The resolved feature, or null if there is nothing to draw.
+	 */
+	private Item resolve(Feature f) {
 		try {
-			g2w.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-				styles.antialias.getValue(f)
-					? RenderingHints.VALUE_ANTIALIAS_ON
-					: RenderingHints.VALUE_ANTIALIAS_OFF);
-			
-			// Get the req'd path field
+			boolean antialias = styles.antialias.getValue(f);
 			FPath path = styles.geometry.getValue(f);
-			GeneralPath p = path.getWorld().getGeneralPath();
+			FPath world = path.getWorld();
 			int type = path.getType();
-			if (type == FPath.TYPE_NONE || p == null)
-				return;
-
-			// Install various pieces of style as needed and draw.
-
-			// Draw filled polygon.
+			if (type == FPath.TYPE_NONE)
+				return null;
+			
+			Color fillColor = null;
+			boolean fill = false;
+			int pointSize = 0;
 			if (type == FPath.TYPE_POINT) {
-				g2w.setColor(styles.fillColor.getValue(f));
-				fillVertices(g2w, p, styles.pointSize.getValue(f).intValue());
+				fillColor = styles.fillColor.getValue(f);
+				pointSize = styles.pointSize.getValue(f).intValue();
 			} else if (type == FPath.TYPE_POLYGON) {
-				g2w.setColor(styles.fillColor.getValue(f));
-				if (styles.fillPolygons.getValue(f)) {
-					g2w.fill(p);
-				}
+				fill = styles.fillPolygons.getValue(f);
+				if (fill)
+					fillColor = styles.fillColor.getValue(f);
 			}
 			
 			double lineWidth = styles.lineWidth.getValue(f).doubleValue();
 			float[] dashPattern = styles.lineDash.getValue(f).getDashPattern();
+			Color lineColor = styles.lineColor.getValue(f);
+			
+			boolean showVertices = false;
+			int vertexSize = 0;
+			if (type != FPath.TYPE_POINT && styles.showVertices.getValue(f)) {
+				showVertices = true;
+				vertexSize = styles.vertexSize.getValue(f).intValue();
+			}
 			
-			// TODO: THIS IS FOR THE FUTURE (WHERE NO MAN HAS GONE BEFORE ...
-			// CAPTAIN!)
-			// TODO: Add caching here: Cache: <lineWidth,lineDash,ProjObj> ->
-			// Stroke
-			// TODO: Drop Stroke cache on a Projection change
-			Stroke stroke = new BasicStroke(
-					getMagnifiedLineWidth(lineWidth),
+			boolean showLineDir = type == FPath.TYPE_POLYLINE && styles.showLineDir.getValue(f);
+			
+			boolean showLabels = styles.showLabels.getValue(f);
+			String label = null;
+			Color labelColor = null;
+			if (showLabels) {
+				label = styles.labelText.getValue(f);
+				labelColor = styles.labelColor.getValue(f);
+			}
+			
+			ResolvedStyle style = intern(new ResolvedStyle(getMagnification(),
+				type, antialias, fillColor, fill, pointSize, lineWidth,
+				dashPattern, lineColor, showVertices, vertexSize, showLineDir,
+				showLabels, labelColor));
+			Rectangle2D bounds = world.getBounds();
+			double pad = style.pad / style.magnification;
+			return new Item(style, world, label,
+				bounds.getMinY() - pad, bounds.getMaxY() + pad);
+		} catch (ClassCastException ex) {
+			ex.printStackTrace();
+		} catch (NullPointerException ex) {
+			ex.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the shared instance equal to the given style, creating its
+	 * strokes if this is the first time the style has been seen.
+	 */
+	private ResolvedStyle intern(ResolvedStyle style) {
+		synchronized(resolvedStyles) {
+			ResolvedStyle known = resolvedStyles.get(style);
+			if (known != null)
+				return known;
+			if (resolvedStyles.size() >= maxResolvedStyles)
+				resolvedStyles.clear();
+			float width = getMagnifiedLineWidth(style.lineWidth);
+			style.stroke = new BasicStroke(width,
 					defaultStrokeCapStyle, defaultStrokeJoinStyle,
-					defaultMiterLimit, getMagnifiedDashPattern(dashPattern), 0);
-
-			g2w.setStroke(stroke);
-			g2w.setColor(styles.lineColor.getValue(f));
-			if (type == FPath.TYPE_POINT)
-				drawVertices(g2w, p, styles.pointSize.getValue(f).intValue());
+					defaultMiterLimit, getMagnifiedDashPattern(style.dashPattern), 0);
+			// Non-patterned stroke to draw vertices and arrows.
+			style.solidStroke = new BasicStroke(width,
+					defaultStrokeCapStyle, defaultStrokeJoinStyle,
+					defaultMiterLimit, null, 0);
+			style.pad = style.lineWidth / 2 + Math.max(style.pointSize, style.vertexSize) + 2;
+			if (style.showLineDir)
+				style.pad += ahHeight;
+			if (style.showLabels)
+				style.pad += 2 * font.getSize() + labelOffset.getY();
+			resolvedStyles.put(style, style);
+			return style;
+		}
+	}
+	
+	/**
+	 * Draws a single resolved feature, in the order fill, outline, vertices,
+	 * direction arrow and label.
+	 */
+	private void drawItem(Pen pen, Item item, GeneralPath p) {
+		ResolvedStyle s = item.style;
+		Graphics2D g2w = pen.g2w;
+		try {
+			pen.antialias(s.antialias);
+			
+			// Draw filled polygon.
+			if (s.type == FPath.TYPE_POINT) {
+				pen.color(s.fillColor);
+				fillVertices(g2w, p, s.pointSize);
+			} else if (s.fill) {
+				pen.color(s.fillColor);
+				g2w.fill(p);
+			}
+			
+			pen.stroke(s.stroke);
+			pen.color(s.lineColor);
+			if (s.type == FPath.TYPE_POINT)
+				drawVertices(g2w, p, s.pointSize);
 			else
 				g2w.draw(p);
-
+			
 			// Switch to non-patterned stroke to draw vertices and arrows.
-			stroke = new BasicStroke(getMagnifiedLineWidth(lineWidth),
-					defaultStrokeCapStyle, defaultStrokeJoinStyle,
-					defaultMiterLimit, null, 0);
-
-			g2w.setStroke(stroke);
-
+			if (s.showVertices || s.showLineDir)
+				pen.stroke(s.solidStroke);
+			
 			// Draw vertices.
-			if (type != FPath.TYPE_POINT && styles.showVertices.getValue(f))
-				drawVertices(g2w, p, styles.vertexSize.getValue(f).intValue());
-
+			if (s.showVertices)
+				drawVertices(g2w, p, s.vertexSize);
+			
 			// Draw direction arrows.
-			if (type == FPath.TYPE_POLYLINE) {
-				if (styles.showLineDir.getValue(f)) {
-					Line2D lastSeg = getLastSegment(p);
-					GeneralPath arrowHead = makeArrowHead(lastSeg);
-					g2w.fill(arrowHead);
-				}
-			}
-
+			if (s.showLineDir)
+				g2w.fill(makeArrowHead(getLastSegment(p)));
+			
 			// Draw optional text.
-			if (styles.showLabels.getValue(f)) {
-				String label = styles.labelText.getValue(f);
-				Color labelColor = styles.labelColor.getValue(f);
-				Point2D center = path.getWorld().getCenter();
+			if (s.showLabels) {
+				Point2D center = item.world.getCenter();
 				Point2D offset = getMagnifiedTextOffset(labelOffset);
 				float x = (float)(center.getX() + offset.getX());
 				float y = (float)(center.getY() + offset.getY());
-				g2w.setFont(font);
-				g2w.setColor(labelColor);
-				g2w.drawString(label, x, y);
+				pen.label(item.label, s.labelColor, x, y);
 			}
 		} catch (ClassCastException ex) {
 			ex.printStackTrace();
@@ -313,6 +437,86 @@ public class ShapeRenderer implements ProjectionListener {
 		}
 	}
 	
+	/**
+	 * Strokes a batch of outlines that share the given style.
+	 */
+	private void drawBatch(Pen pen, ResolvedStyle s, GeneralPath batch) {
+		pen.antialias(s.antialias);
+		pen.stroke(s.stroke);
+		pen.color(s.lineColor);
+		pen.g2w.draw(batch);
+	}
+	
+	/**
+	 * Draws the features of the given pass whose padded world y range
+	 * overlaps the given range, in order.
+	 * 
+	 * Consecutive features with the same {@link ResolvedStyle#batchable}
+	 * style are appended into one path and stroked together. This requires a
+	 * {@link GraphicsWrapped}, since each outline must be normalized into the
+	 * wrapping range before they are combined, and the combined bounds must
+	 * stay narrow enough that the wrapping graphics leaves them alone.
+	 */
+	private void drawItems(Graphics2D g2w, Pass pass, double minY, double maxY) {
+		Pen pen = new Pen(g2w);
+		GraphicsWrapped gw = g2w instanceof GraphicsWrapped ? (GraphicsWrapped)g2w : null;
+		double maxWidth = gw == null ? 0 : gw.getModulus() / 2;
+		GeneralPath batch = null;
+		ResolvedStyle batchStyle = null;
+		Rectangle2D batchBounds = null;
+		int batchCount = 0;
+		int count = 0;
+		for (Item item: pass.items) {
+			// We check every so often to see if the user has requested
+			// that the drawing be stopped. Checking on volatile
+			// stopDrawing is slow.
+			if (++count >= defaultStopDrawingCheckCount) {
+				pass.finished(count);
+				count = 0;
+				if (pass.isStopped())
+					return;
+			}
+			
+			if (item.maxY < minY || item.minY > maxY)
+				continue;
+			
+			ResolvedStyle s = item.style;
+			GeneralPath p = item.world.getGeneralPath();
+			Shape norm = null;
+			Rectangle2D bounds = null;
+			if (gw != null && s.batchable) {
+				norm = gw.normalize(p);
+				bounds = norm.getBounds2D();
+				if (bounds.getWidth() >= maxWidth)
+					norm = null;
+			}
+			
+			if (batch != null && (norm == null || s != batchStyle
+					|| batchCount >= maxBatchCount
+					|| Math.max(batchBounds.getMaxX(), bounds.getMaxX())
+						- Math.min(batchBounds.getMinX(), bounds.getMinX()) >= maxWidth)) {
+				drawBatch(pen, batchStyle, batch);
+				batch = null;
+			}
+			
+			if (norm == null) {
+				drawItem(pen, item, p);
+			} else if (batch == null) {
+				batch = new GeneralPath(norm);
+				batchStyle = s;
+				batchBounds = bounds;
+				batchCount = 1;
+			} else {
+				batch.append(norm, false);
+				batchBounds.add(bounds);
+				batchCount++;
+			}
+		}
+		if (batch != null)
+			drawBatch(pen, batchStyle, batch);
+		pass.finished(count);
+	}
+	
 	/**
 	 * Shared vertex box used for various drawing functions.
 	 * 
@@ -324,18 +528,19 @@ public class ShapeRenderer implements ProjectionListener {
 	private Map sharedVertexBoxes = new HashMap();
 
 	/**
-	 * Returns the shared instance of vertex box used for various drawing
+	 * Returns a copy of the shared vertex box used for various drawing
 	 * routines. The vetex box is constructed using the LView's current
-	 * projection and the preset defaultVertexBoxSide.
+	 * projection and the preset defaultVertexBoxSide. A copy is returned
+	 * since the drawing routines move it and may run on several threads.
 	 * 
-	 * @return A shared instance of vertex box.
+	 * @return A copy of the shared vertex box.
 	 * 
 	 * @see #sharedVertexBoxes
 	 * @see #defaultVertexBoxSide
 	 * @see #drawVertices(Graphics2D, GeneralPath)
 	 * @see #fillVertices(Graphics2D, GeneralPath)
 	 */
-	private Rectangle2D.Float getSharedVertexBox(int width) {
+	private synchronized Rectangle2D.Float getSharedVertexBox(int width) {
 		Rectangle2D.Float sharedVertexBox = (Rectangle2D.Float)sharedVertexBoxes.get(new Integer(width));
 		if (sharedVertexBox == null) {
 			sharedVertexBox = new Rectangle2D.Float();
@@ -348,7 +553,7 @@ public class ShapeRenderer implements ProjectionListener {
 			sharedVertexBoxes.put(new Integer(width), sharedVertexBox);
 		}
 		
-		return sharedVertexBox;
+		return (Rectangle2D.Float)sharedVertexBox.clone();
 	}
 
 	/**
@@ -423,7 +628,8 @@ public class ShapeRenderer implements ProjectionListener {
 
 	/**
 	 * Draw all Features from the given FeatureCollection onto the specified
-	 * World Graphics2D. On each draw registered ProgressListeners are notified.
+	 * World Graphics2D, in order. Registered ProgressListeners are notified
+	 * at most every {@link #progressInterval} milliseconds.
 	 * 
 	 * @param g2w
 	 *            World Graphics2D to draw into.
@@ -431,35 +637,189 @@ public class ShapeRenderer implements ProjectionListener {
 	 *            Collection of Feature objects to draw.
 	 */
 	public void drawAll(Graphics2D g2w, Collection fc) {
-		// TODO: group features by associated styles so we only set things once
+		begin();
+		try {
+			List<Item> items = resolveAll(fc);
+			if (items != null) {
+				Pass pass = new Pass(items, items.size());
+				drawItems(g2w, pass, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+				pass.complete();
+			}
+		} finally {
+			end();
+		}
+	}
+	
+	/**
+	 * Draw all Features from the given collection onto a Graphics2D in the
+	 * screen coordinates of the owning LView, such as an off-screen buffer.
+	 * Registered ProgressListeners are notified on the calling thread at most
+	 * every {@link #progressInterval} milliseconds.
+	 * 
+	 * When there are enough features, the screen is divided into horizontal
+	 * strips that are drawn in parallel into separate images, each strip
+	 * drawing only the features that reach it. Each strip is copied onto the
+	 * given Graphics2D once it is finished, replacing what is there, before
+	 * the next progress event, so listeners may repaint partial results as the
+	 * serial drawing allows.
+	 * 
+	 * @param g2s
+	 *            Screen Graphics2D to draw into.
+	 * @param fc
+	 *            Collection of Feature objects to draw.
+	 */
+	public void drawAllParallel(Graphics2D g2s, Collection<Feature> fc) {
+		begin();
+		try {
+			List<Item> items = resolveAll(fc);
+			if (items == null)
+				return;
+			
+			Dimension size = lView.getProj().getScreenSize();
+			AffineTransform worldToScreen = lView.getProj().getWorldToScreen();
+			int strips = Math.min(Runtime.getRuntime().availableProcessors(), size.height / minStripHeight);
+			if (!parallel || strips < 2 || items.size() < parallelMinFeatures) {
+				Graphics2D g2 = (Graphics2D)g2s.create();
+				g2.transform(worldToScreen);
+				Graphics2D g2w = lView.viewman.wrapWorldGraphics(g2);
+				try {
+					Pass pass = new Pass(items, items.size());
+					drawItems(g2w, pass, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+					pass.complete();
+				} finally {
+					g2w.dispose();
+				}
+			} else {
+				drawStrips(g2s, items, size, worldToScreen, strips);
+			}
+		} finally {
+			end();
+		}
+	}
+	
+	/**
+	 * Draws the given items in parallel horizontal strips and copies the
+	 * finished strips onto the given screen Graphics2D.
+	 */
+	private void drawStrips(Graphics2D g2s, List<Item> items, Dimension size,
+			AffineTransform worldToScreen, int stripCount) {
+		AffineTransform screenToWorld;
+		try {
+			screenToWorld = worldToScreen.createInverse();
+		} catch (NoninvertibleTransformException e) {
+			throw new IllegalStateException("Unable to draw with a singular world transform", e);
+		}
 		
-		isDrawing = true;
-
-		int i = 0, n = fc.size();
+		Pass pass = new Pass(items, items.size() * stripCount);
+		List<Strip> strips = new ArrayList<Strip>(stripCount);
+		List<Future<?>> futures = new ArrayList<Future<?>>(stripCount);
+		ExecutorService exec = getPool();
+		int y = 0;
+		for (int i = 0; i < stripCount; i++) {
+			int height = (size.height - y) / (stripCount - i);
+			Point2D top = screenToWorld.transform(new Point2D.Double(0, y), null);
+			Point2D bottom = screenToWorld.transform(new Point2D.Double(0, y + height), null);
+			Strip strip = new Strip(pass, y, size.width, height, worldToScreen,
+				Math.min(top.getY(), bottom.getY()), Math.max(top.getY(), bottom.getY()));
+			strips.add(strip);
+			futures.add(exec.submit(strip));
+			y += height;
+		}
+		
+		try {
+			int i = 0;
+			while (i < futures.size()) {
+				try {
+					futures.get(i).get(progressInterval, TimeUnit.MILLISECONDS);
+					i++;
+				} catch (TimeoutException e) {
+					// show the strips finished so far before reporting progress
+					copyStrips(g2s, strips, futures);
+					pass.finished(0);
+				}
+			}
+		} catch (InterruptedException e) {
+			pass.cancelled = true;
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			pass.cancelled = true;
+			throw new IllegalStateException("Failed drawing features: " + e.getCause().getMessage(), e.getCause());
+		}
+		
+		if (pass.isStopped()) {
+			pass.cancelled = true;
+			return;
+		}
+		
+		copyStrips(g2s, strips, futures);
+		for (Strip strip: strips) {
+			strip.image.flush();
+		}
+		pass.complete();
+	}
+	
+	/**
+	 * Replaces the screen area of each strip whose worker has finished with
+	 * the strip's image, once per strip. Strips still being drawn are left
+	 * alone, so an image is never read while its worker writes to it. The
+	 * strips cover the whole screen, and the screen buffer was cleared before
+	 * drawing started, so this matches drawing the finished strips over it.
+	 */
+	private static void copyStrips(Graphics2D g2s, List<Strip> strips, List<Future<?>> futures) {
+		Graphics2D g2 = (Graphics2D)g2s.create();
+		try {
+			g2.setComposite(AlphaComposite.Src);
+			for (int i = 0; i < strips.size(); i++) {
+				Strip strip = strips.get(i);
+				if (!strip.copied && futures.get(i).isDone()) {
+					g2.drawImage(strip.image, 0, strip.y, null);
+					strip.copied = true;
+				}
+			}
+		} finally {
+			g2.dispose();
+		}
+	}
+	
+	/**
+	 * Resolves the styles of all features in the collection, returning null
+	 * if drawing was stopped before they were all resolved.
+	 */
+	private List<Item> resolveAll(Collection<?> fc) {
+		List<Item> items = new ArrayList<Item>(fc.size());
 		int count = defaultStopDrawingCheckCount;
-
-		Iterator fi = fc.iterator();
-		while (fi.hasNext()) {
-			// We check every so often to see if the user has requested
-			// that the drawing be stopped. Checking on volatile
-			// stopDrawing is slow.
+		for (Iterator<?> fi = fc.iterator(); fi.hasNext(); ) {
 			if (++count >= defaultStopDrawingCheckCount) {
 				count = 0;
-				if (stopDrawing) {
-					stopDrawing = false;
-					isDrawing = false;
-					return;
-				}
+				if (stopDrawing)
+					return null;
 			}
-
-			draw(g2w, (Feature) fi.next());
-			fireProgressEvent(i++, n);
+			Item item = resolve((Feature) fi.next());
+			if (item != null)
+				items.add(item);
 		}
-
+		return items;
+	}
+	
+	private void begin() {
+		isDrawing = true;
+		lastProgress = System.currentTimeMillis();
+	}
+	
+	private void end() {
 		stopDrawing = false;
 		isDrawing = false;
 	}
-
+	
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			int procs = Math.max(1, Runtime.getRuntime().availableProcessors());
+			pool = Executors.newFixedThreadPool(procs, new MapThreadFactory("Shape Renderer"));
+		}
+		return pool;
+	}
+	
 	/**
 	 * Tells the Renderer to abandon the drawAll() method. Has no effect when
 	 * the Renderer is currently not drawing.
@@ -641,10 +1001,14 @@ public class ShapeRenderer implements ProjectionListener {
 	 *            The ProjectionEvent.
 	 */
 	public synchronized void projectionChanged(ProjectionEvent e) {
-		// TODO Flush various caches that are on a per projection basis
 
 		// Discard the shared vertex box. We'll build it again when we need it.
 		sharedVertexBoxes.clear();
+		
+		// Strokes depend on the magnification.
+		synchronized(resolvedStyles) {
+			resolvedStyles.clear();
+		}
 	}
 	
 	/**
@@ -660,6 +1024,260 @@ public class ShapeRenderer implements ProjectionListener {
 		return lView.getProj().getPPD();
 	}
 	
+	/**
+	 * The rendering state of a feature after all of its styles are resolved.
+	 * Instances are interned by {@link ShapeRenderer#intern}, so features
+	 * that look alike share one instance and may be compared by identity.
+	 */
+	private static final class ResolvedStyle {
+		final int magnification;
+		final int type;
+		final boolean antialias;
+		final Color fillColor;
+		final boolean fill;
+		final int pointSize;
+		final double lineWidth;
+		final float[] dashPattern;
+		final Color lineColor;
+		final boolean showVertices;
+		final int vertexSize;
+		final boolean showLineDir;
+		final boolean showLabels;
+		final Color labelColor;
+		/**
+		 * True when the feature is only an opaque outline, so consecutive
+		 * features with this style may be stroked as a single path without
+		 * changing the result.
+		 */
+		final boolean batchable;
+		private final int hash;
+		
+		/** Strokes and padding set when first interned */
+		Stroke stroke;
+		Stroke solidStroke;
+		/** Pixels this style may draw outside the world bounds of a feature */
+		double pad;
+		
+		ResolvedStyle(int magnification, int type, boolean antialias,
+				Color fillColor, boolean fill, int pointSize, double lineWidth,
+				float[] dashPattern, Color lineColor, boolean showVertices,
+				int vertexSize, boolean showLineDir, boolean showLabels,
+				Color labelColor) {
+			this.magnification = magnification;
+			this.type = type;
+			this.antialias = antialias;
+			this.fillColor = fillColor;
+			this.fill = fill;
+			this.pointSize = pointSize;
+			this.lineWidth = lineWidth;
+			this.dashPattern = dashPattern;
+			this.lineColor = lineColor;
+			this.showVertices = showVertices;
+			this.vertexSize = vertexSize;
+			this.showLineDir = showLineDir;
+			this.showLabels = showLabels;
+			this.labelColor = labelColor;
+			batchable = type != FPath.TYPE_POINT && !fill && !showVertices
+				&& !showLineDir && !showLabels
+				&& lineColor != null && lineColor.getAlpha() == 255;
+			int h = magnification;
+			h = 31*h + type;
+			h = 31*h + (antialias ? 1 : 0);
+			h = 31*h + (fillColor == null ? 0 : fillColor.hashCode());
+			h = 31*h + (fill ? 1 : 0);
+			h = 31*h + pointSize;
+			long bits = Double.doubleToLongBits(lineWidth);
+			h = 31*h + (int)(bits ^ (bits >>> 32));
+			h = 31*h + Arrays.hashCode(dashPattern);
+			h = 31*h + (lineColor == null ? 0 : lineColor.hashCode());
+			h = 31*h + (showVertices ? 1 : 0);
+			h = 31*h + vertexSize;
+			h = 31*h + (showLineDir ? 1 : 0);
+			h = 31*h + (showLabels ? 1 : 0);
+			h = 31*h + (labelColor == null ? 0 : labelColor.hashCode());
+			hash = h;
+		}
+		
+		public int hashCode() {
+			return hash;
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof ResolvedStyle))
+				return false;
+			ResolvedStyle s = (ResolvedStyle)o;
+			return hash == s.hash
+				&& magnification == s.magnification
+				&& type == s.type
+				&& antialias == s.antialias
+				&& equal(fillColor, s.fillColor)
+				&& fill == s.fill
+				&& pointSize == s.pointSize
+				&& lineWidth == s.lineWidth
+				&& Arrays.equals(dashPattern, s.dashPattern)
+				&& equal(lineColor, s.lineColor)
+				&& showVertices == s.showVertices
+				&& vertexSize == s.vertexSize
+				&& showLineDir == s.showLineDir
+				&& showLabels == s.showLabels
+				&& equal(labelColor, s.labelColor);
+		}
+		
+		private static boolean equal(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+	
+	/**
+	 * A feature ready to draw, with its padded world y range.
+	 */
+	private static final class Item {
+		final ResolvedStyle style;
+		final FPath world;
+		final String label;
+		final double minY;
+		final double maxY;
+		Item(ResolvedStyle style, FPath world, String label, double minY, double maxY) {
+			this.style = style;
+			this.world = world;
+			this.label = label;
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+	}
+	
+	/**
+	 * Tracks the state installed on a world Graphics2D so it is only changed
+	 * when a feature needs something different.
+	 */
+	private final class Pen {
+		final Graphics2D g2w;
+		private Object antialias;
+		private Color color;
+		private Stroke stroke;
+		private boolean fontSet;
+		
+		Pen(Graphics2D g2w) {
+			this.g2w = g2w;
+		}
+		
+		void antialias(boolean on) {
+			Object hint = on
+				? RenderingHints.VALUE_ANTIALIAS_ON
+				: RenderingHints.VALUE_ANTIALIAS_OFF;
+			if (hint != antialias) {
+				g2w.setRenderingHint(RenderingHints.KEY_ANTIALIASING, hint);
+				antialias = hint;
+			}
+		}
+		
+		void color(Color c) {
+			if (color == null || !color.equals(c)) {
+				g2w.setColor(c);
+				color = c;
+			}
+		}
+		
+		void stroke(Stroke s) {
+			if (s != stroke) {
+				g2w.setStroke(s);
+				stroke = s;
+			}
+		}
+		
+		void label(String text, Color c, float x, float y) {
+			if (!fontSet) {
+				g2w.setFont(font);
+				fontSet = true;
+			}
+			color(c);
+			g2w.drawString(text, x, y);
+			// text is drawn as a shape with its own stroke
+			stroke = null;
+		}
+	}
+	
+	/**
+	 * The features of one draw call and the progress made on them, shared by
+	 * all threads drawing them.
+	 */
+	private final class Pass {
+		final List<Item> items;
+		final int total;
+		private final Thread owner = Thread.currentThread();
+		private final AtomicInteger done = new AtomicInteger();
+		/** Set when the threads still drawing this pass should give up */
+		volatile boolean cancelled = false;
+		
+		Pass(List<Item> items, int total) {
+			this.items = items;
+			this.total = total;
+		}
+		
+		boolean isStopped() {
+			return cancelled || stopDrawing;
+		}
+		
+		/**
+		 * Records progress on the given number of items, notifying the
+		 * listeners when called on the thread that started the pass.
+		 */
+		void finished(int count) {
+			int i = done.addAndGet(count);
+			if (Thread.currentThread() == owner) {
+				long now = System.currentTimeMillis();
+				if (now - lastProgress >= progressInterval) {
+					lastProgress = now;
+					fireProgressEvent(i, total);
+				}
+			}
+		}
+		
+		/** Sends the final progress event, unless the pass was stopped */
+		void complete() {
+			if (!isStopped() && total > 0)
+				fireProgressEvent(total - 1, total);
+		}
+	}
+	
+	/**
+	 * Draws the features that reach one horizontal strip of the screen into
+	 * an image of its own.
+	 */
+	private final class Strip implements Runnable {
+		private final Pass pass;
+		final int y;
+		private final AffineTransform worldToScreen;
+		private final double minY;
+		private final double maxY;
+		/** Created up front, and copied by the drawing thread once finished */
+		final BufferedImage image;
+		/** Set by the drawing thread once the image has been copied to the screen */
+		boolean copied;
+		
+		Strip(Pass pass, int y, int width, int height,
+				AffineTransform worldToScreen, double minY, double maxY) {
+			this.pass = pass;
+			this.y = y;
+			this.worldToScreen = worldToScreen;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.image = Util.newBufferedImage(width, height);
+		}
+		
+		public void run() {
+			Graphics2D g2 = image.createGraphics();
+			g2.translate(0, -y);
+			g2.transform(worldToScreen);
+			Graphics2D g2w = lView.viewman.wrapWorldGraphics(g2);
+			try {
+				drawItems(g2w, pass, minY, maxY);
+			} finally {
+				g2w.dispose();
+			}
+		}
+	}
+	
 	/**
 	 * Dispose off various object references such that object finalization may
 	 * happen correctly.
@@ -0,0 +1,382 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+
+import edu.asu.jmars.util.DebugLog;
+
+/**
+ * Reads the records of an ESRI shapefile directly from its .shp, .shx and
+ * .dbf files, one record at a time, so loading never holds more than the
+ * record being decoded.
+ * <p>The files are read with positioned reads through a window of a block or
+ * so, rather than memory-mapped, since a mapping outlives close() until it is
+ * collected, and on Windows that keeps the file from being saved over. The
+ * .shx offsets locate each geometry record, so records may be read in any
+ * order, and each record's bounding box can be tested before its vertices are
+ * decoded.
+ * <p>Attribute values are returned the way OpenMap's DbfInputStream returns
+ * them: trimmed Strings, or Doubles for numeric columns.
+ */
+final class ShapefileReader {
+	private static final DebugLog log = DebugLog.instance();
+
+	/** Type code of a numeric dbf column */
+	static final byte DBF_NUMERIC = 'N';
+
+	private final Source shp;
+	private final Source shx;
+	private final Source dbf;
+	private final int shapeType;
+	private final int recordCount;
+
+	private final int rowCount;
+	private final int headerLength;
+	private final int rowLength;
+	private final String[] columnNames;
+	private final byte[] columnTypes;
+	private final int[] columnLengths;
+	private final byte[] columnDecimals;
+	/** Offset of each column within a row, after the deletion flag */
+	private final int[] columnOffsets;
+	private final DecimalFormat numberFormat = new DecimalFormat();
+
+	ShapefileReader(String shpName, String shxName, String dbfName) throws IOException {
+		shp = new Source(shpName);
+		shx = new Source(shxName);
+		dbf = new Source(dbfName);
+		try {
+			ByteBuffer header = shp.get(0, 100);
+			if (header.order(ByteOrder.BIG_ENDIAN).getInt(0) != 9994) {
+				throw new IOException("Not a shapefile: " + shpName);
+			}
+			shapeType = header.order(ByteOrder.LITTLE_ENDIAN).getInt(32);
+			recordCount = (int)((shx.size() - 100) / 8);
+
+			ByteBuffer dbfHeader = dbf.get(0, 32).order(ByteOrder.LITTLE_ENDIAN);
+			rowCount = dbfHeader.getInt(4);
+			headerLength = dbfHeader.getShort(8) & 0xFFFF;
+			rowLength = dbfHeader.getShort(10) & 0xFFFF;
+			int columns = (headerLength - 32 - 1) / 32;
+			columnNames = new String[columns];
+			columnTypes = new byte[columns];
+			columnLengths = new int[columns];
+			columnDecimals = new byte[columns];
+			columnOffsets = new int[columns];
+			ByteBuffer desc = dbf.get(32, columns*32);
+			byte[] name = new byte[11];
+			int offset = 1;
+			for (int c = 0; c < columns; c++) {
+				desc.position(c*32);
+				desc.get(name);
+				int len = 0;
+				while (len < name.length && name[len] != 0) {
+					len ++;
+				}
+				columnNames[c] = new String(name, 0, len).trim();
+				columnTypes[c] = desc.get(c*32 + 11);
+				columnLengths[c] = desc.get(c*32 + 16) & 0xFF;
+				columnDecimals[c] = desc.get(c*32 + 17);
+				columnOffsets[c] = offset;
+				offset += columnLengths[c];
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) {
+			close();
+			throw new IOException("Unreadable shapefile " + shpName + ": " + e);
+		}
+	}
+
+	/** Returns the shape type from the .shp header */
+	int getShapeType() {
+		return shapeType;
+	}
+
+	/**
+	 * Returns the plain type (1, 3 or 5) of a point, polyline or polygon
+	 * shape type or its Z or M variant, or 0 for null shapes and the types
+	 * an FPath can't hold, such as multipoints and multipatches.
+	 */
+	static int plainType(int shapeType) {
+		switch (shapeType) {
+		case 1: case 11: case 21:
+			return 1;
+		case 3: case 13: case 23:
+			return 3;
+		case 5: case 15: case 25:
+			return 5;
+		default:
+			return 0;
+		}
+	}
+
+	/** Returns the number of geometry records, from the .shx index */
+	int getRecordCount() {
+		return recordCount;
+	}
+
+	/** Returns the number of attribute rows, from the .dbf header */
+	int getRowCount() {
+		return rowCount;
+	}
+
+	int getColumnCount() {
+		return columnNames.length;
+	}
+
+	String getColumnName(int column) {
+		return columnNames[column];
+	}
+
+	byte getColumnType(int column) {
+		return columnTypes[column];
+	}
+
+	int getColumnLength(int column) {
+		return columnLengths[column];
+	}
+
+	byte getColumnDecimals(int column) {
+		return columnDecimals[column];
+	}
+
+	/** Returns the little-endian content of geometry record i, positioned at its shape type */
+	private ByteBuffer getRecord(int i) throws IOException {
+		ByteBuffer index = shx.get(100 + 8L*i, 8).order(ByteOrder.BIG_ENDIAN);
+		long offset = (index.getInt(0) & 0xFFFFFFFFL) * 2;
+		int length = index.getInt(4) * 2;
+		return shp.get(offset + 8, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns true if record i has a supported shape whose bounding box, in
+	 * the coordinates of the file, intersects <code>bounds</code> or
+	 * <code>bounds</code> shifted by up to two turns either way.
+	 */
+	boolean intersects(int i, Rectangle2D bounds) throws IOException {
+		ByteBuffer rec = getRecord(i);
+		if (rec.remaining() < 4) {
+			return false;
+		}
+		double minX, minY, maxX, maxY;
+		switch (plainType(rec.getInt(0))) {
+		case 0:
+			return false;
+		case 1:
+			minX = maxX = rec.getDouble(4);
+			minY = maxY = rec.getDouble(12);
+			break;
+		default:
+			minX = rec.getDouble(4);
+			minY = rec.getDouble(12);
+			maxX = rec.getDouble(20);
+			maxY = rec.getDouble(28);
+			break;
+		}
+		if (maxY < bounds.getMinY() || minY > bounds.getMaxY()) {
+			return false;
+		}
+		for (int shift = -720; shift <= 720; shift += 360) {
+			if (maxX + shift >= bounds.getMinX() && minX + shift <= bounds.getMaxX()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the vertices of each part of record i as lat,lon pairs in
+	 * degrees, or null for a null shape. A point has one part. Since an FPath
+	 * holds a single connected path, callers make one path of each part; the
+	 * parts of a polygon include its holes, which {@link #isHole(float[])}
+	 * tells apart.
+	 */
+	float[][] readParts(int i) throws IOException {
+		ByteBuffer rec = getRecord(i);
+		if (rec.remaining() < 4) {
+			return null;
+		}
+		int type = rec.getInt(0);
+		switch (plainType(type)) {
+		case 1:
+			return new float[][]{{(float)rec.getDouble(12), (float)rec.getDouble(4)}};
+		case 3:
+		case 5:
+			int parts = rec.getInt(36);
+			int points = rec.getInt(40);
+			int base = 44 + 4*parts;
+			float[][] coords = new float[parts][];
+			for (int part = 0; part < parts; part++) {
+				int start = rec.getInt(44 + 4*part);
+				int end = part < parts-1 ? rec.getInt(48 + 4*part) : points;
+				float[] c = new float[(end - start)*2];
+				for (int p = start, k = 0; p < end; p++) {
+					int at = base + 16*p;
+					c[k++] = (float)rec.getDouble(at + 8);
+					c[k++] = (float)rec.getDouble(at);
+				}
+				coords[part] = c;
+			}
+			return coords;
+		default:
+			if (type != 0) {
+				log.println("Skipping unsupported shape type " + type + " in record " + i);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the lat,lon pairs of a polygon ring run
+	 * counter-clockwise, which shapefiles use for the holes in a polygon,
+	 * outer rings running clockwise.
+	 */
+	static boolean isHole(float[] ring) {
+		double area = 0;
+		int n = ring.length;
+		for (int k = 0; k < n; k += 2) {
+			int next = (k + 2) % n;
+			// x is longitude, y is latitude
+			area += (double)ring[k+1] * ring[next] - (double)ring[next+1] * ring[k];
+		}
+		return area > 0;
+	}
+
+	/**
+	 * Returns the attribute values of dbf row <code>row</code>, one per
+	 * column: a Double for a non-blank numeric column, otherwise the trimmed
+	 * String. Unparseable numbers are returned as 0, as OpenMap does.
+	 */
+	Object[] readRow(int row, byte[] scratch) throws IOException {
+		ByteBuffer buf = dbf.get(headerLength + (long)row*rowLength, rowLength);
+		if (scratch.length < rowLength) {
+			throw new IllegalArgumentException("scratch buffer shorter than a row");
+		}
+		buf.get(scratch, 0, rowLength);
+		Object[] values = new Object[columnNames.length];
+		for (int c = 0; c < values.length; c++) {
+			String s = new String(scratch, columnOffsets[c], columnLengths[c]).trim();
+			if (columnTypes[c] == DBF_NUMERIC && s.length() > 0) {
+				values[c] = parseNumber(s, row, c);
+			} else {
+				values[c] = s;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Parses a numeric cell. Cells that aren't plain numbers, such as those
+	 * with the grouping separators OpenMap's writer puts in, are parsed with
+	 * a DecimalFormat, as OpenMap's reader does.
+	 */
+	private Double parseNumber(String s, int row, int column) {
+		try {
+			return Double.valueOf(s);
+		} catch (NumberFormatException e) {
+			try {
+				return Double.valueOf(numberFormat.parse(s).doubleValue());
+			} catch (ParseException pe) {
+				log.println("Error parsing column " + column + ", row " + row + ", expected number and got " + s);
+				return Double.valueOf(0);
+			}
+		}
+	}
+
+	/** Returns the length of a dbf row, for sizing the readRow scratch buffer */
+	int getRowLength() {
+		return rowLength;
+	}
+
+	void close() {
+		shp.close();
+		shx.close();
+		dbf.close();
+	}
+
+	/**
+	 * One of the files, read with positioned reads. The last block read is
+	 * kept, so reading records in file order costs a read per block rather
+	 * than one per record.
+	 */
+	private static final class Source {
+		/** Smallest number of bytes read at once */
+		private static final int WINDOW = 64*1024;
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+		/** The bytes at windowPos, replaced rather than reused, so buffers handed out stay valid */
+		private ByteBuffer window;
+		private long windowPos;
+
+		Source(String name) throws IOException {
+			file = new RandomAccessFile(name, "r");
+			channel = file.getChannel();
+			size = channel.size();
+		}
+
+		long size() {
+			return size;
+		}
+
+		/** Returns a buffer of the given bytes, positioned at zero */
+		ByteBuffer get(long pos, int length) throws IOException {
+			if (pos < 0 || length < 0 || pos + length > size) {
+				throw new IOException("Read of " + length + " bytes at " + pos + " is beyond the end of the file");
+			}
+			if (window == null || pos < windowPos || pos + length > windowPos + window.limit()) {
+				ByteBuffer buf = ByteBuffer.allocate((int)Math.min(Math.max(length, WINDOW), size - pos));
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, pos + buf.position()) < 0) {
+						throw new IOException("Unexpected end of file");
+					}
+				}
+				buf.flip();
+				window = buf;
+				windowPos = pos;
+			}
+			ByteBuffer buf = window.duplicate();
+			buf.position((int)(pos - windowPos));
+			buf.limit((int)(pos - windowPos) + length);
+			return buf.slice();
+		}
+
+		void close() {
+			window = null;
+			try {
+				file.close();
+			} catch (IOException e) {
+				log.println("Failed closing shapefile: " + e);
+			}
+		}
+	}
+}
@@ -91,6 +91,7 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 		if (f.owner != null)
 			f = f.clone ();
 		f.owner = this;
+		attach (f);
 		features.add (index, f);
 		Set newSet = new LinkedHashSet (f.attributes.keySet ());
 		newSet.removeAll (schema);
@@ -112,6 +113,7 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 			if (f.owner != null)
 				f = f.clone ();
 			f.owner = this;
+			attach (f);
 			features.add(f);
 			addSet.addAll (f.attributes.keySet ());
 		}
@@ -152,6 +154,7 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 			if (feature.owner != null && feature.owner != this)
 				feature = (Feature)feature.clone();
 			feature.owner = this;
+			attach (feature);
 			
 			this.features.add(index, feature);
 			addedFeatures.add(feature);
@@ -169,6 +172,22 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 				addedFeatures, null, null));
 	}
 
+	/**
+	 * Called once the given Feature is owned by this collection, before it is
+	 * added to the features list. Subclasses that keep the attributes of their
+	 * Features somewhere else replace the Feature's attribute map here.
+	 */
+	protected void attach (Feature f) {
+	}
+	
+	/**
+	 * Called once the given Feature is no longer in this collection. Subclasses
+	 * that replaced the Feature's attribute map in {@link #attach(Feature)}
+	 * must give it back a standalone map here.
+	 */
+	protected void detach (Feature f) {
+	}
+	
 	/* (non-Javadoc)
 	 * @see edu.asu.jmars.layer.util.features.FeatureCollection#removeFeature(edu.asu.jmars.layer.util.features.Feature)
 	 */
@@ -177,8 +196,10 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 			FeatureEvent fe = new FeatureEvent (FeatureEvent.REMOVE_FEATURE, this, 
 					Collections.singletonList (f), null, null);
 			features.remove (f);
-			if (f.owner == this)
+			if (f.owner == this) {
 				f.owner = null;
+				detach (f);
+			}
 			notify (fe);
 		}
 	}
@@ -197,8 +218,11 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 		features.removeAll (delSet);
 		// unhook each deleted feature from this FeatureCollection
 		Iterator delIt = delSet.iterator ();
-		while (delIt.hasNext ())
-			((Feature)delIt.next ()).owner = null;
+		while (delIt.hasNext ()) {
+			Feature f = (Feature)delIt.next ();
+			f.owner = null;
+			detach (f);
+		}
 		// notify
 		notify (fe);
 	}
@@ -228,6 +252,10 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 		if (after.owner != null && after.owner != self)
 			after = (Feature)after.clone();
 		after.owner = self;
+		if (before != after) {
+			detach (before);
+			attach (after);
+		}
 		
 		FeatureEvent fe = new FeatureEvent (FeatureEvent.REMOVE_FEATURE, this,
 				Collections.singletonList (before), null, null);
@@ -345,6 +373,7 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 				iter.remove ();
 				// if last==null, iter.remove() throws IllegalStateException
 				last.owner = null;
+				detach (last);
 				self.notify (fe);
 			}
 			/**
@@ -362,7 +391,9 @@ public class SingleFeatureCollection implements FeatureCollection, Versionable {
 				iter.set (feature);
 				// if last==null, iter.remove() throws IllegalStateException
 				last.owner = null;
+				detach (last);
 				feature.owner = self;
+				attach (feature);
 				self.notify(fe);
 				last = feature;
 				fe = new FeatureEvent (FeatureEvent.ADD_FEATURE, self,
@@ -0,0 +1,43 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Every test case, as run by the 'test' target of the build.
+ */
+public class AllTests {
+	public static Test suite() {
+		TestSuite suite = new TestSuite("JMARS");
+		suite.addTestSuite(ProjObjTest.class);
+		suite.addTestSuite(edu.asu.jmars.graphics.GridDataStoreTest.class);
+		suite.addTestSuite(edu.asu.jmars.layer.map2.TileCoverageTest.class);
+		suite.addTestSuite(edu.asu.jmars.layer.nomenclature.LabelGridTest.class);
+		suite.addTestSuite(edu.asu.jmars.layer.nomenclature.LandmarkIndexTest.class);
+		suite.addTestSuite(edu.asu.jmars.layer.util.features.ColumnFeatureCollectionTest.class);
+		suite.addTestSuite(edu.asu.jmars.layer.util.features.FeatureQueryTest.class);
+		suite.addTestSuite(edu.asu.jmars.layer.util.features.ShapefileReaderTest.class);
+		suite.addTestSuite(edu.asu.jmars.layer.util.features.FeatureProviderCSVTest.class);
+		return suite;
+	}
+}
@@ -0,0 +1,112 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the packed-array conversions of ProjObj against the conversion of
+ * one point at a time.
+ */
+public class ProjObjTest extends TestCase {
+	private static final double EPS = 1e-9;
+	private static final double[][] centers = {{0, 0}, {45, 30}, {200, -60}, {359, 89}, {90, -90}};
+
+	/** Returns count random points packed as x,y pairs after off leading zeros */
+	private static double[] points(int off, int count, long seed) {
+		Random r = new Random(seed);
+		double[] pts = new double[off + 2*count];
+		for (int i = 0; i < count; i++) {
+			pts[off + 2*i] = r.nextDouble() * 360;
+			pts[off + 2*i + 1] = r.nextDouble() * 178 - 89;
+		}
+		return pts;
+	}
+
+	/** Asserts that two longitudes are the same, modulo 360 */
+	private static void assertLon(String msg, double expected, double actual) {
+		double d = Math.abs(expected - actual) % 360;
+		assertTrue(msg + ": " + expected + " vs " + actual, Math.min(d, 360 - d) < EPS);
+	}
+
+	public void testBulkMatchesPointConversion() {
+		for (double[] c: centers) {
+			ProjObj po = new ProjObj.Projection_OC(c[0], c[1]);
+			double[] src = points(3, 500, 1);
+			double[] spatial = new double[src.length + 1];
+			double[] world = new double[src.length + 1];
+			po.convWorldToSpatial(src, 3, spatial, 1, 500);
+			po.convSpatialToWorld(src, 3, world, 1, 500);
+			for (int i = 0; i < 500; i++) {
+				double x = src[3 + 2*i], y = src[3 + 2*i + 1];
+				String at = "center " + c[0] + "," + c[1] + " point " + x + "," + y;
+				Point2D s = po.convWorldToSpatial(x, y);
+				assertLon(at, s.getX(), spatial[1 + 2*i]);
+				assertEquals(at, s.getY(), spatial[1 + 2*i + 1], EPS);
+				Point2D w = po.convSpatialToWorld(x, y);
+				assertLon(at, w.getX(), world[1 + 2*i]);
+				assertEquals(at, w.getY(), world[1 + 2*i + 1], EPS);
+			}
+		}
+	}
+
+	public void testInPlaceAndRoundTrip() {
+		ProjObj po = new ProjObj.Projection_OC(120, 20);
+		double[] orig = points(0, 1000, 2);
+		double[] pts = orig.clone();
+		po.convWorldToSpatial(pts, 0, pts, 0, 1000);
+		po.convSpatialToWorld(pts, 0, pts, 0, 1000);
+		for (int i = 0; i < 1000; i++) {
+			assertLon("x " + i, orig[2*i], pts[2*i]);
+			assertEquals("y " + i, orig[2*i + 1], pts[2*i + 1], 1e-7);
+		}
+	}
+
+	public void testParallelMatchesSerial() {
+		ProjObj po = new ProjObj.Projection_OC(10, -35);
+		int count = 100003;
+		double[] src = points(2, count, 3);
+		double[] serial = new double[src.length];
+		double[] parallel = new double[src.length];
+		po.convWorldToSpatial(src, 2, serial, 2, count);
+		po.convWorldToSpatialParallel(src, 2, parallel, 2, count);
+		assertTrue(Arrays.equals(serial, parallel));
+		po.convSpatialToWorld(src, 2, serial, 2, count);
+		po.convSpatialToWorldParallel(src, 2, parallel, 2, count);
+		assertTrue(Arrays.equals(serial, parallel));
+	}
+
+	public void testConvertsOnlyCountPoints() {
+		ProjObj po = new ProjObj.Projection_OC(0, 0);
+		double[] src = points(0, 4, 4);
+		double[] dst = new double[8];
+		Arrays.fill(dst, -1);
+		po.convWorldToSpatial(src, 2, dst, 2, 2);
+		assertEquals(-1.0, dst[0], 0);
+		assertEquals(-1.0, dst[1], 0);
+		assertEquals(-1.0, dst[6], 0);
+		assertEquals(-1.0, dst[7], 0);
+	}
+}
@@ -0,0 +1,152 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.graphics;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * Converts text grid files to the binary chunk format and reads the result
+ * back by hand, following the layout documented on writeBinaryChunk.
+ */
+public class GridDataStoreTest extends TestCase {
+	/** Points in a chunk, 20 columns of 10 */
+	private static final int POINTS = 20 * 10;
+
+	private File dir;
+
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("grids", "");
+		dir.delete();
+		assertTrue(dir.mkdir());
+	}
+
+	protected void tearDown() {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	/** Writes a text grid file with the first <code>lines</code> points of a chunk */
+	private File writeText(String name, int lines) throws IOException {
+		File f = new File(dir, name);
+		PrintWriter out = new PrintWriter(new FileWriter(f));
+		for (int k = 0; k < lines; k++) {
+			out.println(value(k, 0) + " " + value(k, 1) + " " + value(k, 2));
+		}
+		out.close();
+		return f;
+	}
+
+	private static double value(int point, int axis) {
+		return point * 3 + axis + 0.25;
+	}
+
+	/** Reads a binary grid file, checking its header, and returns its points */
+	private static double[] readBinary(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			assertEquals(0x4a475244, in.readInt());
+			assertEquals(2, in.readInt());
+			assertEquals(20, in.readInt());
+			assertEquals(10, in.readInt());
+			assertEquals(400.0, in.readDouble(), 0);
+			assertEquals(20.0, in.readDouble(), 0);
+			byte[] server = new byte[in.readInt()];
+			in.readFully(server);
+			assertEquals(GridDataStore.TRACK_SERVER, new String(server, "UTF-8"));
+			double[] points = new double[POINTS * 3];
+			for (int k = 0; k < points.length; k++) {
+				points[k] = in.readDouble();
+			}
+			assertEquals(-1, in.read());
+			return points;
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testConvertWritesPointsInTextOrder() throws IOException {
+		writeText("g_0_0", POINTS);
+		assertEquals(1, GridDataStore.convertLocalFiles(dir));
+		double[] points = readBinary(new File(dir, "g_0_0.bin"));
+		for (int k = 0; k < POINTS; k++) {
+			for (int axis = 0; axis < 3; axis++) {
+				assertEquals(value(k, axis), points[k*3 + axis], 0);
+			}
+		}
+		assertFalse(new File(dir, "g_0_0.bin.tmp").exists());
+	}
+
+	public void testShortTextIsZeroFilled() throws IOException {
+		writeText("g_400_-20", 37);
+		assertEquals(1, GridDataStore.convertLocalFiles(dir));
+		double[] points = readBinary(new File(dir, "g_400_-20.bin"));
+		for (int k = 0; k < POINTS; k++) {
+			for (int axis = 0; axis < 3; axis++) {
+				assertEquals(k < 37 ? value(k, axis) : 0, points[k*3 + axis], 0);
+			}
+		}
+	}
+
+	public void testUpToDateFilesAreSkipped() throws IOException {
+		File text = writeText("g_0_0", POINTS);
+		writeText("notes", 3);
+		writeText("g_0_0.txt", 3);
+		assertEquals(1, GridDataStore.convertLocalFiles(dir));
+		assertEquals(0, GridDataStore.convertLocalFiles(dir));
+		assertFalse(new File(dir, "notes.bin").exists());
+
+		// a newer text file is converted again
+		File bin = new File(dir, "g_0_0.bin");
+		assertTrue(bin.setLastModified(text.lastModified() - 10000));
+		assertEquals(1, GridDataStore.convertLocalFiles(dir));
+
+		// as is one whose binary form was written for another grid
+		FileWriter out = new FileWriter(bin);
+		out.write("not a grid file");
+		out.close();
+		assertTrue(text.setLastModified(bin.lastModified() - 10000));
+		assertEquals(1, GridDataStore.convertLocalFiles(dir));
+		readBinary(bin);
+	}
+
+	public void testBadTextFails() throws IOException {
+		File f = new File(dir, "g_0_20");
+		FileWriter out = new FileWriter(f);
+		out.write("1 2 3\n4 five 6\n");
+		out.close();
+		try {
+			GridDataStore.convertLocalFiles(dir);
+			fail("Converted a file with a bad point");
+		} catch (IOException e) {
+		}
+		assertFalse(new File(dir, "g_0_20.bin").exists());
+	}
+}
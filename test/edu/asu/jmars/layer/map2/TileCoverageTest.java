@@ -0,0 +1,153 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.map2;
+
+import java.awt.geom.Area;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the rectangles of a TileCoverage with an Area grown from the same
+ * tiles, the way MapData tracked coverage before. At 256 ppd a tile is one
+ * degree, so every edge is exact.
+ */
+public class TileCoverageTest extends TestCase {
+	private static final int PPD = 256;
+
+	/** Returns the extent of tile (i,j) on the grid shifted by the offset */
+	private static Rectangle2D tile(int i, int j, Point2D offset) {
+		return new Rectangle2D.Double(i - offset.getX(), j - 90 - offset.getY(), 1, 1);
+	}
+
+	private static Area union(List<Rectangle2D> rects) {
+		Area a = new Area();
+		for (Rectangle2D r: rects) {
+			a.add(new Area(r));
+		}
+		return a;
+	}
+
+	/** Asserts the rectangles don't overlap and cover exactly the expected area */
+	private static void assertCovers(String msg, Area expected, List<Rectangle2D> rects) {
+		for (int i = 0; i < rects.size(); i++) {
+			for (int j = i+1; j < rects.size(); j++) {
+				assertFalse(msg + ": " + rects.get(i) + " overlaps " + rects.get(j), rects.get(i).intersects(rects.get(j)));
+			}
+		}
+		assertTrue(msg + ": covers " + rects, expected.equals(union(rects)));
+	}
+
+	public void testRectanglesMatchArea() {
+		Random r = new Random(3);
+		Point2D[] offsets = {new Point2D.Double(), new Point2D.Double(0.25, -0.5)};
+		for (Point2D offset: offsets) {
+			Rectangle2D clip = new Rectangle2D.Double(-10.3, -20.1, 30.6, 25.7);
+			TileCoverage cov = new TileCoverage(clip, PPD, offset);
+			Area finished = new Area();
+			Area fuzzy = new Area();
+			assertTrue(cov.isValidEmpty());
+			for (int n = 0; n < 150; n++) {
+				Rectangle2D t = tile(r.nextInt(40) - 15, r.nextInt(40) + 60, offset);
+				boolean isFinal = r.nextBoolean();
+				cov.add(t, isFinal);
+				(isFinal ? finished : fuzzy).add(new Area(t));
+			}
+			finished.intersect(new Area(clip));
+			fuzzy.intersect(new Area(clip));
+			Area valid = new Area(finished);
+			valid.add(fuzzy);
+			assertFalse(cov.isFinishedEmpty());
+			assertCovers("finished " + offset, finished, cov.getFinishedRectangles());
+			assertCovers("fuzzy " + offset, fuzzy, cov.getFuzzyRectangles());
+			assertCovers("valid " + offset, valid, cov.getValidRectangles());
+		}
+	}
+
+	public void testLargerTilesAndMergedRuns() {
+		Point2D offset = new Point2D.Double();
+		TileCoverage cov = new TileCoverage(new Rectangle2D.Double(0, -10, 10, 10), PPD, offset);
+		// one tile from a coarser level covers four cells
+		cov.add(new Rectangle2D.Double(2, -6, 2, 2), true);
+		cov.add(new Rectangle2D.Double(2, -4, 2, 1), true);
+		List<Rectangle2D> rects = cov.getFinishedRectangles();
+		assertEquals(Arrays.asList(new Rectangle2D.Double(2, -6, 2, 3)), rects);
+		// tiles outside the clip mark nothing
+		cov.add(new Rectangle2D.Double(20, -6, 1, 1), true);
+		cov.add(new Rectangle2D.Double(2, 5, 1, 1), false);
+		assertEquals(rects, cov.getFinishedRectangles());
+		assertTrue(cov.getFuzzyRectangles().isEmpty());
+	}
+
+	public void testChangedRectangles() {
+		Point2D offset = new Point2D.Double();
+		Rectangle2D clip = new Rectangle2D.Double(0, -10, 10, 10);
+		TileCoverage cov = new TileCoverage(clip, PPD, offset);
+		cov.add(tile(1, 81, offset), true);
+		TileCoverage last = cov.copy();
+		cov.add(tile(2, 81, offset), false);
+		cov.add(tile(8, 85, offset), true);
+		// a finished tile is reported again when it becomes fuzzy too
+		cov.add(tile(1, 81, offset), false);
+		Rectangle2D all = new Rectangle2D.Double(-100, -100, 200, 200);
+		Area expected = new Area(new Rectangle2D.Double(1, -9, 2, 1));
+		expected.add(new Area(new Rectangle2D.Double(8, -5, 1, 1)));
+		assertCovers("changed", expected, cov.getChangedRectangles(last, all));
+		assertCovers("changed in extent", new Area(new Rectangle2D.Double(1.5, -9, 1, 1)),
+			cov.getChangedRectangles(last, new Rectangle2D.Double(1.5, -10, 1, 5)));
+		// without a previous coverage on the same grid, everything is new
+		Area valid = union(cov.getValidRectangles());
+		assertCovers("no last", valid, cov.getChangedRectangles(null, all));
+		TileCoverage other = new TileCoverage(clip, PPD * 2, offset);
+		assertFalse(cov.sameGrid(other));
+		assertCovers("other grid", valid, cov.getChangedRectangles(other, all));
+		assertTrue(cov.sameGrid(last));
+	}
+
+	public void testClipAndCopyAreIndependent() {
+		Point2D offset = new Point2D.Double();
+		TileCoverage cov = new TileCoverage(new Rectangle2D.Double(0, -10, 10, 10), PPD, offset);
+		cov.add(new Rectangle2D.Double(0, -10, 10, 10), true);
+		TileCoverage clipped = cov.clip(new Rectangle2D.Double(2.5, -3, 100, 100));
+		assertCovers("clipped", new Area(new Rectangle2D.Double(2.5, -3, 7.5, 3)), clipped.getFinishedRectangles());
+		TileCoverage copy = cov.copy();
+		cov.add(new Rectangle2D.Double(0, -10, 10, 10), false);
+		assertTrue(copy.getFuzzyRectangles().isEmpty());
+		assertFalse(cov.getFuzzyRectangles().isEmpty());
+	}
+
+	public void testRectangleArea() {
+		List<Rectangle2D> rects = new ArrayList<Rectangle2D>();
+		rects.add(new Rectangle2D.Double(0, 0, 1, 1));
+		rects.add(new Rectangle2D.Double(3, 0, 2, 1));
+		TileCoverage.RectangleArea area = new TileCoverage.RectangleArea(rects);
+		assertEquals(rects, Arrays.asList(TileCoverage.getRectangles(area)));
+		area.add(new Area(new Rectangle2D.Double(1, 0, 2, 1)));
+		assertNull(area.getRectangles());
+		Area expected = new Area(new Rectangle2D.Double(0, 0, 5, 1));
+		assertCovers("changed area", expected, Arrays.asList(TileCoverage.getRectangles(area)));
+	}
+}
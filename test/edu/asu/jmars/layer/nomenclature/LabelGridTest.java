@@ -0,0 +1,80 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.nomenclature;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the conflicts a LabelGrid finds with a scan of every label and
+ * landmark point, including entries outside the grid's bounds.
+ */
+public class LabelGridTest extends TestCase {
+	public void testConflictsMatchScan() {
+		Random r = new Random(5);
+		Rectangle2D bounds = new Rectangle2D.Double(-10, -10, 20, 20);
+		LabelGrid grid = new LabelGrid(bounds, 1.5, 0.5);
+		List<Rectangle2D> labels = new ArrayList<Rectangle2D>();
+		List<double[]> points = new ArrayList<double[]>();
+		List<Object> owners = new ArrayList<Object>();
+		for (int i = 0; i < 300; i++) {
+			Object owner = Integer.valueOf(i);
+			double x = r.nextDouble() * 30 - 15;
+			double y = r.nextDouble() * 30 - 15;
+			points.add(new double[] {x, y});
+			owners.add(owner);
+			grid.addPoint(x, y, owner);
+			if (i % 3 == 0) {
+				Rectangle2D label = new Rectangle2D.Double(x, y, r.nextDouble() * 3, r.nextDouble());
+				labels.add(label);
+				grid.addLabel(label, owner);
+			}
+		}
+		for (int n = 0; n < 1000; n++) {
+			Rectangle2D cand = new Rectangle2D.Double(r.nextDouble() * 30 - 15, r.nextDouble() * 30 - 15,
+				r.nextDouble() * 4, r.nextDouble() * 2);
+			Object owner = owners.get(r.nextInt(owners.size()));
+			boolean expected = false;
+			for (Rectangle2D label: labels) {
+				expected |= cand.intersects(label);
+			}
+			for (int i = 0; i < points.size(); i++) {
+				expected |= owners.get(i) != owner && cand.contains(points.get(i)[0], points.get(i)[1]);
+			}
+			assertEquals("candidate " + cand, expected, grid.inConflict(cand, owner));
+		}
+	}
+
+	public void testOwnPointIsNoConflict() {
+		LabelGrid grid = new LabelGrid(new Rectangle2D.Double(0, 0, 10, 10), 1, 1);
+		Object a = "a", b = "b";
+		grid.addPoint(5, 5, a);
+		Rectangle2D r = new Rectangle2D.Double(4, 4, 2, 2);
+		assertFalse(grid.inConflict(r, a));
+		assertTrue(grid.inConflict(r, b));
+		grid.addLabel(new Rectangle2D.Double(5.5, 5.5, 1, 1), a);
+		assertTrue(grid.inConflict(r, a));
+	}
+}
@@ -0,0 +1,121 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.nomenclature;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares window queries on a LandmarkIndex with a scan of every landmark
+ * and every 360 degree copy of its point.
+ */
+public class LandmarkIndexTest extends TestCase {
+	private List<Integer> ids;
+	private double[] world;
+
+	protected void setUp() {
+		Random r = new Random(7);
+		int count = 3000;
+		ids = new ArrayList<Integer>();
+		world = new double[2*count];
+		for (int i = 0; i < count; i++) {
+			ids.add(i);
+			// points outside [0,360) and on the poles and cell edges too
+			world[2*i] = r.nextInt(5) == 0 ? r.nextInt(8) * 90 - 360 : r.nextDouble() * 1080 - 360;
+			world[2*i+1] = r.nextInt(20) == 0 ? (r.nextBoolean() ? 90 : -90) : r.nextDouble() * 180 - 90;
+		}
+	}
+
+	/** Returns the matches of a scan as sorted "id x y" strings */
+	private List<String> scan(Rectangle2D win) {
+		List<String> out = new ArrayList<String>();
+		for (int i = 0; i < ids.size(); i++) {
+			double x = world[2*i] % 360;
+			if (x < 0) {
+				x += 360;
+			}
+			for (int k = (int)Math.floor(win.getMinX() / 360) - 1; k <= (int)Math.ceil(win.getMaxX() / 360); k++) {
+				if (win.contains(x + 360*k, world[2*i+1])) {
+					out.add(ids.get(i) + " " + (x + 360*k) + " " + world[2*i+1]);
+				}
+			}
+		}
+		Collections.sort(out);
+		return out;
+	}
+
+	/** Returns the matches of a query as sorted "id x y" strings */
+	private static List<String> query(LandmarkIndex<Integer> index, Rectangle2D win) {
+		List<Integer> found = new ArrayList<Integer>();
+		List<Point2D> points = new ArrayList<Point2D>();
+		index.query(win, found, points);
+		assertEquals(found.size(), points.size());
+		List<String> out = new ArrayList<String>();
+		for (int i = 0; i < found.size(); i++) {
+			out.add(found.get(i) + " " + points.get(i).getX() + " " + points.get(i).getY());
+		}
+		Collections.sort(out);
+		return out;
+	}
+
+	public void testQueriesMatchScan() {
+		Rectangle2D[] windows = {
+			new Rectangle2D.Double(10, -10, 30, 20),
+			new Rectangle2D.Double(-20, -5, 40, 10),
+			new Rectangle2D.Double(350, 80, 20, 10),
+			new Rectangle2D.Double(-400, -90, 900, 180),
+			new Rectangle2D.Double(0, -90, 360, 180),
+			new Rectangle2D.Double(719, -1, 2, 2),
+			new Rectangle2D.Double(45, 0, 0.001, 0.001),
+		};
+		for (double cellSize: new double[] {0.5, 2, 7, 400}) {
+			LandmarkIndex<Integer> index = new LandmarkIndex<Integer>(ids, world, cellSize);
+			assertEquals(ids.size(), index.size());
+			for (Rectangle2D win: windows) {
+				List<String> expected = scan(win);
+				assertEquals("cell " + cellSize + " window " + win, expected, query(index, win));
+			}
+		}
+	}
+
+	public void testRandomWindows() {
+		LandmarkIndex<Integer> index = new LandmarkIndex<Integer>(ids, world, 3);
+		Random r = new Random(11);
+		for (int n = 0; n < 200; n++) {
+			double w = r.nextDouble() * 100;
+			double h = r.nextDouble() * 60;
+			Rectangle2D win = new Rectangle2D.Double(r.nextDouble() * 1000 - 500, r.nextDouble() * 200 - 100, w, h);
+			assertEquals("window " + win, scan(win), query(index, win));
+		}
+	}
+
+	public void testEmpty() {
+		LandmarkIndex<Integer> index = new LandmarkIndex<Integer>(new ArrayList<Integer>(), new double[0], 2);
+		assertEquals(0, index.size());
+		assertEquals(0, query(index, new Rectangle2D.Double(-180, -90, 720, 180)).size());
+	}
+}
@@ -0,0 +1,226 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the same edits on a ColumnFeatureCollection and a
+ * SingleFeatureCollection, and checks that every Feature ends up with the
+ * same attributes in the same order, and that the same events are sent.
+ */
+public class ColumnFeatureCollectionTest extends TestCase {
+	private static final Field INT = new Field("int", Integer.class);
+	private static final Field DBL = new Field("dbl", Double.class);
+	private static final Field STR = new Field("str", String.class);
+	private static final Field OBJ = new Field("obj", Object.class);
+	private static final Field[] fields = {INT, DBL, STR, OBJ, Field.FIELD_PATH};
+
+	/** Returns a random value for the field, sometimes of another type */
+	private static Object value(Random r, Field f) {
+		switch (r.nextInt(8)) {
+		case 0: return null;
+		case 1: return "other" + r.nextInt(3);
+		}
+		if (f == INT) {
+			return r.nextInt(5);
+		} else if (f == DBL) {
+			return r.nextDouble();
+		} else if (f == STR) {
+			return "s" + r.nextInt(4);
+		} else {
+			return Arrays.asList(r.nextInt(3));
+		}
+	}
+
+	private static Feature feature(Random r) {
+		Feature f = new Feature();
+		List<Field> order = new ArrayList<Field>(Arrays.asList(fields));
+		for (int n = r.nextInt(order.size() + 1); n > 0; n--) {
+			Field field = order.remove(r.nextInt(order.size()));
+			f.setAttribute(field, value(r, field));
+		}
+		return f;
+	}
+
+	/** Returns the attributes of every feature, in their iteration order */
+	private static List<Map<Field,Object>> rows(FeatureCollection fc) {
+		List<Map<Field,Object>> out = new ArrayList<Map<Field,Object>>();
+		for (Object o: fc.getFeatures()) {
+			Feature f = (Feature)o;
+			out.add(new LinkedHashMap<Field,Object>(f.attributes));
+		}
+		return out;
+	}
+
+	private static void assertSameRows(String msg, FeatureCollection expected, FeatureCollection actual) {
+		List<Map<Field,Object>> e = rows(expected);
+		List<Map<Field,Object>> a = rows(actual);
+		assertEquals(msg, e, a);
+		for (int i = 0; i < e.size(); i++) {
+			assertEquals(msg + " order of row " + i, new ArrayList<Field>(e.get(i).keySet()), new ArrayList<Field>(a.get(i).keySet()));
+			for (Field f: fields) {
+				assertEquals(msg + " " + f + " of row " + i, expected.getFeature(i).getAttribute(f), actual.getFeature(i).getAttribute(f));
+			}
+		}
+	}
+
+	/** Records the type and size of each event */
+	private static final class Recorder implements FeatureListener {
+		final List<String> events = new ArrayList<String>();
+		public void receive(FeatureEvent e) {
+			events.add(e.type + ":" + (e.features == null ? 0 : e.features.size()) + ":" + e.fields);
+		}
+	}
+
+	public void testMatchesSingleFeatureCollection() {
+		Random r = new Random(17);
+		SingleFeatureCollection single = new SingleFeatureCollection();
+		ColumnFeatureCollection column = new ColumnFeatureCollection();
+		Recorder singleEvents = new Recorder();
+		Recorder columnEvents = new Recorder();
+		single.addListener(singleEvents);
+		column.addListener(columnEvents);
+		for (int step = 0; step < 3000; step++) {
+			int op = r.nextInt(10);
+			int count = single.getFeatureCount();
+			long seed = r.nextLong();
+			if (op < 3 || count == 0) {
+				single.addFeature(feature(new Random(seed)));
+				column.addFeature(feature(new Random(seed)));
+			} else if (op < 4) {
+				List<Feature> a = new ArrayList<Feature>(), b = new ArrayList<Feature>();
+				Random ra = new Random(seed), rb = new Random(seed);
+				for (int n = 0; n < 5; n++) {
+					a.add(feature(ra));
+					b.add(feature(rb));
+				}
+				single.addFeatures(a);
+				column.addFeatures(b);
+			} else if (op < 7) {
+				int i = r.nextInt(count);
+				Field f = fields[r.nextInt(fields.length)];
+				Object v = value(new Random(seed), f);
+				single.getFeature(i).setAttribute(f, v);
+				column.getFeature(i).setAttribute(f, v);
+			} else if (op < 8) {
+				int i = r.nextInt(count);
+				Field f = fields[r.nextInt(fields.length)];
+				single.getFeature(i).attributes.remove(f);
+				column.getFeature(i).attributes.remove(f);
+			} else if (op < 9) {
+				int i = r.nextInt(count);
+				single.removeFeature(single.getFeature(i));
+				column.removeFeature(column.getFeature(i));
+			} else {
+				// a removed feature keeps its attributes, and can be added back
+				int i = r.nextInt(count);
+				Feature s = single.getFeature(i), c = column.getFeature(i);
+				single.removeFeature(s);
+				column.removeFeature(c);
+				assertEquals(new ArrayList<Field>(s.attributes.keySet()), new ArrayList<Field>(c.attributes.keySet()));
+				assertEquals(s.attributes, c.attributes);
+				single.addFeature(s);
+				column.addFeature(c);
+			}
+			if (step % 100 == 0) {
+				assertSameRows("step " + step, single, column);
+			}
+		}
+		assertSameRows("end", single, column);
+		assertEquals(singleEvents.events, columnEvents.events);
+	}
+
+	public void testAddFeaturesByColumn() {
+		ColumnFeatureCollection column = new ColumnFeatureCollection();
+		SingleFeatureCollection single = new SingleFeatureCollection();
+		Field[] order = {STR, INT, DBL, OBJ};
+		Object[] values = {
+			new Object[] {"a", null, "c"},
+			new int[] {1, 2, 3},
+			new double[] {0.5, 1.5, 2.5},
+			new Object[] {null, Arrays.asList(1), "x"},
+		};
+		column.addFeatures(order, values, 3);
+		for (int i = 0; i < 3; i++) {
+			Feature f = new Feature();
+			for (int k = 0; k < order.length; k++) {
+				Object v;
+				if (values[k] instanceof int[]) {
+					v = ((int[])values[k])[i];
+				} else if (values[k] instanceof double[]) {
+					v = ((double[])values[k])[i];
+				} else {
+					v = ((Object[])values[k])[i];
+				}
+				if (v != null) {
+					f.setAttribute(order[k], v);
+				}
+			}
+			single.addFeature(f);
+		}
+		assertSameRows("by column", single, column);
+		assertEquals(Arrays.asList(INT, DBL, OBJ), new ArrayList<Field>(column.getFeature(1).attributes.keySet()));
+	}
+
+	public void testConcurrentReadsDuringWrites() throws InterruptedException {
+		final ColumnFeatureCollection fc = new ColumnFeatureCollection();
+		final Field v = new Field("v", Double.class);
+		final Throwable[] failure = {null};
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 20000; i++) {
+						Feature f = new Feature();
+						f.setAttribute(v, (double)i);
+						fc.addFeature(f);
+						// converts the column to objects part way through
+						if (i % 3 == 0) {
+							f.setAttribute(v, "s" + i);
+						}
+					}
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		};
+		writer.start();
+		while (writer.isAlive()) {
+			int n = fc.getFeatureCount();
+			for (int i = 0; i < n; i++) {
+				Object o = fc.getFeature(i).getAttribute(v);
+				assertTrue("row " + i + " was " + o, o instanceof Double || o instanceof String);
+			}
+		}
+		writer.join();
+		assertNull(failure[0]);
+		assertEquals(20000, fc.getFeatureCount());
+		assertEquals("s0", fc.getFeature(0).getAttribute(v));
+		assertEquals(Double.valueOf(1), fc.getFeature(1).getAttribute(v));
+	}
+}
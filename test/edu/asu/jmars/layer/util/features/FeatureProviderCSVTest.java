@@ -0,0 +1,213 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import edu.asu.jmars.layer.util.features.FeatureProviderCSV.RecordSplitter;
+import edu.asu.jmars.layer.util.features.FeatureProviderCSV.Type;
+
+/**
+ * Splits CSV text with quoted line breaks into chunks, and loads files large
+ * enough to span several chunks, checking the column types and values.
+ */
+public class FeatureProviderCSVTest extends TestCase {
+	private File dir;
+
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("csv", "");
+		dir.delete();
+		assertTrue(dir.mkdir());
+	}
+
+	protected void tearDown() {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	private String writeFile(String name, String text) throws IOException {
+		File f = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(text.getBytes("ISO-8859-1"));
+		out.close();
+		return f.getPath();
+	}
+
+	/** Returns a random cell, sometimes quoted with delimiters, quotes and line breaks inside */
+	private static String cell(Random r) {
+		switch (r.nextInt(6)) {
+		case 0: return "";
+		case 1: return "\"a,b\"";
+		case 2: return "\"x\"\"y\nz\"";
+		case 3: return "\"one\r\ntwo\rthree\"";
+		case 4: return " \"q\" ";
+		default: return Integer.toString(r.nextInt(1000));
+		}
+	}
+
+	/** Returns the number of lines before <code>to</code>, with CR LF as one break */
+	private static int lineOf(String text, int to) {
+		int line = 1;
+		for (int i = 0; i < to; i++) {
+			char c = text.charAt(i);
+			if (c == '\r' || (c == '\n' && (i == 0 || text.charAt(i-1) != '\r'))) {
+				line ++;
+			}
+		}
+		return line;
+	}
+
+	public void testChunksEndOnRecords() throws IOException {
+		Random r = new Random(5);
+		StringBuilder sb = new StringBuilder("# polar_radius = 3376.2\r\n#\n\"lat\",lon,\"a\nb\"\r\n");
+		// a record ends at a CR, so the LF after it starts the first chunk
+		int header = sb.length() - 1;
+		for (int n = 0; n < 500; n++) {
+			sb.append(cell(r)).append(',').append(cell(r)).append(',').append(cell(r));
+			sb.append(r.nextBoolean() ? "\r\n" : "\n");
+			if (r.nextInt(20) == 0) {
+				sb.append("# a comment, with \"a quote\n");
+			}
+		}
+		sb.append("1,2,3");
+		String text = sb.toString();
+		byte[] bytes = text.getBytes("ISO-8859-1");
+		for (int size: new int[] {1, 7, 16, 64, 1000, 1 << 16}) {
+			RecordSplitter splitter = new RecordSplitter(new ByteArrayInputStream(bytes), size);
+			splitter.setDelimiter(',');
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			byte[] chunk;
+			while (null != (chunk = splitter.next())) {
+				String msg = "size " + size + " at " + (header + all.size());
+				assertEquals(msg, lineOf(text, header + all.size()), splitter.line());
+				assertEquals(msg, text.charAt(header + all.size() - 1) == '\r', splitter.afterCR());
+				// every record but the last in the file ends in the chunk
+				int at = 0;
+				while (at >= 0 && at < chunk.length) {
+					at = RecordSplitter.recordEnd(chunk, at, chunk.length, (byte)',');
+				}
+				all.write(chunk);
+				assertTrue(msg, at == chunk.length || all.size() == bytes.length - header);
+			}
+			assertEquals("size " + size, text.substring(header), all.toString("ISO-8859-1"));
+		}
+	}
+
+	public void testLineBreaks() {
+		byte[] b = "a\r\nb\rc\n\nd".getBytes();
+		assertEquals(4, RecordSplitter.lineBreaks(b, 0, b.length, false));
+		// an LF starting the range after a CR ends no line
+		assertEquals(3, RecordSplitter.lineBreaks(b, 2, b.length, true));
+		assertEquals(4, RecordSplitter.lineBreaks(b, 2, b.length, false));
+	}
+
+	public void testClassify() {
+		assertEquals(Type.INT, Type.classify("0"));
+		assertEquals(Type.INT, Type.classify("-12"));
+		assertEquals(Type.INT, Type.classify("2147483647"));
+		assertEquals(Type.DBL, Type.classify("2147483648"));
+		assertEquals(Type.DBL, Type.classify("1.5"));
+		assertEquals(Type.DBL, Type.classify("-.5"));
+		assertEquals(Type.DBL, Type.classify("2e10"));
+		assertEquals(Type.STR, Type.classify(""));
+		assertEquals(Type.STR, Type.classify("abc"));
+		assertEquals(Type.STR, Type.classify("1.5x"));
+		assertEquals(-12, Type.toInt("-12"));
+		assertEquals(2147483647, Type.toInt("2147483647"));
+		assertEquals(2e10, Type.toDouble("2e10"), 0);
+		assertEquals(-0.5, Type.toDouble("-.5"), 0);
+	}
+
+	private static Field field(FeatureCollection fc, String name) {
+		for (Object o: fc.getSchema()) {
+			if (((Field)o).name.equals(name)) {
+				return (Field)o;
+			}
+		}
+		fail("No field " + name);
+		return null;
+	}
+
+	public void testLoadWidensAcrossChunks() throws IOException {
+		// enough rows for several chunks, with each late change to a column in
+		// a later chunk than the sample and the chunks parsed before it
+		int rows = 120000;
+		String pad = "................................................................";
+		StringBuilder sb = new StringBuilder("lat,lon,i,d,s,pad\n");
+		for (int n = 0; n < rows; n++) {
+			String i = n == 100000 ? "2.5" : Integer.toString(n);
+			String d = n == 5 ? "007" : n == 110000 ? "x" : n == 115000 ? "1.50" : Integer.toString(n % 100);
+			String s = n == 20 ? "\"with, comma\n and break\"" : "s" + (n % 7);
+			sb.append(n % 90).append(',').append(n % 360).append(',').append(i).append(',')
+				.append(d).append(',').append(s).append(',').append(pad).append('\n');
+		}
+		assertTrue(sb.length() > 8 << 20);
+		FeatureCollection fc = new FeatureProviderCSV().load(writeFile("big.csv", sb.toString()));
+		assertEquals(rows, fc.getFeatureCount());
+		Field i = field(fc, "i"), d = field(fc, "d"), s = field(fc, "s");
+		assertEquals(Double.class, i.type);
+		assertEquals(String.class, d.type);
+		assertEquals(String.class, s.type);
+		for (int n = 0; n < rows; n++) {
+			Feature f = fc.getFeature(n);
+			assertEquals("row " + n, n == 100000 ? 2.5 : n, ((Number)f.getAttribute(i)).doubleValue(), 0);
+		}
+		// numbers read before the column became strings keep their text
+		assertEquals("007", fc.getFeature(5).getAttribute(d));
+		assertEquals("6", fc.getFeature(6).getAttribute(d));
+		assertEquals("99", fc.getFeature(109999).getAttribute(d));
+		assertEquals("x", fc.getFeature(110000).getAttribute(d));
+		assertEquals("1.50", fc.getFeature(115000).getAttribute(d));
+		assertEquals("with, comma\n and break", fc.getFeature(20).getAttribute(s));
+		assertEquals("s" + (rows - 1) % 7, fc.getFeature(rows - 1).getAttribute(s));
+		assertEquals(rows - 1, ((Number)fc.getFeature(rows - 1).getAttribute(i)).doubleValue(), 0);
+	}
+
+	public void testLoadNarrowTypes() throws IOException {
+		String name = writeFile("small.csv", "# lon_dir = west\nlatitude\tlongitude\tn\tv\r\n10\t20\t1\t0.5\r\n-10\t30W\t2\t3\r\n");
+		FeatureCollection fc = new FeatureProviderCSV().load(name);
+		assertEquals(2, fc.getFeatureCount());
+		assertEquals(Integer.class, field(fc, "n").type);
+		assertEquals(Double.class, field(fc, "v").type);
+		assertEquals(Integer.valueOf(2), fc.getFeature(1).getAttribute(field(fc, "n")));
+		assertEquals(Double.valueOf(3), fc.getFeature(1).getAttribute(field(fc, "v")));
+	}
+
+	public void testBadRecordLine() throws IOException {
+		String name = writeFile("bad.csv", "# comment\r\nlat,lon,name\r\n1,2,\"a\r\nb\"\r\n3,4,c\n5,6\n7,8,d\n");
+		try {
+			new FeatureProviderCSV().load(name);
+			fail("Loaded a record with too few cells");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("on line 6"));
+		}
+	}
+}
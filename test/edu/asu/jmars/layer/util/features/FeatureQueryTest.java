@@ -0,0 +1,141 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs WHERE and SET clauses against a few features, checking the results
+ * the old temp table gave.
+ */
+public class FeatureQueryTest extends TestCase {
+	private static final Field NAME = new Field("Name", String.class);
+	private static final Field COUNT = new Field("Count", Integer.class);
+	private static final Field SIZE = new Field("Size", Double.class);
+	private static final Field FLAG = new Field("Flag", Boolean.class);
+	private static final List<Field> schema = Arrays.asList(NAME, COUNT, SIZE, FLAG);
+
+	private Feature[] features;
+
+	protected void setUp() {
+		features = new Feature[] {
+			feature("alpha", 1, 1.5, true),
+			feature("beta  ", 2, 2.5, false),
+			feature("gamma", 3, null, false),
+			feature(null, null, 4.0, true),
+		};
+	}
+
+	private static Feature feature(String name, Integer count, Double size, Boolean flag) {
+		Feature f = new Feature();
+		f.setAttribute(NAME, name);
+		f.setAttribute(COUNT, count);
+		f.setAttribute(SIZE, size);
+		f.setAttribute(FLAG, flag);
+		return f;
+	}
+
+	/** Returns the keys of the features matching the clause */
+	private String where(String clause) throws SQLException {
+		FeatureQuery.Predicate p = FeatureQuery.compileWhere(clause, schema);
+		StringBuffer keys = new StringBuffer();
+		for (int key = 0; key < features.length; key++) {
+			if (p.matches(features[key], key)) {
+				keys.append(key);
+			}
+		}
+		return keys.toString();
+	}
+
+	public void testEmptyClauseMatchesAll() throws SQLException {
+		assertEquals("0123", where(""));
+	}
+
+	public void testComparisons() throws SQLException {
+		assertEquals("12", where("where count > 1"));
+		assertEquals("01", where("where size <= 2.5"));
+		assertEquals("023", where("where count <> 2 or count is null"));
+		assertEquals("1", where("where count between 2 and 2"));
+		assertEquals("02", where("where count in (1, 3)"));
+		assertEquals("03", where("where flag = 'true'"));
+	}
+
+	public void testNullIsUnknown() throws SQLException {
+		assertEquals("", where("where size = null"));
+		assertEquals("2", where("where size is null"));
+		assertEquals("012", where("where not (count is null)"));
+		// neither the comparison nor its negation matches a null count
+		assertEquals("0", where("where count < 2"));
+		assertEquals("12", where("where not count < 2"));
+	}
+
+	public void testTrailingSpacesIgnored() throws SQLException {
+		assertEquals("1", where("where name = 'beta'"));
+		assertEquals("1", where("where name like 'b_ta'"));
+		assertEquals("02", where("where name like '%a' and name not like 'b%'"));
+	}
+
+	public void testKeyAndIdentifiers() throws SQLException {
+		assertEquals("2", where("where key = 2"));
+		assertEquals("1", where("where [Count] = 2"));
+		assertEquals("1", where("where COUNT = 2"));
+	}
+
+	public void testFunctionsAndArithmetic() throws SQLException {
+		assertEquals("0", where("where upper(name) = 'ALPHA'"));
+		assertEquals("2", where("where substring(name, 2, 3) = 'amm'"));
+		assertEquals("01", where("where count * 2 + 1 = size * 2"));
+		assertEquals("3", where("where ifnull(count, 9) = 9"));
+		assertEquals("02", where("where mod(count, 2) = 1"));
+	}
+
+	public void testRejectsBadClauses() {
+		String[] bad = {"where nosuch = 1", "where frob(count) = 1", "where count = ", "count = 1", "where count + 1"};
+		for (String clause: bad) {
+			try {
+				where(clause);
+				fail("Compiled " + clause);
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	public void testUpdateUsesOldValues() throws SQLException {
+		FeatureQuery.Update u = FeatureQuery.compileUpdate("count = count + 10, size = count where key = 1", schema);
+		assertNull(u.apply(features[0], 0));
+		Map<Field,Object> changes = u.apply(features[1], 1);
+		assertEquals(Integer.valueOf(12), changes.get(COUNT));
+		assertEquals(Double.valueOf(2), changes.get(SIZE));
+	}
+
+	public void testUpdateConvertsToFieldType() throws SQLException {
+		FeatureQuery.Update u = FeatureQuery.compileUpdate("name = count * 2, count = size, flag = 'true'", schema);
+		Map<Field,Object> changes = u.apply(features[1], 1);
+		assertEquals("4", changes.get(NAME));
+		assertEquals(Integer.valueOf(2), changes.get(COUNT));
+		assertEquals(Boolean.TRUE, changes.get(FLAG));
+	}
+}
@@ -0,0 +1,312 @@
+// Copyright 2008, Arizona Board of Regents
+// on behalf of Arizona State University
+// 
+// Prepared by the Mars Space Flight Facility, Arizona State University,
+// Tempe, AZ.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package edu.asu.jmars.layer.util.features;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes small shapefiles with multi-part records, and reads them back with
+ * ShapefileReader and FeatureProviderESRI.
+ */
+public class ShapefileReaderTest extends TestCase {
+	/** Rings as lon,lat pairs; outer rings run clockwise and holes counter-clockwise */
+	private static final double[] square = {0,0, 0,10, 10,10, 10,0, 0,0};
+	private static final double[] hole = {2,2, 8,2, 8,8, 2,8, 2,2};
+	private static final double[] square2 = {20,0, 20,5, 25,5, 25,0, 20,0};
+
+	private File dir;
+
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("shapes", "");
+		dir.delete();
+		assertTrue(dir.mkdir());
+	}
+
+	protected void tearDown() {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Writes a shapefile of the given type, with the parts of each record as
+	 * lon,lat pairs and an ID and NAME column; a null record is a null shape,
+	 * and a negative id is a blank cell. Returns the name of the .shp file.
+	 */
+	private String write(String base, int type, double[][][] records, int[] ids, String[] names) throws IOException {
+		int plain = ShapefileReader.plainType(type);
+		boolean hasZ = type == 11 || type == 13 || type == 15;
+		List<byte[]> bodies = new ArrayList<byte[]>();
+		for (double[][] parts: records) {
+			ByteBuffer b;
+			if (parts == null) {
+				b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				b.putInt(0);
+			} else if (plain == 1) {
+				b = ByteBuffer.allocate(hasZ ? 36 : 20).order(ByteOrder.LITTLE_ENDIAN);
+				b.putInt(type).putDouble(parts[0][0]).putDouble(parts[0][1]);
+				if (hasZ) {
+					b.putDouble(7).putDouble(0);
+				}
+			} else {
+				int points = 0;
+				for (double[] p: parts) {
+					points += p.length / 2;
+				}
+				b = ByteBuffer.allocate(44 + 4*parts.length + 16*points + (hasZ ? 32 + 16*points : 0)).order(ByteOrder.LITTLE_ENDIAN);
+				double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+				for (double[] p: parts) {
+					for (int k = 0; k < p.length; k += 2) {
+						minX = Math.min(minX, p[k]);
+						maxX = Math.max(maxX, p[k]);
+						minY = Math.min(minY, p[k+1]);
+						maxY = Math.max(maxY, p[k+1]);
+					}
+				}
+				b.putInt(type).putDouble(minX).putDouble(minY).putDouble(maxX).putDouble(maxY);
+				b.putInt(parts.length).putInt(points);
+				int start = 0;
+				for (double[] p: parts) {
+					b.putInt(start);
+					start += p.length / 2;
+				}
+				for (double[] p: parts) {
+					for (double d: p) {
+						b.putDouble(d);
+					}
+				}
+				if (hasZ) {
+					// the z range and values, then the measure range and values
+					for (int k = 0; k < 4 + 2*points; k++) {
+						b.putDouble(k);
+					}
+				}
+			}
+			bodies.add(b.array());
+		}
+
+		ByteArrayOutputStream shp = new ByteArrayOutputStream();
+		ByteArrayOutputStream shx = new ByteArrayOutputStream();
+		int words = 50;
+		for (byte[] body: bodies) {
+			words += 4 + body.length/2;
+		}
+		shp.write(header(type, words));
+		shx.write(header(type, 50 + 4*bodies.size()));
+		int offset = 50;
+		for (int i = 0; i < bodies.size(); i++) {
+			byte[] body = bodies.get(i);
+			shp.write(ByteBuffer.allocate(8).putInt(i+1).putInt(body.length/2).array());
+			shp.write(body);
+			shx.write(ByteBuffer.allocate(8).putInt(offset).putInt(body.length/2).array());
+			offset += 4 + body.length/2;
+		}
+		writeFile(base + ".shp", shp.toByteArray());
+		writeFile(base + ".shx", shx.toByteArray());
+
+		int rowLength = 1 + 5 + 8;
+		ByteBuffer dbf = ByteBuffer.allocate(32 + 2*32 + 1 + records.length*rowLength + 1).order(ByteOrder.LITTLE_ENDIAN);
+		dbf.put((byte)3).put((byte)100).put((byte)1).put((byte)1);
+		dbf.putInt(records.length).putShort((short)(32 + 2*32 + 1)).putShort((short)rowLength);
+		column(dbf, 32, "ID", 'N', 5);
+		column(dbf, 64, "NAME", 'C', 8);
+		dbf.position(96);
+		dbf.put((byte)0x0d);
+		for (int i = 0; i < records.length; i++) {
+			dbf.put((byte)' ');
+			dbf.put((ids[i] < 0 ? "     " : String.format("%5d", ids[i])).getBytes());
+			dbf.put(String.format("%-8s", names[i]).getBytes());
+		}
+		dbf.put((byte)0x1a);
+		writeFile(base + ".dbf", dbf.array());
+		return base + ".shp";
+	}
+
+	private static byte[] header(int type, int words) {
+		ByteBuffer h = ByteBuffer.allocate(100);
+		h.putInt(9994);
+		h.position(24);
+		h.putInt(words);
+		h.order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(1000);
+		h.putInt(type);
+		return h.array();
+	}
+
+	private static void column(ByteBuffer dbf, int at, String name, char type, int length) {
+		dbf.position(at);
+		dbf.put(name.getBytes());
+		dbf.put(at + 11, (byte)type);
+		dbf.put(at + 16, (byte)length);
+	}
+
+	private static void writeFile(String name, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(name);
+		out.write(data);
+		out.close();
+	}
+
+	private String base(String name) {
+		return new File(dir, name).getPath();
+	}
+
+	/** Returns the lon,lat pairs of a ring as the lat,lon pairs readParts returns */
+	private static float[] latLon(double[] lonLat) {
+		float[] out = new float[lonLat.length];
+		for (int k = 0; k < lonLat.length; k += 2) {
+			out[k] = (float)lonLat[k+1];
+			out[k+1] = (float)lonLat[k];
+		}
+		return out;
+	}
+
+	private static void assertParts(float[][] expected, float[][] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int p = 0; p < expected.length; p++) {
+			assertEquals("part " + p, Arrays.toString(expected[p]), Arrays.toString(actual[p]));
+		}
+	}
+
+	public void testReadParts() throws IOException {
+		for (int type: new int[] {5, 15}) {
+			String shp = write(base("poly" + type), type,
+				new double[][][] {{square, hole}, {square, square2}, null},
+				new int[] {1, 2, -1}, new String[] {"a", "bb", ""});
+			ShapefileReader r = new ShapefileReader(shp, base("poly" + type) + ".shx", base("poly" + type) + ".dbf");
+			try {
+				assertEquals(type, r.getShapeType());
+				assertEquals(3, r.getRecordCount());
+				assertEquals(3, r.getRowCount());
+				assertParts(new float[][] {latLon(square), latLon(hole)}, r.readParts(0));
+				assertParts(new float[][] {latLon(square), latLon(square2)}, r.readParts(1));
+				assertNull(r.readParts(2));
+				assertFalse(ShapefileReader.isHole(r.readParts(0)[0]));
+				assertTrue(ShapefileReader.isHole(r.readParts(0)[1]));
+
+				byte[] scratch = new byte[r.getRowLength()];
+				assertEquals("ID", r.getColumnName(0));
+				assertEquals(ShapefileReader.DBF_NUMERIC, r.getColumnType(0));
+				Object[] row = r.readRow(1, scratch);
+				assertEquals(Double.valueOf(2), row[0]);
+				assertEquals("bb", row[1]);
+				row = r.readRow(2, scratch);
+				assertEquals("", row[0]);
+				assertEquals("", row[1]);
+			} finally {
+				r.close();
+			}
+		}
+	}
+
+	public void testLinesAndPoints() throws IOException {
+		double[] a = {0,0, 1,1};
+		double[] b = {5,5, 6,6, 7,7};
+		String shp = write(base("line"), 13, new double[][][] {{a, b}}, new int[] {1}, new String[] {"x"});
+		ShapefileReader r = new ShapefileReader(shp, base("line") + ".shx", base("line") + ".dbf");
+		try {
+			assertEquals(3, ShapefileReader.plainType(r.getShapeType()));
+			assertParts(new float[][] {latLon(a), latLon(b)}, r.readParts(0));
+		} finally {
+			r.close();
+		}
+		shp = write(base("point"), 11, new double[][][] {{{30, -5}}}, new int[] {1}, new String[] {"p"});
+		r = new ShapefileReader(shp, base("point") + ".shx", base("point") + ".dbf");
+		try {
+			assertParts(new float[][] {{-5, 30}}, r.readParts(0));
+		} finally {
+			r.close();
+		}
+	}
+
+	public void testIntersectsAcrossTheSeam() throws IOException {
+		String shp = write(base("box"), 5, new double[][][] {{square}, {square2}}, new int[] {1, 2}, new String[] {"a", "b"});
+		ShapefileReader r = new ShapefileReader(shp, base("box") + ".shx", base("box") + ".dbf");
+		try {
+			Rectangle2D view = new Rectangle2D.Double(355, -1, 10, 2);
+			assertTrue(r.intersects(0, view));
+			assertFalse(r.intersects(1, view));
+			assertTrue(r.intersects(1, new Rectangle2D.Double(-350, 3, 10, 1)));
+			assertFalse(r.intersects(0, new Rectangle2D.Double(0, 20, 10, 1)));
+		} finally {
+			r.close();
+		}
+	}
+
+	public void testRejectsOtherFiles() throws IOException {
+		writeFile(base("junk") + ".shp", new byte[100]);
+		writeFile(base("junk") + ".shx", new byte[100]);
+		writeFile(base("junk") + ".dbf", new byte[100]);
+		try {
+			new ShapefileReader(base("junk") + ".shp", base("junk") + ".shx", base("junk") + ".dbf").close();
+			fail("Opened a file that isn't a shapefile");
+		} catch (IOException e) {
+		}
+	}
+
+	/** Returns the values of the named field of each feature */
+	private static List<Object> values(FeatureCollection fc, String name) {
+		Field field = null;
+		for (Object o: fc.getSchema()) {
+			if (((Field)o).name.equals(name)) {
+				field = (Field)o;
+			}
+		}
+		List<Object> out = new ArrayList<Object>();
+		for (Object o: fc.getFeatures()) {
+			out.add(((Feature)o).getAttribute(field));
+		}
+		return out;
+	}
+
+	public void testLoadSplitsPartsAndDropsHoles() throws IOException {
+		String shp = write(base("load"), 5,
+			new double[][][] {{square, hole}, {square, square2}, {hole}, null},
+			new int[] {1, 2, 3, 4}, new String[] {"a", "b", "c", "d"});
+		FeatureCollection fc = new FeatureProviderESRI().load(shp);
+		// the hole is left out, both outer rings are kept, a lone hole is kept
+		// as drawn, and the null shape is skipped
+		assertEquals(4, fc.getFeatureCount());
+		assertEquals(Arrays.asList("a", "b", "b", "c"), values(fc, "NAME"));
+		Point2D[] first = ((Feature)fc.getFeature(1)).getPath().getSpatialEast().getVertices();
+		Point2D[] second = ((Feature)fc.getFeature(2)).getPath().getSpatialEast().getVertices();
+		assertEquals(0, first[0].getX(), 1e-6);
+		assertEquals(20, second[0].getX(), 1e-6);
+
+		// only the records near the bounds are loaded
+		fc = new FeatureProviderESRI().load(shp, new Rectangle2D.Double(21, 1, 1, 1), null);
+		assertEquals(2, fc.getFeatureCount());
+		assertEquals(Arrays.asList("b", "b"), values(fc, "NAME"));
+	}
+}